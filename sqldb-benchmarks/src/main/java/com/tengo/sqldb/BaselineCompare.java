@@ -0,0 +1,175 @@
+/*
+ * Compares benchmark results with a baseline
+ *
+ * @author Prasad Mokkapati  prasadm80@gmail.com
+ */
+package com.tengo.sqldb;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Compares two JMH result files written with -rf csv, e.g. a committed
+ * baseline and the current run:
+ * <pre>
+ *   java -cp target/benchmarks.jar com.tengo.sqldb.BaselineCompare \
+ *       baselines/1.0.csv current.csv 10
+ * </pre>
+ * Prints the change of each score. A throughput below the baseline, or an
+ * allocation per operation (gc.alloc.rate.norm) above it, by more than the
+ * tolerance percent (default 10) is a regression and the exit status is 1.
+ */
+public class BaselineCompare {
+    /**
+     * Score of a benchmark with its parameters
+     */
+    static final class Score {
+        final double _score;
+        final double _error;
+        final String _unit;
+
+        Score(double score, double error, String unit) {
+            _score = score;
+            _error = error;
+            _unit = unit;
+        }
+    }
+
+    public static void main(String args[]) throws IOException {
+        if ( args.length < 2 ) {
+            System.err.println("usage: BaselineCompare baseline.csv "
+                + "current.csv [tolerance percent]");
+            System.exit(2);
+        }
+        double tolerance = (args.length > 2)
+            ? Double.parseDouble(args[2]) / 100 : 0.10;
+        Map<String, Score> base = read(args[0]);
+        Map<String, Score> cur = read(args[1]);
+        int regressions = 0;
+        for (Map.Entry<String, Score> e: cur.entrySet()) {
+            Score c = e.getValue();
+            Score b = base.get(e.getKey());
+            if ( b == null ) {
+                System.out.println(String.format("%-70s %14.2f %-8s new",
+                    e.getKey(), c._score, c._unit));
+                continue;
+            }
+            double change = (b._score == 0) ? 0
+                : (c._score - b._score) / b._score;
+            boolean regressed = false;
+            if ( c._unit.startsWith("ops/") ) {
+                regressed = change < -tolerance;
+            }
+            else if ( c._unit.equals("B/op") ) {
+                // Allow a few bytes of noise on small allocations
+                regressed = change > tolerance && c._score - b._score > 16;
+            }
+            if ( regressed ) {
+                regressions++;
+            }
+            System.out.println(String.format("%-70s %14.2f %14.2f %-8s %+7.1f%%%s",
+                e.getKey(), b._score, c._score, c._unit, change * 100,
+                regressed ? "  REGRESSION" : ""));
+        }
+        for (String k: base.keySet()) {
+            if ( !cur.containsKey(k) ) {
+                System.out.println(String.format("%-70s missing", k));
+            }
+        }
+        System.out.println(regressions + " regressions, tolerance "
+            + Math.round(tolerance * 100) + "%");
+        System.exit(regressions > 0 ? 1 : 0);
+    }
+
+    /**
+     * Internal function to read a JMH csv result file
+     * @return scores by benchmark name and parameter values
+     */
+    static Map<String, Score> read(String file) throws IOException {
+        LinkedHashMap<String, Score> ret = new LinkedHashMap<String, Score>();
+        BufferedReader in = new BufferedReader(new InputStreamReader(
+            new FileInputStream(file), "UTF-8"));
+        try {
+            String header[] = split(in.readLine());
+            int score = index(header, "Score");
+            int error = index(header, "Score Error");
+            int unit = index(header, "Unit");
+            String line;
+            while ( (line = in.readLine()) != null ) {
+                String f[] = split(line);
+                if ( f.length <= unit ) {
+                    continue;
+                }
+                StringBuilder key = new StringBuilder(f[0]
+                    .replace("com.tengo.sqldb.", "").replace("\u00b7", ""));
+                for (int i=unit+1; i < f.length && i < header.length; i++) {
+                    if ( f[i].length() > 0 ) {
+                        key.append(' ').append(header[i]
+                            .replace("Param: ", "")).append('=').append(f[i]);
+                    }
+                }
+                ret.put(key.toString(), new Score(parse(f[score]),
+                    parse(f[error]), f[unit]));
+            }
+        }
+        finally {
+            in.close();
+        }
+        return ret;
+    }
+
+    private static int index(String header[], String prefix) {
+        for (int i=0; i < header.length; i++) {
+            if ( header[i].startsWith(prefix) ) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Not a JMH csv file, no column "
+            + prefix);
+    }
+
+    private static double parse(String s) {
+        try {
+            return Double.parseDouble(s);
+        }
+        catch (NumberFormatException e) { // NaN written by JMH
+            return Double.NaN;
+        }
+    }
+
+    /**
+     * Internal function to split a csv line with quoted fields
+     */
+    private static String[] split(String line) {
+        ArrayList<String> ret = new ArrayList<String>();
+        StringBuilder f = new StringBuilder();
+        boolean quoted = false;
+        for (int i=0; line != null && i < line.length(); i++) {
+            char c = line.charAt(i);
+            if ( c == '"' ) {
+                if ( quoted && i+1 < line.length()
+                        && line.charAt(i+1) == '"' ) {
+                    f.append('"');
+                    i++;
+                }
+                else {
+                    quoted = !quoted;
+                }
+            }
+            else if ( c == ',' && !quoted ) {
+                ret.add(f.toString());
+                f.setLength(0);
+            }
+            else {
+                f.append(c);
+            }
+        }
+        ret.add(f.toString());
+        return ret.toArray(new String[ret.size()]);
+    }
+}
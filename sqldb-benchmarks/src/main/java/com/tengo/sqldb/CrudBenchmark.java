@@ -0,0 +1,152 @@
+/*
+ * Benchmarks of insert, update, get and select
+ *
+ * @author Prasad Mokkapati  prasadm80@gmail.com
+ */
+package com.tengo.sqldb;
+
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import javax.sql.DataSource;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import org.h2.jdbcx.JdbcDataSource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * CRUD paths of BeanMap and DBManager on wide beans. The fake backend
+ * isolates the library overhead, the h2 backend is an in-process H2
+ * database in memory. BeanMap operations run on a connection held by the
+ * benchmark, DBManager select gets its connection per call.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations=3, time=2)
+@Measurement(iterations=5, time=2)
+// Guice 3 needs java.lang open on JDK 9 and later. Java 8 ignores it
+@Fork(value=1, jvmArgsAppend={"-XX:+IgnoreUnrecognizedVMOptions",
+    "--add-opens=java.base/java.lang=ALL-UNNAMED"})
+public class CrudBenchmark {
+    // Rows in the table before each iteration
+    private static final int ROWS = 1000;
+    private static final int BATCH = 100;
+
+    @Param({"fake", "h2"})
+    public String _backend;
+
+    private DBManager _mgr;
+    private BeanMap _map;
+    private Connection _conn;
+    private final ArrayList<WideBean> _batch = new ArrayList<WideBean>();
+    private final WideBean _key = new WideBean();
+    private WideBean _existing;
+    private long _seed = 0;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        final DataSource ds;
+        if ( _backend.equals("fake") ) {
+            FakeDatabase db = new FakeDatabase();
+            ArrayList<WideBean> rows = new ArrayList<WideBean>();
+            for (int i=1; i <= BATCH; i++) {
+                WideBean b = new WideBean().fill(i);
+                b.setId(i);
+                rows.add(b);
+            }
+            db.setResult(FakeDatabase.Result.of(rows));
+            ds = db.getDataSource();
+        }
+        else {
+            JdbcDataSource h2 = new JdbcDataSource();
+            h2.setURL("jdbc:h2:mem:crud;DB_CLOSE_DELAY=-1");
+            ds = h2;
+        }
+        _mgr = Guice.createInjector(new AbstractModule() {
+            protected void configure() {
+                bind(DataSource.class).toInstance(ds);
+            }
+        }).getInstance(DBManager.class);
+        if ( _backend.equals("h2") ) {
+            _mgr.executeSQL("drop table if exists wide");
+            _mgr.executeSQL("create table wide(id bigint auto_increment "
+                + "primary key, s1 varchar(40), s2 varchar(40), "
+                + "s3 varchar(40), s4 varchar(40), s5 varchar(40), "
+                + "s6 varchar(40), s7 varchar(40), s8 varchar(40), "
+                + "l1 bigint, l2 bigint, l3 bigint, l4 bigint, i1 int, "
+                + "i2 int, i3 int, i4 int, d1 double, d2 double, "
+                + "d3 double, d4 double, created timestamp, status int)");
+            ArrayList<WideBean> rows = new ArrayList<WideBean>();
+            for (int i=0; i < ROWS; i++) {
+                rows.add(new WideBean().fill(i));
+            }
+            _mgr.bulkInsert(rows);
+        }
+        _map = BeanMap.get(WideBean.class);
+        _conn = _mgr.getConnection();
+        for (int i=0; i < BATCH; i++) {
+            _batch.add(new WideBean().fill(i));
+        }
+        _existing = new WideBean().fill(1);
+        _existing.setId(1);
+    }
+
+    /**
+     * Function to remove the rows inserted by the previous iteration
+     */
+    @Setup(Level.Iteration)
+    public void trim() throws Exception {
+        if ( _backend.equals("h2") ) {
+            _mgr.executeSQL("delete from wide where id > " + ROWS);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() throws Exception {
+        _mgr.release(_conn);
+    }
+
+    @Benchmark
+    public int insert() throws Exception {
+        return _map.insert(_mgr, _conn, new WideBean().fill(++_seed));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public int bulkInsert() throws Exception {
+        return _map.bulkInsert(_mgr, _conn, _batch);
+    }
+
+    @Benchmark
+    public int update() throws Exception {
+        _existing.setL1(++_seed);
+        return _map.update(_mgr, _conn, _existing);
+    }
+
+    @Benchmark
+    public Object get() throws Exception {
+        _key.setId(1 + (++_seed % ROWS));
+        return _map.get(_mgr, _conn, _key);
+    }
+
+    @Benchmark
+    public ArrayList<WideBean> select() throws Exception {
+        return _mgr.select(WideBean.class,
+            "select * from wide where id <= " + BATCH);
+    }
+}
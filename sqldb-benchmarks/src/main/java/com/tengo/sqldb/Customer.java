@@ -0,0 +1,39 @@
+/*
+ * Bean with a nested list used by benchmarks
+ *
+ * @author Prasad Mokkapati  prasadm80@gmail.com
+ */
+package com.tengo.sqldb;
+
+import java.util.ArrayList;
+import java.util.Date;
+
+/**
+ * Customer with the purchases mapped from the rows of a join, to measure
+ * nested list mapping
+ */
+@Table(name="customer")
+public class Customer {
+    private long _customerId;
+    private String _name;
+    private String _email;
+    private Date _created;
+    private ArrayList<Purchase> _purchases = null;
+
+    @Id
+    public long getCustomerId() { return _customerId; }
+    public void setCustomerId(long v) { _customerId = v; }
+
+    public String getName() { return _name; }
+    public void setName(String v) { _name = v; }
+
+    public String getEmail() { return _email; }
+    public void setEmail(String v) { _email = v; }
+
+    public Date getCreated() { return _created; }
+    public void setCreated(Date v) { _created = v; }
+
+    @OneToMany(mappedBy={"customerId"})
+    public ArrayList<Purchase> getPurchases() { return _purchases; }
+    public void setPurchases(ArrayList<Purchase> v) { _purchases = v; }
+}
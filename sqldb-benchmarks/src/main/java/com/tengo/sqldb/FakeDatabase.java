@@ -0,0 +1,326 @@
+/*
+ * JDBC data source that does no database work, used by benchmarks
+ *
+ * @author Prasad Mokkapati  prasadm80@gmail.com
+ */
+package com.tengo.sqldb;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.sql.DataSource;
+
+/**
+ * In-process fake of a JDBC driver, so benchmarks measure the overhead of
+ * the library without a database. Every query returns the rows of the
+ * current Result, updates return one row per values group and generated
+ * keys are taken from a counter. Parameters are ignored.
+ * The JDBC interfaces are implemented with dynamic proxies, which adds a
+ * small constant cost to each JDBC call.
+ */
+public class FakeDatabase {
+    /**
+     * Rows returned by queries
+     */
+    public static class Result {
+        private final String _tables[];
+        private final String _labels[];
+        private final Object _rows[][];
+
+        /**
+         * @param tables table name of each column
+         * @param labels column labels
+         * @param rows values of each row, enums as ordinals
+         */
+        public Result(String tables[], String labels[], Object rows[][]) {
+            _tables = tables;
+            _labels = labels;
+            _rows = rows;
+        }
+
+        public int getColumnCount() { return _labels.length; }
+        public int getRowCount() { return _rows.length; }
+        public String[] getTables() { return _tables; }
+        public String[] getLabels() { return _labels; }
+        public Object[] getRow(int i) { return _rows[i]; }
+
+        /**
+         * Function to build the result of selecting the columns of the
+         * given beans
+         */
+        public static Result of(List<?> beans) throws DBException {
+            BeanMap map = BeanMap.get(beans.get(0).getClass());
+            ArrayList<Property> props = map.getPrimitives();
+            String tables[] = new String[props.size()];
+            String labels[] = new String[props.size()];
+            for (int i=0; i < labels.length; i++) {
+                tables[i] = map.getTableName();
+                labels[i] = props.get(i).getColName();
+            }
+            Object rows[][] = new Object[beans.size()][];
+            for (int r=0; r < rows.length; r++) {
+                rows[r] = new Object[labels.length];
+                for (int i=0; i < labels.length; i++) {
+                    Object v = props.get(i).getValue(beans.get(r));
+                    rows[r][i] = (v instanceof Enum)
+                        ? Integer.valueOf(((Enum)v).ordinal()) : v;
+                }
+            }
+            return new Result(tables, labels, rows);
+        }
+    }
+
+    private static final Result EMPTY =
+            new Result(new String[0], new String[0], new Object[0][]);
+
+    private volatile Result _result = EMPTY;
+    private final AtomicLong _ids = new AtomicLong();
+    private final AtomicLong _statements = new AtomicLong();
+    private final DataSource _dataSource;
+
+    public FakeDatabase() {
+        _dataSource = proxy(DataSource.class, new InvocationHandler() {
+            public Object invoke(Object p, Method m, Object args[]) {
+                if ( m.getName().equals("getConnection") ) {
+                    return newConnection();
+                }
+                return common(p, m, args, "FakeDataSource");
+            }
+        });
+    }
+
+    public DataSource getDataSource() {
+        return _dataSource;
+    }
+
+    /**
+     * Function to set the rows returned by queries
+     */
+    public void setResult(Result r) {
+        _result = r;
+    }
+
+    /**
+     * Function to return a result set of the current Result, as a query
+     * would
+     */
+    public ResultSet query() {
+        return newResultSet(_result);
+    }
+
+    /**
+     * Function to return the number of statements executed
+     */
+    public long getStatements() {
+        return _statements.get();
+    }
+
+    private Connection newConnection() {
+        final DatabaseMetaData md = proxy(DatabaseMetaData.class,
+                new InvocationHandler() {
+            public Object invoke(Object p, Method m, Object args[]) {
+                if ( m.getName().equals("supportsGetGeneratedKeys") ) {
+                    return Boolean.TRUE;
+                }
+                if ( m.getName().equals("getDatabaseProductName") ) {
+                    return "Fake";
+                }
+                return common(p, m, args, "FakeMetaData");
+            }
+        });
+        return proxy(Connection.class, new InvocationHandler() {
+            public Object invoke(Object p, Method m, Object args[]) {
+                String name = m.getName();
+                if ( name.equals("prepareStatement") ) {
+                    return newStatement((String)args[0]);
+                }
+                if ( name.equals("createStatement") ) {
+                    return newStatement(null);
+                }
+                if ( name.equals("getMetaData") ) {
+                    return md;
+                }
+                if ( name.equals("getAutoCommit") ) {
+                    return Boolean.TRUE;
+                }
+                return common(p, m, args, "FakeConnection");
+            }
+        });
+    }
+
+    /**
+     * Internal function to create a statement. The statement is a
+     * PreparedStatement, which is also a Statement
+     */
+    private PreparedStatement newStatement(final String prepared) {
+        return proxy(PreparedStatement.class, new InvocationHandler() {
+            private int _updated = 0;
+
+            public Object invoke(Object p, Method m, Object args[]) {
+                String name = m.getName();
+                if ( name.equals("executeQuery") ) {
+                    _statements.incrementAndGet();
+                    return newResultSet(_result);
+                }
+                if ( name.equals("executeUpdate") ) {
+                    _statements.incrementAndGet();
+                    String sql = (args != null && args.length > 0)
+                        ? (String)args[0] : prepared;
+                    _updated = rows(sql);
+                    return Integer.valueOf(_updated);
+                }
+                if ( name.equals("getGeneratedKeys") ) {
+                    Object rows[][] = new Object[_updated][];
+                    for (int i=0; i < rows.length; i++) {
+                        rows[i] = new Object[] {
+                            Long.valueOf(_ids.incrementAndGet()) };
+                    }
+                    return newResultSet(new Result(new String[] { "" },
+                        new String[] { "id" }, rows));
+                }
+                return common(p, m, args, "FakeStatement");
+            }
+        });
+    }
+
+    /**
+     * Internal function to return the number of rows of an insert, one
+     * per values group, or 1 for other updates
+     */
+    private static int rows(String sql) {
+        if ( sql == null || !sql.startsWith("insert") ) {
+            return 1;
+        }
+        int n = 1;
+        for (int i = sql.indexOf("), ("); i >= 0;
+                i = sql.indexOf("), (", i + 1)) {
+            n++;
+        }
+        return n;
+    }
+
+    private ResultSet newResultSet(final Result r) {
+        final ResultSetMetaData md = proxy(ResultSetMetaData.class,
+                new InvocationHandler() {
+            public Object invoke(Object p, Method m, Object args[]) {
+                String name = m.getName();
+                if ( name.equals("getColumnCount") ) {
+                    return Integer.valueOf(r.getColumnCount());
+                }
+                if ( name.equals("getColumnLabel")
+                        || name.equals("getColumnName") ) {
+                    return r._labels[((Integer)args[0]).intValue() - 1];
+                }
+                if ( name.equals("getTableName") ) {
+                    return r._tables[((Integer)args[0]).intValue() - 1];
+                }
+                return common(p, m, args, "FakeResultSetMetaData");
+            }
+        });
+        return proxy(ResultSet.class, new InvocationHandler() {
+            private int _row = -1;
+            private boolean _null = false;
+
+            public Object invoke(Object p, Method m, Object args[]) {
+                String name = m.getName();
+                if ( name.equals("next") ) {
+                    return Boolean.valueOf(++_row < r._rows.length);
+                }
+                if ( name.equals("getMetaData") ) {
+                    return md;
+                }
+                if ( name.equals("wasNull") ) {
+                    return Boolean.valueOf(_null);
+                }
+                if ( name.startsWith("get") && args != null
+                        && args.length == 1 && args[0] instanceof Integer ) {
+                    Object v = r._rows[_row][((Integer)args[0]).intValue()-1];
+                    _null = (v == null);
+                    return convert(v, m.getReturnType());
+                }
+                return common(p, m, args, "FakeResultSet");
+            }
+        });
+    }
+
+    /**
+     * Internal function to convert a value to the return type of a getter
+     */
+    private static Object convert(Object v, Class<?> type) {
+        if ( v == null ) {
+            return defaultValue(type);
+        }
+        if ( type == long.class ) {
+            return Long.valueOf(((Number)v).longValue());
+        }
+        if ( type == int.class ) {
+            return Integer.valueOf(((Number)v).intValue());
+        }
+        if ( type == double.class ) {
+            return Double.valueOf(((Number)v).doubleValue());
+        }
+        if ( type == String.class ) {
+            return v.toString();
+        }
+        return v;
+    }
+
+    /**
+     * Internal function to handle the methods not faked by a proxy
+     */
+    private static Object common(Object p, Method m, Object args[],
+            String name) {
+        if ( m.getName().equals("hashCode") ) {
+            return Integer.valueOf(System.identityHashCode(p));
+        }
+        if ( m.getName().equals("equals") ) {
+            return Boolean.valueOf(p == args[0]);
+        }
+        if ( m.getName().equals("toString") ) {
+            return name;
+        }
+        return defaultValue(m.getReturnType());
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if ( !type.isPrimitive() || type == void.class ) {
+            return null;
+        }
+        if ( type == boolean.class ) {
+            return Boolean.FALSE;
+        }
+        if ( type == long.class ) {
+            return Long.valueOf(0);
+        }
+        if ( type == double.class ) {
+            return Double.valueOf(0);
+        }
+        if ( type == float.class ) {
+            return Float.valueOf(0);
+        }
+        if ( type == short.class ) {
+            return Short.valueOf((short)0);
+        }
+        if ( type == byte.class ) {
+            return Byte.valueOf((byte)0);
+        }
+        if ( type == char.class ) {
+            return Character.valueOf((char)0);
+        }
+        return Integer.valueOf(0);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> c, InvocationHandler h) {
+        return (T)Proxy.newProxyInstance(FakeDatabase.class.getClassLoader(),
+            new Class[] { c }, h);
+    }
+}
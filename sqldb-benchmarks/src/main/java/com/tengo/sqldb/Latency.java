@@ -0,0 +1,91 @@
+/*
+ * Latency histogram of the workload driver
+ *
+ * @author Prasad Mokkapati  prasadm80@gmail.com
+ */
+package com.tengo.sqldb;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of nanosecond latencies with 16 linear buckets per power of
+ * 2, so quantiles are within about 6% of the recorded values. Recording
+ * does not lock.
+ */
+public class Latency {
+    private static final int SUB_BITS = 4;
+    private static final int SUB = 1 << SUB_BITS;
+
+    private final AtomicLongArray _buckets = new AtomicLongArray(64 * SUB);
+    private final AtomicLong _count = new AtomicLong();
+    private final AtomicLong _max = new AtomicLong();
+
+    public void add(long nanos) {
+        long v = Math.max(0, nanos);
+        _buckets.incrementAndGet(index(v));
+        _count.incrementAndGet();
+        long m;
+        while ( v > (m = _max.get()) && !_max.compareAndSet(m, v) ) {
+        }
+    }
+
+    public long getCount() { return _count.get(); }
+    public long getMax() { return _max.get(); }
+
+    /**
+     * Function to add the values of another histogram
+     */
+    public void add(Latency l) {
+        for (int i=0; i < _buckets.length(); i++) {
+            long n = l._buckets.get(i);
+            if ( n > 0 ) {
+                _buckets.addAndGet(i, n);
+            }
+        }
+        _count.addAndGet(l._count.get());
+        long m;
+        long v = l._max.get();
+        while ( v > (m = _max.get()) && !_max.compareAndSet(m, v) ) {
+        }
+    }
+
+    /**
+     * Function to return the value at a quantile, the upper bound of its
+     * bucket
+     * @param q quantile between 0 and 1
+     */
+    public long getQuantile(double q) {
+        long n = _count.get();
+        if ( n == 0 ) {
+            return 0;
+        }
+        long rank = (long)Math.ceil(q * n);
+        long seen = 0;
+        for (int i=0; i < _buckets.length(); i++) {
+            seen += _buckets.get(i);
+            if ( seen >= rank ) {
+                return Math.min(upper(i), _max.get());
+            }
+        }
+        return _max.get();
+    }
+
+    static int index(long v) {
+        if ( v < SUB ) {
+            return (int)v;
+        }
+        int e = 63 - Long.numberOfLeadingZeros(v);
+        int sub = (int)((v >>> (e - SUB_BITS)) & (SUB - 1));
+        return (e - SUB_BITS + 1) * SUB + sub;
+    }
+
+    static long upper(int idx) {
+        if ( idx < SUB ) {
+            return idx;
+        }
+        int e = idx / SUB + SUB_BITS - 1;
+        long sub = idx % SUB;
+        return ((SUB + sub + 1) << (e - SUB_BITS)) - 1;
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Benchmarks of mapping rows to beans
+ *
+ * @author Prasad Mokkapati  prasadm80@gmail.com
+ */
+package com.tengo.sqldb;
+
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Mapping costs without JDBC work. Rows come from FakeDatabase result sets
+ * of 100 rows: wide beans with 24 columns, or 20 customers with 5
+ * purchases each mapped from the rows of a join.
+ * In package com.tengo.sqldb to reach ColMap and Property.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations=3, time=2)
+@Measurement(iterations=5, time=2)
+@Fork(1)
+public class MappingBenchmark {
+    @Param({"wide", "nested"})
+    public String _shape;
+
+    private final FakeDatabase _db = new FakeDatabase();
+    private BeanMap _map;
+    private ColMap _colMap;
+    private Property _string;
+    private Property _long;
+    private Property _enum;
+    private WideBean _bean;
+    private long _seed = 0;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        if ( _shape.equals("wide") ) {
+            ArrayList<WideBean> beans = new ArrayList<WideBean>();
+            for (int i=0; i < 100; i++) {
+                beans.add(new WideBean().fill(i));
+            }
+            _db.setResult(FakeDatabase.Result.of(beans));
+            _map = BeanMap.get(WideBean.class);
+        }
+        else {
+            _db.setResult(join(20, 5));
+            _map = BeanMap.get(Customer.class);
+        }
+        _colMap = new ColMap(null, _map, _db.query());
+        BeanMap wide = BeanMap.get(WideBean.class);
+        _string = wide.getProperty("s1");
+        _long = wide.getProperty("l1");
+        _enum = wide.getProperty("status");
+        _bean = new WideBean().fill(1);
+    }
+
+    /**
+     * Internal function to build the rows of customers joined with their
+     * purchases
+     */
+    private static FakeDatabase.Result join(int customers, int purchases) {
+        String tables[] = { "customer", "customer", "customer", "customer",
+            "purchase", "purchase", "purchase", "purchase" };
+        String labels[] = { "customerid", "name", "email", "created",
+            "purchaseid", "customerid", "item", "amount" };
+        Object rows[][] = new Object[customers * purchases][];
+        int r = 0;
+        for (long c=1; c <= customers; c++) {
+            for (int p=0; p < purchases; p++) {
+                rows[r++] = new Object[] { c, "name-" + c, "c" + c + "@x.com",
+                    new Date(1300000000000L + c), c * 100 + p, c,
+                    "item-" + p, p * 1.5 };
+            }
+        }
+        return new FakeDatabase.Result(tables, labels, rows);
+    }
+
+    /**
+     * ColMap construction: reads the result set meta data and maps
+     * columns to properties
+     */
+    @Benchmark
+    public Object colMap() throws Exception {
+        return new ColMap(null, _map, _db.query());
+    }
+
+    /**
+     * Mapping all rows of a result set with a prepared ColMap
+     */
+    @Benchmark
+    public void mapValues(Blackhole bh) throws Exception {
+        ResultSet res = _db.query();
+        Object prev = null;
+        Object obj;
+        while ( res.next() ) {
+            if ( (obj = _colMap.mapValues(prev, res)) != prev ) {
+                bh.consume(obj);
+            }
+            prev = obj;
+        }
+    }
+
+    /**
+     * BeanMap select: ColMap construction and mapping
+     */
+    @Benchmark
+    public ArrayList select() throws Exception {
+        ArrayList list = new ArrayList();
+        _map.select(_db.query(), list);
+        return list;
+    }
+
+    @Benchmark
+    public void propertyGet(Blackhole bh) throws Exception {
+        bh.consume(_string.getValue(_bean));
+        bh.consume(_long.getValue(_bean));
+        bh.consume(_enum.getValue(_bean));
+    }
+
+    @Benchmark
+    public void propertySet() throws Exception {
+        long seed = ++_seed;
+        _string.setValue(_bean, "s");
+        _long.setValue(_bean, Long.valueOf(seed));
+        _enum.setValue(_bean, WideBean.Status.Suspended);
+    }
+}
@@ -0,0 +1,27 @@
+/*
+ * Bean in the nested list of Customer
+ *
+ * @author Prasad Mokkapati  prasadm80@gmail.com
+ */
+package com.tengo.sqldb;
+
+@Table(name="purchase")
+public class Purchase {
+    private long _purchaseId;
+    private long _customerId;
+    private String _item;
+    private double _amount;
+
+    @Id
+    public long getPurchaseId() { return _purchaseId; }
+    public void setPurchaseId(long v) { _purchaseId = v; }
+
+    public long getCustomerId() { return _customerId; }
+    public void setCustomerId(long v) { _customerId = v; }
+
+    public String getItem() { return _item; }
+    public void setItem(String v) { _item = v; }
+
+    public double getAmount() { return _amount; }
+    public void setAmount(double v) { _amount = v; }
+}
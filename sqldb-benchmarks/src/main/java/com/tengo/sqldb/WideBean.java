@@ -0,0 +1,140 @@
+/*
+ * Wide bean used by benchmarks
+ *
+ * @author Prasad Mokkapati  prasadm80@gmail.com
+ */
+package com.tengo.sqldb;
+
+import java.util.Date;
+
+/**
+ * Bean with many columns of the common types, to measure per column
+ * mapping costs
+ */
+@Table(name="wide")
+public class WideBean {
+    public enum Status { Active, Suspended };
+
+    private long _id;
+    private String _s1;
+    private String _s2;
+    private String _s3;
+    private String _s4;
+    private String _s5;
+    private String _s6;
+    private String _s7;
+    private String _s8;
+    private long _l1;
+    private long _l2;
+    private long _l3;
+    private long _l4;
+    private int _i1;
+    private int _i2;
+    private int _i3;
+    private int _i4;
+    private double _d1;
+    private double _d2;
+    private double _d3;
+    private double _d4;
+    private Date _created;
+    private Status _status = Status.Active;
+
+    @Id
+    public long getId() { return _id; }
+    public void setId(long v) { _id = v; }
+
+    public String getS1() { return _s1; }
+    public void setS1(String v) { _s1 = v; }
+
+    public String getS2() { return _s2; }
+    public void setS2(String v) { _s2 = v; }
+
+    public String getS3() { return _s3; }
+    public void setS3(String v) { _s3 = v; }
+
+    public String getS4() { return _s4; }
+    public void setS4(String v) { _s4 = v; }
+
+    public String getS5() { return _s5; }
+    public void setS5(String v) { _s5 = v; }
+
+    public String getS6() { return _s6; }
+    public void setS6(String v) { _s6 = v; }
+
+    public String getS7() { return _s7; }
+    public void setS7(String v) { _s7 = v; }
+
+    public String getS8() { return _s8; }
+    public void setS8(String v) { _s8 = v; }
+
+    public long getL1() { return _l1; }
+    public void setL1(long v) { _l1 = v; }
+
+    public long getL2() { return _l2; }
+    public void setL2(long v) { _l2 = v; }
+
+    public long getL3() { return _l3; }
+    public void setL3(long v) { _l3 = v; }
+
+    public long getL4() { return _l4; }
+    public void setL4(long v) { _l4 = v; }
+
+    public int getI1() { return _i1; }
+    public void setI1(int v) { _i1 = v; }
+
+    public int getI2() { return _i2; }
+    public void setI2(int v) { _i2 = v; }
+
+    public int getI3() { return _i3; }
+    public void setI3(int v) { _i3 = v; }
+
+    public int getI4() { return _i4; }
+    public void setI4(int v) { _i4 = v; }
+
+    public double getD1() { return _d1; }
+    public void setD1(double v) { _d1 = v; }
+
+    public double getD2() { return _d2; }
+    public void setD2(double v) { _d2 = v; }
+
+    public double getD3() { return _d3; }
+    public void setD3(double v) { _d3 = v; }
+
+    public double getD4() { return _d4; }
+    public void setD4(double v) { _d4 = v; }
+
+    public Date getCreated() { return _created; }
+    public void setCreated(Date v) { _created = v; }
+
+    public Status getStatus() { return _status; }
+    public void setStatus(Status v) { _status = v; }
+
+    /**
+     * Function to fill the bean with values of the given seed
+     */
+    public WideBean fill(long seed) {
+        _s1 = "s1-" + seed;
+        _s2 = "s2-" + seed;
+        _s3 = "s3-" + seed;
+        _s4 = "s4-" + seed;
+        _s5 = "s5-" + seed;
+        _s6 = "s6-" + seed;
+        _s7 = "s7-" + seed;
+        _s8 = "s8-" + seed;
+        _l1 = seed * 1;
+        _l2 = seed * 2;
+        _l3 = seed * 3;
+        _l4 = seed * 4;
+        _i1 = (int)seed + 1;
+        _i2 = (int)seed + 2;
+        _i3 = (int)seed + 3;
+        _i4 = (int)seed + 4;
+        _d1 = seed / 1.0;
+        _d2 = seed / 2.0;
+        _d3 = seed / 3.0;
+        _d4 = seed / 4.0;
+        _created = new Date(1300000000000L + seed * 1000);
+        _status = Status.values()[(int)(seed % 2)];
+        return this;
+    }
+}
@@ -0,0 +1,516 @@
+/*
+ * Concurrent workload and soak test driver
+ *
+ * @author Prasad Mokkapati  prasadm80@gmail.com
+ */
+package com.tengo.sqldb;
+
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.sql.DataSource;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+import com.tengo.sqldb.inject.module.TransactionModule;
+import org.h2.jdbcx.JdbcConnectionPool;
+
+/**
+ * Runs a mix of get, select, insert, bulkInsert and Transactional units
+ * from many threads through a Guice wired DBManager on an in-memory H2
+ * database with a bounded connection pool. Every interval it prints the
+ * throughput, p50/p99/p999 latency of each operation, connection wait,
+ * errors, pool and heap use. At the end it prints totals, the throughput
+ * decay between the first and last third of the run, heap growth and
+ * leaked connections or transaction contexts, so long runs catch leaks.
+ * <pre>
+ *   java --add-opens java.base/java.lang=ALL-UNNAMED \
+ *       -cp target/benchmarks.jar com.tengo.sqldb.WorkloadDriver \
+ *       --threads 64 --pool 16 --duration 3600 --interval 10 \
+ *       --mix get=50,select=20,insert=10,bulkInsert=5,transaction=15
+ * </pre>
+ * --add-opens is for Guice 3 on JDK 9 and later. --virtual runs the
+ * workers on virtual threads on JDKs that have them.
+ * The exit status is 1 if connections or contexts leaked, or throughput
+ * decayed more than --max-decay percent.
+ */
+public class WorkloadDriver {
+    public enum Op { get, select, insert, bulkInsert, transaction };
+
+    // Rows read and updated. Inserted rows are removed every interval
+    private static final int BATCH = 20;
+
+    /**
+     * Statistics of an operation. Interval histograms are swapped by the
+     * reporter
+     */
+    static final class Stats {
+        final AtomicReference<Latency> _interval =
+                new AtomicReference<Latency>(new Latency());
+        final Latency _total = new Latency();
+        final AtomicLong _errors = new AtomicLong();
+
+        void add(long nanos) {
+            _interval.get().add(nanos);
+        }
+
+        Latency swap() {
+            Latency l = _interval.getAndSet(new Latency());
+            _total.add(l);
+            return l;
+        }
+    }
+
+    /**
+     * Transactional units. Created by Guice so the methods are
+     * intercepted
+     */
+    public static class Units {
+        @Inject
+        DBManager _mgr;
+
+        /**
+         * Moves an amount between two rows and records it as a new row
+         */
+        @Transactional(maxAttempts=3, backoff=5)
+        public void transfer(long from, long to, long amount)
+                throws DBException {
+            WideBean a = new WideBean();
+            a.setId(from);
+            WideBean b = new WideBean();
+            b.setId(to);
+            if ( _mgr.get(a) == null || _mgr.get(b) == null ) {
+                return;
+            }
+            a.setL1(a.getL1() - amount);
+            b.setL1(b.getL1() + amount);
+            _mgr.update(a);
+            _mgr.update(b);
+            _mgr.insert(new WideBean().fill(amount));
+        }
+    }
+
+    private final Map<String, String> _options;
+    private final int _threads;
+    private final int _rows;
+    private final Op _mix[] = new Op[100];
+    private final LinkedHashMap<Op, Stats> _stats =
+            new LinkedHashMap<Op, Stats>();
+    private final Stats _connWait = new Stats();
+    private final AtomicInteger _openConnections = new AtomicInteger();
+    private final AtomicLong _leakedContexts = new AtomicLong();
+    private final ConcurrentHashMap<String, AtomicLong> _errorTypes =
+            new ConcurrentHashMap<String, AtomicLong>();
+    private final PrintWriter _out = new PrintWriter(System.out, true);
+    private volatile boolean _stop = false;
+    private DBManager _mgr;
+    private Units _units;
+    private JdbcConnectionPool _pool;
+
+    public WorkloadDriver(Map<String, String> options) {
+        _options = options;
+        _threads = intOption("threads", 16);
+        _rows = intOption("rows", 10000);
+        for (Op op: Op.values()) {
+            _stats.put(op, new Stats());
+        }
+        String mix = option("mix",
+            "get=50,select=20,insert=10,bulkInsert=5,transaction=15");
+        int n = 0;
+        int total = 0;
+        ArrayList<Op> ops = new ArrayList<Op>();
+        ArrayList<Integer> weights = new ArrayList<Integer>();
+        for (String part: mix.split(",")) {
+            String kv[] = part.trim().split("=");
+            ops.add(Op.valueOf(kv[0]));
+            weights.add(Integer.valueOf(kv[1]));
+            total += Integer.parseInt(kv[1]);
+        }
+        // Spread the weights over 100 slots
+        for (int i=0; i < ops.size(); i++) {
+            int slots = (i == ops.size() - 1) ? 100 - n
+                : Math.round(weights.get(i) * 100f / total);
+            for (int j=0; j < slots && n < 100; j++) {
+                _mix[n++] = ops.get(i);
+            }
+        }
+    }
+
+    private String option(String name, String def) {
+        String v = _options.get(name);
+        return (v == null) ? def : v;
+    }
+
+    private int intOption(String name, int def) {
+        return Integer.parseInt(option(name, Integer.toString(def)));
+    }
+
+    /**
+     * Function to create the database and the Guice wired DBManager
+     */
+    public void setup() throws Exception {
+        _pool = JdbcConnectionPool.create("jdbc:h2:mem:workload;"
+            + "DB_CLOSE_DELAY=-1", "sa", "");
+        _pool.setMaxConnections(intOption("pool", 16));
+        final DataSource ds = timed(_pool);
+        Injector inj = Guice.createInjector(new TransactionModule(),
+            new AbstractModule() {
+                protected void configure() {
+                    bind(DataSource.class).toInstance(ds);
+                }
+            });
+        _mgr = inj.getInstance(DBManager.class);
+        _units = inj.getInstance(Units.class);
+        _mgr.executeSQL("drop table if exists wide");
+        _mgr.executeSQL("create table wide(id bigint auto_increment "
+            + "primary key, s1 varchar(40), s2 varchar(40), s3 varchar(40), "
+            + "s4 varchar(40), s5 varchar(40), s6 varchar(40), "
+            + "s7 varchar(40), s8 varchar(40), l1 bigint, l2 bigint, "
+            + "l3 bigint, l4 bigint, i1 int, i2 int, i3 int, i4 int, "
+            + "d1 double, d2 double, d3 double, d4 double, "
+            + "created timestamp, status int)");
+        ArrayList<WideBean> rows = new ArrayList<WideBean>();
+        for (int i=1; i <= _rows; i++) {
+            rows.add(new WideBean().fill(i));
+            if ( rows.size() == 1000 ) {
+                _mgr.bulkInsert(rows);
+                rows.clear();
+            }
+        }
+        if ( rows.size() > 0 ) {
+            _mgr.bulkInsert(rows);
+        }
+    }
+
+    /**
+     * Internal function to wrap a data source to time getConnection and
+     * count open connections
+     */
+    private DataSource timed(final DataSource ds) {
+        return (DataSource)Proxy.newProxyInstance(
+            WorkloadDriver.class.getClassLoader(),
+            new Class[] { DataSource.class }, new InvocationHandler() {
+                public Object invoke(Object p, Method m, Object args[])
+                        throws Throwable {
+                    if ( !m.getName().equals("getConnection") ) {
+                        return call(ds, m, args);
+                    }
+                    long start = System.nanoTime();
+                    Connection c = (Connection)call(ds, m, args);
+                    _connWait.add(System.nanoTime() - start);
+                    _openConnections.incrementAndGet();
+                    return counted(c);
+                }
+            });
+    }
+
+    private Connection counted(final Connection c) {
+        return (Connection)Proxy.newProxyInstance(
+            WorkloadDriver.class.getClassLoader(),
+            new Class[] { Connection.class }, new InvocationHandler() {
+                private boolean _closed = false;
+
+                public Object invoke(Object p, Method m, Object args[])
+                        throws Throwable {
+                    if ( m.getName().equals("close") && !_closed ) {
+                        _closed = true;
+                        _openConnections.decrementAndGet();
+                    }
+                    return call(c, m, args);
+                }
+            });
+    }
+
+    private static Object call(Object target, Method m, Object args[])
+            throws Throwable {
+        try {
+            return m.invoke(target, args);
+        }
+        catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Internal function to run one operation
+     */
+    private void execute(Op op, Random r, ArrayList<WideBean> batch)
+            throws Exception {
+        long id = 1 + r.nextInt(_rows);
+        switch (op) {
+        case get:
+            WideBean b = new WideBean();
+            b.setId(id);
+            _mgr.get(b);
+            break;
+        case select:
+            long from = Math.max(1, id - BATCH);
+            _mgr.select(WideBean.class, "select * from wide where id between "
+                + from + " and " + (from + BATCH - 1));
+            break;
+        case insert:
+            _mgr.insert(new WideBean().fill(id));
+            break;
+        case bulkInsert:
+            _mgr.bulkInsert(batch);
+            break;
+        case transaction:
+            _units.transfer(id, 1 + r.nextInt(_rows), 1 + r.nextInt(100));
+            break;
+        }
+    }
+
+    /**
+     * Internal function to record a failure
+     */
+    private void failed(Op op, Exception e) {
+        _stats.get(op)._errors.incrementAndGet();
+        String type = (e instanceof DBException
+            && ((DBException)e).isRetryable()) ? "retryable"
+            : e.getClass().getSimpleName();
+        AtomicLong n = _errorTypes.get(type);
+        if ( n == null ) {
+            AtomicLong prev = _errorTypes.putIfAbsent(type,
+                n = new AtomicLong());
+            n = (prev == null) ? n : prev;
+        }
+        if ( n.incrementAndGet() == 1 ) {
+            _out.println("first " + type + " error in " + op + ": " + e);
+        }
+    }
+
+    private Runnable worker(final long seed) {
+        return new Runnable() {
+            public void run() {
+                Random r = new Random(seed);
+                ArrayList<WideBean> batch = new ArrayList<WideBean>();
+                for (int i=0; i < BATCH; i++) {
+                    batch.add(new WideBean().fill(seed * BATCH + i));
+                }
+                while ( !_stop ) {
+                    Op op = _mix[r.nextInt(100)];
+                    long start = System.nanoTime();
+                    try {
+                        execute(op, r, batch);
+                    }
+                    catch (Exception e) {
+                        failed(op, e);
+                    }
+                    _stats.get(op).add(System.nanoTime() - start);
+                    if ( TransactionContext.current() != null ) {
+                        _leakedContexts.incrementAndGet();
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Internal function to return the thread factory of virtual threads,
+     * if asked for and the JDK has them, otherwise of platform threads
+     */
+    private ThreadFactory threadFactory() throws Exception {
+        if ( _options.containsKey("virtual") ) {
+            try {
+                Object builder = Thread.class.getMethod("ofVirtual")
+                    .invoke(null);
+                return (ThreadFactory)Class.forName("java.lang.Thread$Builder")
+                    .getMethod("factory").invoke(builder);
+            }
+            catch (NoSuchMethodException e) {
+                _out.println("virtual threads not supported, "
+                    + "using platform threads");
+            }
+        }
+        final AtomicInteger n = new AtomicInteger();
+        return new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "worker-" + n.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    private static long micros(long nanos) {
+        return nanos / 1000;
+    }
+
+    private static long usedHeap(boolean gc) {
+        MemoryMXBean mem = ManagementFactory.getMemoryMXBean();
+        if ( gc ) {
+            mem.gc();
+        }
+        return mem.getHeapMemoryUsage().getUsed() / (1024 * 1024);
+    }
+
+    /**
+     * Function to run the workload and print the reports
+     * @return true if no leaks or decay were found
+     */
+    public boolean run() throws Exception {
+        int duration = intOption("duration", 60);
+        int interval = intOption("interval", 5);
+        long heapStart = usedHeap(true);
+        _out.println("threads=" + _threads + " pool=" + intOption("pool", 16)
+            + " rows=" + _rows + " duration=" + duration + "s mix="
+            + option("mix", "default") + " heap=" + heapStart + "MB");
+        ThreadFactory tf = threadFactory();
+        ArrayList<Thread> workers = new ArrayList<Thread>();
+        for (int i=0; i < _threads; i++) {
+            Thread t = tf.newThread(worker(i));
+            workers.add(t);
+            t.start();
+        }
+        List<Double> throughput = new ArrayList<Double>();
+        long start = System.nanoTime();
+        long end = start + duration * 1000000000L;
+        long last = start;
+        while ( System.nanoTime() < end ) {
+            Thread.sleep(Math.min(interval * 1000L,
+                Math.max(1, (end - System.nanoTime()) / 1000000)));
+            long now = System.nanoTime();
+            throughput.add(report((now - start) / 1000000000L, now - last));
+            last = now;
+            // Keep the table size constant
+            _mgr.executeSQL("delete from wide where id > " + _rows);
+        }
+        _stop = true;
+        for (Thread t: workers) {
+            t.join(10000);
+        }
+        return summary((System.nanoTime() - start), throughput,
+            heapStart);
+    }
+
+    /**
+     * Internal function to print the report of an interval
+     * @return operations per second in the interval
+     */
+    private double report(long elapsed, long nanos) {
+        StringBuilder s = new StringBuilder();
+        long ops = 0;
+        long errors = 0;
+        for (Map.Entry<Op, Stats> e: _stats.entrySet()) {
+            Latency l = e.getValue().swap();
+            ops += l.getCount();
+            if ( l.getCount() > 0 ) {
+                s.append(' ').append(e.getKey()).append("=")
+                    .append(micros(l.getQuantile(0.5))).append('/')
+                    .append(micros(l.getQuantile(0.99))).append('/')
+                    .append(micros(l.getQuantile(0.999)));
+            }
+            errors += e.getValue()._errors.get();
+        }
+        Latency wait = _connWait.swap();
+        double rate = ops * 1e9 / nanos;
+        _out.println(String.format("t=%ds ops/s=%.0f p50/p99/p999us:%s "
+            + "conn_wait_p99us=%d errors=%d pool_active=%d open=%d "
+            + "heap=%dMB", elapsed, rate, s, micros(wait.getQuantile(0.99)),
+            errors, _pool.getActiveConnections(), _openConnections.get(),
+            usedHeap(false)));
+        return rate;
+    }
+
+    /**
+     * Internal function to print the totals of the run
+     */
+    private boolean summary(long nanos, List<Double> throughput,
+            long heapStart) {
+        _out.println(String.format("%-12s %10s %10s %8s %8s %8s %8s %8s",
+            "op", "count", "ops/s", "p50us", "p99us", "p999us", "maxus",
+            "errors"));
+        for (Map.Entry<Op, Stats> e: _stats.entrySet()) {
+            Stats st = e.getValue();
+            st.swap();
+            Latency l = st._total;
+            _out.println(String.format("%-12s %10d %10.0f %8d %8d %8d %8d %8d",
+                e.getKey(), l.getCount(), l.getCount() * 1e9 / nanos,
+                micros(l.getQuantile(0.5)), micros(l.getQuantile(0.99)),
+                micros(l.getQuantile(0.999)), micros(l.getMax()),
+                st._errors.get()));
+        }
+        _connWait.swap();
+        Latency w = _connWait._total;
+        _out.println(String.format("connection wait p50/p99/p999/max us: "
+            + "%d/%d/%d/%d over %d connections",
+            micros(w.getQuantile(0.5)), micros(w.getQuantile(0.99)),
+            micros(w.getQuantile(0.999)), micros(w.getMax()), w.getCount()));
+        for (Map.Entry<String, AtomicLong> e: _errorTypes.entrySet()) {
+            _out.println("errors " + e.getKey() + "=" + e.getValue());
+        }
+        boolean ok = true;
+        int third = throughput.size() / 3;
+        if ( third > 0 ) {
+            double first = 0;
+            double lastRate = 0;
+            for (int i=0; i < third; i++) {
+                first += throughput.get(i);
+                lastRate += throughput.get(throughput.size() - 1 - i);
+            }
+            double decay = (first - lastRate) * 100 / first;
+            _out.println(String.format("throughput decay %.1f%% "
+                + "(first third %.0f ops/s, last third %.0f ops/s)", decay,
+                first / third, lastRate / third));
+            String max = _options.get("max-decay");
+            if ( max != null && decay > Double.parseDouble(max) ) {
+                ok = false;
+            }
+        }
+        long heapEnd = usedHeap(true);
+        _out.println("heap after gc " + heapStart + "MB -> " + heapEnd
+            + "MB, bean maps " + BeanMap.getMapCount());
+        _out.println("leaked connections " + _openConnections.get()
+            + ", leaked transaction contexts " + _leakedContexts.get());
+        if ( _openConnections.get() > 0 || _leakedContexts.get() > 0 ) {
+            ok = false;
+        }
+        return ok;
+    }
+
+    /**
+     * Internal function to parse --name value and --flag arguments
+     */
+    static Map<String, String> parse(String args[]) {
+        LinkedHashMap<String, String> ret = new LinkedHashMap<String, String>();
+        for (int i=0; i < args.length; i++) {
+            if ( !args[i].startsWith("--") ) {
+                throw new IllegalArgumentException("Unknown argument "
+                    + args[i]);
+            }
+            String name = args[i].substring(2);
+            if ( i + 1 < args.length && !args[i+1].startsWith("--") ) {
+                ret.put(name, args[++i]);
+            }
+            else {
+                ret.put(name, "true");
+            }
+        }
+        return ret;
+    }
+
+    public static void main(String args[]) throws Exception {
+        WorkloadDriver d = new WorkloadDriver(parse(args));
+        d.setup();
+        boolean ok = d.run();
+        d._pool.dispose();
+        System.exit(ok ? 0 : 1);
+    }
+}
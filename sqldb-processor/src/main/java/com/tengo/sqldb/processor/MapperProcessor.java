@@ -0,0 +1,696 @@
+/*
+ * Annotation processor to generate bean mappers at compile time
+ *
+ * @author Prasad Mokkapati  prasadm80@gmail.com
+ */
+package com.tengo.sqldb.processor;
+
+import java.beans.Introspector;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.ExecutableType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+
+import com.tengo.sqldb.Column;
+import com.tengo.sqldb.Enumerated;
+import com.tengo.sqldb.Id;
+import com.tengo.sqldb.Mapper;
+import com.tengo.sqldb.OneToMany;
+import com.tengo.sqldb.Table;
+import com.tengo.sqldb.Version;
+import com.tengo.sqldb.Watermark;
+
+/**
+ * Generates a com.tengo.sqldb.Mapper for every bean with a Table
+ * annotation. The mapper accesses properties through direct calls to the
+ * getters and setters and holds the SQL strings precomputed with the same
+ * rules BeanMap uses, so BeanMap does not need introspection or reflection
+ * for the bean. Add the processor jar to the compile class path (or
+ * -processorpath) of the project with the beans.
+ * Beans that cannot be mapped without reflection (generic or abstract
+ * beans, properties with type variables ..) are skipped with a note and
+ * use the reflection based mapping at runtime.
+ */
+@SupportedAnnotationTypes("com.tengo.sqldb.Table")
+public class MapperProcessor extends AbstractProcessor {
+    // Types mapped to a single column. Same as Property sql type map
+    private static final String PRIMITIVES[] = {
+        "java.lang.Integer", "java.lang.Short", "java.lang.Long",
+        "java.lang.Float", "java.lang.Double", "java.lang.Character",
+        "java.lang.Byte", "java.lang.Boolean", "java.util.Date",
+        "java.sql.Date", "java.sql.Time", "java.sql.Timestamp",
+        "java.lang.String", "com.tengo.sqldb.LargeObject"
+    };
+
+    private enum Kind { Primitive, Bean, List };
+
+    /**
+     * A bean property found from its getter and setter
+     */
+    private static class Prop {
+        String name;
+        String column;
+        ExecutableElement getter;
+        ExecutableElement setter;
+        TypeMirror type;
+        Kind kind;
+        String typeName;      // Source name of the property type
+        String classLiteral;
+        String elementLiteral = "null";
+        int flags = 0;
+        String mappedBy[] = null;
+        int batchSize = 1;
+
+        boolean is(int flag) {
+            return ((flags & flag) != 0);
+        }
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations,
+            RoundEnvironment env) {
+        for (Element e: env.getElementsAnnotatedWith(Table.class)) {
+            if ( e.getKind() != ElementKind.CLASS ) {
+                continue;
+            }
+            TypeElement bean = (TypeElement)e;
+            try {
+                String reason = generate(bean);
+                if ( reason != null ) {
+                    processingEnv.getMessager().printMessage(
+                        Diagnostic.Kind.NOTE, "sqldb mapper not generated for "
+                        + bean.getQualifiedName() + ": " + reason, bean);
+                }
+            }
+            catch (IOException ex) {
+                processingEnv.getMessager().printMessage(
+                    Diagnostic.Kind.ERROR, "Unable to write sqldb mapper for "
+                    + bean.getQualifiedName() + ": " + ex, bean);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Internal function to check if a bean can have a generated mapper
+     * @return the reason it cannot or null
+     */
+    private String checkBean(TypeElement bean) {
+        Set<Modifier> mods = bean.getModifiers();
+        if ( mods.contains(Modifier.ABSTRACT) ) {
+            return "abstract class";
+        }
+        if ( mods.contains(Modifier.PRIVATE) ) {
+            return "private class";
+        }
+        if ( !bean.getTypeParameters().isEmpty() ) {
+            return "generic class";
+        }
+        Element outer = bean.getEnclosingElement();
+        for (; outer.getKind() != ElementKind.PACKAGE;
+                outer = outer.getEnclosingElement()) {
+            if ( !outer.getKind().isClass() && !outer.getKind().isInterface() ) {
+                return "local class";
+            }
+        }
+        if ( bean.getNestingKind().isNested()
+                && !mods.contains(Modifier.STATIC) ) {
+            return "inner class is not static";
+        }
+        for (ExecutableElement c: ElementFilter.constructorsIn(
+                bean.getEnclosedElements())) {
+            if ( c.getParameters().isEmpty()
+                    && !c.getModifiers().contains(Modifier.PRIVATE) ) {
+                return null;
+            }
+        }
+        return "no default constructor";
+    }
+
+    /**
+     * Internal function to find the bean properties. Same as Introspector,
+     * a property is a public get/is getter with a matching setter.
+     * @return the properties sorted by name or null if a property cannot
+     * be mapped
+     */
+    private Map<String, Prop> getProperties(TypeElement bean,
+            StringBuilder reason) {
+        Elements elems = processingEnv.getElementUtils();
+        Types types = processingEnv.getTypeUtils();
+        DeclaredType beanType = (DeclaredType)bean.asType();
+        Map<String, Prop> props = new TreeMap<String, Prop>();
+        List<ExecutableElement> methods =
+                ElementFilter.methodsIn(elems.getAllMembers(bean));
+        for (ExecutableElement m: methods) {
+            Set<Modifier> mods = m.getModifiers();
+            if ( !mods.contains(Modifier.PUBLIC)
+                    || mods.contains(Modifier.STATIC)
+                    || !m.getParameters().isEmpty()
+                    || isObjectMethod(m) ) {
+                continue;
+            }
+            String name = m.getSimpleName().toString();
+            ExecutableType mt = (ExecutableType)types.asMemberOf(beanType, m);
+            TypeMirror rt = mt.getReturnType();
+            if ( name.startsWith("get") && name.length() > 3
+                    && rt.getKind() != TypeKind.VOID ) {
+                name = Introspector.decapitalize(name.substring(3));
+            }
+            else if ( name.startsWith("is") && name.length() > 2
+                    && rt.getKind() == TypeKind.BOOLEAN ) {
+                name = Introspector.decapitalize(name.substring(2));
+            }
+            else {
+                continue;
+            }
+            Prop p = props.get(name);
+            if ( p != null && p.getter.getSimpleName().toString()
+                    .startsWith("is") ) {
+                continue; // is getter takes precedence
+            }
+            p = new Prop();
+            p.name = name;
+            p.getter = m;
+            p.type = rt;
+            props.put(name, p);
+        }
+        // Match setters. Properties without setters are not mapped
+        for (ExecutableElement m: methods) {
+            Set<Modifier> mods = m.getModifiers();
+            String name = m.getSimpleName().toString();
+            if ( !mods.contains(Modifier.PUBLIC)
+                    || mods.contains(Modifier.STATIC)
+                    || m.getParameters().size() != 1
+                    || !name.startsWith("set") || name.length() <= 3 ) {
+                continue;
+            }
+            Prop p = props.get(Introspector.decapitalize(name.substring(3)));
+            ExecutableType mt = (ExecutableType)types.asMemberOf(beanType, m);
+            if ( p != null && types.isSameType(p.type,
+                    mt.getParameterTypes().get(0)) ) {
+                p.setter = m;
+            }
+        }
+        Map<String, Prop> ret = new TreeMap<String, Prop>();
+        for (Prop p: props.values()) {
+            if ( p.setter == null ) {
+                reason.append("property " + p.name + " does not have a setter");
+                return null;
+            }
+            if ( !initType(p) ) {
+                reason.append("property " + p.name + " type " + p.type
+                    + " needs reflection");
+                return null;
+            }
+            initAnnotations(p);
+            ret.put(p.name, p);
+        }
+        return ret;
+    }
+
+    private static boolean isObjectMethod(ExecutableElement m) {
+        Element c = m.getEnclosingElement();
+        return (c instanceof TypeElement && ((TypeElement)c).getQualifiedName()
+            .contentEquals("java.lang.Object"));
+    }
+
+    /**
+     * Internal function to set the kind and source names of a property type
+     * @return false if the type needs reflection to map
+     */
+    private boolean initType(Prop p) {
+        Types types = processingEnv.getTypeUtils();
+        TypeMirror t = p.type;
+        if ( t.getKind().isPrimitive() ) {
+            p.kind = Kind.Primitive;
+            p.typeName = t.toString();
+            p.classLiteral = p.typeName + ".class";
+            return true;
+        }
+        if ( t.getKind() == TypeKind.ARRAY ) {
+            if ( ((ArrayType)t).getComponentType().getKind()
+                    != TypeKind.BYTE ) {
+                return false;
+            }
+            p.kind = Kind.Primitive;
+            p.typeName = "byte[]";
+            p.classLiteral = "byte[].class";
+            return true;
+        }
+        if ( t.getKind() != TypeKind.DECLARED ) {
+            return false;
+        }
+        DeclaredType dt = (DeclaredType)t;
+        TypeElement te = (TypeElement)dt.asElement();
+        String name = te.getQualifiedName().toString();
+        if ( te.getKind() == ElementKind.ENUM || isPrimitive(name) ) {
+            p.kind = Kind.Primitive;
+            p.typeName = name;
+            p.classLiteral = name + ".class";
+            return true;
+        }
+        TypeMirror list = types.erasure(processingEnv.getElementUtils()
+            .getTypeElement("java.util.List").asType());
+        if ( types.isAssignable(types.erasure(t), list) ) {
+            // Only lists of non generic beans
+            if ( dt.getTypeArguments().size() != 1 ) {
+                return false;
+            }
+            TypeMirror et = dt.getTypeArguments().get(0);
+            if ( et.getKind() != TypeKind.DECLARED
+                    || !((DeclaredType)et).getTypeArguments().isEmpty() ) {
+                return false;
+            }
+            TypeElement ee = (TypeElement)((DeclaredType)et).asElement();
+            if ( ee.getKind() == ElementKind.ENUM
+                    || isPrimitive(ee.getQualifiedName().toString()) ) {
+                return false;
+            }
+            p.kind = Kind.List;
+            p.typeName = name;
+            p.classLiteral = name + ".class";
+            p.elementLiteral = ee.getQualifiedName() + ".class";
+            return true;
+        }
+        if ( !dt.getTypeArguments().isEmpty() ) {
+            return false;
+        }
+        p.kind = Kind.Bean;
+        p.typeName = name;
+        p.classLiteral = name + ".class";
+        return true;
+    }
+
+    private static boolean isPrimitive(String name) {
+        for (String s: PRIMITIVES) {
+            if ( s.equals(name) ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Internal function to get an annotation from the getter or setter
+     */
+    private static <T extends java.lang.annotation.Annotation> T
+            getAnnotation(Prop p, Class<T> ac) {
+        T a = p.getter.getAnnotation(ac);
+        return (a == null) ? p.setter.getAnnotation(ac) : a;
+    }
+
+    /**
+     * Internal function to read the property annotations. Same as Property
+     */
+    private static void initAnnotations(Prop p) {
+        Column colAnn = getAnnotation(p, Column.class);
+        OneToMany oneToManyAnn = getAnnotation(p, OneToMany.class);
+        Enumerated enumAnn = getAnnotation(p, Enumerated.class);
+        boolean insertable = true;
+        boolean updateble = true;
+        boolean selectable = true;
+        boolean lazy = false;
+        if ( colAnn != null && !colAnn.name().equals("") ) {
+            p.column = colAnn.name();
+        }
+        else {
+            p.column = p.name.toLowerCase();
+        }
+        if ( colAnn != null ) {
+            insertable = colAnn.insertable();
+            updateble = colAnn.updateble();
+            selectable = colAnn.selectable();
+            lazy = colAnn.lazy();
+        }
+        // Large objects are always lazy
+        lazy |= p.typeName.equals("com.tengo.sqldb.LargeObject");
+        if ( getAnnotation(p, Id.class) != null ) {
+            p.flags |= Mapper.ID;
+        }
+        if ( getAnnotation(p, Version.class) != null ) {
+            p.flags |= Mapper.VERSION;
+        }
+        if ( getAnnotation(p, Watermark.class) != null ) {
+            p.flags |= Mapper.WATERMARK;
+        }
+        p.flags |= (insertable ? Mapper.INSERTABLE : 0)
+            | (updateble ? Mapper.UPDATEBLE : 0)
+            | (selectable ? Mapper.SELECTABLE : 0)
+            | (lazy ? Mapper.LAZY : 0);
+        if ( oneToManyAnn != null ) {
+            p.mappedBy = oneToManyAnn.mappedBy();
+            p.batchSize = oneToManyAnn.batchSize();
+            if ( oneToManyAnn.lazy() ) {
+                p.flags |= Mapper.LAZY_LIST;
+            }
+        }
+        if ( enumAnn != null
+                && enumAnn.value() == Enumerated.EnumType.STRING ) {
+            p.flags |= Mapper.ENUM_STRING;
+        }
+    }
+
+    /**
+     * Internal function to generate the mapper source for a bean
+     * @return the reason the mapper is not generated or null
+     */
+    private String generate(TypeElement bean) throws IOException {
+        String reason = checkBean(bean);
+        if ( reason != null ) {
+            return reason;
+        }
+        StringBuilder why = new StringBuilder();
+        Map<String, Prop> map = getProperties(bean, why);
+        if ( map == null ) {
+            return why.toString();
+        }
+        Prop props[] = map.values().toArray(new Prop[map.size()]);
+
+        // Keys and SQL strings. Same rules as BeanMap
+        Prop id = null;
+        for (Prop p: props) {
+            if ( p.is(Mapper.ID) ) {
+                if ( id != null ) {
+                    return "more than one Id annotation";
+                }
+                id = p;
+            }
+        }
+        Table table = bean.getAnnotation(Table.class);
+        String tableName = table.name().toLowerCase();
+        ArrayList<Integer> keys = null;
+        String keyNames[] = table.uniqueConstraints();
+        if ( keyNames.length > 0 ) {
+            keys = new ArrayList<Integer>();
+            for (String k: keyNames) {
+                int idx = -1;
+                for (int i=0; i < props.length; i++) {
+                    if ( props[i].column.equals(k.toLowerCase()) ) {
+                        idx = i;
+                    }
+                }
+                if ( idx < 0 ) {
+                    processingEnv.getMessager().printMessage(
+                        Diagnostic.Kind.ERROR, "Unique key " + k
+                        + " does not exist in class "
+                        + bean.getQualifiedName(), bean);
+                    return null;
+                }
+                keys.add(idx);
+            }
+        }
+        else if ( id != null ) {
+            keys = new ArrayList<Integer>();
+            for (int i=0; i < props.length; i++) {
+                if ( props[i] == id ) {
+                    keys.add(i);
+                }
+            }
+        }
+        String where = null;
+        if ( keys != null ) {
+            StringBuilder sb = new StringBuilder();
+            for (int k: keys) {
+                sb.append(sb.length() == 0 ? "" : " and ");
+                sb.append(props[k].column + "=?");
+            }
+            where = sb.toString();
+        }
+        StringBuilder insertNames = new StringBuilder();
+        StringBuilder insertValues = new StringBuilder();
+        StringBuilder updateNames = new StringBuilder();
+        StringBuilder selectNames = new StringBuilder();
+        ArrayList<Integer> insertPlan = new ArrayList<Integer>();
+        ArrayList<Integer> updatePlan = new ArrayList<Integer>();
+        boolean hasLazy = false;
+        boolean hasBean = false;
+        for (int i=0; i < props.length; i++) {
+            Prop p = props[i];
+            if ( p.kind == Kind.Bean ) {
+                hasBean = true;
+            }
+            if ( p.kind != Kind.Primitive ) {
+                continue;
+            }
+            if ( p.is(Mapper.INSERTABLE) && !p.is(Mapper.ID) ) {
+                insertPlan.add(i);
+                insertNames.append(insertNames.length() == 0 ? "" : ",");
+                insertNames.append(p.column);
+                insertValues.append(insertValues.length() == 0 ? "?" : ",?");
+            }
+            if ( p.is(Mapper.UPDATEBLE) && !p.is(Mapper.LAZY)
+                    && (keys == null || !keys.contains(i)) ) {
+                updatePlan.add(i);
+                updateNames.append(updateNames.length() == 0 ? "" : ",");
+                updateNames.append(p.column + "=?");
+            }
+            if ( p.is(Mapper.SELECTABLE) ) {
+                if ( p.is(Mapper.LAZY) ) {
+                    hasLazy = true;
+                }
+                else {
+                    selectNames.append(selectNames.length() == 0 ? "" : ",");
+                    selectNames.append(p.column);
+                }
+            }
+        }
+        // Nested bean columns are added to the select names by BeanMap
+        String select = (hasLazy && !hasBean && selectNames.length() > 0)
+            ? selectNames.toString() : null;
+
+        Elements elems = processingEnv.getElementUtils();
+        PackageElement pkg = elems.getPackageOf(bean);
+        String beanName = bean.getQualifiedName().toString();
+        String binary = elems.getBinaryName(bean).toString();
+        String pkgName = pkg.isUnnamed() ? "" : pkg.getQualifiedName().toString();
+        String simple = (pkgName.length() == 0) ? binary
+            : binary.substring(pkgName.length() + 1);
+        String mapperName = simple.replace('$', '_') + Mapper.SUFFIX;
+
+        JavaFileObject file = processingEnv.getFiler().createSourceFile(
+            (pkgName.length() == 0 ? "" : pkgName + ".") + mapperName, bean);
+        PrintWriter out = new PrintWriter(file.openWriter());
+        try {
+            if ( pkgName.length() > 0 ) {
+                out.println("package " + pkgName + ";");
+                out.println();
+            }
+            out.println("/**");
+            out.println(" * sqldb mapper of " + beanName
+                + ". Generated by " + getClass().getName());
+            out.println(" */");
+            out.println("public final class " + mapperName
+                + " implements com.tengo.sqldb.Mapper {");
+            out.println("    private static final String NAMES[] = {"
+                + join(props, 0) + "};");
+            out.println("    private static final String COLUMNS[] = {"
+                + join(props, 1) + "};");
+            out.println("    private static final Class<?> TYPES[] = {"
+                + join(props, 2) + "};");
+            out.println("    private static final Class<?> ELEMENT_TYPES[] = {"
+                + join(props, 3) + "};");
+            out.println("    private static final int FLAGS[] = {"
+                + join(props, 4) + "};");
+            out.println("    private static final String MAPPED_BY[][] = {"
+                + join(props, 5) + "};");
+            out.println("    private static final int BATCH_SIZES[] = {"
+                + join(props, 6) + "};");
+            out.println("    private static final int INSERT_PLAN[] = "
+                + plan(insertPlan) + ";");
+            out.println("    private static final int UPDATE_PLAN[] = "
+                + plan(updatePlan) + ";");
+            out.println("    private static final int KEY_PLAN[] = "
+                + plan(keys) + ";");
+            out.println();
+            out.println("    public Class<?> getBeanClass() { return "
+                + beanName + ".class; }");
+            out.println("    public Object newInstance() { return new "
+                + beanName + "(); }");
+            out.println("    public String[] getNames() { return NAMES; }");
+            out.println("    public String[] getColumns() { return COLUMNS; }");
+            out.println("    public Class<?>[] getTypes() { return TYPES; }");
+            out.println("    public Class<?>[] getElementTypes() "
+                + "{ return ELEMENT_TYPES; }");
+            out.println("    public int[] getFlags() { return FLAGS; }");
+            out.println("    public String[][] getMappedBy() "
+                + "{ return MAPPED_BY; }");
+            out.println("    public int[] getBatchSizes() "
+                + "{ return BATCH_SIZES; }");
+            out.println("    public String getTableName() { return "
+                + literal(tableName) + "; }");
+            out.println("    public String getInsertNames() { return "
+                + literal(insertNames) + "; }");
+            out.println("    public String getInsertValues() { return "
+                + literal(insertValues) + "; }");
+            out.println("    public String getUpdateNames() { return "
+                + literal(updateNames) + "; }");
+            out.println("    public String getWhere() { return "
+                + literal(where) + "; }");
+            out.println("    public String getSelectNames() { return "
+                + literal(select) + "; }");
+            out.println("    public int[] getInsertPlan() "
+                + "{ return INSERT_PLAN; }");
+            out.println("    public int[] getUpdatePlan() "
+                + "{ return UPDATE_PLAN; }");
+            out.println("    public int[] getKeyPlan() { return KEY_PLAN; }");
+            out.println();
+            out.println("    public Object getValue(Object bean, int idx) {");
+            out.println("        " + beanName + " b = (" + beanName
+                + ")bean;");
+            out.println("        switch (idx) {");
+            for (int i=0; i < props.length; i++) {
+                out.println("            case " + i + ": return b."
+                    + props[i].getter.getSimpleName() + "();");
+            }
+            out.println("            default: throw new "
+                + "IllegalArgumentException(\"No property \" + idx);");
+            out.println("        }");
+            out.println("    }");
+            out.println();
+            out.println("    @SuppressWarnings(value=\"unchecked\")");
+            out.println("    public void setValue(Object bean, int idx, "
+                + "Object v) {");
+            out.println("        " + beanName + " b = (" + beanName
+                + ")bean;");
+            out.println("        switch (idx) {");
+            for (int i=0; i < props.length; i++) {
+                out.println("            case " + i + ": b."
+                    + props[i].setter.getSimpleName() + "("
+                    + convert(props[i]) + "); return;");
+            }
+            out.println("            default: throw new "
+                + "IllegalArgumentException(\"No property \" + idx);");
+            out.println("        }");
+            out.println("    }");
+            out.println("}");
+        }
+        finally {
+            out.close();
+        }
+        return null;
+    }
+
+    /**
+     * Internal function to return the expression converting v to the
+     * property type. Numbers are converted so columns of a different
+     * integer or decimal type can be set.
+     */
+    private static String convert(Prop p) {
+        String t = p.typeName;
+        if ( t.equals("boolean") ) {
+            return "((Boolean)v).booleanValue()";
+        }
+        if ( t.equals("char") ) {
+            return "((Character)v).charValue()";
+        }
+        if ( p.type.getKind().isPrimitive() ) {
+            return "((Number)v)." + t + "Value()";
+        }
+        String boxed[] = { "Integer", "Short", "Long", "Float", "Double",
+            "Byte" };
+        String prim[] = { "int", "short", "long", "float", "double",
+            "byte" };
+        for (int i=0; i < boxed.length; i++) {
+            if ( t.equals("java.lang." + boxed[i]) ) {
+                return "(v == null) ? null : " + t + ".valueOf(((Number)v)."
+                    + prim[i] + "Value())";
+            }
+        }
+        if ( t.equals("byte[]") ) {
+            return "(byte[])v";
+        }
+        return "(" + t + ")v";
+    }
+
+    /**
+     * Internal function to join one column of the property meta data
+     */
+    private static String join(Prop props[], int col) {
+        StringBuilder sb = new StringBuilder();
+        for (Prop p: props) {
+            if ( sb.length() > 0 ) {
+                sb.append(", ");
+            }
+            switch (col) {
+                case 0: sb.append(literal(p.name)); break;
+                case 1: sb.append(literal(p.column)); break;
+                case 2: sb.append(p.classLiteral); break;
+                case 3: sb.append(p.elementLiteral); break;
+                case 4: sb.append(p.flags); break;
+                case 5:
+                    if ( p.mappedBy == null ) {
+                        sb.append("null");
+                        break;
+                    }
+                    sb.append("{");
+                    for (int i=0; i < p.mappedBy.length; i++) {
+                        sb.append((i > 0 ? ", " : "")
+                            + literal(p.mappedBy[i]));
+                    }
+                    sb.append("}");
+                    break;
+                default: sb.append(p.batchSize); break;
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String plan(List<Integer> plan) {
+        if ( plan == null ) {
+            return "null";
+        }
+        StringBuilder sb = new StringBuilder("{");
+        for (int i=0; i < plan.size(); i++) {
+            sb.append((i > 0 ? ", " : "") + plan.get(i));
+        }
+        return sb.append("}").toString();
+    }
+
+    /**
+     * Internal function to return a java string literal. Empty builders
+     * are null same as BeanMap
+     */
+    private static String literal(CharSequence s) {
+        if ( s == null || (s instanceof StringBuilder && s.length() == 0) ) {
+            return "null";
+        }
+        StringBuilder sb = new StringBuilder("\"");
+        for (int i=0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if ( c == '"' || c == '\\' ) {
+                sb.append('\\');
+            }
+            sb.append(c);
+        }
+        return sb.append('"').toString();
+    }
+}
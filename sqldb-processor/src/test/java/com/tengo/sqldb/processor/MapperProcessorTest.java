@@ -0,0 +1,242 @@
+/*
+ *
+ * @author prasad mokkapati - prasadm80@gmail.com
+ */
+package com.tengo.sqldb.processor;
+
+import java.io.File;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TreeMap;
+import javax.sql.DataSource;
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import org.junit.*;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+
+import com.tengo.sqldb.DBManager;
+import com.tengo.sqldb.Mapper;
+import com.tengo.sqldb.Table;
+
+/**
+ * Compiles the beans of the sqldb tests with and without the processor and
+ * checks that the generated mappers read and write the same rows as the
+ * reflection based mapping
+ */
+public class MapperProcessorTest {
+    private static final String BEANS[] = {
+        "Account", "Login", "AccLogin", "AccLazyLogin"
+    };
+    private static final String QUERIES[] = {
+        "select * from account order by accountid",
+        "select * from login order by loginid",
+        "select a.*, l.loginId, l.password, l.userType, l.userid "
+            + "from account a join login l on a.accountid = l.accountid "
+            + "order by a.accountid, l.loginid",
+        "select * from account order by accountid"
+    };
+    private static ClassLoader _generated = null;
+    private static ClassLoader _reflection = null;
+    private static List<String> _warnings = new ArrayList<String>();
+
+    @BeforeClass
+    public static void compile() throws Exception {
+        File src = new File("../src/test/java");
+        File out = new File("target/mapper-test");
+        _generated = compile(src, new File(out, "generated"), true);
+        _reflection = compile(src, new File(out, "reflection"), false);
+    }
+
+    private static String path(Class<?> c) throws Exception {
+        return new File(c.getProtectionDomain().getCodeSource().getLocation()
+            .toURI()).getPath();
+    }
+
+    private static ClassLoader compile(File src, File out, boolean process)
+            throws Exception {
+        out.mkdirs();
+        JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+        DiagnosticCollector<JavaFileObject> d =
+            new DiagnosticCollector<JavaFileObject>();
+        StandardJavaFileManager fm = javac.getStandardFileManager(d, null,
+            null);
+        ArrayList<File> files = new ArrayList<File>();
+        for (String b: BEANS) {
+            files.add(new File(src, b + ".java"));
+        }
+        String cp = path(Table.class) + File.pathSeparator
+            + path(MapperProcessor.class);
+        List<String> opts = new ArrayList<String>(Arrays.asList(
+            "-d", out.getPath(), "-cp", cp, "-Xlint:all"));
+        if ( process ) {
+            opts.addAll(Arrays.asList("-processor",
+                MapperProcessor.class.getName()));
+        }
+        else {
+            opts.add("-proc:none");
+        }
+        boolean ok = javac.getTask(null, fm, d, opts, null,
+            fm.getJavaFileObjectsFromFiles(files)).call();
+        for (Diagnostic<? extends JavaFileObject> e: d.getDiagnostics()) {
+            String s = e.getMessage(Locale.ROOT);
+            if ( e.getKind() == Diagnostic.Kind.ERROR ) {
+                Assert.fail(s);
+            }
+            if ( process && (e.getKind() == Diagnostic.Kind.WARNING
+                    || e.getKind() == Diagnostic.Kind.MANDATORY_WARNING)
+                    && e.getSource() != null && e.getSource().getName()
+                        .contains(Mapper.SUFFIX) ) {
+                _warnings.add(e.getSource().getName() + ": " + s);
+            }
+        }
+        fm.close();
+        Assert.assertTrue(ok);
+        return new URLClassLoader(new URL[] { out.toURI().toURL() },
+            MapperProcessorTest.class.getClassLoader());
+    }
+
+    private static DBManager manager(String name) throws Exception {
+        final org.h2.jdbcx.JdbcDataSource ds =
+            new org.h2.jdbcx.JdbcDataSource();
+        ds.setURL("jdbc:h2:mem:" + name + ";MODE=MySQL;DB_CLOSE_DELAY=-1");
+        DBManager mgr = Guice.createInjector(new AbstractModule() {
+                protected void configure() {
+                    bind(DataSource.class).toInstance(ds);
+                }
+            }).getInstance(DBManager.class);
+        mgr.executeSQL("drop table if exists account");
+        mgr.executeSQL("drop table if exists login");
+        mgr.executeSQL("create table account(accountid bigint "
+            + "auto_increment primary key, accounttype int, "
+            + "name varchar(50), telnum varchar(20), created timestamp, "
+            + "balance double, language int, status int)");
+        mgr.executeSQL("create table login(loginid bigint auto_increment "
+            + "primary key, accountid bigint, usertype int, "
+            + "userid varchar(20), password varchar(20))");
+        return mgr;
+    }
+
+    private static Object newBean(ClassLoader l, String name)
+            throws Exception {
+        return l.loadClass(name).newInstance();
+    }
+
+    private static void set(Object o, String prop, Object v)
+            throws Exception {
+        for (Method m: o.getClass().getMethods()) {
+            if ( m.getName().equals("set" + prop)
+                    && m.getParameterTypes().length == 1 ) {
+                Class<?> t = m.getParameterTypes()[0];
+                if ( t.isEnum() && v instanceof String ) {
+                    v = t.getMethod("valueOf", String.class).invoke(null, v);
+                }
+                m.invoke(o, v);
+                return;
+            }
+        }
+        throw new IllegalArgumentException("No setter " + prop);
+    }
+
+    private static Object get(Object o, String prop) throws Exception {
+        return o.getClass().getMethod("get" + prop).invoke(o);
+    }
+
+    /**
+     * Returns the property values of a bean, or the beans of a list
+     */
+    private static String render(Object o) throws Exception {
+        if ( o instanceof List ) {
+            StringBuilder s = new StringBuilder("[");
+            for (Object e: (List<?>)o) {
+                s.append(render(e)).append(' ');
+            }
+            return s.append(']').toString();
+        }
+        TreeMap<String, Object> props = new TreeMap<String, Object>();
+        for (Method m: o.getClass().getMethods()) {
+            if ( m.getName().startsWith("get")
+                    && m.getParameterTypes().length == 0
+                    && !m.getName().equals("getClass") ) {
+                Object v = m.invoke(o);
+                props.put(m.getName(), (v instanceof List) ? render(v)
+                    : (v instanceof Date) ? ((Date)v).getTime() : v);
+            }
+        }
+        return props.toString();
+    }
+
+    /**
+     * Runs inserts, gets, selects and updates of the beans and returns
+     * what was read
+     */
+    private static String crud(ClassLoader l, String db) throws Exception {
+        DBManager mgr = manager(db);
+        StringBuilder s = new StringBuilder();
+        for (int i=0; i < 3; i++) {
+            Object a = newBean(l, "Account");
+            set(a, "Name", "a" + i);
+            set(a, "AccountType", "Merchant");
+            set(a, "Balance", 10.5 * i);
+            set(a, "Created", new Date(1700000000000L + i * 1000));
+            mgr.insert(a);
+            for (int j=0; j < i; j++) {
+                Object g = newBean(l, "Login");
+                set(g, "AccountId", get(a, "AccountId"));
+                set(g, "Userid", "u" + i + j);
+                mgr.insert(g);
+            }
+        }
+        Object a = newBean(l, "Account");
+        set(a, "AccountId", 2L);
+        a = mgr.get(a);
+        s.append(render(a)).append('\n');
+        set(a, "Name", "changed");
+        set(a, "Status", "Suspended");
+        Assert.assertEquals(1, mgr.update(a));
+        for (int i=0; i < BEANS.length; i++) {
+            s.append(render(mgr.select(l.loadClass(BEANS[i]), QUERIES[i])))
+                .append('\n');
+        }
+        return s.toString();
+    }
+
+    @Test
+    public void generated() throws Exception {
+        for (String b: BEANS) {
+            Mapper m = (Mapper)_generated.loadClass(b + Mapper.SUFFIX)
+                .newInstance();
+            Assert.assertSame(_generated.loadClass(b), m.getBeanClass());
+        }
+        try {
+            _reflection.loadClass("Account" + Mapper.SUFFIX);
+            Assert.fail();
+        }
+        catch (ClassNotFoundException e) {
+        }
+    }
+
+    @Test
+    public void noWarnings() {
+        Assert.assertEquals("", _warnings.isEmpty() ? ""
+            : _warnings.toString());
+    }
+
+    @Test
+    public void sameAsReflection() throws Exception {
+        String expected = crud(_reflection, "reflection");
+        Assert.assertTrue(expected, expected.contains("changed"));
+        Assert.assertTrue(expected, expected.contains("u21"));
+        Assert.assertEquals(expected, crud(_generated, "generated"));
+    }
+}
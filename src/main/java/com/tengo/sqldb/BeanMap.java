@@ -6,6 +6,10 @@
 package com.tengo.sqldb;
 
 import java.beans.IntrospectionException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.beans.Introspector;
 import java.beans.PropertyDescriptor;
 import java.lang.reflect.InvocationTargetException;
@@ -21,6 +25,8 @@ import java.sql.Statement;
 import java.sql.PreparedStatement;
 import java.sql.Types;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -41,9 +47,14 @@ public class BeanMap {
     // Map of all beans used by DBManager
     private static ConcurrentHashMap<Type, BeanMap> _maps = 
             new ConcurrentHashMap<Type, BeanMap>();
+    // Maps being built by the current thread. Nested and recursive types
+    // get the map under construction instead of building it again
+    private static final ThreadLocal<HashMap<Type, BeanMap>> _building =
+            new ThreadLocal<HashMap<Type, BeanMap>>();
 
     private Type _type;
     private Class<?> _class;
+    private Mapper _mapper = null; // Mapper generated at compile time
 
     // Map of all properties in this bean
     private HashMap<String, Property> _properties = 
@@ -51,21 +62,47 @@ public class BeanMap {
     private String _tableName = null;
     private Property _uniqueKeys[] = null;
     private Property _idProp = null;
+    // Set if ids are reserved by DBManager instead of the database
+    private Id _idGenerator = null;
+    private String _idName = null;
+    // Version property matched by updates and deletes
+    private Property _versionProp = null;
+    private String _versionWhere = "";
+    // Watermark property read by change pollers
+    private Property _watermarkProp = null;
 
 
     // Cache strings useful for insert prepare statement
     private String _insertNames = null; 
     private String _insertValues = null;
+    // Properties in the order they are bound to insert and update
+    private Property _insertProps[] = null;
+    private Property _updateProps[] = null;
 
     // Cache strings useful for delete and update
     private String _whereStr = null;
     private String _updateNames = null;
 
+    // Columns to select when the bean has lazy properties, otherwise *
+    private String _selectNames = "*";
+
     /**
      * Max num of rows in each chunk for bulk inserts
      */
     public static final int BULKINSERT_CHUNK_SIZE=100;
 
+    /**
+     * Max num of keys in each query of DBManager.getAll
+     */
+    public static final int GETALL_CHUNK_SIZE=500;
+
+    /**
+     * Max num of rows in each batch of bulk updates and keys in each
+     * statement of bulk deletes
+     */
+    public static final int BULKUPDATE_CHUNK_SIZE=100;
+    public static final int BULKDELETE_CHUNK_SIZE=500;
+
 
     // List of all primitive properties in this class
     private ArrayList<Property> _primitives = null; 
@@ -73,14 +110,44 @@ public class BeanMap {
     private ArrayList<Property> _lists = null;   
     // List keys
     private ArrayList<Property> _listKeys = null;
+    // List of all properties that return lazy loaded lists
+    private ArrayList<Property> _lazyLists = null;
+    // List of all primitive properties loaded on demand
+    private ArrayList<Property> _lazy = null;
 
 
     // Package private methods used by ColMap
     ArrayList<Property> getPrimitives() { return _primitives; }
     ArrayList<Property> getLists() { return _lists; }
     ArrayList<Property> getListKeys() { return _listKeys; }
+    ArrayList<Property> getLazyLists() { return _lazyLists; }
+    ArrayList<Property> getLazy() { return _lazy; }
+    Property getProperty(String colName) { return _properties.get(colName); }
     String getTableName() { return _tableName; }
+    String getSelectNames() { return _selectNames; }
+    Property[] getUniqueKeys() { return _uniqueKeys; }
     String getClassName() { return _class.getName(); }
+    Class<?> getBeanClass() { return _class; }
+    Property getIdProperty() { return _idProp; }
+    Id getIdGenerator() { return _idGenerator; }
+    String getIdName() { return _idName; }
+    Property getWatermarkProperty() { return _watermarkProp; }
+
+    /**
+     * Function to return the index of a primitive property, used to read
+     * row views (see Rows.Row) without a lookup by name
+     * @param colName column name of the property, lower case
+     * @return the index or -1 if there is no primitive property of the
+     *  column
+     */
+    public int getIndex(String colName) {
+        for (int i=0; _primitives != null && i < _primitives.size(); i++) {
+            if ( _primitives.get(i).getColName().equals(colName) ) {
+                return i;
+            }
+        }
+        return -1;
+    }
 
 
     /**
@@ -89,6 +156,7 @@ public class BeanMap {
      */
     private BeanMap(Type t) throws DBException {       
         _type = t;
+        _building.get().put(t, this);
         // Is this parameterized type ? If so get Raw type
         if ( t instanceof ParameterizedType ) {
             Type rt = ((ParameterizedType)t).getRawType();
@@ -98,6 +166,14 @@ public class BeanMap {
         }
         else if ( t instanceof Class) {
             _class = (Class)t;
+            // Use mapper generated at compile time if there is one
+            if ( (_mapper = findMapper(_class)) != null ) {
+                initialize(_mapper);
+                initIdGenerator();
+                initVersion();
+                initWatermark();
+                return;
+            }
         }
         else { // Not a bean type
             throw new DBException("BeanMap: Cannot create a mapping for type '"
@@ -113,8 +189,185 @@ public class BeanMap {
                 + _class.getName());
         }
         initialize(props);
+        initIdGenerator();
+        initVersion();
+        initWatermark();
+    }
+
+    /**
+     * Internal function to find the Version property. Updates set it to
+     * version + 1 in place of binding its value, and match the version of
+     * the bean with the keys
+     */
+    private void initVersion() throws DBException {
+        for (Property p: _properties.values()) {
+            if ( !p.isVersion() ) {
+                continue;
+            }
+            Class c = p.getPropertyClass();
+            if ( c != int.class && c != Integer.class && c != long.class
+                    && c != Long.class ) {
+                throw new DBException("Version " + p.getName() + " of "
+                    + _class.getName() + " must be an int or long");
+            }
+            if ( _versionProp != null ) {
+                throw new DBException("Bean '" + _class.getName() + "' "
+                    + " has more than one Version Annotation.");
+            }
+            _versionProp = p;
+        }
+        if ( _versionProp == null || _whereStr == null ) {
+            return;
+        }
+        String v = _versionProp.getColName();
+        ArrayList<Property> props = new ArrayList<Property>();
+        StringBuilder names = new StringBuilder();
+        for (Property p: _updateProps) {
+            if ( p != _versionProp ) {
+                props.add(p);
+                names.append(p.getColName() + "=?,");
+            }
+        }
+        names.append(v + "=" + v + "+1");
+        _updateProps = props.toArray(new Property[props.size()]);
+        _updateNames = names.toString();
+        _versionWhere = " and " + v + "=?";
+    }
+
+    /**
+     * Internal function to find the Watermark property
+     */
+    private void initWatermark() throws DBException {
+        for (Property p: _properties.values()) {
+            if ( !p.isWatermark() ) {
+                continue;
+            }
+            if ( !p.isPrimitive() || p.isLazy() ) {
+                throw new DBException("Watermark " + p.getName() + " of "
+                    + _class.getName() + " must be a column that is not lazy");
+            }
+            if ( _watermarkProp != null ) {
+                throw new DBException("Bean '" + _class.getName() + "' "
+                    + " has more than one Watermark Annotation.");
+            }
+            _watermarkProp = p;
+        }
+    }
+
+    /**
+     * Internal function to set the version of an object after an update
+     */
+    private void nextVersion(Object o) throws DBException {
+        Object v = _versionProp.getValue(o);
+        setVersion(o, (v == null) ? 1 : ((Number)v).longValue() + 1);
+    }
+
+    /**
+     * Internal function to set the version of an object
+     */
+    private void setVersion(Object o, long n) throws DBException {
+        Class c = _versionProp.getPropertyClass();
+        _versionProp.setValue(o, (c == long.class || c == Long.class)
+            ? (Object)Long.valueOf(n) : (Object)Integer.valueOf((int)n));
+    }
+
+    /**
+     * Internal function to return the exception of an update or delete
+     * of a versioned object that did not match a row
+     */
+    private ConflictException conflict(String op, Object o)
+            throws DBException {
+        StringBuilder s = new StringBuilder(op + " of " + _class.getName());
+        for (Property p: _uniqueKeys) {
+            s.append(" " + p.getColName() + "=" + p.getValue(o));
+        }
+        return new ConflictException(s + " " + _versionProp.getColName()
+            + "=" + _versionProp.getValue(o) + " did not match a row, "
+            + "it was changed or deleted");
+    }
+
+    /**
+     * Internal function to read the generator of the id property. The
+     * annotation is read from the class as generated mappers only have
+     * the Id flag
+     */
+    private void initIdGenerator() {
+        if ( _idProp == null || _tableName == null ) {
+            return;
+        }
+        for (Method m: _class.getMethods()) {
+            Id id = m.getAnnotation(Id.class);
+            if ( id != null && id.generator() != Id.Generator.IDENTITY ) {
+                _idGenerator = id;
+                _idName = id.name().equals("") ? _tableName : id.name();
+            }
+        }
     }
         
+    /**
+     * Internal function to load the mapper generated for a class
+     * @return the mapper or null if the class does not have one
+     */
+    private static Mapper findMapper(Class c) throws DBException {
+        String name = c.getName().replace('$', '_') + Mapper.SUFFIX;
+        try {
+            Class mc = Class.forName(name, true, c.getClassLoader());
+            Mapper m = (Mapper)mc.newInstance();
+            return (m.getBeanClass() == c) ? m : null;
+        }
+        catch (ClassNotFoundException e) {
+            return null;
+        }
+        catch (Exception e) {
+            throw new DBException("BeanMap: Unable to create mapper " + name
+                + ": " + e);
+        }
+    }
+
+    /**
+     * Internal function to return the properties of the given indexes
+     */
+    private static Property[] getPlan(Property props[], int plan[]) {
+        if ( plan == null ) {
+            return null;
+        }
+        Property ret[] = new Property[plan.length];
+        for (int i=0; i < plan.length; i++) {
+            ret[i] = props[plan[i]];
+        }
+        return ret;
+    }
+
+    /**
+     * Initialize all caches from a generated mapper
+     */
+    private void initialize(Mapper m) throws DBException {
+        Property props[] = new Property[m.getNames().length];
+        for (int i=0; i < props.length; i++) {
+            props[i] = new Property(m, i);
+            if ( props[i].isId() ) {
+                if ( _idProp != null) {
+                    throw new DBException("Bean '" + _class.getName() + "' "
+                        + " has more than one Id Annotation.");
+                }
+                _idProp = props[i];
+            }
+            _properties.put(props[i].getColName(), props[i]);
+        }
+        _tableName = m.getTableName();
+        _uniqueKeys = getPlan(props, m.getKeyPlan());
+        _whereStr = m.getWhere();
+        _insertNames = m.getInsertNames();
+        _insertValues = m.getInsertValues();
+        _insertProps = getPlan(props, m.getInsertPlan());
+        _updateNames = m.getUpdateNames();
+        _updateProps = getPlan(props, m.getUpdatePlan());
+        initSelect();
+        if ( m.getSelectNames() != null ) {
+            _selectNames = m.getSelectNames();
+        }
+    }
+
     /**
      * Check to see if the given property is a primary key
      */
@@ -182,11 +435,14 @@ public class BeanMap {
         StringBuilder names = null;
         StringBuilder values = null;
         StringBuilder update = null;
+        ArrayList<Property> insertProps = new ArrayList<Property>();
+        ArrayList<Property> updateProps = new ArrayList<Property>();
         for (Property p: _properties.values()) {
             if ( !p.isPrimitive() ) {
                 continue;
             }
             if ( p.isInsertable() && !p.isId() ) {
+                insertProps.add(p);
                 if ( names == null) {
                     names = new StringBuilder(p.getColName());
                     values = new StringBuilder("?");
@@ -196,7 +452,8 @@ public class BeanMap {
                     values.append(",?");
                 }
             }
-            if ( p.isUpdateble() && !isKey(p) ) {
+            if ( p.isUpdateble() && !isKey(p) && !p.isLazy() ) {
+                updateProps.add(p);
                 if ( update == null) {
                     update= new StringBuilder(p.getColName() + "=?");
                 }
@@ -208,6 +465,8 @@ public class BeanMap {
         _insertNames= (names==null) ? null : names.toString();
         _insertValues= (values == null) ? null : values.toString();
         _updateNames = (update == null) ? null : update.toString();
+        _insertProps = insertProps.toArray(new Property[insertProps.size()]);
+        _updateProps = updateProps.toArray(new Property[updateProps.size()]);
         initSelect();
     }
 
@@ -224,6 +483,15 @@ public class BeanMap {
             }
             switch (m.getPropertyType()) {
                 case Primitive:
+                    if ( m.isLazy() ) { // Loaded on demand
+                        if ( parent == null ) {
+                            if ( _lazy == null) {
+                                _lazy = new ArrayList<Property>();
+                            }
+                            _lazy.add(m);
+                        }
+                        break;
+                    }
                     props.add( (parent == null) ? m 
                         : new NestedProperty(parent, m));
                 break;
@@ -243,6 +511,23 @@ public class BeanMap {
     private void initSelect() throws DBException {
         _primitives = new ArrayList<Property>();
         addPrimitiveProperties(_primitives, null);
+        if ( _lazy != null ) { // Select only columns that are not lazy
+            StringBuilder names = null;
+            for (Property p: _primitives) {
+                if ( p.getColName() == null ) {
+                    continue;
+                }
+                if ( names == null ) {
+                    names = new StringBuilder(p.getColName());
+                }
+                else {
+                    names.append("," + p.getColName());
+                }
+            }
+            if ( names != null ) {
+                _selectNames = names.toString();
+            }
+        }
 
         String mappedBy[] = null;
         Property key = null;
@@ -252,6 +537,20 @@ public class BeanMap {
             }
             switch (m.getPropertyType()) {
                 case List:
+                    if ( m.isLazyList() ) {
+                        if ( _lazyLists == null) {
+                            _lazyLists = new ArrayList<Property>();
+                        }
+                        _lazyLists.add(m);
+                        for (String s: m.getMappedBy()) {
+                            if ( _properties.get(s.toLowerCase()) == null) {
+                                throw new DBException("OneToMany mappedBy '"
+                                    + s + "' property does not exist in "
+                                    + _class.getName());
+                            }
+                        }
+                        break;
+                    }
                     if ( _lists == null) {
                         _lists = new ArrayList<Property>();
                     }
@@ -297,26 +596,68 @@ public class BeanMap {
     /**
      *  Static function that return a class map given a class. This function
      *  is private to the package. Creates one if it was not created earlier.
+     *  Maps are built without locks. The maps of a type and of the types it
+     *  references are built by the calling thread and published together
+     *  once all of them are complete. If threads race to build the same
+     *  type, the first one published is used.
      *  @param t  the type
      *  @return the BeanMap instance
      */
     static BeanMap get(Type t) throws DBException {
         BeanMap m = _maps.get(t);
-        if ( m == null) {
-            synchronized(t) {
-                if ( (m = _maps.get(t)) == null) {
-                    m = new BeanMap(t);
-                    _maps.put(t, m);
-                }
+        if ( m != null) {
+            return m;
+        }
+        HashMap<Type, BeanMap> building = _building.get();
+        if ( building != null ) { // Called while building another map
+            if ( (m = building.get(t)) == null ) {
+                m = new BeanMap(t);
             }
+            return m;
         }
-        return m;
+        building = new HashMap<Type, BeanMap>();
+        _building.set(building);
+        try {
+            new BeanMap(t);
+            for (Map.Entry<Type, BeanMap> e: building.entrySet()) {
+                _maps.putIfAbsent(e.getKey(), e.getValue());
+            }
+            return _maps.get(t);
+        }
+        finally {
+            _building.remove();
+        }
+    }
+
+    /**
+     * Function to return the number of maps built
+     */
+    static int getMapCount() {
+        return _maps.size();
     }
+    /**
+     * Function to exercise the accessors of the bean so classes used by
+     * them are loaded and linked before the first request
+     */
+    void prewarm() throws DBException {
+        Object o = newInstance();
+        for (Property p: _properties.values()) {
+            try {
+                p.getValue(o);
+            }
+            catch (DBException e) { // Getters may not handle a new bean
+            }
+        }
+    }
+
     /**
      * Function to create a new instance of this class
      */
     public Object newInstance() throws DBException {
         try {
+            if ( _mapper != null ) {
+                return _mapper.newInstance();
+            }
             return _class.newInstance();
         }
         catch (Exception e) {
@@ -329,35 +670,42 @@ public class BeanMap {
      */
     private PreparedStatement prepareInsert(Connection conn, int numRows) 
             throws SQLException, DBException  {
-        if ( _insertNames == null || _insertValues == null) {
+        String names = _insertNames;
+        String values = _insertValues;
+        if ( _idGenerator != null ) { // Id is set before the insert
+            names = _idProp.getColName() 
+                + (names == null ? "" : "," + names);
+            values = "?" + (values == null ? "" : "," + values);
+        }
+        if ( names == null || values == null) {
             throw new DBException("Class " + _class.getName()
                 + " does not have any properties to insert");
         }
         StringBuilder s = new StringBuilder("insert into " 
-            + _tableName + "(" + _insertNames + ") values ");
+            + _tableName + "(" + names + ") values ");
         for (int i=0; i < numRows; i++) {
             if ( i > 0 ) {
-                s.append(", (" + _insertValues + ")");
+                s.append(", (" + values + ")");
             }
             else {
-                s.append("(" + _insertValues + ")");
+                s.append("(" + values + ")");
             }
         }
         // If a column is auto increment/serial 
         // if ( _idProp != null && _idProp.isAutoIncrement()) 
-        if ( _idProp != null ) {
+        if ( _idProp != null && _idGenerator == null ) {
             // Check to see if auto generated keys are supported
             if ( conn.getMetaData().supportsGetGeneratedKeys() ) {
-                return conn.prepareStatement(s.toString(), 
+                return DBManager.prepare(conn, s.toString(), 
                         Statement.RETURN_GENERATED_KEYS);
             }
             else { // Assume postgresql
-                return conn.prepareStatement(s.toString() + " returning "
+                return DBManager.prepare(conn, s.toString() + " returning "
                     + _idProp.getColName());
             }
         }
         else {
-            return conn.prepareStatement(s.toString());
+            return DBManager.prepare(conn, s.toString());
         }
     }
 
@@ -369,15 +717,41 @@ public class BeanMap {
     private int setInsertValues(DBManager pmgr, Connection conn, 
             PreparedStatement stmt, Object o, int idx) 
                     throws DBException, SQLException {
-        for (Property m: _properties.values()) {
-            if ( !m.isPrimitive() ||  !m.isInsertable() || m.isId()) {
-                continue;
+        if ( _idGenerator != null ) {
+            if ( isEmptyId(o) ) {
+                _idProp.setValue(o, pmgr.nextId(this));
             }
+            _idProp.setValue(o, stmt, ++idx);
+        }
+        if ( _versionProp != null && _versionProp.getValue(o) == null ) {
+            // A null version would never match the version of an update
+            setVersion(o, 0);
+        }
+        for (Property m: _insertProps) {
             m.setValue(o, stmt, ++idx);
         }
         return idx;
     }
 
+    /**
+     * Internal function to check if the id of an object is not set
+     */
+    private boolean isEmptyId(Object o) throws DBException {
+        Object v = _idProp.getValue(o);
+        return (v == null 
+            || (v instanceof Number && ((Number)v).longValue() == 0));
+    }
+
+    /**
+     * Function to set the id of an object from the Id generator, if the
+     * bean has one and the id is not set
+     */
+    public void assignId(DBManager pmgr, Object o) throws DBException {
+        if ( _idGenerator != null && isEmptyId(o) ) {
+            _idProp.setValue(o, pmgr.nextId(this));
+        }
+    }
+
     /**
      * Function to insert object into database. Mutiple nested tables inserts 
      * are handled as well. If beans have serial fields, the bean serial
@@ -395,15 +769,15 @@ public class BeanMap {
             stmt = prepareInsert(conn, 1);
             setInsertValues(pmgr, conn, stmt, obj, 0);
             int ret=0;
-            if ( _idProp != null ) {
+            if ( _idProp != null && _idGenerator == null ) {
                 ResultSet res;
                 // Check to see if auto generated keys are supported
                 if ( conn.getMetaData().supportsGetGeneratedKeys() ) {
-                    ret = stmt.executeUpdate();
+                    ret = DBManager.executeUpdate(stmt);
                     res = stmt.getGeneratedKeys();
                 }
                 else { // Must be using select returning ..
-                    res = stmt.executeQuery();
+                    res = DBManager.executeQuery(stmt);
                     ret = 1;
                 }
                 if ( res.next() ) {
@@ -411,7 +785,7 @@ public class BeanMap {
                 }
             }
             else { 
-                ret = stmt.executeUpdate();
+                ret = DBManager.executeUpdate(stmt);
             }
             return ret;
         }
@@ -446,15 +820,15 @@ public class BeanMap {
                     idx = setInsertValues(pmgr, conn, stmt, list.get(cur++),
                         idx);
                 }
-                if ( _idProp != null ) {
+                if ( _idProp != null && _idGenerator == null ) {
                     ResultSet res;
                     // Check to see if auto generated keys are supported
                     if ( conn.getMetaData().supportsGetGeneratedKeys() ) {
-                        stmt.executeUpdate();
+                        DBManager.executeUpdate(stmt);
                         res = stmt.getGeneratedKeys();
                     }
                     else { // Must be using select returning ..
-                        res = stmt.executeQuery();
+                        res = DBManager.executeQuery(stmt);
                     }
                     int sidx = cur - rows;
                     Object obj = null;
@@ -465,7 +839,7 @@ public class BeanMap {
                     }
                 }
                 else {
-                    ret += stmt.executeUpdate();
+                    ret += DBManager.executeUpdate(stmt);
                 }
                 size -= rows;
             }
@@ -493,13 +867,20 @@ public class BeanMap {
         }
         PreparedStatement stmt = null;
         try {
-            stmt= conn.prepareStatement("delete from " 
-                    + _tableName + " where " + _whereStr);
+            stmt= DBManager.prepare(conn, "delete from " 
+                    + _tableName + " where " + _whereStr + _versionWhere);
             int idx=0;
             for (Property p: _uniqueKeys) {
                 p.setValue(obj, stmt, ++idx);
             }
-            return stmt.executeUpdate();
+            if ( _versionProp != null ) {
+                _versionProp.setValue(obj, stmt, ++idx);
+            }
+            int ret = DBManager.executeUpdate(stmt);
+            if ( ret == 0 && _versionProp != null ) {
+                throw conflict("delete", obj);
+            }
+            return ret;
         }
         finally {
             if ( stmt != null) {
@@ -509,6 +890,177 @@ public class BeanMap {
     }
 
             
+    /**
+     * Internal function to return the key values of objects
+     */
+    private List<Object[]> getKeyValues(List list, Property keys[])
+            throws DBException {
+        ArrayList<Object[]> ret = new ArrayList<Object[]>(list.size());
+        for (Object o: list) {
+            Object v[] = new Object[keys.length];
+            for (int j=0; j < v.length; j++) {
+                v[j] = keys[j].getValue(o);
+            }
+            ret.add(v);
+        }
+        return ret;
+    }
+
+    /**
+     * Internal function to return the order of objects sorted by their key
+     * values, so concurrent bulk changes lock rows in the same order.
+     * Values that are not Comparable keep their order
+     */
+    private Integer[] sortByKeys(final List<Object[]> keys) {
+        Integer order[] = new Integer[keys.size()];
+        for (int i=0; i < order.length; i++) {
+            order[i] = Integer.valueOf(i);
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @SuppressWarnings(value="unchecked")
+            public int compare(Integer a, Integer b) {
+                Object ka[] = keys.get(a.intValue());
+                Object kb[] = keys.get(b.intValue());
+                for (int j=0; j < ka.length; j++) {
+                    Object x = LazyList.Loader.keyValue(ka[j]);
+                    Object y = LazyList.Loader.keyValue(kb[j]);
+                    if ( x == null || y == null ) {
+                        if ( x != y ) {
+                            return (x == null) ? -1 : 1;
+                        }
+                    }
+                    else if ( x instanceof Comparable 
+                            && x.getClass() == y.getClass() ) {
+                        int c = ((Comparable)x).compareTo(y);
+                        if ( c != 0 ) {
+                            return c;
+                        }
+                    }
+                }
+                return 0;
+            }
+        });
+        return order;
+    }
+
+    /**
+     * Function to delete objects with one statement per chunk of 
+     * BULKDELETE_CHUNK_SIZE keys
+     * @return number of rows deleted
+     */
+    public int bulkDelete(DBManager pmgr, Connection conn, List list)
+            throws SQLException, DBException {
+        if ( _tableName == null || _uniqueKeys == null ) {
+            throw new DBException("Class " + _class.getName() + " needs "
+                + "Table annotation and keys to delete");
+        }
+        // Rows of versioned objects are matched on the version as well
+        Property props[] = _uniqueKeys;
+        if ( _versionProp != null ) {
+            props = Arrays.copyOf(_uniqueKeys, _uniqueKeys.length + 1);
+            props[_uniqueKeys.length] = _versionProp;
+        }
+        List<Object[]> keys = getKeyValues(list, props);
+        Integer order[] = sortByKeys(keys);
+        ArrayList<Object[]> sorted = new ArrayList<Object[]>(order.length);
+        for (Integer i: order) {
+            sorted.add(keys.get(i.intValue()));
+        }
+        Dialect d = (pmgr == null) ? Dialect.Generic : pmgr.getDialect();
+        int ret = 0;
+        for (int i=0; i < sorted.size(); i += BULKDELETE_CHUNK_SIZE) {
+            PreparedStatement stmt = prepareKeys(conn, d, "delete from "
+                + _tableName, props, sorted.subList(i, 
+                Math.min(sorted.size(), i + BULKDELETE_CHUNK_SIZE)));
+            try {
+                ret += DBManager.executeUpdate(stmt);
+            }
+            finally {
+                stmt.close();
+            }
+        }
+        if ( _versionProp != null && ret < sorted.size() ) {
+            throw new ConflictException((sorted.size() - ret) + " of "
+                + sorted.size() + " deletes of " + _class.getName()
+                + " did not match a row, they were changed or deleted");
+        }
+        return ret;
+    }
+
+    /**
+     * Function to update objects with JDBC batches of 
+     * BULKUPDATE_CHUNK_SIZE rows. Rows are updated in the order of their
+     * keys
+     * @return rows updated for each object in the order of the list.
+     *  Statement.SUCCESS_NO_INFO if the driver does not report it
+     * @throws ConflictException if the bean has a Version and objects did
+     *  not match a row. The versions of the other objects are updated.
+     *  Objects of a bean with a Version are updated a row at a time, as
+     *  drivers may not report the count of each row of a batch (MySQL
+     *  with rewriteBatchedStatements).
+     */
+    public int[] bulkUpdate(DBManager pmgr, Connection conn, List list)
+            throws SQLException, DBException {
+        if ( _tableName == null || _uniqueKeys == null ) {
+            throw new DBException("Class " + _class.getName() + " needs "
+                + "Table annotation and keys to update");
+        }
+        if ( _updateNames == null ) {
+            throw new DBException(
+                "Class " + _class.getName() + " does not have any properties "
+                    + " to update");
+        }
+        Integer order[] = sortByKeys(getKeyValues(list, _uniqueKeys));
+        int ret[] = new int[order.length];
+        int conflicts = 0;
+        PreparedStatement stmt = null;
+        try {
+            stmt = DBManager.prepare(conn,
+                "update " + _tableName + " set " + _updateNames  
+                + " where " + _whereStr + _versionWhere);
+            if ( _versionProp != null ) {
+                for (int i=0; i < order.length; i++) {
+                    int idx = order[i].intValue();
+                    setUpdateValues(pmgr, conn, stmt, list.get(idx), 0);
+                    ret[idx] = DBManager.executeUpdate(stmt);
+                    if ( ret[idx] == 0 ) {
+                        conflicts++;
+                    }
+                    else {
+                        nextVersion(list.get(idx));
+                    }
+                }
+            }
+            else {
+                int start = 0;
+                for (int i=0; i < order.length; i++) {
+                    setUpdateValues(pmgr, conn, stmt, 
+                        list.get(order[i].intValue()), 0);
+                    stmt.addBatch();
+                    if ( i + 1 - start == BULKUPDATE_CHUNK_SIZE 
+                            || i + 1 == order.length ) {
+                        int counts[] = DBManager.executeBatch(stmt);
+                        for (int j=0; j < counts.length; j++) {
+                            ret[order[start + j].intValue()] = counts[j];
+                        }
+                        start = i + 1;
+                    }
+                }
+            }
+            if ( conflicts > 0 ) {
+                throw new ConflictException(conflicts + " of " + ret.length
+                    + " updates of " + _class.getName() + " did not match "
+                    + "a row, they were changed or deleted");
+            }
+            return ret;
+        }
+        finally {
+            if ( stmt != null ) {
+                stmt.close();
+            }
+        }
+    }
+
     /**
      * Function to select records from ResultSet and insert into the given
      * list
@@ -517,7 +1069,19 @@ public class BeanMap {
      */
     public void select(ResultSet res, ArrayList list) throws SQLException, 
             DBException {
-        ColMap map = new ColMap(this, res);
+        select(null, res, list);
+    }
+    /**
+     * Function to select records from ResultSet and insert into the given
+     * list
+     * @param pmgr DBManager used to load lazy lists. If null lazy lists
+     *          are not set
+     * @param res Result of query
+     * @param list Array list to populate
+     */
+    public void select(DBManager pmgr, ResultSet res, ArrayList list)
+            throws SQLException, DBException {
+        ColMap map = new ColMap(pmgr, this, res);
             
         Object prev=null;
         Object obj;
@@ -533,7 +1097,14 @@ public class BeanMap {
      */
     public Object get(ResultSet res, Object orig)
             throws SQLException, DBException {
-        ColMap map = new ColMap(this, res);
+        return get(null, res, orig);
+    }
+    /**
+     * Function to retrieve an object. Lazy lists are loaded using pmgr.
+     */
+    public Object get(DBManager pmgr, ResultSet res, Object orig)
+            throws SQLException, DBException {
+        ColMap map = new ColMap(pmgr, this, res);
 
         if ( orig == null) {
             if ( res.next() ) {
@@ -560,15 +1131,16 @@ public class BeanMap {
         PreparedStatement stmt = null;
         ResultSet res = null;
         try {
-            stmt = conn.prepareStatement( 
-                "select * from " + _tableName + " where " + _whereStr);
+            stmt = DBManager.prepare(conn,
+                "select " + _selectNames + " from " + _tableName + " where " 
+                + _whereStr);
             int idx = 0;
             // Set key values
             for (Property p: _uniqueKeys) {
                 p.setValue(obj, stmt, ++idx);
             }
-            res = stmt.executeQuery();
-            Object ret = get(res, null);
+            res = DBManager.executeQuery(stmt);
+            Object ret = get(pmgr, res, null);
             return (ret == null ? obj : ret);
         }
         finally {
@@ -581,6 +1153,365 @@ public class BeanMap {
         }
     }
 
+    /**
+     * Internal function to prepare a statement whose where clause matches
+     * any of the given key values, and bind the values. Single keys are
+     * matched with in (..) or = ANY(?), composite keys with row values if
+     * the dialect supports them
+     * @param pre statement up to the where clause
+     */
+    private PreparedStatement prepareKeys(Connection conn, Dialect d,
+            String pre, Property keys[], List<Object[]> values)
+                throws SQLException, DBException {
+        String arrayType = (keys.length == 1)
+            ? d.getArrayType(keys[0].getPropertyClass()) : null;
+        StringBuilder s = new StringBuilder(pre + " where ");
+        if ( arrayType != null ) {
+            s.append(keys[0].getColName() + " = ANY(?)");
+        }
+        else if ( keys.length == 1 ) {
+            s.append(keys[0].getColName() + " in (");
+            for (int i=0; i < values.size(); i++) {
+                s.append( (i == 0) ? "?" : ",?");
+            }
+            s.append(")");
+        }
+        else if ( d.supportsRowValues() ) {
+            s.append("(");
+            for (int j=0; j < keys.length; j++) {
+                s.append( (j == 0 ? "" : ",") + keys[j].getColName());
+            }
+            s.append(") in (");
+            for (int i=0; i < values.size(); i++) {
+                s.append( (i == 0) ? "(" : ",(");
+                for (int j=0; j < keys.length; j++) {
+                    s.append( (j == 0) ? "?" : ",?");
+                }
+                s.append(")");
+            }
+            s.append(")");
+        }
+        else {
+            for (int i=0; i < values.size(); i++) {
+                s.append( (i == 0) ? "(" : " or (");
+                for (int j=0; j < keys.length; j++) {
+                    s.append( (j == 0 ? "" : " and ") 
+                        + keys[j].getColName() + "=?");
+                }
+                s.append(")");
+            }
+        }
+        PreparedStatement stmt = DBManager.prepare(conn, s.toString());
+        try {
+            if ( arrayType != null ) {
+                Object a[] = new Object[values.size()];
+                for (int i=0; i < a.length; i++) {
+                    a[i] = values.get(i)[0];
+                }
+                stmt.setArray(1, conn.createArrayOf(arrayType, a));
+                Probe.bound(1, keys[0].getColName(), a, Types.ARRAY);
+                return stmt;
+            }
+            int idx = 0;
+            for (Object v[]: values) {
+                for (int j=0; j < keys.length; j++) {
+                    keys[j].setParameter(stmt, ++idx, v[j]);
+                }
+            }
+            return stmt;
+        }
+        catch (SQLException e) {
+            stmt.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Function to select all rows whose key columns match any of the given
+     * key values. Used to load lazy lists and by DBManager.getAll.
+     * @param keys properties of this bean to match
+     * @param values list of key values, each with one value per key
+     * @param list Array list to populate
+     */
+    public void select(DBManager pmgr, Connection conn, Property keys[], 
+            List<Object[]> values, ArrayList list) 
+                    throws SQLException, DBException {
+        if ( _tableName == null ) {
+            throw new DBException("Class " + _class.getName() + " does not "
+                + "have Table annotation needed to load lists");
+        }
+        Dialect d = (pmgr == null) ? Dialect.Generic : pmgr.getDialect();
+        PreparedStatement stmt = null;
+        ResultSet res = null;
+        try {
+            stmt = prepareKeys(conn, d, "select " + _selectNames + " from "
+                + _tableName, keys, values);
+            res = DBManager.executeQuery(stmt);
+            select(pmgr, res, list);
+        }
+        finally {
+            if ( res != null ) {
+                res.close();
+            }
+            if ( stmt != null ) {
+                stmt.close();
+            }
+        }
+    }
+
+    /**
+     * Function to select the rows after a position in the order of the
+     * watermark and the unique keys, in that order
+     * @param after watermark and key values of the last row read, null to
+     *  start from the first row with a watermark
+     * @param limit maximum number of rows
+     * @param list Array list to populate
+     */
+    void selectChanges(DBManager pmgr, Connection conn, Object after[],
+            int limit, ArrayList list) throws SQLException, DBException {
+        if ( _tableName == null || _watermarkProp == null
+                || _uniqueKeys == null || _uniqueKeys.length == 0 ) {
+            throw new DBException("Class " + _class.getName() + " needs "
+                + "Table annotation, keys and a Watermark to poll changes");
+        }
+        Property cols[] = new Property[_uniqueKeys.length + 1];
+        cols[0] = _watermarkProp;
+        System.arraycopy(_uniqueKeys, 0, cols, 1, _uniqueKeys.length);
+        Dialect d = (pmgr == null) ? Dialect.Generic : pmgr.getDialect();
+        StringBuilder s = new StringBuilder("select " + _selectNames
+            + " from " + _tableName + " where ");
+        ArrayList<Integer> binds = new ArrayList<Integer>();
+        if ( after == null ) {
+            s.append(cols[0].getColName() + " is not null");
+        }
+        else if ( d.supportsRowValues() ) {
+            s.append("(");
+            for (int j=0; j < cols.length; j++) {
+                s.append( (j == 0 ? "" : ",") + cols[j].getColName());
+                binds.add(j);
+            }
+            s.append(") > (");
+            for (int j=0; j < cols.length; j++) {
+                s.append( (j == 0) ? "?" : ",?");
+            }
+            s.append(")");
+        }
+        else {
+            // c0 > ? or (c0 = ? and c1 > ?) or ...
+            for (int i=0; i < cols.length; i++) {
+                s.append( (i == 0) ? "(" : " or (");
+                for (int j=0; j < i; j++) {
+                    s.append(cols[j].getColName() + "=? and ");
+                    binds.add(j);
+                }
+                s.append(cols[i].getColName() + ">?)");
+                binds.add(i);
+            }
+        }
+        s.append(" order by ");
+        for (int j=0; j < cols.length; j++) {
+            s.append( (j == 0 ? "" : ",") + cols[j].getColName());
+        }
+        PreparedStatement stmt = null;
+        ResultSet res = null;
+        try {
+            stmt = DBManager.prepare(conn, s.toString());
+            stmt.setMaxRows(limit);
+            int idx = 0;
+            for (int j: binds) {
+                Object v = after[j];
+                if ( v instanceof java.util.Date
+                        && !(v instanceof java.sql.Date) ) {
+                    // Bound as a date otherwise, without the time
+                    java.sql.Timestamp ts = (v instanceof java.sql.Timestamp)
+                        ? (java.sql.Timestamp)v
+                        : new java.sql.Timestamp(((java.util.Date)v).getTime());
+                    stmt.setTimestamp(++idx, ts);
+                    Probe.bound(idx, cols[j].getColName(), ts,
+                        Types.TIMESTAMP);
+                }
+                else {
+                    cols[j].setParameter(stmt, ++idx, v);
+                }
+            }
+            res = DBManager.executeQuery(stmt);
+            select(pmgr, res, list);
+        }
+        finally {
+            if ( res != null ) {
+                res.close();
+            }
+            if ( stmt != null ) {
+                stmt.close();
+            }
+        }
+    }
+
+    /**
+     * Function to return a property given the property name
+     */
+    private Property getPropertyByName(String name) throws DBException {
+        for (Property p: _properties.values()) {
+            if ( p.getName().equals(name) ) {
+                return p;
+            }
+        }
+        throw new DBException("Property " + name + " does not exist in "
+            + _class.getName());
+    }
+
+    /**
+     * Internal function to build and prepare a statement on the given 
+     * properties and set the key values 
+     * @param pre statement up to the property names
+     * @param sep separator after each property name
+     * @param post text between property names and where clause
+     */
+    private PreparedStatement prepareColumns(Connection conn, 
+            Property props[], String pre, String sep, String post) 
+                throws SQLException, DBException {
+        if ( _tableName == null || _whereStr == null ) {
+            throw new DBException("Class " + _class.getName() + " needs "
+                + "Table annotation and keys to access columns");
+        }
+        StringBuilder s = new StringBuilder(pre);
+        for (int i=0; i < props.length; i++) {
+            s.append( (i == 0 ? "" : ",") + props[i].getColName() + sep);
+        }
+        s.append(post + " where " + _whereStr);
+        return DBManager.prepare(conn, s.toString());
+    }
+
+    /**
+     * Function to read the given lazy properties of an object
+     * @param obj object with keys set
+     * @param names names of properties to read
+     * @return false if the row does not exist
+     */
+    public boolean fetch(DBManager pmgr, Connection conn, Object obj, 
+            String names[]) throws SQLException, DBException {
+        ArrayList<Property> cols = new ArrayList<Property>();
+        for (int i=0; i < names.length; i++) {
+            Property p = getPropertyByName(names[i]);
+            if ( p.getPropertyClass() == LargeObject.class ) {
+                // Large objects are streamed only when accessed
+                p.setValue(obj, new LargeObject(pmgr, this, p, obj));
+            }
+            else {
+                cols.add(p);
+            }
+        }
+        if ( cols.size() == 0 ) {
+            return true;
+        }
+        Property props[] = cols.toArray(new Property[cols.size()]);
+        PreparedStatement stmt = null;
+        ResultSet res = null;
+        try {
+            stmt = prepareColumns(conn, props, "select ", "", 
+                " from " + _tableName);
+            int idx = 0;
+            for (Property p: _uniqueKeys) {
+                p.setValue(obj, stmt, ++idx);
+            }
+            res = DBManager.executeQuery(stmt);
+            if ( !res.next() ) {
+                return false;
+            }
+            for (int i=0; i < props.length; i++) {
+                props[i].setValue(obj, res, i+1);
+            }
+            return true;
+        }
+        finally {
+            if ( res != null ) {
+                res.close();
+            }
+            if ( stmt != null ) {
+                stmt.close();
+            }
+        }
+    }
+
+    /**
+     * Function to update only the given properties of an object. Used for
+     * lazy properties that are not updated by update
+     * @param obj object with keys set
+     * @param names names of properties to update
+     * @return number of rows updated
+     */
+    public int updateColumns(DBManager pmgr, Connection conn, Object obj, 
+            String names[]) throws SQLException, DBException {
+        Property props[] = new Property[names.length];
+        for (int i=0; i < names.length; i++) {
+            props[i] = getPropertyByName(names[i]);
+        }
+        PreparedStatement stmt = null;
+        try {
+            stmt = prepareColumns(conn, props, "update " + _tableName 
+                + " set ", "=?", "");
+            int idx = 0;
+            for (Property p: props) {
+                p.setValue(obj, stmt, ++idx);
+            }
+            for (Property p: _uniqueKeys) {
+                p.setValue(obj, stmt, ++idx);
+            }
+            return DBManager.executeUpdate(stmt);
+        }
+        finally {
+            if ( stmt != null ) {
+                stmt.close();
+            }
+        }
+    }
+
+    /**
+     * Function to stream a large object property of an object into the
+     * given channel without buffering it in memory
+     * @param p property to read
+     * @param obj object with keys set
+     * @param out channel to write to
+     * @return number of bytes transferred, -1 if the value is null
+     */
+    public long transfer(DBManager pmgr, Connection conn, Property p,
+            Object obj, WritableByteChannel out)
+                throws SQLException, DBException, IOException {
+        PreparedStatement stmt = null;
+        ResultSet res = null;
+        try {
+            stmt = prepareColumns(conn, new Property[] { p }, "select ", "",
+                " from " + _tableName);
+            int idx = 0;
+            for (Property k: _uniqueKeys) {
+                k.setValue(obj, stmt, ++idx);
+            }
+            res = DBManager.executeQuery(stmt);
+            if ( !res.next() ) {
+                throw new DBException("Row of " + _class.getName() 
+                    + " no longer exists to read " + p.getName());
+            }
+            InputStream in = res.getBinaryStream(1);
+            if ( in == null ) {
+                return -1;
+            }
+            try {
+                return LargeObject.copy(Channels.newChannel(in), out);
+            }
+            finally {
+                in.close();
+            }
+        }
+        finally {
+            if ( res != null ) {
+                res.close();
+            }
+            if ( stmt != null ) {
+                stmt.close();
+            }
+        }
+    }
+
     /**
      * Internal function to set update values on a prepared statement so 
      * it can be executed. TBD- Should we update nested tables as well ?
@@ -588,10 +1519,7 @@ public class BeanMap {
     private int setUpdateValues(DBManager pmgr, Connection conn, 
             PreparedStatement stmt, Object o, int idx) 
                     throws DBException, SQLException {
-        for (Property m: _primitives) {
-            if ( isKey(m) || ! m.isUpdateble() ) {
-                continue;
-            }
+        for (Property m: _updateProps) {
             m.setValue(o, stmt, ++idx);
         }
         // Set key values
@@ -600,6 +1528,9 @@ public class BeanMap {
                 p.setValue(o, stmt, ++idx);
             }
         }
+        if ( _versionProp != null ) {
+            _versionProp.setValue(o, stmt, ++idx);
+        }
         return idx;
     }
     /**
@@ -620,11 +1551,18 @@ public class BeanMap {
         }
         PreparedStatement stmt = null;
         try {
-            stmt = conn.prepareStatement( 
+            stmt = DBManager.prepare(conn,
                 "update " + _tableName + " set " + _updateNames  
-                + " where " + _whereStr);
+                + " where " + _whereStr + _versionWhere);
             setUpdateValues(pmgr, conn, stmt, obj, 0);
-            return stmt.executeUpdate();
+            int ret = DBManager.executeUpdate(stmt);
+            if ( _versionProp != null ) {
+                if ( ret == 0 ) {
+                    throw conflict("update", obj);
+                }
+                nextVersion(obj);
+            }
+            return ret;
         }
         finally {
             if ( stmt != null ) {
@@ -0,0 +1,128 @@
+/*
+ * Class to find mapped beans in the class path
+ *
+ * @author Prasad Mokkapati  prasadm80@gmail.com
+ */
+package com.tengo.sqldb;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Modifier;
+import java.net.JarURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/**
+ * Finds the classes with a Table annotation in packages of the class path.
+ * Packages in directories and jar files are scanned, including sub
+ * packages. Generic beans are mapped per type argument, so are skipped.
+ */
+class BeanScanner {
+    private final ClassLoader _loader;
+
+    BeanScanner(ClassLoader loader) {
+        _loader = loader;
+    }
+
+    /**
+     * Function to find the beans in the given packages
+     * @return the bean classes
+     */
+    List<Class<?>> scan(String ... packages) throws DBException {
+        TreeSet<String> names = new TreeSet<String>();
+        for (String pkg: packages) {
+            String path = pkg.replace('.', '/');
+            try {
+                Enumeration<URL> urls = _loader.getResources(path);
+                while ( urls.hasMoreElements() ) {
+                    URL url = urls.nextElement();
+                    if ( "file".equals(url.getProtocol()) ) {
+                        scanDir(new File(URLDecoder.decode(url.getPath(),
+                            "UTF-8")), pkg, names);
+                    }
+                    else if ( "jar".equals(url.getProtocol()) ) {
+                        scanJar(url, path, names);
+                    }
+                }
+            }
+            catch (IOException e) {
+                throw new DBException("Unable to scan package " + pkg
+                    + ": " + e);
+            }
+        }
+        ArrayList<Class<?>> ret = new ArrayList<Class<?>>();
+        for (String name: names) {
+            Class<?> c = null;
+            try {
+                c = Class.forName(name, false, _loader);
+            }
+            catch (Throwable e) { // Classes with missing dependencies
+                continue;
+            }
+            if ( c.isInterface() || c.isAnnotation()
+                    || Modifier.isAbstract(c.getModifiers())
+                    || c.getTypeParameters().length > 0
+                    || !c.isAnnotationPresent(Table.class) ) {
+                continue;
+            }
+            ret.add(c);
+        }
+        return ret;
+    }
+
+    private void scanDir(File dir, String pkg, TreeSet<String> names)
+            throws UnsupportedEncodingException {
+        File files[] = dir.listFiles();
+        if ( files == null ) {
+            return;
+        }
+        String prefix = (pkg.length() == 0) ? "" : pkg + ".";
+        for (File f: files) {
+            if ( f.isDirectory() ) {
+                scanDir(f, prefix + f.getName(), names);
+            }
+            else {
+                addClass(prefix + f.getName(), names);
+            }
+        }
+    }
+
+    private void scanJar(URL url, String path, TreeSet<String> names)
+            throws IOException {
+        URLConnection conn = url.openConnection();
+        if ( !(conn instanceof JarURLConnection) ) {
+            return;
+        }
+        JarFile jar = ((JarURLConnection)conn).getJarFile();
+        Enumeration<JarEntry> entries = jar.entries();
+        while ( entries.hasMoreElements() ) {
+            String name = entries.nextElement().getName();
+            if ( path.length() == 0 || name.startsWith(path + "/") ) {
+                addClass(name.replace('/', '.'), names);
+            }
+        }
+    }
+
+    /**
+     * Internal function to add a class file name. Generated mappers and
+     * anonymous classes are not beans
+     */
+    private static void addClass(String file, TreeSet<String> names) {
+        if ( !file.endsWith(".class") ) {
+            return;
+        }
+        String name = file.substring(0, file.length() - 6);
+        if ( name.endsWith(Mapper.SUFFIX) || name.matches(".*\\$[0-9].*") ) {
+            return;
+        }
+        names.add(name);
+    }
+}
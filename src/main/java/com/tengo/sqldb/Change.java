@@ -0,0 +1,14 @@
+/*
+ * Change applied to a bean by DBManager.update retries
+ *
+ * @author Prasad Mokkapati  prasadm80@gmail.com
+ */
+package com.tengo.sqldb;
+
+/**
+ * Change of a bean with a Version property. Applied to the bean before it
+ * is updated, and again to the row read again after a ConflictException.
+ */
+public interface Change<T> {
+    void apply(T o) throws DBException;
+}
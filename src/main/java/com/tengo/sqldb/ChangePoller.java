@@ -0,0 +1,190 @@
+/*
+ * Poller of rows changed since a watermark
+ *
+ * @author Prasad Mokkapati  prasadm80@gmail.com
+ */
+package com.tengo.sqldb;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Reads the rows of a bean inserted or changed since the last poll, using
+ * the Watermark property of the bean. Rows are read in batches in the
+ * order of the watermark and then the unique keys, each batch starting
+ * after the last row of the one before, so rows with the same watermark
+ * are neither skipped nor read twice and a poll costs as many rows as
+ * were changed, not the size of the table:
+ * <pre>
+ *   ChangePoller&lt;Account&gt; p = new ChangePoller&lt;Account&gt;(mgr,
+ *       Account.class, listener).setCheckpoint(saved);
+ *   p.poll();  // e.g. from a ScheduledExecutorService
+ * </pre>
+ * Each batch is passed to the listener with the checkpoint after it. The
+ * checkpoint moves only when the listener returns, so a batch whose
+ * listener throws is read again by the next poll. Save the checkpoint
+ * given to the listener, with the work done for the batch, and set it on
+ * a new poller to resume after a restart.
+ * A row whose watermark is set lower than one already read, e.g. by a
+ * transaction that commits after a later one, is not read until it is
+ * changed again. Give such watermarks a margin, or resume from an older
+ * checkpoint now and then. Deleted rows are not seen.
+ */
+public class ChangePoller<T> {
+    /**
+     * Receiver of the changed rows
+     */
+    public interface Listener<T> {
+        /**
+         * Function called with each batch of rows
+         * @param rows rows in the order of the watermark and keys
+         * @param checkpoint position after the last of the rows
+         */
+        void changed(List<T> rows, Checkpoint checkpoint) throws DBException;
+    }
+
+    /**
+     * Position of a poller: the watermark and key values of the last row
+     * read
+     */
+    public static final class Checkpoint implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final Object _values[];
+
+        /**
+         * @param watermark watermark of the last row read
+         * @param keys unique keys of the last row read, in the order of the
+         *  Table annotation
+         */
+        public Checkpoint(Object watermark, Object ... keys) {
+            _values = new Object[keys.length + 1];
+            _values[0] = watermark;
+            System.arraycopy(keys, 0, _values, 1, keys.length);
+        }
+
+        public Object getWatermark() {
+            return _values[0];
+        }
+
+        public Object[] getKeys() {
+            return Arrays.copyOfRange(_values, 1, _values.length);
+        }
+
+        public String toString() {
+            return Arrays.toString(_values);
+        }
+    }
+
+    private final DBManager _mgr;
+    private final BeanMap _map;
+    private final Property _cols[];
+    private final Listener<T> _listener;
+    private int _batchSize = 500;
+    private Checkpoint _checkpoint = null;
+    private long _polls = 0;
+    private long _batches = 0;
+    private long _rows = 0;
+
+    /**
+     * @param mgr DBManager to read the rows with
+     * @param c bean class with Table annotation, keys and a Watermark
+     * @param listener receiver of the changed rows
+     * @throws DBException if the bean has no keys or Watermark
+     */
+    public ChangePoller(DBManager mgr, Class<T> c, Listener<T> listener)
+            throws DBException {
+        BeanMap map = BeanMap.get(c);
+        Property keys[] = map.getUniqueKeys();
+        if ( map.getWatermarkProperty() == null || keys == null
+                || keys.length == 0 ) {
+            throw new DBException("Class " + c.getName() + " needs keys "
+                + "and a Watermark to poll changes");
+        }
+        _mgr = mgr;
+        _map = map;
+        _cols = new Property[keys.length + 1];
+        _cols[0] = map.getWatermarkProperty();
+        System.arraycopy(keys, 0, _cols, 1, keys.length);
+        _listener = listener;
+    }
+
+    /**
+     * Function to set the number of rows read by a query. Default is 500
+     */
+    public synchronized ChangePoller<T> setBatchSize(int size) {
+        _batchSize = Math.max(1, size);
+        return this;
+    }
+
+    /**
+     * Function to set the position to poll from, null to read all rows
+     * @throws DBException if the checkpoint does not have a value for each
+     *  key of the bean
+     */
+    public synchronized ChangePoller<T> setCheckpoint(Checkpoint checkpoint)
+            throws DBException {
+        if ( checkpoint != null && checkpoint._values.length != _cols.length ) {
+            throw new DBException(_map.getClassName() + " has "
+                + (_cols.length - 1) + " keys, checkpoint has "
+                + (checkpoint._values.length - 1));
+        }
+        _checkpoint = checkpoint;
+        return this;
+    }
+
+    public synchronized Checkpoint getCheckpoint() {
+        return _checkpoint;
+    }
+
+    /**
+     * Function to read the rows changed since the checkpoint and pass them
+     * to the listener, until a batch is not full
+     * @return the number of rows read
+     * @throws DBException from the query or the listener
+     */
+    @SuppressWarnings(value="unchecked")
+    public synchronized int poll() throws DBException {
+        _polls++;
+        int n = 0;
+        while ( true ) {
+            ArrayList<T> rows = (ArrayList<T>)_mgr.selectChanges(_map,
+                (_checkpoint == null) ? null : _checkpoint._values,
+                _batchSize);
+            if ( rows.isEmpty() ) {
+                return n;
+            }
+            Object last = rows.get(rows.size() - 1);
+            Object v[] = new Object[_cols.length];
+            for (int i=0; i < v.length; i++) {
+                v[i] = _cols[i].getValue(last);
+            }
+            if ( _checkpoint != null && DBManager.key(v).equals(
+                    DBManager.key(_checkpoint._values)) ) {
+                throw new DBException("Poll of " + _map.getClassName()
+                    + " did not move past " + _checkpoint);
+            }
+            Checkpoint next = new Checkpoint(v[0],
+                Arrays.copyOfRange(v, 1, v.length));
+            _listener.changed(Collections.unmodifiableList(rows), next);
+            _checkpoint = next;
+            _batches++;
+            _rows += rows.size();
+            n += rows.size();
+            if ( rows.size() < _batchSize ) {
+                return n;
+            }
+        }
+    }
+
+    public synchronized long getPolls() { return _polls; }
+    public synchronized long getBatches() { return _batches; }
+    public synchronized long getRows() { return _rows; }
+
+    public synchronized String toString() {
+        return _map.getClassName() + " checkpoint=" + _checkpoint
+            + " polls=" + _polls + " batches=" + _batches + " rows=" + _rows;
+    }
+}
@@ -0,0 +1,374 @@
+/*
+ * Coalescing of concurrent gets and queries
+ *
+ * @author Prasad Mokkapati  prasadm80@gmail.com
+ */
+package com.tengo.sqldb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Merges the gets of a DBManager by key that different threads make at
+ * about the same time on the same bean into one query of all their keys,
+ * like getAll. When no get of the bean is running the first one is sent at
+ * once; gets that arrive while a query of the bean is running are collected
+ * until the window has passed or maxBatch keys are waiting, then sent
+ * together, so a lightly loaded DBManager adds no latency and a busy one
+ * sends fewer, larger queries.
+ * With single flight on, select and get queries with the same sql and
+ * class that are already running are not sent again; the callers wait for
+ * the running query and get a list of their own holding the same objects.
+ * Only use it if the objects returned by queries are not changed.
+ * Gets and queries in a Transactional or ConnectionScope method are never
+ * coalesced, they run on the connection of the method. Gets and queries
+ * of different DBManagers are never merged, so a Coalescer can be shared.
+ * Bind a Coalescer with Guice, or call DBManager.setCoalescer, to turn it
+ * on.
+ */
+public class Coalescer {
+    /**
+     * Keys collected to be read with one query
+     */
+    private static final class Batch {
+        final ArrayList<Object[]> _values = new ArrayList<Object[]>();
+        final HashSet<List<Object>> _keys = new HashSet<List<Object>>();
+        final CountDownLatch _done = new CountDownLatch(1);
+        ArrayList<?> _rows = null;
+        DBException _error = null;
+    }
+
+    /**
+     * Batch being collected and the number of queries running for a bean
+     */
+    private static final class Lane {
+        Batch _open = null;
+        int _running = 0;
+    }
+
+    /**
+     * Bean or query of a DBManager
+     */
+    private static final class Key {
+        private final DBManager _mgr;
+        private final Object _key;
+
+        Key(DBManager mgr, Object key) {
+            _mgr = mgr;
+            _key = key;
+        }
+
+        public int hashCode() {
+            return System.identityHashCode(_mgr) * 31 + _key.hashCode();
+        }
+
+        public boolean equals(Object o) {
+            if ( !(o instanceof Key) ) {
+                return false;
+            }
+            Key k = (Key)o;
+            return k._mgr == _mgr && k._key.equals(_key);
+        }
+
+        public String toString() {
+            return _key.toString();
+        }
+    }
+
+    private final long _window;
+    private final int _maxBatch;
+    private volatile boolean _singleFlight = false;
+    private final HashMap<Key, Lane> _lanes = new HashMap<Key, Lane>();
+    private final ConcurrentHashMap<Key, FutureTask<ArrayList<?>>> _flights =
+            new ConcurrentHashMap<Key, FutureTask<ArrayList<?>>>();
+    private final AtomicLong _gets = new AtomicLong();
+    private final AtomicLong _batches = new AtomicLong();
+    private final AtomicLong _batchedGets = new AtomicLong();
+    private final AtomicLong _queries = new AtomicLong();
+    private final AtomicLong _sharedQueries = new AtomicLong();
+
+    /**
+     * @param windowMicros longest time a get waits for others to join it
+     * @param maxBatch number of keys that sends a batch before the window
+     *  has passed
+     */
+    public Coalescer(long windowMicros, int maxBatch) {
+        _window = TimeUnit.MICROSECONDS.toNanos(windowMicros);
+        _maxBatch = Math.max(1, maxBatch);
+    }
+
+    public long getWindow() {
+        return TimeUnit.NANOSECONDS.toMicros(_window);
+    }
+
+    public int getMaxBatch() {
+        return _maxBatch;
+    }
+
+    /**
+     * Function to turn single flight of identical queries on or off. Off
+     * by default. Only the list is the caller's own: callers that share a
+     * query get the same bean objects in their lists, and get(Class,
+     * String) returns the same object to each of them, so they must not
+     * be changed.
+     */
+    public Coalescer setSingleFlight(boolean singleFlight) {
+        _singleFlight = singleFlight;
+        return this;
+    }
+
+    public boolean isSingleFlight() {
+        return _singleFlight;
+    }
+
+    /**
+     * Function to return the number of gets by key
+     */
+    public long getGets() {
+        return _gets.get();
+    }
+
+    /**
+     * Function to return the number of queries sent for gets by key
+     */
+    public long getBatches() {
+        return _batches.get();
+    }
+
+    /**
+     * Function to return the number of gets that were read with the
+     * gets of other threads
+     */
+    public long getBatchedGets() {
+        return _batchedGets.get();
+    }
+
+    /**
+     * Function to return the number of queries seen with single flight on
+     */
+    public long getQueries() {
+        return _queries.get();
+    }
+
+    /**
+     * Function to return the number of queries that waited for an
+     * identical running query instead of being sent
+     */
+    public long getSharedQueries() {
+        return _sharedQueries.get();
+    }
+
+    public String toString() {
+        return "gets=" + getGets() + " batches=" + getBatches()
+            + " batchedGets=" + getBatchedGets() + " queries=" + getQueries()
+            + " sharedQueries=" + getSharedQueries();
+    }
+
+    /**
+     * package private function to read the row of an object with the gets
+     * of other threads
+     * @return the object read, or o if there is no row
+     */
+    Object get(DBManager mgr, BeanMap map, Property keys[], Object o)
+            throws DBException {
+        Object v[] = new Object[keys.length];
+        for (int i=0; i < keys.length; i++) {
+            v[i] = keys[i].getValue(o);
+        }
+        List<Object> key = DBManager.key(v);
+        _gets.incrementAndGet();
+        Key k = new Key(mgr, map);
+        Lane lane;
+        Batch b;
+        int idx = 0;
+        boolean leader = false;
+        synchronized (this) {
+            lane = _lanes.get(k);
+            if ( lane == null ) {
+                lane = new Lane();
+                _lanes.put(k, lane);
+            }
+            b = lane._open;
+            if ( b != null && b._keys.contains(key) ) {
+                // Each caller gets an object of its own
+                b = null;
+            }
+            else if ( b == null ) {
+                b = new Batch();
+                leader = true;
+                if ( lane._running > 0 && _maxBatch > 1 ) {
+                    lane._open = b;
+                }
+            }
+            if ( b != null ) {
+                idx = b._values.size();
+                b._values.add(v);
+                b._keys.add(key);
+                if ( b._values.size() >= _maxBatch && lane._open == b ) {
+                    lane._open = null;
+                    notifyAll();
+                }
+            }
+            lane._running++;
+        }
+        if ( b == null ) {
+            return read(mgr, map, keys, o, v, k, lane);
+        }
+        if ( leader ) {
+            send(mgr, map, keys, b, k, lane);
+        }
+        else {
+            _batchedGets.incrementAndGet();
+            try {
+                b._done.await();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new DBException("Interrupted waiting for a get of "
+                    + map.getClassName());
+            }
+        }
+        if ( b._error != null ) {
+            throw b._error;
+        }
+        Object ret = b._rows.get(idx);
+        return (ret == null) ? o : ret;
+    }
+
+    /**
+     * Internal function to read a single object without batching
+     */
+    private Object read(DBManager mgr, BeanMap map, Property keys[],
+            Object o, Object v[], Key k, Lane lane) throws DBException {
+        ArrayList<Object[]> values = new ArrayList<Object[]>(1);
+        values.add(v);
+        try {
+            _batches.incrementAndGet();
+            Object ret = mgr.getAll(map, keys, values).get(0);
+            return (ret == null) ? o : ret;
+        }
+        finally {
+            done(k, lane, 1);
+        }
+    }
+
+    /**
+     * Internal function to wait for the window of a batch, if it was
+     * opened to collect keys, and read its rows
+     */
+    private void send(DBManager mgr, BeanMap map, Property keys[], Batch b,
+            Key k, Lane lane) {
+        long deadline = System.nanoTime() + _window;
+        ArrayList<Object[]> values;
+        synchronized (this) {
+            try {
+                long left;
+                while ( lane._open == b
+                        && (left = deadline - System.nanoTime()) > 0 ) {
+                    wait(left / 1000000, (int)(left % 1000000));
+                }
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if ( lane._open == b ) {
+                lane._open = null;
+            }
+            values = new ArrayList<Object[]>(b._values);
+        }
+        try {
+            _batches.incrementAndGet();
+            b._rows = mgr.getAll(map, keys, values);
+        }
+        catch (DBException e) {
+            b._error = e;
+        }
+        catch (RuntimeException e) {
+            b._error = new DBException("Batched get of " + map.getClassName()
+                + " failed: " + e);
+        }
+        finally {
+            done(k, lane, values.size());
+            b._done.countDown();
+        }
+    }
+
+    /**
+     * Internal function to end gets of a lane. Lanes without gets are
+     * removed, so DBManagers that are no longer used are not kept
+     */
+    private synchronized void done(Key k, Lane lane, int gets) {
+        lane._running -= gets;
+        if ( lane._running == 0 && lane._open == null ) {
+            _lanes.remove(k);
+        }
+    }
+
+    /**
+     * package private function to run a query, or wait for the identical
+     * query that is already running if single flight is on
+     * @param mgr DBManager that runs the query
+     * @param sql sql and class of the query
+     */
+    ArrayList<?> query(DBManager mgr, String sql,
+            Callable<ArrayList<?>> query) throws DBException {
+        if ( !_singleFlight ) {
+            return call(query);
+        }
+        _queries.incrementAndGet();
+        Key key = new Key(mgr, sql);
+        FutureTask<ArrayList<?>> task = new FutureTask<ArrayList<?>>(query);
+        FutureTask<ArrayList<?>> running = _flights.putIfAbsent(key, task);
+        if ( running == null ) {
+            try {
+                task.run();
+            }
+            finally {
+                _flights.remove(key, task);
+            }
+        }
+        else {
+            _sharedQueries.incrementAndGet();
+            task = running;
+        }
+        try {
+            return task.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DBException("Interrupted waiting for query " + key);
+        }
+        catch (ExecutionException e) {
+            Throwable t = e.getCause();
+            if ( t instanceof DBException ) {
+                throw (DBException)t;
+            }
+            throw new DBException("Query " + key + " failed: " + t);
+        }
+    }
+
+    private static ArrayList<?> call(Callable<ArrayList<?>> query)
+            throws DBException {
+        try {
+            return query.call();
+        }
+        catch (DBException e) {
+            throw e;
+        }
+        catch (RuntimeException e) {
+            throw e;
+        }
+        catch (Exception e) {
+            throw new DBException(e.getMessage());
+        }
+    }
+}
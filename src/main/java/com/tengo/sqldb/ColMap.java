@@ -21,6 +21,8 @@ class ColMap {
     private int _colId[] = null; // Column ids of primitives
     private int _listKeyId[] = null;
     private ColMap  _lists[] = null;
+    private LazyList.Loader _lazyLists[] = null;
+    private DBManager _mgr = null; // Set if there are large objects
     private BeanMap _map = null;
 
     private ColMap() {}
@@ -89,7 +91,7 @@ class ColMap {
             }
             else {
                 //System.out.println("Unable to Map '" + p.getColName() + "'");
-                _colId[i] = 0;
+                colId[i] = 0;
             }
         }
     }
@@ -97,18 +99,18 @@ class ColMap {
     /**
      * Map the lists
      */
-    private void mapLists(ArrayList<Property> lists,
+    private void mapLists(DBManager mgr, ArrayList<Property> lists,
             boolean mapped[], HashMap<String, Integer> colMap) {
         _lists = new ColMap[lists.size()];
         for (int i=0; i < _lists.length; i++) {
             _lists[i] = new ColMap();
-            _lists[i].init(lists.get(i).getMap(), mapped, colMap);
+            _lists[i].init(mgr, lists.get(i).getMap(), mapped, colMap);
         }
     }
     /**
      * Initialize mappings for primitive and lists
      */
-    private void init(BeanMap m, boolean mapped[], 
+    private void init(DBManager mgr, BeanMap m, boolean mapped[], 
                 HashMap<String, Integer> colMap) {
         _map = m;
         ArrayList<Property> prop = m.getPrimitives();
@@ -116,6 +118,16 @@ class ColMap {
             _colId = new int[prop.size()];
             mapProperties(prop, colMap, _colId, mapped);
         }
+        prop = m.getLazy();
+        if ( prop != null ) {
+            // Lazy columns are not read but selecting them is not an error
+            mapProperties(prop, colMap, new int[prop.size()], mapped);
+            for (Property p: prop) {
+                if ( p.getPropertyClass() == LargeObject.class ) {
+                    _mgr = mgr;
+                }
+            }
+        }
         prop = m.getListKeys();
         if ( prop != null ) {
             _listKeyId = new int[prop.size()];
@@ -123,20 +135,29 @@ class ColMap {
         }
         prop = m.getLists();
         if ( prop != null && prop.size() > 0) {
-            mapLists(prop, mapped, colMap);
+            mapLists(mgr, prop, mapped, colMap);
+        }
+        // Lazy lists are loaded later using the manager. One loader per
+        // list so all lists of a select can be loaded together
+        prop = m.getLazyLists();
+        if ( prop != null && mgr != null ) {
+            _lazyLists = new LazyList.Loader[prop.size()];
+            for (int i=0; i < _lazyLists.length; i++) {
+                _lazyLists[i] = new LazyList.Loader(mgr, m, prop.get(i));
+            }
         }
     }
         
 
-    private ColMap(BeanMap m, boolean mapped[], 
-            HashMap<String, Integer> colMap) throws DBException {
-        init(m, mapped, colMap);
-    }
-
     /**
      * package private constructor
+     * @param mgr DBManager used to load lazy lists. If null lazy lists
+     *          are not set
+     * @param m map of bean to map the ResultSet rows to
+     * @param res ResultSet
      */
-    ColMap(BeanMap m, ResultSet res) throws SQLException, DBException {
+    ColMap(DBManager mgr, BeanMap m, ResultSet res) 
+            throws SQLException, DBException {
         ResultSetMetaData md = res.getMetaData();
         HashMap<String, Integer> colMap = new HashMap<String, Integer>();
         int numCol = md.getColumnCount();
@@ -159,13 +180,21 @@ class ColMap {
         }
         boolean mapped[] = new boolean[colMap.size()];
         Arrays.fill(mapped, false);
-        init(m, mapped, colMap);
+        init(mgr, m, mapped, colMap);
         String err = getColMapError(md, mapped);
         if (err != null) {
             throw new DBException(err);
         }
     }
 
+    /**
+     * package private function to return the column ids of the primitive
+     * properties of the map, 0 if a property is not in the result
+     */
+    int[] getColumnIds() {
+        return _colId;
+    }
+
     /**
      * Function to check if the keys in the given object are equal to 
      * keys from the current resultset row.
@@ -210,6 +239,19 @@ class ColMap {
                 p = primitives.get(i);
                 p.setValue(obj, p.getValue(res,_colId[i]));
             }
+            if ( _mgr != null ) { // Set handles to stream large objects
+                for (Property lp: _map.getLazy()) {
+                    if ( lp.getPropertyClass() == LargeObject.class ) {
+                        lp.setValue(obj, new LargeObject(_mgr, _map, lp, obj));
+                    }
+                }
+            }
+            if ( _lazyLists != null ) {
+                ArrayList<Property> lazyLists = _map.getLazyLists();
+                for (int i=0; i < _lazyLists.length; i++) {
+                    lazyLists.get(i).setValue(obj, _lazyLists[i].newList(obj));
+                }
+            }
         }
         if ( _lists != null && obj != null) {
             ArrayList<Property> lists = _map.getLists();
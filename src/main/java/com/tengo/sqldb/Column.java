@@ -18,11 +18,13 @@ import java.lang.annotation.RetentionPolicy;
 
 /**
  * Annotation on a bean property - getter/setter method to indicate mapping
- * for for a column
+ * for for a column. Lazy columns (large text/binary) are not read by 
+ * selects or updated by update, use DBManager fetch and updateColumns.
  */
 public @interface Column {
     String name() default "";
     boolean insertable() default true;
     boolean updateble() default true;
     boolean selectable() default true;
+    boolean lazy() default false;
 }
@@ -0,0 +1,481 @@
+/*
+ * Columnar query result
+ *
+ * @author Prasad Mokkapati  prasadm80@gmail.com
+ */
+package com.tengo.sqldb;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Rows of a query stored by column, for reports that scan a few columns of
+ * many rows. Numbers, dates (as milliseconds), booleans and enum ordinals
+ * are kept in primitive arrays, strings as dictionary codes into the
+ * distinct values of the column, and nulls in a bitmap per column. No
+ * bean or boxed value is created per row.
+ * The columns are the primitive properties of a bean found in the result
+ * (DBManager.selectColumns(Class, String)) or the columns of the result
+ * meta data (DBManager.selectColumns(String)). get(row) creates the bean
+ * of a single row on demand.
+ * Arrays returned are shared and must not be modified.
+ */
+public class Columns<T> {
+    public enum Type { LONG, INT, DOUBLE, BOOLEAN, DATE, ENUM, STRING,
+        OBJECT };
+
+    private static final int INITIAL = 64;
+
+    /**
+     * Values of a column
+     */
+    private static final class Column {
+        final String _name;
+        final Type _type;
+        final Property _prop;  // null if from meta data
+        final BitSet _nulls = new BitSet();
+        long _longs[];
+        int _ints[];
+        double _doubles[];
+        Object _objects[];
+        HashMap<String, Integer> _codes;
+        ArrayList<String> _dictionary;
+
+        Column(String name, Type type, Property p) {
+            _name = name;
+            _type = type;
+            _prop = p;
+            switch (type) {
+            case LONG:
+            case DATE:
+                _longs = new long[INITIAL];
+                break;
+            case DOUBLE:
+                _doubles = new double[INITIAL];
+                break;
+            case OBJECT:
+                _objects = new Object[INITIAL];
+                break;
+            case STRING:
+                // Strings are stored as int codes of the dictionary
+                _codes = new HashMap<String, Integer>();
+                _dictionary = new ArrayList<String>();
+                _ints = new int[INITIAL];
+                break;
+            default:
+                _ints = new int[INITIAL];
+                break;
+            }
+        }
+
+        void grow(int size) {
+            if ( _longs != null ) {
+                _longs = Arrays.copyOf(_longs, size);
+            }
+            if ( _ints != null ) {
+                _ints = Arrays.copyOf(_ints, size);
+            }
+            if ( _doubles != null ) {
+                _doubles = Arrays.copyOf(_doubles, size);
+            }
+            if ( _objects != null ) {
+                _objects = Arrays.copyOf(_objects, size);
+            }
+        }
+
+        /**
+         * Function to read the value of a row from the result set
+         */
+        void read(ResultSet res, int idx, int row) throws SQLException,
+                DBException {
+            boolean isNull;
+            switch (_type) {
+            case LONG:
+                _longs[row] = res.getLong(idx);
+                isNull = res.wasNull();
+                break;
+            case INT:
+                _ints[row] = res.getInt(idx);
+                isNull = res.wasNull();
+                break;
+            case DOUBLE:
+                _doubles[row] = res.getDouble(idx);
+                isNull = res.wasNull();
+                break;
+            case BOOLEAN:
+                _ints[row] = res.getBoolean(idx) ? 1 : 0;
+                isNull = res.wasNull();
+                break;
+            case DATE:
+                java.util.Date d = res.getTimestamp(idx);
+                isNull = (d == null);
+                _longs[row] = isNull ? 0 : d.getTime();
+                break;
+            case ENUM:
+                if ( _prop.isEnumString() ) {
+                    Object e = _prop.getValue(res, idx);
+                    isNull = (e == null);
+                    _ints[row] = isNull ? -1 : ((Enum)e).ordinal();
+                }
+                else {
+                    _ints[row] = res.getInt(idx);
+                    isNull = res.wasNull();
+                }
+                break;
+            case STRING:
+                String s = res.getString(idx);
+                isNull = (s == null);
+                _ints[row] = isNull ? -1 : code(s);
+                break;
+            default:
+                _objects[row] = (_prop != null) ? _prop.getValue(res, idx)
+                    : res.getObject(idx);
+                isNull = (_objects[row] == null);
+            }
+            if ( isNull ) {
+                _nulls.set(row);
+            }
+        }
+
+        private int code(String s) {
+            Integer c = _codes.get(s);
+            if ( c == null ) {
+                c = Integer.valueOf(_dictionary.size());
+                _codes.put(s, c);
+                _dictionary.add(s);
+            }
+            return c.intValue();
+        }
+    }
+
+    private final BeanMap _map;
+    private final Column _columns[];
+    private final HashMap<String, Integer> _index =
+            new HashMap<String, Integer>();
+    private int _size = 0;
+
+    private Columns(BeanMap map, Column columns[]) {
+        _map = map;
+        _columns = columns;
+        for (int i=0; i < columns.length; i++) {
+            _index.put(columns[i]._name, Integer.valueOf(i));
+        }
+    }
+
+    /**
+     * package private function to read all rows of a result into columns
+     * @param map BeanMap of the bean class or null to use the columns of
+     *  the result meta data
+     */
+    static <T> Columns<T> read(BeanMap map, ResultSet res)
+            throws SQLException, DBException {
+        ResultSetMetaData md = res.getMetaData();
+        int n = md.getColumnCount();
+        Column cols[] = new Column[n];
+        StringBuilder unmapped = null;
+        for (int i=1; i <= n; i++) {
+            String name = md.getColumnLabel(i);
+            name = (name == null) ? md.getColumnName(i).toLowerCase()
+                : name.toLowerCase();
+            if ( map == null ) {
+                cols[i-1] = new Column(name, getType(md, i), null);
+                continue;
+            }
+            Property p = map.getProperty(name);
+            if ( p == null || !p.isPrimitive() ) {
+                unmapped = (unmapped == null)
+                    ? new StringBuilder(name) : unmapped.append(',' + name);
+                continue;
+            }
+            cols[i-1] = new Column(name, getType(p), p);
+        }
+        if ( unmapped != null ) {
+            throw new DBException("Mapping error mapping database columns ("
+                + unmapped + ") to " + map.getClassName());
+        }
+        Columns<T> ret = new Columns<T>(map, cols);
+        int capacity = INITIAL;
+        int row = 0;
+        while ( res.next() ) {
+            if ( row == capacity ) {
+                capacity *= 2;
+                for (Column c: cols) {
+                    c.grow(capacity);
+                }
+            }
+            for (int i=0; i < n; i++) {
+                cols[i].read(res, i+1, row);
+            }
+            row++;
+        }
+        for (Column c: cols) {
+            c.grow(row);
+        }
+        ret._size = row;
+        return ret;
+    }
+
+    /**
+     * Internal function to return the column type of a bean property
+     */
+    private static Type getType(Property p) {
+        Class c = p.getPropertyClass();
+        if ( c == long.class || c == Long.class ) {
+            return Type.LONG;
+        }
+        if ( c == int.class || c == Integer.class || c == short.class
+                || c == Short.class || c == byte.class || c == Byte.class ) {
+            return Type.INT;
+        }
+        if ( c == double.class || c == Double.class || c == float.class
+                || c == Float.class ) {
+            return Type.DOUBLE;
+        }
+        if ( c == boolean.class || c == Boolean.class ) {
+            return Type.BOOLEAN;
+        }
+        if ( java.util.Date.class.isAssignableFrom(c) ) {
+            return Type.DATE;
+        }
+        if ( c.isEnum() ) {
+            return Type.ENUM;
+        }
+        if ( c == String.class ) {
+            return Type.STRING;
+        }
+        return Type.OBJECT;
+    }
+
+    /**
+     * Internal function to return the column type of a result column
+     */
+    private static Type getType(ResultSetMetaData md, int i)
+            throws SQLException {
+        switch (md.getColumnType(i)) {
+        case Types.BIGINT:
+            return Type.LONG;
+        case Types.INTEGER:
+        case Types.SMALLINT:
+        case Types.TINYINT:
+            return Type.INT;
+        case Types.DOUBLE:
+        case Types.FLOAT:
+        case Types.REAL:
+            return Type.DOUBLE;
+        case Types.DECIMAL:
+        case Types.NUMERIC:
+            // Whole numbers fit a long, others keep their BigDecimal
+            return (md.getScale(i) == 0 && md.getPrecision(i) > 0
+                && md.getPrecision(i) <= 18) ? Type.LONG : Type.OBJECT;
+        case Types.BIT:
+        case Types.BOOLEAN:
+            return Type.BOOLEAN;
+        case Types.DATE:
+        case Types.TIME:
+        case Types.TIMESTAMP:
+            return Type.DATE;
+        case Types.CHAR:
+        case Types.VARCHAR:
+        case Types.LONGVARCHAR:
+        case Types.NCHAR:
+        case Types.NVARCHAR:
+        case Types.LONGNVARCHAR:
+            return Type.STRING;
+        default:
+            return Type.OBJECT;
+        }
+    }
+
+    /**
+     * Function to return the number of rows
+     */
+    public int size() {
+        return _size;
+    }
+
+    public int getColumnCount() {
+        return _columns.length;
+    }
+
+    public String getName(int col) {
+        return _columns[col]._name;
+    }
+
+    public Type getType(int col) {
+        return _columns[col]._type;
+    }
+
+    /**
+     * Function to return the index of a column
+     * @param name column name, lower case
+     * @return the index or -1 if the result does not have the column
+     */
+    public int getIndex(String name) {
+        Integer i = _index.get(name);
+        return (i == null) ? -1 : i.intValue();
+    }
+
+    public boolean isNull(int row, int col) {
+        return _columns[col]._nulls.get(row);
+    }
+
+    /**
+     * Function to return the null bitmap of a column
+     */
+    public BitSet getNulls(int col) {
+        return _columns[col]._nulls;
+    }
+
+    /**
+     * Functions to return the values of a column for scans. One entry per
+     * row, 0 for nulls
+     */
+    public long[] getLongs(int col) {
+        return check(col, Type.LONG, Type.DATE)._longs;
+    }
+
+    public int[] getInts(int col) {
+        return check(col, Type.INT, Type.BOOLEAN)._ints;
+    }
+
+    public double[] getDoubles(int col) {
+        return check(col, Type.DOUBLE, Type.DOUBLE)._doubles;
+    }
+
+    /**
+     * Function to return the ordinals of an enum column, -1 for nulls
+     */
+    public int[] getOrdinals(int col) {
+        return check(col, Type.ENUM, Type.ENUM)._ints;
+    }
+
+    /**
+     * Function to return the dictionary codes of a string column, -1 for
+     * nulls
+     */
+    public int[] getCodes(int col) {
+        return check(col, Type.STRING, Type.STRING)._ints;
+    }
+
+    /**
+     * Function to return the distinct values of a string column, indexed
+     * by code
+     */
+    public List<String> getDictionary(int col) {
+        return Collections.unmodifiableList(
+            check(col, Type.STRING, Type.STRING)._dictionary);
+    }
+
+    private Column check(int col, Type t1, Type t2) {
+        Column c = _columns[col];
+        if ( c._type != t1 && c._type != t2 ) {
+            throw new IllegalArgumentException("Column " + c._name + " is "
+                + c._type);
+        }
+        return c;
+    }
+
+    public long getLong(int row, int col) {
+        return getLongs(col)[row];
+    }
+
+    public int getInt(int row, int col) {
+        return getInts(col)[row];
+    }
+
+    public double getDouble(int row, int col) {
+        return getDoubles(col)[row];
+    }
+
+    public String getString(int row, int col) {
+        Column c = check(col, Type.STRING, Type.STRING);
+        int code = c._ints[row];
+        return (code < 0) ? null : c._dictionary.get(code);
+    }
+
+    /**
+     * Function to return a value as an object of the type of its column:
+     * Long, Integer, Double, Boolean, Date, the enum ordinal as Integer
+     * (or the enum if the column is a bean property), String or the value
+     * read
+     */
+    public Object getObject(int row, int col) {
+        Column c = _columns[col];
+        if ( c._nulls.get(row) ) {
+            return null;
+        }
+        switch (c._type) {
+        case LONG:
+            return Long.valueOf(c._longs[row]);
+        case INT:
+            return Integer.valueOf(c._ints[row]);
+        case DOUBLE:
+            return Double.valueOf(c._doubles[row]);
+        case BOOLEAN:
+            return Boolean.valueOf(c._ints[row] != 0);
+        case DATE:
+            return new java.util.Date(c._longs[row]);
+        case ENUM:
+            return c._prop.getPropertyClass()
+                .getEnumConstants()[c._ints[row]];
+        case STRING:
+            return c._dictionary.get(c._ints[row]);
+        default:
+            return c._objects[row];
+        }
+    }
+
+    /**
+     * Function to create the bean of a row
+     * @throws DBException if the columns are not of a bean
+     */
+    @SuppressWarnings(value="unchecked")
+    public T get(int row) throws DBException {
+        if ( _map == null ) {
+            throw new DBException("Columns are not mapped to a bean");
+        }
+        Object o = _map.newInstance();
+        for (int col=0; col < _columns.length; col++) {
+            Column c = _columns[col];
+            Object v = getObject(row, col);
+            if ( v == null ) {
+                if ( !c._prop.getPropertyClass().isPrimitive() ) {
+                    c._prop.setValue(o, null);
+                }
+                continue;
+            }
+            c._prop.setValue(o, convert(v, c._prop.getPropertyClass()));
+        }
+        return (T)o;
+    }
+
+    /**
+     * Internal function to convert a column value to a property class
+     */
+    private static Object convert(Object v, Class c) {
+        if ( c == short.class || c == Short.class ) {
+            return Short.valueOf(((Number)v).shortValue());
+        }
+        if ( c == byte.class || c == Byte.class ) {
+            return Byte.valueOf(((Number)v).byteValue());
+        }
+        if ( c == float.class || c == Float.class ) {
+            return Float.valueOf(((Number)v).floatValue());
+        }
+        if ( c == java.sql.Timestamp.class ) {
+            return new java.sql.Timestamp(((java.util.Date)v).getTime());
+        }
+        if ( c == java.sql.Date.class ) {
+            return new java.sql.Date(((java.util.Date)v).getTime());
+        }
+        return v;
+    }
+}
@@ -0,0 +1,22 @@
+/*
+ * Optimistic concurrency conflict exception
+ *
+ * @author Prasad Mokkapati  prasadm80@gmail.com
+ */
+package com.tengo.sqldb;
+import java.io.Serializable;
+
+/**
+ * Thrown when an update or delete of a bean with a Version property does
+ * not match a row, I.E. the row was changed or deleted by another
+ * transaction since the bean was read. Retryable, so Transactional
+ * methods with maxAttempts run again and read the row again.
+ */
+public class ConflictException extends DBException 
+        implements Serializable {
+
+    public ConflictException(final String reason) {
+        super(reason);
+        setRetryable(true);
+    }
+}
@@ -0,0 +1,26 @@
+/*
+ * Annotation to indicate that a function/method reuses connections
+ *
+ * @author Prasad Mokkapati  prasadm80@gmail.com
+ */
+package com.tengo.sqldb;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.Inherited;
+import java.lang.annotation.Target;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+/**
+ * DBManager calls made by the method, outside of transactions, reuse one
+ * connection per DBManager in auto commit mode. The connections are
+ * released when the method returns. See TransactionContext.scope
+ */
+@Inherited
+@Documented
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+
+public @interface ConnectionScope {
+}
@@ -0,0 +1,28 @@
+/*
+ * Interceptor for methods annotated with @ConnectionScope
+ *
+ * @author Prasad Mokkapati  prasadm80@gmail.com
+ */
+package com.tengo.sqldb;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+
+/**
+ * Runs ConnectionScope methods in a connection scope. Nested calls, and
+ * calls in a transaction, join the scope or transaction of the thread.
+ */
+public class ConnectionScopeInterceptor implements MethodInterceptor {
+
+    public Object invoke(MethodInvocation inv) throws Throwable {
+        boolean topLevel = TransactionContext.beginScope();
+        try {
+            return inv.proceed();
+        }
+        finally {
+            if ( topLevel ) {
+                TransactionContext.endScope();
+            }
+        }
+    }
+}
@@ -8,6 +8,8 @@ import java.io.Serializable;
 
 public class DBException extends Exception 
         implements Serializable {
+    // Set if the error was a deadlock or serialization failure
+    private boolean _retryable = false;
 
     public DBException() {
         this("Unknown Database Exception");
@@ -20,4 +22,17 @@ public class DBException extends Exception
     public DBException(final Throwable e) {
         super(e);
     }
+
+    /**
+     * Function to check if the transaction that failed with this exception
+     * can be run again. I.E. the database rolled it back due to a deadlock
+     * or serialization failure
+     */
+    public boolean isRetryable() {
+        return _retryable;
+    }
+
+    void setRetryable(boolean retryable) {
+        _retryable = retryable;
+    }
 }
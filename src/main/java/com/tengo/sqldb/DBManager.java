@@ -10,7 +10,9 @@ import java.beans.Introspector;
 import java.beans.PropertyDescriptor;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.nio.channels.WritableByteChannel;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
@@ -18,12 +20,16 @@ import java.sql.Statement;
 import java.sql.Types;
 import java.sql.SQLIntegrityConstraintViolationException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.text.SimpleDateFormat;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import javax.sql.DataSource;
 
@@ -46,16 +52,12 @@ public class DBManager {
             new SimpleDateFormat("yyyy-MM-dd");
 
     private final DataSource _dataSource;
-    private final ThreadLocal<Connection> _connection = 
-            new ThreadLocal<Connection>();
-
-    private static final ThreadLocal<Integer> _transactionalCnt =
-            new ThreadLocal<Integer>();
-
-    // List of DBManagers in a thread that are in a Transactional block
-    private static final ThreadLocal<ArrayList<DBManager>> _dbManagers=
-            new ThreadLocal<ArrayList<DBManager>>();
-
+    // Detected from the first connection
+    private volatile Dialect _dialect = null;
+    private Metrics _metrics = MemoryMetrics.getDefault();
+    private SlowQueryLog _slowLog = null;
+    private Coalescer _coalescer = null;
+    private final IdGenerator _ids = new IdGenerator(this);
     /* 
      * Constructor needed for Guice
      */
@@ -65,54 +67,53 @@ public class DBManager {
     }
 
     /**
-     * package private function used by Transactional interceptors to 
-     * begin and end transactions. 
+     * Function to check if the current thread is in a Transactional context
      */
-    static boolean beginTransaction() {
-        Integer cnt = _transactionalCnt.get();
-        if ( cnt == null ) { // No transactional call yet
-            cnt = new Integer(1);
-            _transactionalCnt.set(cnt);
-            return true;
-        }
-        else {
-            return false;
-        }
+    static boolean inTransaction() {
+        TransactionContext ctx = TransactionContext.current();
+        return (ctx != null && ctx.isTransactional());
     }
 
-    static void commitTransaction() throws DBException {
-        Integer cnt = _transactionalCnt.get();
-        if ( cnt == null) {
-            throw new DBException("No Transaction to commit");
-        }
-        else {
-            // Commit all the DBManagers in thread
-            ArrayList<DBManager> mgrs = _dbManagers.get();
-            if ( mgrs != null) {
-                for (DBManager mgr: mgrs) {
-                    mgr.commit();
-                }
-                _dbManagers.set(null);
-            }
-            _transactionalCnt.set(null);
-        }
+    /**
+     * Function to set the metrics updated by operations. Optional, the
+     * default is MemoryMetrics.getDefault()
+     */
+    @Inject(optional=true)
+    public void setMetrics(Metrics m) {
+        _metrics = m;
     }
-    static void rollbackTransaction() throws DBException {
-        ArrayList<DBManager> mgrs = _dbManagers.get();
-        if ( mgrs != null) {
-            for (DBManager mgr: mgrs) {
-                mgr.rollback();
-            }
-            _dbManagers.set(null);
-        }
-        _transactionalCnt.set(null);
+
+    /**
+     * Function to return the metrics updated by operations
+     */
+    public Metrics getMetrics() {
+        return _metrics;
     }
 
     /**
-     * Function to check if the current thread is in a Transactional context
+     * Function to set the log of slow operations. Optional, slow
+     * operations are not logged by default
      */
-    static boolean inTransaction() {
-        return (_transactionalCnt.get() != null);
+    @Inject(optional=true)
+    public void setSlowQueryLog(SlowQueryLog log) {
+        _slowLog = log;
+    }
+
+    public SlowQueryLog getSlowQueryLog() {
+        return _slowLog;
+    }
+
+    /**
+     * Function to set the coalescer of concurrent gets and queries.
+     * Optional, each get and query is sent on its own by default
+     */
+    @Inject(optional=true)
+    public void setCoalescer(Coalescer coalescer) {
+        _coalescer = coalescer;
+    }
+
+    public Coalescer getCoalescer() {
+        return _coalescer;
     }
 
     /* 
@@ -123,104 +124,97 @@ public class DBManager {
     }
 
     /**
-     * Starts a transaction and attaches the connection thread local storage
+     * Starts a transaction and attaches the connection to the
+     * TransactionContext of the current thread
      */
     public void begin() throws DBException {
-	if (_connection.get() != null) {
-            throw new DBException(
-                "DB Connection already set in current thread");
-        }
-        begin(getConnection());
+        TransactionContext.begin(this, _dataSource);
     }
 
-
-    private void begin(Connection c) throws DBException {
-        try {
-            c.setAutoCommit(false);
-            _connection.set(c);
-        } 
-        catch (SQLException e) {
-            handleException(e,"",null);
-        }
-    }
-    
     /**
      * Commit a transaction.
      */
     public void commit() throws  DBException {
-        Connection c = _connection.get();
-	if (c == null) {
-            throw new DBException("DB Connection is not set in current thread");
-        }
-        try {
-            c.commit();
-            
-        } catch (SQLException e) {
-            handleException(e,"",null);
-        }
-        finally {
-            _connection.set(null);
-	    release(c);
-        }
+        TransactionContext.end(this, true);
     }
 
     /**
      * Function to rollback a transaction
      */
     public void rollback() throws  DBException {
-	Connection c = _connection.get();
-	if (c == null) {
-            throw new DBException("DB Connection is not set in current thread");
-        }
-        try {
-            c.rollback();
-        } catch (SQLException e) {
-            handleException(e,"",null);
-        }
-        finally {
-	    _connection.set(null);
-	    release(c);
-        }
+        TransactionContext.end(this, false);
     }
 
 
     /**
-     * Function to get a pooled connection. If a connection was retrieved
-     * before and kept in threadlocal connection return it otherwise get a 
-     * new connection from data source
+     * Function to return the dialect of the database
+     */
+    public Dialect getDialect() throws DBException {
+        if ( _dialect == null ) {
+            release(getConnection());
+        }
+        return _dialect;
+    }
+
+    /**
+     * Function to get a pooled connection. If the TransactionContext of
+     * the current thread has a connection for this DBManager return it
+     * otherwise get a new connection from data source
      */
     protected Connection getConnection() throws DBException {
         try {
-            Connection c = _connection.get();
-            if (c == null) { // No connections in this thread. 
+            Connection c = TransactionContext.getConnection(this, 
+                _dataSource);
+            if (c == null) { // Not in a transaction
                 c = _dataSource.getConnection();
-                if ( inTransaction() ) {
-                    begin(c);
-                    _connection.set(c);
-                    ArrayList<DBManager> mgrs = _dbManagers.get();
-                    if ( mgrs == null) {
-                        mgrs = new ArrayList<DBManager>();
-                        _dbManagers.set(mgrs);
-                    }
-                    mgrs.add(this);
-                }
+            }
+            if ( _dialect == null ) {
+                _dialect = Dialect.get(c);
             }
             return c;
         }
+        catch (DBException e) {
+            throw e;
+        }
         catch (Exception e) {
             throw new DBException(e);
         }
     }
 
+    /**
+     * Package private function to get a new connection from the data
+     * source, outside of any transaction
+     */
+    Connection newConnection() throws SQLException {
+        return _dataSource.getConnection();
+    }
+
+    /**
+     * Internal function to get a connection timed by the probe of an
+     * operation. Ends the probe if there is no connection.
+     */
+    private Connection getConnection(Probe probe) throws DBException {
+        long start = System.nanoTime();
+        try {
+            Connection c = getConnection();
+            probe.connected(System.nanoTime() - start);
+            return c;
+        }
+        catch (DBException e) {
+            Probe.failed(Metrics.CONNECTION);
+            probe.end();
+            throw e;
+        }
+    }
+
     /**
      * Function to release a connection. If this connection to be released
-     * is also stored in thread local - I.E. connection created by a external
+     * belongs to the TransactionContext, I.E. connection created by a 
      * begin transaction, then do not close connection
      */
     protected void release(Connection c) throws DBException {
         try {
-            Connection tc = _connection.get();
-            if ( tc != c) {
+            if ( !TransactionContext.release(this, c) ) {
                 c.close();
             }
         } 
@@ -229,8 +223,35 @@ public class DBManager {
         }
     }
 
+    /**
+     * Internal function to return the metrics error category of an
+     * exception
+     */
+    private String getCategory(Exception ex) {
+        String msg = String.valueOf(ex.getMessage());
+        if ( ex instanceof DuplicateException
+                || ex instanceof SQLIntegrityConstraintViolationException
+                || msg.matches(".*duplicate key (value ){0,1}violates unique constraint.*") ) {
+            return Metrics.DUPLICATE;
+        }
+        if ( (_dialect == null ? Dialect.Generic : _dialect).isRetryable(ex) ) {
+            return Metrics.RETRYABLE;
+        }
+        if ( ex instanceof java.sql.SQLTimeoutException 
+                || msg.indexOf("timed out") >= 0 ) {
+            return Metrics.TIMEOUT;
+        }
+        if ( ex instanceof java.net.SocketException 
+                || ex instanceof java.sql.SQLNonTransientConnectionException
+                || ex instanceof java.sql.SQLTransientConnectionException ) {
+            return Metrics.CONNECTION;
+        }
+        return (ex instanceof SQLException) ? Metrics.SQL : Metrics.OTHER;
+    }
+
     private void handleException(Exception ex, String className,
                 Connection conn) throws  DBException {
+        Probe.failed(getCategory(ex));
         if ( ex instanceof java.net.SocketException ||
              ex.toString().indexOf("java.net.SocketException") > -1  ||
              ex.toString().indexOf("broken the connection") > -1 ) {
@@ -275,6 +296,9 @@ public class DBManager {
 		new DBException("Can't create object " 
                     + className + ": " + ex.getMessage());
             pex.initCause(ex);
+            pex.setRetryable(ex instanceof SQLException
+                && (_dialect == null ? Dialect.Generic : _dialect)
+                    .isRetryable(ex));
             throw pex;
         }
     }
@@ -287,17 +311,20 @@ public class DBManager {
      *  @throws SQLException
      */
     public int executeSQL(String str) throws  DBException {
-        Connection conn = getConnection();
+        Probe probe = Probe.start(this, 
+            Metrics.Operation.execute, null);
+        Connection conn = getConnection(probe);
         Statement stmt = null;
         try {
             stmt = createStatement(conn);
-            return stmt.executeUpdate(str);
+            return executeUpdate(stmt, str);
         }
         catch (Exception ex) {
             handleException(ex, "executeSQL: "+ str,conn);
         }
         finally {
             close(stmt);
+            probe.end();
             release(conn);
         }
         return 0;
@@ -311,7 +338,14 @@ public class DBManager {
      */
     public <T> int delete(T o) throws  DBException {
         BeanMap map = BeanMap.get(o.getClass());
-        Connection conn = getConnection();
+        WriteBuffer b = TransactionContext.getWriteBuffer(this);
+        if ( b != null ) {
+            b.delete(map, o);
+            return 1;
+        }
+        Probe probe = Probe.start(this, 
+            Metrics.Operation.delete, o.getClass());
+        Connection conn = getConnection(probe);
         try {
             return map.delete(this, conn, o);
         }
@@ -319,12 +353,104 @@ public class DBManager {
             handleException(ex, o.getClass().getName(),conn);
         }
         finally {
+            probe.end();
             release(conn);
         }
         return 0;
     }
   
 
+    /**
+     * Applies a change to an object with a Version property and updates
+     * it. If the row was changed since the object was read, the row is read
+     * again and the change applied to it, up to maxAttempts times. Use
+     * outside of transactions, or in transactions with READ_COMMITTED
+     * isolation so the row read again is the latest.
+     * In a transaction that buffers writes the update is flushed at once,
+     * so its conflicts are seen and retried here. Writes buffered before
+     * are flushed first, and their conflicts are thrown without retries.
+     * @param o object read from the database
+     * @param change change to apply
+     * @param maxAttempts number of times to apply the change
+     * @return the object updated, o or the row read again
+     * @throws ConflictException if the last attempt failed or the row was
+     *  deleted
+     */
+    public <T> T update(T o, Change<T> change, int maxAttempts)
+            throws DBException {
+        flush();
+        T cur = o;
+        for (int attempt=1; ; attempt++) {
+            change.apply(cur);
+            try {
+                update(cur);
+                flush();
+                return cur;
+            }
+            catch (ConflictException e) {
+                if ( attempt >= maxAttempts ) {
+                    throw e;
+                }
+                T row = get(cur);
+                if ( row == cur ) { // Row was deleted
+                    throw e;
+                }
+                cur = row;
+            }
+        }
+    }
+
+    /**
+     * Writes the inserts, updates and deletes buffered in the transaction
+     * of the current thread, if it buffers writes (see
+     * Transactional.bufferWrites). Call before queries that need to see
+     * them; the buffer is also flushed before the transaction commits.
+     */
+    public void flush() throws DBException {
+        WriteBuffer b = TransactionContext.getWriteBuffer(this);
+        if ( b != null ) {
+            b.flush(this);
+        }
+    }
+
+    /**
+     * Deletes a list of objects with a statement per chunk of 
+     * BeanMap.BULKDELETE_CHUNK_SIZE keys. Keys are deleted in sorted order
+     * to reduce deadlocks with concurrent bulk changes.
+     * @param l list of objects of the same class
+     * @return number of rows deleted
+     */
+    public <T> int bulkDelete(List<T> l) throws  DBException {
+        if (l.size() < 1) {
+            return 0;
+        }
+        BeanMap map = BeanMap.get(l.get(0).getClass());
+        WriteBuffer b = TransactionContext.getWriteBuffer(this);
+        if ( b != null ) {
+            for (T o: l) {
+                b.delete(map, o);
+            }
+            return l.size();
+        }
+        Probe probe = Probe.start(this, 
+            Metrics.Operation.bulkDelete, l.get(0).getClass());
+        probe.batch(l.size());
+        Connection conn = getConnection(probe);
+        try {
+            int ret = map.bulkDelete(this, conn, l);
+            probe.rows(ret);
+            return ret;
+        }
+        catch (Exception ex) {
+            handleException(ex, l.get(0).getClass().getName(),conn);
+        }
+        finally {
+            probe.end();
+            release(conn);
+        }
+        return 0;
+    }
+
     /**
      * Inserts an object  into database
      * @param o Object to be inserted
@@ -332,7 +458,14 @@ public class DBManager {
      */
     public <T> int insert(T o) throws  DBException {
         BeanMap map = BeanMap.get(o.getClass());
-        Connection conn = getConnection();
+        WriteBuffer b = TransactionContext.getWriteBuffer(this);
+        if ( b != null ) {
+            b.insert(this, map, o);
+            return 1;
+        }
+        Probe probe = Probe.start(this, 
+            Metrics.Operation.insert, o.getClass());
+        Connection conn = getConnection(probe);
         try {
             return map.insert(this, conn, o);
         }
@@ -340,6 +473,7 @@ public class DBManager {
             handleException(ex, o.getClass().getName(),conn);
         }
         finally {
+            probe.end();
             release(conn);
         }
         return 0;
@@ -354,7 +488,17 @@ public class DBManager {
             return 0;
         }
         BeanMap map = BeanMap.get(l.get(0).getClass());
-        Connection conn = getConnection();
+        WriteBuffer b = TransactionContext.getWriteBuffer(this);
+        if ( b != null ) {
+            for (T o: l) {
+                b.insert(this, map, o);
+            }
+            return l.size();
+        }
+        Probe probe = Probe.start(this, 
+            Metrics.Operation.bulkInsert, l.get(0).getClass());
+        probe.batch(l.size());
+        Connection conn = getConnection(probe);
         try {
             return map.bulkInsert(this, conn, l);
         }
@@ -362,10 +506,79 @@ public class DBManager {
             handleException(ex, l.get(0).getClass().getName(),conn);
         }
         finally {
+            probe.end();
             release(conn);
         }
         return 0;
     }
+    /**
+     * Sets the ids of objects whose Id generator is SEQUENCE or TABLE, so
+     * they are known before the objects are inserted. E.g. to set the
+     * parent id of children and insert the parents and the children with
+     * bulkInsert. Objects with an id already set are not changed.
+     * @param l list of objects of the same class
+     */
+    public <T> void assignIds(List<T> l) throws DBException {
+        if (l.size() < 1) {
+            return;
+        }
+        BeanMap map = BeanMap.get(l.get(0).getClass());
+        if ( map.getIdGenerator() == null ) {
+            throw new DBException(map.getClassName() + " does not have "
+                + "an Id generator");
+        }
+        for (T o: l) {
+            map.assignId(this, o);
+        }
+    }
+
+    /**
+     * package private function to return the next id of a bean with an
+     * Id generator
+     */
+    long nextId(BeanMap map) throws DBException {
+        return _ids.next(map);
+    }
+
+    /**
+     * Updates a list of objects with JDBC batches of 
+     * BeanMap.BULKUPDATE_CHUNK_SIZE rows, in the order of their keys to
+     * reduce deadlocks with concurrent bulk changes.
+     * @param l list of objects of the same class
+     * @return number of rows updated for each object, in the order of l.
+     *  Statement.SUCCESS_NO_INFO where the driver does not report counts
+     */
+    public <T> int[] bulkUpdate(List<T> l) throws  DBException {
+        if (l.size() < 1) {
+            return new int[0];
+        }
+        BeanMap map = BeanMap.get(l.get(0).getClass());
+        WriteBuffer b = TransactionContext.getWriteBuffer(this);
+        if ( b != null ) {
+            int ret[] = new int[l.size()];
+            for (int i=0; i < ret.length; i++) {
+                b.update(map, l.get(i));
+                ret[i] = 1;
+            }
+            return ret;
+        }
+        Probe probe = Probe.start(this, 
+            Metrics.Operation.bulkUpdate, l.get(0).getClass());
+        probe.batch(l.size());
+        Connection conn = getConnection(probe);
+        try {
+            return map.bulkUpdate(this, conn, l);
+        }
+        catch (Exception ex) {
+            handleException(ex, l.get(0).getClass().getName(),conn);
+        }
+        finally {
+            probe.end();
+            release(conn);
+        }
+        return new int[0];
+    }
+
     /**
      * Update an object  into database
      * @param o Object to be updated
@@ -373,7 +586,14 @@ public class DBManager {
      */
     public <T> int update(T o) throws  DBException {
         BeanMap map = BeanMap.get(o.getClass());
-        Connection conn = getConnection();
+        WriteBuffer b = TransactionContext.getWriteBuffer(this);
+        if ( b != null ) {
+            b.update(map, o);
+            return 1;
+        }
+        Probe probe = Probe.start(this, 
+            Metrics.Operation.update, o.getClass());
+        Connection conn = getConnection(probe);
         try {
             return map.update(this, conn, o);
         }
@@ -381,12 +601,15 @@ public class DBManager {
             handleException(ex, o.getClass().getName(),conn);
         }
         finally {
+            probe.end();
             release(conn);
         }
         return 0;
     }
     /**
-     *  Retrieves a single row from the database
+     *  Retrieves a single row from the database. With a Coalescer, gets
+     *  of other threads on the same bean may be read with the same query,
+     *  which is counted as a getAll operation.
      *
      *  @param  o that contains the keys 
      *  @return  the same object passed int
@@ -396,20 +619,259 @@ public class DBManager {
     @SuppressWarnings(value="unchecked")
     public <T> T get(T o) throws  DBException {
         BeanMap map = BeanMap.get(o.getClass());
-        Connection conn = getConnection();
+        Coalescer co = _coalescer;
+        if ( co != null && TransactionContext.current() == null ) {
+            Property keys[] = map.getUniqueKeys();
+            if ( keys != null && keys.length > 0 ) {
+                return (T)co.get(this, map, keys, o);
+            }
+        }
+        Probe probe = Probe.start(this, 
+            Metrics.Operation.get, o.getClass());
+        Connection conn = getConnection(probe);
         try {
-            return (T)map.get(this, conn, o);
+            T ret = (T)map.get(this, conn, o);
+            // The bean passed in is returned when there is no row
+            probe.rows(ret != o ? 1 : 0);
+            return ret;
         }
         catch (Exception ex) {
             handleException(ex, map.getClass().getName(),conn);
             return null;
         }
         finally {
+            probe.end();
+            release(conn);
+        }
+    }
+    /**
+     *  Retrieves the rows of many objects with a few queries instead of
+     *  a get per object. The keys are matched in chunks of
+     *  BeanMap.GETALL_CHUNK_SIZE.
+     *
+     *  @param  objs objects that contain the keys, all of the same class
+     *  @return  new objects in the order of objs, null for the objects
+     *          that do not have a row
+     *         
+     *  @throws DBException
+     */
+    @SuppressWarnings(value="unchecked")
+    public <T> ArrayList<T> getAll(List<T> objs) throws  DBException {
+        if ( objs.isEmpty() ) {
+            return new ArrayList<T>();
+        }
+        BeanMap map = BeanMap.get(objs.get(0).getClass());
+        Property keys[] = getKeys(map);
+        ArrayList<Object[]> values = new ArrayList<Object[]>(objs.size());
+        for (T o: objs) {
+            Object v[] = new Object[keys.length];
+            for (int j=0; j < keys.length; j++) {
+                v[j] = keys[j].getValue(o);
+            }
+            values.add(v);
+        }
+        return (ArrayList<T>)getAll(map, keys, values);
+    }
+
+    /**
+     *  Retrieves the rows of the given key values
+     *
+     *  @param  c bean class
+     *  @param  keys key values. Object[] with a value for each unique key,
+     *          in the order of the Table annotation, if the bean has more
+     *          than one
+     *  @return  objects in the order of keys, null for the keys that do
+     *          not have a row
+     *         
+     *  @throws DBException
+     */
+    @SuppressWarnings(value="unchecked")
+    public <T> ArrayList<T> getAllByKeys(Class<T> c, Collection<?> keys)
+            throws  DBException {
+        BeanMap map = BeanMap.get(c);
+        Property props[] = getKeys(map);
+        ArrayList<Object[]> values = new ArrayList<Object[]>(keys.size());
+        for (Object k: keys) {
+            Object v[] = (k instanceof Object[]) ? (Object[])k
+                : new Object[] { k };
+            if ( v.length != props.length ) {
+                throw new DBException(map.getClassName() + " has "
+                    + props.length + " keys, got " + v.length);
+            }
+            values.add(v);
+        }
+        return (ArrayList<T>)getAll(map, props, values);
+    }
+
+    private static Property[] getKeys(BeanMap map) throws DBException {
+        Property keys[] = map.getUniqueKeys();
+        if ( keys == null || keys.length == 0 ) {
+            throw new DBException(map.getClassName() + " needs Table "
+                + "annotation and keys to get rows by keys");
+        }
+        return keys;
+    }
+
+    /**
+     * package private function to retrieve the rows of key values and
+     * return them in the order of the values
+     */
+    ArrayList getAll(BeanMap map, Property keys[],
+            List<Object[]> values) throws DBException {
+        // Query each key once
+        LinkedHashMap<List<Object>, Object[]> distinct =
+            new LinkedHashMap<List<Object>, Object[]>();
+        for (Object v[]: values) {
+            distinct.put(key(v), v);
+        }
+        ArrayList<Object[]> all = new ArrayList<Object[]>(distinct.values());
+        ArrayList rows = new ArrayList();
+        Probe probe = Probe.start(this, 
+            Metrics.Operation.getAll, map.getBeanClass());
+        Connection conn = getConnection(probe);
+        try {
+            for (int i=0; i < all.size(); i += BeanMap.GETALL_CHUNK_SIZE) {
+                map.select(this, conn, keys, all.subList(i, Math.min(
+                    all.size(), i + BeanMap.GETALL_CHUNK_SIZE)), rows);
+            }
+            probe.rows(rows.size());
+        }
+        catch (Exception ex) {
+            handleException(ex, map.getClassName(), conn);
+        }
+        finally {
+            probe.end();
+            release(conn);
+        }
+        HashMap<List<Object>, Object> found =
+            new HashMap<List<Object>, Object>();
+        for (Object row: rows) {
+            Object v[] = new Object[keys.length];
+            for (int j=0; j < keys.length; j++) {
+                v[j] = keys[j].getValue(row);
+            }
+            found.put(key(v), row);
+        }
+        ArrayList ret = new ArrayList(values.size());
+        for (Object v[]: values) {
+            ret.add(found.get(key(v)));
+        }
+        return ret;
+    }
+
+    /**
+     * package private function to read the rows of a bean after a
+     * position in the order of its watermark and keys, for ChangePoller
+     */
+    ArrayList selectChanges(BeanMap map, Object after[], int limit)
+            throws DBException {
+        ArrayList ret = new ArrayList();
+        Probe probe = Probe.start(this, 
+            Metrics.Operation.poll, map.getBeanClass());
+        Connection conn = getConnection(probe);
+        try {
+            map.selectChanges(this, conn, after, limit, ret);
+            probe.rows(ret.size());
+        }
+        catch (Exception ex) {
+            handleException(ex, map.getClassName(), conn);
+        }
+        finally {
+            probe.end();
+            release(conn);
+        }
+        return ret;
+    }
+
+    /**
+     * package private function to return key values that are equal for
+     * integer values of different types
+     */
+    static List<Object> key(Object v[]) {
+        Object k[] = new Object[v.length];
+        for (int i=0; i < v.length; i++) {
+            k[i] = LazyList.Loader.keyValue(v[i]);
+        }
+        return Arrays.asList(k);
+    }
+
+    /**
+     *  Reads lazy properties of an object. Lazy properties are not read
+     *  by get or select.
+     *
+     *  @param  o object that contains the keys 
+     *  @param  properties names of the properties to read
+     *  @return  the same object passed in
+     *         
+     *  @throws DBException
+     */
+    public <T> T fetch(T o, String ... properties) throws  DBException {
+        BeanMap map = BeanMap.get(o.getClass());
+        Probe probe = Probe.start(this, 
+            Metrics.Operation.fetch, o.getClass());
+        Connection conn = getConnection(probe);
+        try {
+            map.fetch(this, conn, o, properties);
+        }
+        catch (Exception ex) {
+            handleException(ex, o.getClass().getName(),conn);
+        }
+        finally {
+            probe.end();
+            release(conn);
+        }
+        return o;
+    }
+    /**
+     * Update only the given properties of an object. Used to write lazy
+     * properties which are not written by update
+     * @param o Object to be updated
+     * @param properties names of the properties to update
+     * @return number of rows if update succeeded else returns 0
+     */
+    public <T> int updateColumns(T o, String ... properties) 
+            throws  DBException {
+        BeanMap map = BeanMap.get(o.getClass());
+        Probe probe = Probe.start(this, 
+            Metrics.Operation.updateColumns, o.getClass());
+        Connection conn = getConnection(probe);
+        try {
+            return map.updateColumns(this, conn, o, properties);
+        }
+        catch (Exception ex) {
+            handleException(ex, o.getClass().getName(),conn);
+        }
+        finally {
+            probe.end();
+            release(conn);
+        }
+        return 0;
+    }
+    /**
+     * Package private function used by large objects to stream the column
+     * value into a channel
+     */
+    long transfer(BeanMap map, Property p, Object o, WritableByteChannel out)
+            throws DBException {
+        Probe probe = Probe.start(this, 
+            Metrics.Operation.transfer, map.getBeanClass());
+        Connection conn = getConnection(probe);
+        try {
+            return map.transfer(this, conn, p, o, out);
+        }
+        catch (Exception ex) {
+            handleException(ex, map.getClassName(), conn);
+        }
+        finally {
+            probe.end();
             release(conn);
         }
+        return -1;
     }
     /**
-     *  Retrieves a single row from the database
+     *  Retrieves a single row from the database. With single flight on in
+     *  the Coalescer, callers of the same running query get the same
+     *  object.
      *
      *  @param  c Class to map the query row to
      *  @param  query sql query
@@ -418,25 +880,49 @@ public class DBManager {
      *  @throws DBException
      */
     @SuppressWarnings(value="unchecked")
-    public <T> T get(Class<T> c, String query) throws  DBException {
-        BeanMap map = BeanMap.get(c);
-        Connection conn = getConnection();
+    public <T> T get(final Class<T> c, final String query)
+            throws  DBException {
+        Coalescer co = _coalescer;
+        if ( co == null || TransactionContext.current() != null ) {
+            return getQuery(c, query);
+        }
+        return (T)co.query(this, "get " + c.getName() + " " + query,
+            new Callable<ArrayList<?>>() {
+                public ArrayList<?> call() throws DBException {
+                    ArrayList<T> ret = new ArrayList<T>(1);
+                    ret.add(getQuery(c, query));
+                    return ret;
+                }
+            }).get(0);
+    }
+
+    /**
+     * Internal function to retrieve a single row of a query
+     */
+    @SuppressWarnings(value="unchecked")
+    private <T> T getQuery(Class<T> c, String query) throws  DBException {
+        boolean isPrimitive = Scalars.isScalar(c);
+        BeanMap map = isPrimitive ? null : BeanMap.get(c);
+        Probe probe = Probe.start(this, 
+            Metrics.Operation.get, c);
+        Connection conn = getConnection(probe);
         Statement stmt = null;
         ResultSet res = null;
-        boolean isPrimitive = c.isPrimitive();
         try {
             stmt = createStatement(conn);
-            res = stmt.executeQuery(query);
+            res = executeQuery(stmt, query);
             if (isPrimitive ) {
                 if ( res.next()) {
-                    return (T)res.getObject(1);
+                    return (T)Scalars.get(res, c);
                 }
                 else {
                     return null;
                 }
             }
             else {
-                    return (T)map.get(res, (Object)null);
+                    T ret = (T)map.get(this, res, (Object)null);
+                    probe.rows(ret == null ? 0 : 1);
+                    return ret;
             }
         }
         catch (Exception ex) {
@@ -446,11 +932,14 @@ public class DBManager {
         finally {
             close(res);
             close(stmt);
+            probe.end();
             release(conn);
         }
     }
     /**
-     *  Retrieves a set of rows from database based on the query. 
+     *  Retrieves a set of rows from database based on the query. With
+     *  single flight on in the Coalescer, callers of the same running
+     *  query get lists of the same objects.
      *
      *  @param  c Class to map the query rows to
      *  @param  query sql query
@@ -458,26 +947,46 @@ public class DBManager {
      *         
      *  @throws DBException
      */
-    public <T> ArrayList<T> select(Class<T> c, String query)
+    @SuppressWarnings(value="unchecked")
+    public <T> ArrayList<T> select(final Class<T> c, final String query)
+            throws  DBException {
+        Coalescer co = _coalescer;
+        if ( co == null || TransactionContext.current() != null ) {
+            return selectQuery(c, query);
+        }
+        return new ArrayList<T>((ArrayList<T>)co.query(this, "select " 
+            + c.getName() + " " + query, new Callable<ArrayList<?>>() {
+                public ArrayList<?> call() throws DBException {
+                    return selectQuery(c, query);
+                }
+            }));
+    }
+
+    /**
+     * Internal function to retrieve the rows of a query
+     */
+    private <T> ArrayList<T> selectQuery(Class<T> c, String query)
             throws  DBException {
-        Connection conn = getConnection();
+        Probe probe = Probe.start(this, 
+            Metrics.Operation.select, c);
+        Connection conn = getConnection(probe);
         Statement stmt = null;
         ArrayList<T> ret = new ArrayList<T>();
         T obj=null;
         ResultSet res = null;
-        BeanMap map = BeanMap.get(c);
-        boolean isPrimitive = c.isPrimitive();
+        boolean isPrimitive = Scalars.isScalar(c);
         try {
             stmt = createStatement(conn);
-            res = stmt.executeQuery(query);
+            res = executeQuery(stmt, query);
             if ( isPrimitive) {
                 while (res.next() ) {
-                    ret.add((T)(res.getObject(1)));
+                    ret.add((T)Scalars.get(res, c));
                 }
             }
             else {
-                map.select(res, ret);
+                BeanMap.get(c).select(this, res, ret);
             }
+            probe.rows(ret.size());
             return ret;
         }
         catch (Exception ex) {
@@ -487,10 +996,357 @@ public class DBManager {
         finally {
             close(res);
             close(stmt);
+            probe.end();
             release(conn);
         }
     }
     
+    /**
+     * Retrieves the first column of the rows of a query as longs, without
+     * boxing. Use for id lists and aggregates.
+     * @param query sql query
+     * @param nullValue value of null columns
+     * @return the values
+     */
+    public long[] selectLongs(String query, long nullValue)
+            throws DBException {
+        Scalars.Longs s = new Scalars.Longs(nullValue);
+        scan(query, s, false);
+        return s.toArray();
+    }
+
+    public long[] selectLongs(String query) throws DBException {
+        return selectLongs(query, 0);
+    }
+
+    /**
+     * Retrieves the first column of the rows of a query as ints
+     * @param query sql query
+     * @param nullValue value of null columns
+     */
+    public int[] selectInts(String query, int nullValue) throws DBException {
+        Scalars.Ints s = new Scalars.Ints(nullValue);
+        scan(query, s, false);
+        return s.toArray();
+    }
+
+    public int[] selectInts(String query) throws DBException {
+        return selectInts(query, 0);
+    }
+
+    /**
+     * Retrieves the first column of the rows of a query as doubles
+     * @param query sql query
+     * @param nullValue value of null columns, e.g. Double.NaN
+     */
+    public double[] selectDoubles(String query, double nullValue)
+            throws DBException {
+        Scalars.Doubles s = new Scalars.Doubles(nullValue);
+        scan(query, s, false);
+        return s.toArray();
+    }
+
+    public double[] selectDoubles(String query) throws DBException {
+        return selectDoubles(query, 0);
+    }
+
+    /**
+     * Retrieves the first column of the rows of a query as strings
+     */
+    public ArrayList<String> selectStrings(String query) throws DBException {
+        Scalars.Strings s = new Scalars.Strings();
+        scan(query, s, false);
+        return s.getValues();
+    }
+
+    /**
+     * Streams the first column of the rows of a query to a handler as they
+     * are read. The driver is asked to stream the rows (see
+     * Dialect.getStreamingFetchSize), so do not run other statements of
+     * this DBManager from the handler in a transaction. Outside of a
+     * transaction, auto commit is turned off while the rows are read if
+     * the driver only streams with it off (PostgreSQL).
+     * @return number of rows read
+     */
+    public int selectLongs(String query, ValueHandler.Longs h)
+            throws DBException {
+        return scan(query, Scalars.of(h), true);
+    }
+
+    public int selectInts(String query, ValueHandler.Ints h)
+            throws DBException {
+        return scan(query, Scalars.of(h), true);
+    }
+
+    public int selectDoubles(String query, ValueHandler.Doubles h)
+            throws DBException {
+        return scan(query, Scalars.of(h), true);
+    }
+
+    public int selectStrings(String query, ValueHandler.Strings h)
+            throws DBException {
+        return scan(query, Scalars.of(h), true);
+    }
+
+    /**
+     * Retrieves the rows of a query as views that convert the column
+     * values of a property only when it is read. Use to list a few
+     * properties of wide beans.
+     * @param c bean class
+     * @param query sql query
+     * @return the rows
+     */
+    public <T> Rows<T> selectRows(Class<T> c, String query)
+            throws DBException {
+        BeanMap map = BeanMap.get(c);
+        Probe probe = Probe.start(this, 
+            Metrics.Operation.select, c);
+        Connection conn = getConnection(probe);
+        Statement stmt = null;
+        ResultSet res = null;
+        Rows<T> ret = null;
+        try {
+            stmt = createStatement(conn);
+            res = executeQuery(stmt, query);
+            ret = Rows.read(map, res);
+            probe.rows(ret.size());
+        }
+        catch (Exception ex) {
+            handleException(ex, "select: " + query, conn);
+        }
+        finally {
+            close(res);
+            close(stmt);
+            probe.end();
+            release(conn);
+        }
+        return ret;
+    }
+
+    /**
+     * Retrieves the rows of a query by column. The result columns must be
+     * primitive properties of the class. Use for queries over many rows
+     * that read a few columns; get(row) of the result creates a bean.
+     * @param c bean class
+     * @param query sql query
+     * @return the columns
+     */
+    public <T> Columns<T> selectColumns(Class<T> c, String query)
+            throws DBException {
+        return columns(c, BeanMap.get(c), query);
+    }
+
+    /**
+     * Retrieves the rows of a query by column, with column types from the
+     * result meta data
+     */
+    public Columns<Object> selectColumns(String query) throws DBException {
+        return columns(null, null, query);
+    }
+
+    private <T> Columns<T> columns(Class<T> c, BeanMap map, String query)
+            throws DBException {
+        Probe probe = Probe.start(this, 
+            Metrics.Operation.select, c);
+        Connection conn = getConnection(probe);
+        Statement stmt = null;
+        ResultSet res = null;
+        Columns<T> ret = null;
+        try {
+            stmt = createStatement(conn);
+            res = executeQuery(stmt, query);
+            ret = Columns.read(map, res);
+            probe.rows(ret.size());
+        }
+        catch (Exception ex) {
+            handleException(ex, "select: " + query, conn);
+        }
+        finally {
+            close(res);
+            close(stmt);
+            probe.end();
+            release(conn);
+        }
+        return ret;
+    }
+
+    /**
+     * Writes all the rows of a bean's table to a channel, see Export
+     * @param c bean class with Table annotation
+     * @param e format and options
+     * @param out channel to write to, not closed
+     * @return number of rows written
+     */
+    public long export(Class<?> c, Export e, WritableByteChannel out)
+            throws DBException {
+        BeanMap map = BeanMap.get(c);
+        if ( map.getTableName() == null ) {
+            throw new DBException("Class " + c.getName() + " does not "
+                + "have Table annotation needed to export the table");
+        }
+        return export(c, "select " + map.getSelectNames() + " from "
+            + map.getTableName(), e, out);
+    }
+
+    /**
+     * Writes the rows of a query to a channel as they are read, without
+     * creating beans. The driver is asked to stream the rows (see
+     * Dialect.getStreamingFetchSize). Outside of a transaction, auto commit
+     * is turned off while the rows are read if the driver only streams
+     * with it off (PostgreSQL).
+     * @param c bean class whose primitive properties are the columns
+     * @param query sql query
+     * @param e format and options
+     * @param out channel to write to, not closed
+     * @return number of rows written
+     */
+    public long export(Class<?> c, String query, Export e,
+            WritableByteChannel out) throws DBException {
+        BeanMap map = BeanMap.get(c);
+        Probe probe = Probe.start(this, 
+            Metrics.Operation.export, c);
+        Connection conn = getConnection(probe);
+        Statement stmt = null;
+        ResultSet res = null;
+        long rows = 0;
+        boolean autoCommit = false;
+        boolean done = false;
+        try {
+            stmt = createStatement(conn);
+            autoCommit = startStream(conn);
+            stmt.setFetchSize(_dialect.getStreamingFetchSize());
+            res = executeQuery(stmt, query);
+            rows = e.write(map, res, out);
+            probe.rows((int)Math.min(rows, Integer.MAX_VALUE));
+            done = true;
+        }
+        catch (Exception ex) {
+            handleException(ex, "export: " + query, conn);
+        }
+        finally {
+            close(res);
+            close(stmt);
+            if ( autoCommit ) {
+                endStream(conn, done);
+            }
+            probe.end();
+            release(conn);
+        }
+        return rows;
+    }
+
+    /**
+     * Internal function to run a query and read its rows with a scalar
+     * reader
+     * @param stream true to ask the driver to stream the rows
+     * @return number of rows read
+     */
+    private int scan(String query, Scalars s, boolean stream)
+            throws DBException {
+        Probe probe = Probe.start(this, 
+            Metrics.Operation.select, null);
+        Connection conn = getConnection(probe);
+        Statement stmt = null;
+        ResultSet res = null;
+        int rows = 0;
+        boolean autoCommit = false;
+        boolean done = false;
+        try {
+            stmt = createStatement(conn);
+            if ( stream ) {
+                autoCommit = startStream(conn);
+                stmt.setFetchSize(_dialect.getStreamingFetchSize());
+            }
+            res = executeQuery(stmt, query);
+            while ( res.next() ) {
+                rows++;
+                if ( !s.row(res) ) {
+                    break;
+                }
+            }
+            probe.rows(rows);
+            done = true;
+        }
+        catch (Exception ex) {
+            handleException(ex, "select: " + query, conn);
+        }
+        finally {
+            close(res);
+            close(stmt);
+            if ( autoCommit ) {
+                endStream(conn, done);
+            }
+            probe.end();
+            release(conn);
+        }
+        return rows;
+    }
+
+    /**
+     * Internal function to turn auto commit off for a streamed query, if
+     * the driver only streams rows with it off. Connections of a
+     * Transactional method already have it off.
+     * @return true if auto commit was turned off
+     */
+    private boolean startStream(Connection conn) throws SQLException {
+        if ( _dialect.streamsInTransactionOnly() && conn.getAutoCommit() ) {
+            conn.setAutoCommit(false);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Internal function to end the transaction of a streamed query and turn
+     * auto commit back on
+     * @param commit false to roll back, the query failed
+     */
+    private void endStream(Connection conn, boolean commit)
+            throws DBException {
+        try {
+            try {
+                if ( commit ) {
+                    conn.commit();
+                }
+                else {
+                    conn.rollback();
+                }
+            }
+            finally {
+                conn.setAutoCommit(true);
+            }
+        }
+        catch (SQLException e) {
+            handleException(e, "", conn);
+        }
+    }
+
+    /**
+     * Package private function used by lazy lists to retrieve the rows
+     * matching any of the given key values
+     * @param map BeanMap of rows to retrieve
+     * @param keys key properties of the map
+     * @param values list of key values to match
+     * @param list list to add the rows to
+     */
+    void select(BeanMap map, Property keys[], List<Object[]> values,
+            ArrayList list) throws DBException {
+        Probe probe = Probe.start(this, 
+            Metrics.Operation.select, map.getBeanClass());
+        Connection conn = getConnection(probe);
+        try {
+            map.select(this, conn, keys, values, list);
+            probe.rows(list.size());
+        }
+        catch (Exception ex) {
+            handleException(ex, map.getClassName(), conn);
+        }
+        finally {
+            probe.end();
+            release(conn);
+        }
+    }
+
     /**
      * Static function to format Date for sql statements. Note: No quotes added
      * @param d to be formatted
@@ -499,12 +1355,136 @@ public class DBManager {
     public static String sqlDate(java.util.Date d) {
         return _dformat.format(d);
     }
+
+    /**
+     * Static function to build the mappings of all beans with a Table
+     * annotation in the given packages (and sub packages), so the first
+     * requests do not pay for introspection and building SQL strings.
+     * Call it at startup or use PrewarmModule.
+     * @param loader class loader to find the beans in
+     * @param packages packages to scan
+     * @return number of beans prepared
+     */
+    public static int prewarm(ClassLoader loader, String ... packages)
+            throws DBException {
+        List<Class<?>> beans = new BeanScanner(loader).scan(packages);
+        prewarm(beans.toArray(new Class[beans.size()]));
+        return beans.size();
+    }
+
+    /**
+     * Static function to build the mappings of the given beans and the
+     * beans they reference
+     * @param beans bean classes
+     * @return number of bean maps built, including referenced beans
+     */
+    public static int prewarm(Class ... beans) throws DBException {
+        int before = BeanMap.getMapCount();
+        for (Class c: beans) {
+            BeanMap.get(c).prewarm();
+        }
+        return BeanMap.getMapCount() - before;
+    }
     
 
+    /**
+     * package private function to prepare a statement. The time left in
+     * the transaction, if it has a timeout, is set as the query timeout.
+     */
+    static PreparedStatement prepare(Connection conn, String sql) 
+            throws SQLException, DBException {
+        int timeout = TransactionContext.getQueryTimeout();
+        long start = System.nanoTime();
+        PreparedStatement stmt = conn.prepareStatement(sql);
+        Probe.prepared(sql, System.nanoTime() - start);
+        if ( timeout > 0 ) {
+            stmt.setQueryTimeout(timeout);
+        }
+        return stmt;
+    }
+
+    /**
+     * package private function to prepare a statement that returns
+     * generated keys
+     */
+    static PreparedStatement prepare(Connection conn, String sql, int keys)
+            throws SQLException, DBException {
+        int timeout = TransactionContext.getQueryTimeout();
+        long start = System.nanoTime();
+        PreparedStatement stmt = conn.prepareStatement(sql, keys);
+        Probe.prepared(sql, System.nanoTime() - start);
+        if ( timeout > 0 ) {
+            stmt.setQueryTimeout(timeout);
+        }
+        return stmt;
+    }
+
+    /**
+     * package private functions to execute statements. Execution time is
+     * added to the operation metrics
+     */
+    static int executeUpdate(PreparedStatement stmt) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            return stmt.executeUpdate();
+        }
+        finally {
+            Probe.executed(null, System.nanoTime() - start);
+        }
+    }
+
+    static int[] executeBatch(PreparedStatement stmt) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            return stmt.executeBatch();
+        }
+        finally {
+            Probe.executed(null, System.nanoTime() - start);
+        }
+    }
+
+    static ResultSet executeQuery(PreparedStatement stmt) 
+            throws SQLException {
+        long start = System.nanoTime();
+        try {
+            return stmt.executeQuery();
+        }
+        finally {
+            Probe.executed(null, System.nanoTime() - start);
+        }
+    }
+
+    static int executeUpdate(Statement stmt, String sql) 
+            throws SQLException {
+        long start = System.nanoTime();
+        try {
+            return stmt.executeUpdate(sql);
+        }
+        finally {
+            Probe.executed(sql, System.nanoTime() - start);
+        }
+    }
+
+    static ResultSet executeQuery(Statement stmt, String sql) 
+            throws SQLException {
+        long start = System.nanoTime();
+        try {
+            return stmt.executeQuery(sql);
+        }
+        finally {
+            Probe.executed(sql, System.nanoTime() - start);
+        }
+    }
+
     private Statement createStatement(Connection connection) 
             throws DBException {
         try {
-            return connection.createStatement();
+            int timeout = TransactionContext.getQueryTimeout();
+            Statement stmt = connection.createStatement();
+            if ( timeout > 0 ) {
+                stmt.setQueryTimeout(timeout);
+            }
+            return stmt;
         } catch (SQLException e) {
             handleException(e,"",null);
         }
@@ -525,7 +1505,9 @@ public class DBManager {
 
     private void close(Statement stmt) throws DBException {
         try {
-            stmt.close();
+            if (stmt != null) {
+                stmt.close();
+            }
         } catch (SQLException e) {
             handleException(e,"",null);
         }
@@ -0,0 +1,177 @@
+/*
+ * Database specific behaviour
+ *
+ * @author Prasad Mokkapati  prasadm80@gmail.com
+ */
+package com.tengo.sqldb;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * Differences between the databases supported by DBManager. The dialect of
+ * a DBManager is detected from the database product name of its first
+ * connection.
+ */
+public enum Dialect {
+    MySQL {
+        public int getStreamingFetchSize() {
+            // Connector/J streams rows one at a time only with MIN_VALUE
+            return Integer.MIN_VALUE;
+        }
+
+        public boolean supportsRowValues() {
+            return true;
+        }
+
+        public String nextValue(String sequence) {
+            // MariaDB, MySQL does not have sequences
+            return "select nextval(" + sequence + ")";
+        }
+
+        protected boolean isRetryableError(SQLException e) {
+            // Deadlock found and lock wait timeout exceeded
+            return (e.getErrorCode() == 1213 || e.getErrorCode() == 1205
+                || "40001".equals(e.getSQLState()));
+        }
+    },
+    PostgreSQL {
+        public int getStreamingFetchSize() {
+            // Only used by the driver when auto commit is off
+            return 1000;
+        }
+
+        public boolean streamsInTransactionOnly() {
+            return true;
+        }
+
+        public boolean supportsRowValues() {
+            return true;
+        }
+
+        public String getArrayType(Class c) {
+            if ( c == Long.class || c == long.class ) {
+                return "int8";
+            }
+            if ( c == Integer.class || c == int.class ) {
+                return "int4";
+            }
+            return (c == String.class) ? "varchar" : null;
+        }
+
+        public String nextValue(String sequence) {
+            return "select nextval('" + sequence + "')";
+        }
+
+        protected boolean isRetryableError(SQLException e) {
+            // serialization_failure and deadlock_detected
+            return ("40001".equals(e.getSQLState())
+                || "40P01".equals(e.getSQLState()));
+        }
+    },
+    Generic {
+        protected boolean isRetryableError(SQLException e) {
+            // SQL standard transaction rollback class
+            String s = e.getSQLState();
+            return (s != null && s.startsWith("40"));
+        }
+    };
+
+    /**
+     * Function to check if a single error means the transaction was rolled
+     * back by the database and can be run again
+     */
+    protected abstract boolean isRetryableError(SQLException e);
+
+    /**
+     * Function to check if an exception, or any exception chained to it,
+     * is a deadlock or serialization failure, so the transaction can be
+     * run again
+     */
+    public boolean isRetryable(Throwable t) {
+        for (int depth=0; t != null && depth < 16; depth++) {
+            if ( t instanceof DBException && ((DBException)t).isRetryable() ) {
+                return true;
+            }
+            if ( t instanceof SQLException ) {
+                for (SQLException e = (SQLException)t; e != null;
+                        e = e.getNextException()) {
+                    if ( isRetryableError(e) ) {
+                        return true;
+                    }
+                }
+            }
+            t = t.getCause();
+        }
+        return false;
+    }
+
+    /**
+     * Function to return the fetch size that makes the driver stream rows
+     * instead of reading the whole result into memory
+     */
+    public int getStreamingFetchSize() {
+        return 1000;
+    }
+
+    /**
+     * Function to check if the driver only streams rows when auto commit
+     * is off. DBManager then turns it off for streamed queries that do not
+     * run in a transaction
+     */
+    public boolean streamsInTransactionOnly() {
+        return false;
+    }
+
+    /**
+     * Function to check if the database can match rows on several columns
+     * with (a, b) in ((?, ?), (?, ?))
+     */
+    public boolean supportsRowValues() {
+        return false;
+    }
+
+    /**
+     * Function to return the SQL type name to bind the values of a key
+     * class as a single array, col = ANY(?), or null to bind each value
+     */
+    public String getArrayType(Class c) {
+        return null;
+    }
+
+    /**
+     * Function to return the query of the next value of a sequence
+     */
+    public String nextValue(String sequence) {
+        return "select next value for " + sequence;
+    }
+
+    /**
+     * Function to return the statement that shows the plan of a query.
+     * Parameters of the query are parameters of the statement
+     */
+    public String explain(String sql) {
+        return "EXPLAIN " + sql;
+    }
+
+    /**
+     * Function to detect the dialect of a connection
+     */
+    public static Dialect get(Connection c) {
+        String name = null;
+        try {
+            name = c.getMetaData().getDatabaseProductName();
+        }
+        catch (SQLException e) {
+            return Generic;
+        }
+        name = (name == null) ? "" : name.toLowerCase();
+        if ( name.indexOf("mysql") >= 0 || name.indexOf("mariadb") >= 0 ) {
+            return MySQL;
+        }
+        if ( name.indexOf("postgres") >= 0 ) {
+            return PostgreSQL;
+        }
+        return Generic;
+    }
+}
@@ -0,0 +1,468 @@
+/*
+ * Export of query rows to a channel as CSV or JSON lines
+ *
+ * @author Prasad Mokkapati  prasadm80@gmail.com
+ */
+package com.tengo.sqldb;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Options of DBManager.export, which writes the rows of a query to a
+ * channel as they are read, without creating beans:
+ * <pre>
+ *   FileChannel out = new FileOutputStream("accounts.csv.gz").getChannel();
+ *   mgr.export(Account.class, new Export(Export.Format.CSV).setGzip(true),
+ *       out);
+ * </pre>
+ * The columns are the primitive properties of the bean that are in the
+ * result, in the order of the bean. CSV follows RFC 4180 with a header
+ * line of column names; JSON lines have one object per row keyed by column
+ * name. Null values are empty in CSV and null in JSON, enums are written
+ * by name, dates in JDBC escape format and byte arrays in hex. Text is
+ * UTF-8.
+ * Rows are encoded into a few direct buffers that are reused; full buffers
+ * are written, and compressed with gzip, by another thread while the next
+ * rows are read, so memory does not grow with the number of rows. The
+ * channel is not closed. When the query fails the gzip stream is not
+ * finished, so a truncated export can not be read as a complete one.
+ */
+public class Export {
+    /**
+     * Output formats
+     */
+    public enum Format { CSV, NDJSON };
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final char HEX[] = "0123456789abcdef".toCharArray();
+    // Rows are encoded when this many chars are pending
+    private static final int ENCODE_SIZE = 8192;
+    // Marks the end of the rows to the writer
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+    // Marks the end of an export that failed, the output is not finished
+    private static final ByteBuffer ABORT = ByteBuffer.allocate(0);
+
+    private static ExecutorService _writers = null;
+
+    private final Format _format;
+    private boolean _gzip = false;
+    private boolean _header = true;
+    private int _bufferSize = 64 * 1024;
+    private int _buffers = 4;
+
+    public Export(Format format) {
+        _format = format;
+    }
+
+    public Format getFormat() {
+        return _format;
+    }
+
+    /**
+     * Function to compress the output with gzip. Off by default
+     */
+    public Export setGzip(boolean gzip) {
+        _gzip = gzip;
+        return this;
+    }
+
+    public boolean isGzip() {
+        return _gzip;
+    }
+
+    /**
+     * Function to turn the header line of CSV on or off. On by default
+     */
+    public Export setHeader(boolean header) {
+        _header = header;
+        return this;
+    }
+
+    public boolean isHeader() {
+        return _header;
+    }
+
+    /**
+     * Function to set the size and number of the buffers rows are encoded
+     * into. Default is 4 buffers of 64K
+     */
+    public Export setBuffers(int count, int size) {
+        _buffers = Math.max(2, count);
+        _bufferSize = Math.max(1024, size);
+        return this;
+    }
+
+    public int getBufferCount() {
+        return _buffers;
+    }
+
+    public int getBufferSize() {
+        return _bufferSize;
+    }
+
+    private static synchronized ExecutorService getWriters() {
+        if ( _writers == null ) {
+            _writers = Executors.newCachedThreadPool(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "sqldb-export");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return _writers;
+    }
+
+    /**
+     * Gzip stream whose Deflater can be released without closing the
+     * channel
+     */
+    private static final class Gzip extends GZIPOutputStream {
+        Gzip(OutputStream out, int size) throws IOException {
+            super(out, size);
+        }
+
+        void end() {
+            def.end();
+        }
+    }
+
+    /**
+     * Writer of full buffers to the channel. After an error the buffers
+     * are returned without being written, so the encoder never waits for
+     * a free buffer, and the error is reported when it ends.
+     */
+    private final class Writer implements Runnable {
+        final ArrayBlockingQueue<ByteBuffer> _full;
+        final ArrayBlockingQueue<ByteBuffer> _free;
+        final WritableByteChannel _out;
+        volatile IOException _error = null;
+
+        Writer(WritableByteChannel out) {
+            _out = out;
+            _full = new ArrayBlockingQueue<ByteBuffer>(_buffers + 1);
+            _free = new ArrayBlockingQueue<ByteBuffer>(_buffers);
+            for (int i=0; i < _buffers; i++) {
+                _free.add(ByteBuffer.allocateDirect(_bufferSize));
+            }
+        }
+
+        public void run() {
+            Gzip gz = null;
+            byte copy[] = null;
+            try {
+                ByteBuffer b;
+                while ( (b = _full.take()) != END && b != ABORT ) {
+                    if ( _error == null ) {
+                        try {
+                            if ( _gzip && gz == null ) {
+                                gz = gzip();
+                                copy = new byte[_bufferSize];
+                            }
+                            write(b, gz, copy);
+                        }
+                        catch (IOException e) {
+                            _error = e;
+                        }
+                    }
+                    b.clear();
+                    _free.add(b);
+                }
+                if ( b == END && _error == null && _gzip ) {
+                    // Not closed, that would close the channel
+                    if ( gz == null ) {
+                        gz = gzip();
+                    }
+                    gz.finish();
+                }
+            }
+            catch (IOException e) {
+                _error = e;
+            }
+            catch (InterruptedException e) {
+                _error = new IOException("Export interrupted");
+            }
+            finally {
+                if ( gz != null ) {
+                    gz.end();
+                }
+            }
+        }
+
+        private Gzip gzip() throws IOException {
+            return new Gzip(Channels.newOutputStream(_out), _bufferSize);
+        }
+
+        private void write(ByteBuffer b, OutputStream gz, byte copy[])
+                throws IOException {
+            if ( gz == null ) {
+                while ( b.hasRemaining() ) {
+                    _out.write(b);
+                }
+                return;
+            }
+            while ( b.hasRemaining() ) {
+                int n = Math.min(b.remaining(), copy.length);
+                b.get(copy, 0, n);
+                gz.write(copy, 0, n);
+            }
+        }
+    }
+
+    /**
+     * package private function to write the rows of a result to a channel
+     * @param map BeanMap of the columns to write
+     * @return number of rows written
+     */
+    long write(BeanMap map, ResultSet res, WritableByteChannel out)
+            throws SQLException, DBException {
+        int ids[] = new ColMap(null, map, res).getColumnIds();
+        ids = (ids == null) ? new int[0] : ids;
+        ArrayList<Property> all = map.getPrimitives();
+        ArrayList<Property> props = new ArrayList<Property>();
+        ArrayList<Integer> cols = new ArrayList<Integer>();
+        for (int i=0; i < ids.length; i++) {
+            if ( ids[i] != 0 ) {
+                props.add(all.get(i));
+                cols.add(ids[i]);
+            }
+        }
+        // Names are encoded once, with their JSON key quotes
+        String names[] = new String[props.size()];
+        for (int i=0; i < names.length; i++) {
+            String n = props.get(i).getColName();
+            if ( _format == Format.NDJSON ) {
+                StringBuilder s = new StringBuilder(i == 0 ? "{" : ",");
+                json(s, n);
+                names[i] = s.append(':').toString();
+            }
+            else {
+                names[i] = n;
+            }
+        }
+        Writer w = new Writer(out);
+        Future<?> done = getWriters().submit(w);
+        CharsetEncoder enc = UTF8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        StringBuilder s = new StringBuilder(ENCODE_SIZE * 2);
+        ByteBuffer b = null;
+        long rows = 0;
+        boolean ok = false;
+        try {
+            b = w._free.take();
+            if ( _format == Format.CSV && _header ) {
+                for (int i=0; i < names.length; i++) {
+                    if ( i > 0 ) {
+                        s.append(',');
+                    }
+                    csv(s, names[i]);
+                }
+                s.append("\r\n");
+            }
+            while ( res.next() ) {
+                for (int i=0; i < names.length; i++) {
+                    Object v = props.get(i).getValue(res, cols.get(i));
+                    if ( _format == Format.CSV ) {
+                        if ( i > 0 ) {
+                            s.append(',');
+                        }
+                        if ( v != null ) {
+                            csv(s, v);
+                        }
+                    }
+                    else {
+                        s.append(names[i]);
+                        value(s, v);
+                    }
+                }
+                s.append(_format == Format.CSV ? "\r\n"
+                    : (names.length == 0 ? "{}\n" : "}\n"));
+                rows++;
+                if ( s.length() >= ENCODE_SIZE ) {
+                    b = encode(enc, s, b, w);
+                }
+            }
+            b = encode(enc, s, b, w);
+            if ( b.position() > 0 ) {
+                b.flip();
+                w._full.put(b);
+                b = null;
+            }
+            ok = true;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DBException("Export interrupted");
+        }
+        finally {
+            // The writer ends after the buffers before END or ABORT
+            w._full.add(ok ? END : ABORT);
+            try {
+                done.get();
+            }
+            catch (Exception e) {
+                // Only IOExceptions, kept by the writer
+            }
+        }
+        if ( w._error != null ) {
+            throw new DBException("Export failed: " + w._error.getMessage());
+        }
+        return rows;
+    }
+
+    /**
+     * Internal function to encode the pending chars into buffers, handing
+     * full buffers to the writer
+     * @return the buffer to encode into next
+     */
+    private static ByteBuffer encode(CharsetEncoder enc, StringBuilder s,
+            ByteBuffer b, Writer w) throws InterruptedException, DBException {
+        CharBuffer in = CharBuffer.wrap(s);
+        enc.reset();
+        while ( enc.encode(in, b, true).isOverflow() ) {
+            b = next(b, w);
+        }
+        while ( enc.flush(b).isOverflow() ) {
+            b = next(b, w);
+        }
+        s.setLength(0);
+        return b;
+    }
+
+    /**
+     * Internal function to hand a full buffer to the writer and take a
+     * free one
+     */
+    private static ByteBuffer next(ByteBuffer b, Writer w)
+            throws InterruptedException, DBException {
+        if ( w._error != null ) {
+            throw new DBException("Export failed: " + w._error.getMessage());
+        }
+        b.flip();
+        w._full.put(b);
+        return w._free.take();
+    }
+
+    /**
+     * Internal function to append a CSV field, quoted if needed
+     */
+    private static void csv(StringBuilder s, Object v) {
+        String t = text(v);
+        boolean quote = false;
+        for (int i=0; i < t.length() && !quote; i++) {
+            char c = t.charAt(i);
+            quote = (c == ',' || c == '"' || c == '\r' || c == '\n');
+        }
+        if ( !quote ) {
+            s.append(t);
+            return;
+        }
+        s.append('"');
+        for (int i=0; i < t.length(); i++) {
+            char c = t.charAt(i);
+            s.append(c);
+            if ( c == '"' ) {
+                s.append('"');
+            }
+        }
+        s.append('"');
+    }
+
+    /**
+     * Internal function to append a JSON value
+     */
+    private static void value(StringBuilder s, Object v) {
+        if ( v == null ) {
+            s.append("null");
+        }
+        else if ( v instanceof Boolean ) {
+            s.append(v);
+        }
+        else if ( v instanceof Double || v instanceof Float ) {
+            double d = ((Number)v).doubleValue();
+            s.append( (Double.isNaN(d) || Double.isInfinite(d))
+                ? "null" : v.toString());
+        }
+        else if ( v instanceof BigDecimal ) {
+            s.append(((BigDecimal)v).toPlainString());
+        }
+        else if ( v instanceof Number ) {
+            s.append(v);
+        }
+        else {
+            json(s, text(v));
+        }
+    }
+
+    /**
+     * Internal function to append a JSON string
+     */
+    private static void json(StringBuilder s, String t) {
+        s.append('"');
+        for (int i=0; i < t.length(); i++) {
+            char c = t.charAt(i);
+            switch (c) {
+            case '"':  s.append("\\\""); break;
+            case '\\': s.append("\\\\"); break;
+            case '\n': s.append("\\n"); break;
+            case '\r': s.append("\\r"); break;
+            case '\t': s.append("\\t"); break;
+            default:
+                if ( c < 0x20 ) {
+                    s.append("\\u00").append(HEX[c >> 4]).append(HEX[c & 15]);
+                }
+                else {
+                    s.append(c);
+                }
+            }
+        }
+        s.append('"');
+    }
+
+    /**
+     * Internal function to return the text of a value
+     */
+    private static String text(Object v) {
+        if ( v instanceof Enum ) {
+            return ((Enum)v).name();
+        }
+        if ( v instanceof BigDecimal ) {
+            return ((BigDecimal)v).toPlainString();
+        }
+        if ( v instanceof java.util.Date && !(v instanceof java.sql.Date
+                || v instanceof java.sql.Time
+                || v instanceof java.sql.Timestamp) ) {
+            return new java.sql.Timestamp(((java.util.Date)v).getTime())
+                .toString();
+        }
+        if ( v instanceof byte[] ) {
+            byte a[] = (byte[])v;
+            char c[] = new char[a.length * 2];
+            for (int i=0; i < a.length; i++) {
+                c[2*i] = HEX[(a[i] >> 4) & 15];
+                c[2*i + 1] = HEX[a[i] & 15];
+            }
+            return new String(c);
+        }
+        return v.toString();
+    }
+}
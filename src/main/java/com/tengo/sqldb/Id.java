@@ -19,6 +19,24 @@ import java.lang.annotation.RetentionPolicy;
 
 /**
  * Annotation to indicate a primary key - id - sequence/serial etc.
+ * By default the database generates the id (IDENTITY) and it is read back
+ * after the insert. With SEQUENCE or TABLE, DBManager reserves blocks of
+ * blockSize ids and sets the id of a bean before it is inserted, so
+ * inserts can be batched and children can be given the id of their parent
+ * (see DBManager.assignIds). A bean inserted with an id already set keeps
+ * it.
+ * SEQUENCE: name is a database sequence created with
+ *   "increment by" blockSize. Each value reserves the ids from the value
+ *   to the value + blockSize - 1.
+ * TABLE: name is the key of a row in the table sqldb_ids(name varchar
+ *   primary key, next_id bigint) holding the next free id. The row is
+ *   created, starting at 1, if it does not exist.
+ * name defaults to the table name of the bean.
  */
 public @interface Id {
+    public enum Generator { IDENTITY, SEQUENCE, TABLE };
+
+    Generator generator() default Generator.IDENTITY;
+    String name() default "";
+    int blockSize() default 100;
 }
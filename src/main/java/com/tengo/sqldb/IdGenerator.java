@@ -0,0 +1,183 @@
+/*
+ * Ids reserved in blocks from a sequence or table
+ *
+ * @author Prasad Mokkapati  prasadm80@gmail.com
+ */
+package com.tengo.sqldb;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Hands out the ids of beans with an Id generator of SEQUENCE or TABLE.
+ * One per DBManager. Ids are taken from the current block of a generator
+ * name with an atomic increment; only the thread that finds the block used
+ * up reserves the next one, on a connection of its own that is committed
+ * at once, so ids are never given out twice even if the transaction of
+ * the insert rolls back. Ids of a rolled back or unused block are lost.
+ */
+class IdGenerator {
+    /**
+     * Table of next ids used by the TABLE generator
+     */
+    static final String TABLE = "sqldb_ids";
+
+    /**
+     * Range of reserved ids, next to limit - 1
+     */
+    private static final class Block {
+        final AtomicLong _next;
+        final long _limit;
+
+        Block(long first, long limit) {
+            _next = new AtomicLong(first);
+            _limit = limit;
+        }
+    }
+
+    private static final Block EMPTY = new Block(0, 0);
+
+    private final DBManager _mgr;
+    private final ConcurrentHashMap<String, AtomicReference<Block>> _blocks =
+            new ConcurrentHashMap<String, AtomicReference<Block>>();
+
+    IdGenerator(DBManager mgr) {
+        _mgr = mgr;
+    }
+
+    /**
+     * Function to return the next id of a bean
+     */
+    long next(BeanMap map) throws DBException {
+        Id id = map.getIdGenerator();
+        String name = map.getIdName();
+        String key = id.generator() + ":" + name;
+        AtomicReference<Block> ref = _blocks.get(key);
+        if ( ref == null ) {
+            _blocks.putIfAbsent(key, new AtomicReference<Block>(EMPTY));
+            ref = _blocks.get(key);
+        }
+        while ( true ) {
+            Block b = ref.get();
+            long v = b._next.getAndIncrement();
+            if ( v < b._limit ) {
+                return v;
+            }
+            synchronized (ref) {
+                if ( ref.get() == b ) { // Not reserved by another thread
+                    ref.set(reserve(id, name));
+                }
+            }
+        }
+    }
+
+    /**
+     * Internal function to reserve a block of ids
+     */
+    private Block reserve(Id id, String name) throws DBException {
+        int size = Math.max(1, id.blockSize());
+        Connection conn = null;
+        try {
+            conn = _mgr.newConnection();
+            if ( id.generator() == Id.Generator.SEQUENCE ) {
+                long v = query(conn, _mgr.getDialect().nextValue(name), null);
+                return new Block(v, v + size);
+            }
+            conn.setAutoCommit(false);
+            try {
+                long next = reserve(conn, name, size);
+                conn.commit();
+                return new Block(next - size, next);
+            }
+            catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            }
+            finally {
+                conn.setAutoCommit(true);
+            }
+        }
+        catch (SQLException e) {
+            DBException ex = new DBException("Unable to reserve ids from "
+                + name + ": " + e.getMessage());
+            ex.initCause(e);
+            throw ex;
+        }
+        finally {
+            if ( conn != null ) {
+                try {
+                    conn.close();
+                }
+                catch (SQLException e) {
+                    // Ignore, the ids are already reserved
+                }
+            }
+        }
+    }
+
+    /**
+     * Internal function to move the next id of a table row by size
+     * @return the new next id
+     */
+    private static long reserve(Connection conn, String name, int size)
+            throws SQLException {
+        for (int attempt=0; ; attempt++) {
+            PreparedStatement stmt = conn.prepareStatement("update " + TABLE
+                + " set next_id = next_id + ? where name = ?");
+            int rows;
+            try {
+                stmt.setLong(1, size);
+                stmt.setString(2, name);
+                rows = stmt.executeUpdate();
+            }
+            finally {
+                stmt.close();
+            }
+            if ( rows > 0 ) {
+                return query(conn, "select next_id from " + TABLE
+                    + " where name = ?", name);
+            }
+            stmt = conn.prepareStatement("insert into " + TABLE
+                + "(name, next_id) values (?, ?)");
+            try {
+                stmt.setString(1, name);
+                stmt.setLong(2, 1 + size);
+                stmt.executeUpdate();
+                return 1 + size;
+            }
+            catch (SQLException e) {
+                if ( attempt > 0 ) {
+                    throw e;
+                }
+                // Inserted by another client, update it
+                conn.rollback();
+            }
+            finally {
+                stmt.close();
+            }
+        }
+    }
+
+    private static long query(Connection conn, String sql, String param)
+            throws SQLException {
+        PreparedStatement stmt = conn.prepareStatement(sql);
+        try {
+            if ( param != null ) {
+                stmt.setString(1, param);
+            }
+            ResultSet res = stmt.executeQuery();
+            if ( !res.next() ) {
+                throw new SQLException("No rows from " + sql);
+            }
+            return res.getLong(1);
+        }
+        finally {
+            stmt.close();
+        }
+    }
+}
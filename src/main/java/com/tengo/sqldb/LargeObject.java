@@ -0,0 +1,179 @@
+/*
+ * Handle to a large binary column
+ *
+ * @author Prasad Mokkapati  prasadm80@gmail.com
+ */
+package com.tengo.sqldb;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+/**
+ * Property type for large binary columns (BLOB, bytea ..). The column is
+ * never read by selects. A bean read from the database gets a handle that
+ * streams the column from the database, when accessed, straight into a
+ * channel using getBinaryStream. To write a column, create the object from
+ * a file channel or stream, which is bound using setBinaryStream.
+ * Large objects are lazy, so they are inserted but not updated by update.
+ * Use DBManager updateColumns to write a new value.
+ */
+public class LargeObject {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // Source of a value to write
+    private InputStream _in = null;
+    private FileChannel _channel = null;
+    private long _position = 0;
+    private long _length = -1;
+
+    // Row to read the value from
+    private DBManager _mgr = null;
+    private BeanMap _map = null;
+    private Property _prop = null;
+    private Object _owner = null;
+
+    /**
+     * Create a large object to write from a file channel. The channel is
+     * not closed.
+     * @param ch channel to read from
+     * @param position position in the channel to start from
+     * @param length number of bytes to write
+     */
+    public LargeObject(FileChannel ch, long position, long length) {
+        _channel = ch;
+        _position = position;
+        _length = length;
+    }
+
+    /**
+     * Create a large object to write from a stream. The stream is not
+     * closed.
+     * @param in stream to read from
+     * @param length number of bytes to write
+     */
+    public LargeObject(InputStream in, long length) {
+        _in = in;
+        _length = length;
+    }
+
+    /**
+     * package private constructor for a value in the database
+     */
+    LargeObject(DBManager mgr, BeanMap map, Property p, Object owner) {
+        _mgr = mgr;
+        _map = map;
+        _prop = p;
+        _owner = owner;
+    }
+
+    /**
+     * Function to return length of a value to write
+     * @return the length or -1 if the value is in the database
+     */
+    public long getLength() {
+        return _length;
+    }
+
+    /**
+     * Function to stream the value from the database into the given
+     * channel. Writes at the current position of file channels.
+     * @param out channel to write to
+     * @return number of bytes written or -1 if the value is null
+     */
+    public long transferTo(WritableByteChannel out) throws DBException {
+        if ( _mgr == null ) {
+            throw new DBException("LargeObject is not read from a database");
+        }
+        return _mgr.transfer(_map, _prop, _owner, out);
+    }
+
+    /**
+     * Function to stream the value from the database into a file
+     * @param f file to write to. Replaced if it exists
+     * @return number of bytes written or -1 if the value is null
+     */
+    public long transferTo(File f) throws DBException {
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(f);
+            return transferTo(out.getChannel());
+        }
+        catch (IOException e) {
+            throw new DBException(e);
+        }
+        finally {
+            if ( out != null ) {
+                try {
+                    out.close();
+                }
+                catch (IOException e) {
+                    throw new DBException(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * package private function to set the value to write into a statement
+     */
+    void setParameter(PreparedStatement stmt, int idx)
+            throws SQLException, DBException {
+        if ( _channel != null ) {
+            try {
+                _channel.position(_position);
+            }
+            catch (IOException e) {
+                throw new DBException(e);
+            }
+            stmt.setBinaryStream(idx, Channels.newInputStream(_channel),
+                _length);
+        }
+        else if ( _in != null ) {
+            stmt.setBinaryStream(idx, _in, _length);
+        }
+        else {
+            throw new DBException("LargeObject read from the database "
+                + "cannot be written. Create one from a channel or stream");
+        }
+    }
+
+    /**
+     * package private function to copy a channel into another. File
+     * channels use transferFrom so the data can be moved by the OS
+     * @return number of bytes copied
+     */
+    static long copy(ReadableByteChannel in, WritableByteChannel out)
+            throws IOException {
+        long total = 0;
+        if ( out instanceof FileChannel ) {
+            FileChannel fc = (FileChannel)out;
+            long pos = fc.position();
+            long n;
+            while ( (n = fc.transferFrom(in, pos, BUFFER_SIZE * 16)) > 0 ) {
+                pos += n;
+                total += n;
+            }
+            fc.position(pos);
+            return total;
+        }
+        ByteBuffer b = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        while ( in.read(b) >= 0 ) {
+            b.flip();
+            while ( b.hasRemaining() ) {
+                total += out.write(b);
+            }
+            b.clear();
+        }
+        return total;
+    }
+}
@@ -0,0 +1,299 @@
+/*
+ * List for lazy loaded OneToMany properties
+ *
+ * @author Prasad Mokkapati  prasadm80@gmail.com
+ */
+package com.tengo.sqldb;
+
+import java.io.ObjectStreamException;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+
+/**
+ * List set on lazy OneToMany properties. The rows of the linked table are
+ * queried on the mappedBy keys through the DBManager that selected the
+ * owning bean, the first time the list is accessed. Lists created by the
+ * same select share a Loader, which loads up to batchSize of the not yet
+ * loaded lists in a single query. The Loader holds the lists weakly, so a
+ * list that is kept does not keep the other beans of the select.
+ * The bulk methods of java 8 (forEach, removeIf, stream ..) load the list
+ * as well.
+ */
+class LazyList<E> extends ArrayList<E> {
+    private transient Loader _loader;
+    private transient Object _owner;
+    private transient volatile boolean _loaded = false;
+
+    LazyList(Loader loader, Object owner) {
+        _loader = loader;
+        _owner = owner;
+    }
+
+    /**
+     * Function to check if the rows were loaded
+     */
+    boolean isLoaded() {
+        return _loaded;
+    }
+
+    /**
+     * Set the loaded rows. Called by the loader
+     */
+    private void setRows(Collection<E> rows) {
+        if ( rows != null ) {
+            super.addAll(rows);
+        }
+        _loaded = true;
+        _owner = null;
+    }
+
+    private void load() {
+        if ( !_loaded ) {
+            _loader.load(this);
+        }
+    }
+
+    /**
+     * Serialize as a plain loaded list
+     */
+    private Object writeReplace() throws ObjectStreamException {
+        load();
+        return new ArrayList<E>(this);
+    }
+
+    public int size() { load(); return super.size(); }
+    public boolean isEmpty() { load(); return super.isEmpty(); }
+    public boolean contains(Object o) { load(); return super.contains(o); }
+    public int indexOf(Object o) { load(); return super.indexOf(o); }
+    public int lastIndexOf(Object o) { load(); return super.lastIndexOf(o); }
+    public Object clone() { load(); return new ArrayList<E>(this); }
+    public Object[] toArray() { load(); return super.toArray(); }
+    public <T> T[] toArray(T[] a) { load(); return super.toArray(a); }
+    public E get(int index) { load(); return super.get(index); }
+    public E set(int index, E e) { load(); return super.set(index, e); }
+    public boolean add(E e) { load(); return super.add(e); }
+    public void add(int index, E e) { load(); super.add(index, e); }
+    public E remove(int index) { load(); return super.remove(index); }
+    public boolean remove(Object o) { load(); return super.remove(o); }
+    public void clear() { load(); super.clear(); }
+    public boolean addAll(Collection<? extends E> c) {
+        load();
+        return super.addAll(c);
+    }
+    public boolean addAll(int index, Collection<? extends E> c) {
+        load();
+        return super.addAll(index, c);
+    }
+    public boolean removeAll(Collection<?> c) {
+        load();
+        return super.removeAll(c);
+    }
+    public boolean retainAll(Collection<?> c) {
+        load();
+        return super.retainAll(c);
+    }
+    public boolean containsAll(Collection<?> c) {
+        load();
+        return super.containsAll(c);
+    }
+    public Iterator<E> iterator() { load(); return super.iterator(); }
+    public ListIterator<E> listIterator() {
+        load();
+        return super.listIterator();
+    }
+    public ListIterator<E> listIterator(int index) {
+        load();
+        return super.listIterator(index);
+    }
+    public List<E> subList(int from, int to) {
+        load();
+        return super.subList(from, to);
+    }
+    // Java 8 bulk methods, stream() and parallelStream() use spliterator
+    public Spliterator<E> spliterator() {
+        load();
+        return super.spliterator();
+    }
+    public void forEach(Consumer<? super E> action) {
+        load();
+        super.forEach(action);
+    }
+    public boolean removeIf(Predicate<? super E> filter) {
+        load();
+        return super.removeIf(filter);
+    }
+    public void replaceAll(UnaryOperator<E> operator) {
+        load();
+        super.replaceAll(operator);
+    }
+    public void sort(Comparator<? super E> c) {
+        load();
+        super.sort(c);
+    }
+    public boolean equals(Object o) { load(); return super.equals(o); }
+    public int hashCode() { load(); return super.hashCode(); }
+    public String toString() { load(); return super.toString(); }
+
+    /**
+     * Loads the lazy lists of one OneToMany property for the beans of a
+     * select.
+     */
+    static class Loader {
+        private final DBManager _mgr;
+        private final Property _list;
+        private final Property _keys[];      // Keys in the owning bean
+        private final String _keyNames[];
+        private final int _batchSize;
+        private Property _childKeys[] = null; // Keys in the list bean
+        private final ArrayList<WeakReference<LazyList>> _pending =
+                new ArrayList<WeakReference<LazyList>>();
+        private int _next = 0;
+
+        Loader(DBManager mgr, BeanMap owner, Property list) {
+            _mgr = mgr;
+            _list = list;
+            _keyNames = list.getMappedBy();
+            _keys = new Property[_keyNames.length];
+            for (int i=0; i < _keys.length; i++) {
+                _keys[i] = owner.getProperty(_keyNames[i].toLowerCase());
+            }
+            _batchSize = Math.max(1, list.getBatchSize());
+        }
+
+        /**
+         * Create a new lazy list for the given owning bean
+         */
+        synchronized LazyList newList(Object owner) {
+            LazyList l = new LazyList(this, owner);
+            _pending.add(new WeakReference<LazyList>(l));
+            return l;
+        }
+
+        /**
+         * Internal function to return key values of the owning bean
+         */
+        private Object[] getKeys(Object owner) throws DBException {
+            Object ret[] = new Object[_keys.length];
+            for (int i=0; i < _keys.length; i++) {
+                ret[i] = keyValue(_keys[i].getValue(owner));
+            }
+            return ret;
+        }
+
+        /**
+         * Internal function to make integer keys of different types equal,
+         * and dates equal to the timestamps read for them, which are never
+         * equal to a java.util.Date
+         */
+        static Object keyValue(Object v) {
+            if ( v instanceof Integer || v instanceof Short
+                    || v instanceof Byte ) {
+                return Long.valueOf(((Number)v).longValue());
+            }
+            if ( v instanceof java.util.Date
+                    && !(v instanceof java.sql.Timestamp) ) {
+                return new java.sql.Timestamp(((java.util.Date)v).getTime());
+            }
+            return v;
+        }
+
+        /**
+         * Internal function to check if a pending list was loaded or is
+         * no longer used
+         */
+        private static boolean isDone(WeakReference<LazyList> ref) {
+            LazyList l = (ref == null) ? null : ref.get();
+            return l == null || l.isLoaded();
+        }
+
+        /**
+         * Load the given list together with other lists of the select
+         * that are not loaded yet
+         */
+        @SuppressWarnings(value="unchecked")
+        synchronized void load(LazyList target) {
+            if ( target.isLoaded() ) {
+                return;
+            }
+            BeanMap map = _list.getMap();
+            try {
+                if ( _childKeys == null ) {
+                    Property keys[] = new Property[_keyNames.length];
+                    for (int i=0; i < keys.length; i++) {
+                        if ( (keys[i] = map.getProperty(
+                                _keyNames[i].toLowerCase())) == null ) {
+                            throw new DBException("OneToMany mappedBy '"
+                                + _keyNames[i] + "' property does not exist "
+                                + "in " + map.getClassName());
+                        }
+                    }
+                    _childKeys = keys;
+                }
+                // Pick the siblings to load along with the target
+                ArrayList<LazyList> batch = new ArrayList<LazyList>();
+                batch.add(target);
+                while ( _next < _pending.size()
+                        && isDone(_pending.get(_next)) ) {
+                    _pending.set(_next++, null);
+                }
+                for (int i=_next; i < _pending.size()
+                        && batch.size() < _batchSize; i++) {
+                    WeakReference<LazyList> ref = _pending.get(i);
+                    LazyList l = (ref == null) ? null : ref.get();
+                    if ( l == null || l.isLoaded() ) {
+                        _pending.set(i, null);
+                    }
+                    else if ( l != target ) {
+                        batch.add(l);
+                    }
+                }
+                if ( _next >= _pending.size() ) {
+                    _pending.clear();
+                    _next = 0;
+                }
+                ArrayList<Object[]> values = new ArrayList<Object[]>();
+                for (LazyList l: batch) {
+                    values.add(getKeys(l._owner));
+                }
+                ArrayList rows = new ArrayList();
+                _mgr.select(map, _childKeys, values, rows);
+
+                // Split the rows back to the lists by key
+                HashMap<List<Object>, ArrayList> byKey =
+                        new HashMap<List<Object>, ArrayList>();
+                for (Object row: rows) {
+                    Object key[] = new Object[_childKeys.length];
+                    for (int i=0; i < key.length; i++) {
+                        key[i] = keyValue(_childKeys[i].getValue(row));
+                    }
+                    List<Object> k = Arrays.asList(key);
+                    ArrayList l = byKey.get(k);
+                    if ( l == null ) {
+                        l = new ArrayList();
+                        byKey.put(k, l);
+                    }
+                    l.add(row);
+                }
+                for (int i=0; i < batch.size(); i++) {
+                    batch.get(i).setRows(
+                        byKey.get(Arrays.asList(values.get(i))));
+                }
+            }
+            catch (DBException e) {
+                throw new IllegalStateException("Unable to load "
+                    + _list.getName() + " list of " + map.getClassName(), e);
+            }
+        }
+    }
+}
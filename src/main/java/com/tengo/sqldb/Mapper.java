@@ -0,0 +1,76 @@
+/*
+ * Interface implemented by mappers generated at compile time
+ *
+ * @author Prasad Mokkapati  prasadm80@gmail.com
+ */
+package com.tengo.sqldb;
+
+/**
+ * Mapper of a bean generated at compile time by the sqldb annotation
+ * processor from the Table, Column, Id, Version, Watermark, OneToMany and
+ * Enumerated annotations. The mapper of a bean class pkg.Name is
+ * pkg.Name_SqlMapper (nested classes use _ in place of $). BeanMap uses
+ * the mapper, when present, instead of introspection and reflection. The
+ * mapper provides direct property accessors, the SQL strings and the
+ * order in which properties are bound to them.
+ * Arrays returned are shared and must not be modified.
+ */
+public interface Mapper {
+    /**
+     * Property flags
+     */
+    int ID = 1;
+    int INSERTABLE = 2;
+    int UPDATEBLE = 4;
+    int SELECTABLE = 8;
+    int LAZY = 16;
+    int ENUM_STRING = 32;
+    int LAZY_LIST = 64;
+    int VERSION = 128;
+    int WATERMARK = 256;
+
+    /**
+     * Suffix of the generated mapper class name
+     */
+    String SUFFIX = "_SqlMapper";
+
+    Class<?> getBeanClass();
+    Object newInstance();
+
+    /**
+     * Property meta data. One entry per property
+     */
+    String[] getNames();
+    String[] getColumns();
+    Class<?>[] getTypes();
+    // List element types. null if not a list
+    Class<?>[] getElementTypes();
+    int[] getFlags();
+    String[][] getMappedBy();
+    int[] getBatchSizes();
+
+    Object getValue(Object bean, int idx);
+    void setValue(Object bean, int idx, Object v);
+
+    /**
+     * Table name, null if the bean does not have Table annotation
+     */
+    String getTableName();
+
+    /**
+     * Precomputed SQL strings. Same as what BeanMap builds
+     */
+    String getInsertNames();
+    String getInsertValues();
+    String getUpdateNames();
+    String getWhere();
+    String getSelectNames();
+
+    /**
+     * Column index plans. Indexes of properties in the order they are bound
+     * to insert values, update names and where
+     */
+    int[] getInsertPlan();
+    int[] getUpdatePlan();
+    int[] getKeyPlan();
+}
@@ -0,0 +1,411 @@
+/*
+ * In-memory metrics of database operations
+ *
+ * @author Prasad Mokkapati  prasadm80@gmail.com
+ */
+package com.tengo.sqldb;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Default Metrics. Keeps latency histograms of each phase, rows mapped,
+ * batch sizes and errors per operation, bean class and statement
+ * fingerprint. Statements are fingerprinted by replacing literals and
+ * lists of parameters with ?. Recording does not lock, counters are
+ * atomic and series are added with putIfAbsent.
+ * Histograms have power of 2 buckets, so quantiles are upper bounds
+ * within a factor of 2.
+ */
+public class MemoryMetrics implements Metrics, MemoryMetricsMBean {
+    private static final MemoryMetrics _default = new MemoryMetrics();
+
+    // Limits on memory used by fingerprints and series
+    private static final int MAX_FINGERPRINTS = 10000;
+    private static final int MAX_SERIES = 5000;
+    private static final int MAX_SQL = 200;
+
+    /**
+     * Histogram of positive values with power of 2 buckets
+     */
+    public static class Histogram {
+        private final AtomicLongArray _buckets = new AtomicLongArray(64);
+        private final AtomicLong _count = new AtomicLong();
+        private final AtomicLong _sum = new AtomicLong();
+        private final AtomicLong _max = new AtomicLong();
+
+        public void add(long v) {
+            v = Math.max(0, v);
+            _buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(v) - 
+                (v == 0 ? 0 : 1));
+            _count.incrementAndGet();
+            _sum.addAndGet(v);
+            long m;
+            while ( v > (m = _max.get()) && !_max.compareAndSet(m, v) ) {
+            }
+        }
+
+        public long getCount() { return _count.get(); }
+        public long getSum() { return _sum.get(); }
+        public long getMax() { return _max.get(); }
+
+        /**
+         * Function to return the upper bound of the bucket containing the
+         * given quantile
+         */
+        public long getQuantile(double q) {
+            long n = _count.get();
+            if ( n == 0 ) {
+                return 0;
+            }
+            long rank = (long)Math.ceil(q * n);
+            long seen = 0;
+            for (int i=0; i < 64; i++) {
+                seen += _buckets.get(i);
+                if ( seen >= rank ) {
+                    return Math.min(_max.get(), 
+                        (i >= 62) ? Long.MAX_VALUE : (2L << i) - 1);
+                }
+            }
+            return _max.get();
+        }
+    }
+
+    /**
+     * Metrics of an operation, bean and statement
+     */
+    public static class Series {
+        private final Metrics.Operation _op;
+        private final String _bean;
+        private final String _sql;
+        private final Histogram _phases[] = new Histogram[4];
+        private final Histogram _total = new Histogram();
+        private final Histogram _batch = new Histogram();
+        private final AtomicLong _rows = new AtomicLong();
+        private final ConcurrentHashMap<String, AtomicLong> _errors =
+                new ConcurrentHashMap<String, AtomicLong>();
+
+        Series(Metrics.Operation op, String bean, String sql) {
+            _op = op;
+            _bean = bean;
+            _sql = sql;
+            for (int i=0; i < _phases.length; i++) {
+                _phases[i] = new Histogram();
+            }
+        }
+
+        public Metrics.Operation getOperation() { return _op; }
+        public String getBean() { return _bean; }
+        public String getSql() { return _sql; }
+        public Histogram getPhase(Metrics.Phase p) { 
+            return _phases[p.ordinal()]; 
+        }
+        public Histogram getTotal() { return _total; }
+        public Histogram getBatch() { return _batch; }
+        public long getRows() { return _rows.get(); }
+        public long getErrors(String category) {
+            AtomicLong l = _errors.get(category);
+            return (l == null) ? 0 : l.get();
+        }
+    }
+
+    private final ConcurrentHashMap<String, Series> _series =
+            new ConcurrentHashMap<String, Series>();
+    private final ConcurrentHashMap<String, String> _fingerprints =
+            new ConcurrentHashMap<String, String>();
+    private final AtomicLong _operations = new AtomicLong();
+    private final AtomicLong _errors = new AtomicLong();
+    private final AtomicLong _rowsMapped = new AtomicLong();
+
+    /**
+     * Function to return the metrics used by DBManagers that do not have
+     * Metrics injected
+     */
+    public static MemoryMetrics getDefault() {
+        return _default;
+    }
+
+    public void record(Metrics.Operation op, Class<?> bean, String sql,
+            long phases[], int rows, int batch, String error) {
+        Series s = getSeries(op, bean, sql);
+        long total = 0;
+        for (int i=0; i < phases.length; i++) {
+            s._phases[i].add(phases[i]);
+            total += phases[i];
+        }
+        s._total.add(total);
+        if ( batch > 0 ) {
+            s._batch.add(batch);
+        }
+        if ( rows > 0 ) {
+            s._rows.addAndGet(rows);
+            _rowsMapped.addAndGet(rows);
+        }
+        _operations.incrementAndGet();
+        if ( error != null ) {
+            _errors.incrementAndGet();
+            AtomicLong cnt = s._errors.get(error);
+            if ( cnt == null ) {
+                AtomicLong n = new AtomicLong();
+                cnt = s._errors.putIfAbsent(error, n);
+                cnt = (cnt == null) ? n : cnt;
+            }
+            cnt.incrementAndGet();
+        }
+    }
+
+    private Series getSeries(Metrics.Operation op, Class<?> bean, 
+            String sql) {
+        String fp = fingerprint(sql);
+        String name = (bean == null) ? "" : bean.getName();
+        String key = op.name() + '|' + name + '|' + fp;
+        Series s = _series.get(key);
+        if ( s == null ) {
+            if ( _series.size() >= MAX_SERIES ) { // Limit cardinality
+                fp = "other";
+                key = op.name() + '|' + name + '|' + fp;
+                if ( (s = _series.get(key)) != null ) {
+                    return s;
+                }
+            }
+            Series n = new Series(op, name, fp);
+            s = _series.putIfAbsent(key, n);
+            s = (s == null) ? n : s;
+        }
+        return s;
+    }
+
+    /**
+     * Function to return the fingerprint of a statement. Literals are
+     * replaced by ?, lists of ? by (?+), white space is collapsed and
+     * words are lower cased.
+     */
+    public String fingerprint(String sql) {
+        if ( sql == null ) {
+            return "";
+        }
+        String fp = _fingerprints.get(sql);
+        if ( fp == null ) {
+            fp = normalize(sql);
+            if ( _fingerprints.size() < MAX_FINGERPRINTS ) {
+                _fingerprints.put(sql, fp);
+            }
+        }
+        return fp;
+    }
+
+    static String normalize(String sql) {
+        StringBuilder sb = new StringBuilder(Math.min(sql.length(), 256));
+        int len = sql.length();
+        for (int i=0; i < len; i++) {
+            char c = sql.charAt(i);
+            if ( c == '\'' ) { // String literal
+                for (i++; i < len; i++) {
+                    if ( sql.charAt(i) == '\'' ) {
+                        if ( i + 1 < len && sql.charAt(i + 1) == '\'' ) {
+                            i++; // Escaped quote
+                        }
+                        else {
+                            break;
+                        }
+                    }
+                }
+                sb.append('?');
+            }
+            else if ( Character.isDigit(c) && (sb.length() == 0
+                    || !Character.isLetterOrDigit(sb.charAt(sb.length() - 1))
+                        && sb.charAt(sb.length() - 1) != '_') ) {
+                while ( i + 1 < len && (Character.isDigit(sql.charAt(i + 1))
+                        || sql.charAt(i + 1) == '.') ) {
+                    i++;
+                }
+                sb.append('?');
+            }
+            else if ( Character.isWhitespace(c) ) {
+                if ( sb.length() > 0 && sb.charAt(sb.length() - 1) != ' ' ) {
+                    sb.append(' ');
+                }
+            }
+            else {
+                sb.append(Character.toLowerCase(c));
+            }
+        }
+        String ret = sb.toString().trim()
+            .replaceAll("\\(\\s*\\?(\\s*,\\s*\\?)+\\s*\\)", "(?+)")
+            .replaceAll("(\\((\\?|\\?\\+)(\\s*,\\s*\\?)*\\))(\\s*,\\s*\\1)+",
+                "$1+");
+        return (ret.length() > MAX_SQL) ? ret.substring(0, MAX_SQL) : ret;
+    }
+
+    /**
+     * Function to return all series sorted by key
+     */
+    public ArrayList<Series> getSeries() {
+        return new ArrayList<Series>(
+            new TreeMap<String, Series>(_series).values());
+    }
+
+    public long getOperations() {
+        return _operations.get();
+    }
+
+    public long getErrors() {
+        return _errors.get();
+    }
+
+    public long getRowsMapped() {
+        return _rowsMapped.get();
+    }
+
+    public int getSeriesCount() {
+        return _series.size();
+    }
+
+    public String[] getSummary() {
+        ArrayList<String> ret = new ArrayList<String>();
+        for (Series s: getSeries()) {
+            Histogram t = s._total;
+            StringBuilder sb = new StringBuilder();
+            sb.append(s._op + " " + s._bean + " count=" + t.getCount()
+                + " p50=" + micros(t.getQuantile(0.5)) + "us"
+                + " p99=" + micros(t.getQuantile(0.99)) + "us"
+                + " max=" + micros(t.getMax()) + "us");
+            for (Metrics.Phase p: Metrics.Phase.values()) {
+                sb.append(" " + p + "=" 
+                    + micros(s._phases[p.ordinal()].getSum()) + "us");
+            }
+            sb.append(" rows=" + s.getRows());
+            for (Map.Entry<String, AtomicLong> e: s._errors.entrySet()) {
+                sb.append(" " + e.getKey() + "=" + e.getValue().get());
+            }
+            sb.append(" sql=" + s._sql);
+            ret.add(sb.toString());
+        }
+        return ret.toArray(new String[ret.size()]);
+    }
+
+    private static long micros(long nanos) {
+        return nanos / 1000;
+    }
+
+    /**
+     * Function to reset all metrics
+     */
+    public void reset() {
+        _series.clear();
+        _operations.set(0);
+        _errors.set(0);
+        _rowsMapped.set(0);
+    }
+
+    /**
+     * Function to export the metrics in the Prometheus text format
+     */
+    public String export() {
+        StringBuilder sb = new StringBuilder();
+        try {
+            export(sb);
+        }
+        catch (IOException e) { // Not thrown by StringBuilder
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Function to write the metrics in the Prometheus text format. Times
+     * are in seconds.
+     * @param out where to write
+     */
+    public void export(Appendable out) throws IOException {
+        ArrayList<Series> series = getSeries();
+        out.append("# TYPE sqldb_phase_seconds summary\n");
+        for (Series s: series) {
+            for (Metrics.Phase p: Metrics.Phase.values()) {
+                Histogram h = s._phases[p.ordinal()];
+                String l = labels(s, "phase=\"" + p + "\"");
+                for (double q: new double[] {0.5, 0.9, 0.99}) {
+                    out.append("sqldb_phase_seconds{" + l + ",quantile=\""
+                        + q + "\"} " + seconds(h.getQuantile(q)) + "\n");
+                }
+                out.append("sqldb_phase_seconds_sum{" + l + "} " 
+                    + seconds(h.getSum()) + "\n");
+                out.append("sqldb_phase_seconds_count{" + l + "} " 
+                    + h.getCount() + "\n");
+            }
+        }
+        out.append("# TYPE sqldb_seconds_max gauge\n");
+        for (Series s: series) {
+            out.append("sqldb_seconds_max{" + labels(s, null) + "} " 
+                + seconds(s._total.getMax()) + "\n");
+        }
+        out.append("# TYPE sqldb_rows_total counter\n");
+        for (Series s: series) {
+            out.append("sqldb_rows_total{" + labels(s, null) + "} " 
+                + s.getRows() + "\n");
+        }
+        out.append("# TYPE sqldb_batch_size summary\n");
+        for (Series s: series) {
+            if ( s._batch.getCount() == 0 ) {
+                continue;
+            }
+            String l = labels(s, null);
+            out.append("sqldb_batch_size{" + l + ",quantile=\"0.5\"} " 
+                + s._batch.getQuantile(0.5) + "\n");
+            out.append("sqldb_batch_size_sum{" + l + "} " 
+                + s._batch.getSum() + "\n");
+            out.append("sqldb_batch_size_count{" + l + "} " 
+                + s._batch.getCount() + "\n");
+        }
+        out.append("# TYPE sqldb_errors_total counter\n");
+        for (Series s: series) {
+            for (Map.Entry<String, AtomicLong> e: s._errors.entrySet()) {
+                out.append("sqldb_errors_total{" + labels(s, "category=\"" 
+                    + e.getKey() + "\"") + "} " + e.getValue().get() + "\n");
+            }
+        }
+    }
+
+    private static String labels(Series s, String extra) {
+        return "op=\"" + s._op + "\",bean=\"" + escape(s._bean) 
+            + "\",sql=\"" + escape(s._sql) + "\"" 
+            + (extra == null ? "" : "," + extra);
+    }
+
+    private static String escape(String s) {
+        return s.replace("\\", "\\\\").replace("\"", "\\\"")
+            .replace("\n", " ");
+    }
+
+    private static String seconds(long nanos) {
+        return Double.toString(nanos / 1e9);
+    }
+
+    /**
+     * Function to register the metrics as a JMX bean
+     * @param name name of the bean, e.g. the name of the data source
+     * @return the object name registered
+     */
+    public ObjectName register(String name) throws DBException {
+        try {
+            ObjectName on = new ObjectName("com.tengo.sqldb:type=Metrics,name="
+                + ObjectName.quote(name));
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if ( server.isRegistered(on) ) {
+                server.unregisterMBean(on);
+            }
+            server.registerMBean(this, on);
+            return on;
+        }
+        catch (Exception e) {
+            throw new DBException(e);
+        }
+    }
+}
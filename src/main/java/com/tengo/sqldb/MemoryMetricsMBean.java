@@ -0,0 +1,22 @@
+/*
+ * JMX interface of the in-memory metrics
+ *
+ * @author Prasad Mokkapati  prasadm80@gmail.com
+ */
+package com.tengo.sqldb;
+
+/**
+ * Management interface of MemoryMetrics. Register with
+ * MemoryMetrics.register
+ */
+public interface MemoryMetricsMBean {
+    long getOperations();
+    long getErrors();
+    long getRowsMapped();
+    int getSeriesCount();
+    // One line per operation, bean and statement
+    String[] getSummary();
+    // Text export of all metrics
+    String export();
+    void reset();
+}
@@ -0,0 +1,58 @@
+/*
+ * Interface to record metrics of database operations
+ *
+ * @author Prasad Mokkapati  prasadm80@gmail.com
+ */
+package com.tengo.sqldb;
+
+/**
+ * Receives the timing of every DBManager operation. Bind an implementation
+ * with Guice to replace the default MemoryMetrics, or bind Metrics.NONE to
+ * turn metrics off. Implementations are called on the thread of the
+ * operation and need to be fast and thread safe.
+ */
+public interface Metrics {
+    public enum Operation { insert, bulkInsert, update, delete,
+        bulkUpdate, bulkDelete, get, select,
+        getAll, fetch, updateColumns, transfer, execute, poll, export };
+
+    /**
+     * Phases of an operation. map is the time not spent in the other
+     * phases, I.E. binding parameters and mapping rows to beans.
+     */
+    public enum Phase { connect, prepare, execute, map };
+
+    /**
+     * Error categories
+     */
+    String DUPLICATE = "duplicate";
+    String RETRYABLE = "retryable";
+    String TIMEOUT = "timeout";
+    String CONNECTION = "connection";
+    String SQL = "sql";
+    String OTHER = "other";
+
+    /**
+     * Metrics that records nothing
+     */
+    Metrics NONE = new Metrics() {
+        public void record(Operation op, Class<?> bean, String sql,
+                long phases[], int rows, int batch, String error) {
+        }
+    };
+
+    /**
+     * Function called when an operation completes
+     * @param op the operation
+     * @param bean bean class, null for statements without beans
+     * @param sql the first statement run by the operation, null if it
+     *  failed before preparing one
+     * @param phases nanoseconds spent in each Phase, indexed by ordinal.
+     *  The array is reused by the caller
+     * @param rows number of rows mapped to beans
+     * @param batch number of beans in a bulk operation, 0 otherwise
+     * @param error error category or null if the operation succeeded
+     */
+    void record(Operation op, Class<?> bean, String sql, long phases[],
+            int rows, int batch, String error);
+}
@@ -69,4 +69,12 @@ public class NestedProperty extends Property {
         }
         p.setValue(o, v);
     }
+
+    /**
+     * Function to return the java class of the leaf property
+     * @return the property class
+     */
+    public Class getPropertyClass() {
+        return _list.get(_list.size()-1).getPropertyClass();
+    }
 }
@@ -0,0 +1,764 @@
+/*
+ * Off heap cache of mapped beans
+ *
+ * @author Prasad Mokkapati  prasadm80@gmail.com
+ */
+package com.tengo.sqldb;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+
+/**
+ * Cache of beans stored outside of the java heap. Beans are written in a
+ * compact binary row format built from the primitive properties of the
+ * bean's BeanMap (not java serialization) into fixed size slabs of direct
+ * or memory mapped buffers. The only on heap structure is an open
+ * addressing index of slab addresses, so millions of rows can be cached
+ * without adding to garbage collection work.
+ * Slabs are used as a ring. When the ring wraps, the oldest slab is evicted
+ * together with all entries still pointing into it.
+ * Beans need a Table annotation with unique keys or an Id property. Values
+ * are read back through the same property setters used by the mapper.
+ */
+public class OffHeapCache<T> {
+    private static final Charset _utf8 = Charset.forName("UTF-8");
+
+    private final BeanMap _map;
+    private final Property _keys[];
+    private final Codec _keyCodecs[];
+    private final Property _props[];
+    private final Codec _codecs[];
+    private final int _nullBytes;
+
+    private final ByteBuffer _slabs[];
+    private final int _slabSize;
+    private final boolean _slabUsed[];
+    private RandomAccessFile _file = null;
+    private int _cur = 0;   // current slab
+    private int _pos = 0;   // next free offset in current slab
+
+    // Open addressing index. Slot holds address+1, 0 if empty
+    private long _index[];
+    private int _hashes[];
+    private int _size = 0;
+
+    // Scratch buffer used to encode keys and rows
+    private ByteBuffer _scratch = ByteBuffer.allocate(1024);
+
+    // Metrics
+    private long _liveBytes = 0;
+    private long _hits = 0;
+    private long _misses = 0;
+    private long _puts = 0;
+    private long _evictions = 0;
+    private long _rejected = 0;
+
+    /**
+     * Create a cache backed by direct buffers
+     * @param c bean class to cache
+     * @param slabSize size of each slab in bytes
+     * @param numSlabs number of slabs
+     */
+    public OffHeapCache(Class<T> c, int slabSize, int numSlabs)
+            throws DBException {
+        this(c, null, slabSize, numSlabs);
+    }
+
+    /**
+     * Create a cache backed by a memory mapped file. If file is null direct
+     * buffers are used
+     * @param c bean class to cache
+     * @param file file to map slabs from
+     * @param slabSize size of each slab in bytes
+     * @param numSlabs number of slabs
+     */
+    public OffHeapCache(Class<T> c, File file, int slabSize, int numSlabs)
+            throws DBException {
+        if ( slabSize < 64 || numSlabs < 2 ) {
+            throw new DBException("OffHeapCache: Need at least 2 slabs of "
+                + "64 bytes");
+        }
+        _map = BeanMap.get(c);
+        _keys = _map.getUniqueKeys();
+        if ( _keys == null ) {
+            throw new DBException("OffHeapCache: Class " + c.getName()
+                + " does not have unique keys or Id to cache on");
+        }
+        _keyCodecs = new Codec[_keys.length];
+        for (int i=0; i < _keys.length; i++) {
+            _keyCodecs[i] = getCodec(_keys[i]);
+        }
+        ArrayList<Property> primitives = _map.getPrimitives();
+        _props = primitives.toArray(new Property[primitives.size()]);
+        _codecs = new Codec[_props.length];
+        for (int i=0; i < _props.length; i++) {
+            _codecs[i] = getCodec(_props[i]);
+        }
+        _nullBytes = (_props.length + 7) / 8;
+        _slabSize = slabSize;
+        _slabs = new ByteBuffer[numSlabs];
+        _slabUsed = new boolean[numSlabs];
+        try {
+            FileChannel ch = null;
+            if ( file != null ) {
+                _file = new RandomAccessFile(file, "rw");
+                _file.setLength((long)slabSize * numSlabs);
+                ch = _file.getChannel();
+            }
+            for (int i=0; i < numSlabs; i++) {
+                _slabs[i] = (ch == null) ? ByteBuffer.allocateDirect(slabSize)
+                    : ch.map(FileChannel.MapMode.READ_WRITE,
+                        (long)i * slabSize, slabSize);
+            }
+        }
+        catch (IOException e) {
+            throw new DBException(e);
+        }
+        _index = new long[1024];
+        _hashes = new int[1024];
+    }
+
+    /**
+     * Add or replace a bean in the cache.
+     * @param o bean to cache. Unique key properties need to be set
+     * @return false if the bean is too large to fit in a slab
+     */
+    public synchronized boolean put(T o) throws DBException {
+        int klen = encodeKey(o);
+        int hash = hash(_scratch, 0, klen);
+        int len = encodeRow(o, klen);
+        if ( len > _slabSize ) {
+            _rejected++;
+            return false;
+        }
+        long addr = allocate(len);
+        ByteBuffer slab = _slabs[slab(addr)];
+        int off = offset(addr);
+        for (int i=0; i < len; i++) {
+            slab.put(off + i, _scratch.get(i));
+        }
+        // Allocation may have evicted and moved entries. Lookup again.
+        int slot = findSlot(_scratch, 6, klen, hash);
+        if ( _index[slot] != 0 ) {
+            _liveBytes -= recordLength(_index[slot] - 1);
+        }
+        else {
+            _size++;
+        }
+        _index[slot] = addr + 1;
+        _hashes[slot] = hash;
+        _liveBytes += len;
+        _puts++;
+        if ( _size * 4 > _index.length * 3 ) {
+            resize();
+        }
+        return true;
+    }
+
+    /**
+     * Retrieves a bean from the cache given a bean with the keys set
+     * @param o bean containing the unique keys
+     * @return a new bean or null if not cached
+     */
+    public synchronized T get(T o) throws DBException {
+        int klen = encodeKey(o);
+        return get(klen);
+    }
+
+    /**
+     * Retrieves a bean from the cache given the unique key values in
+     * the order of the Table uniqueConstraints
+     * @param keys values of the unique keys
+     * @return a new bean or null if not cached
+     */
+    public synchronized T getByKey(Object ... keys) throws DBException {
+        int klen = encodeKey(keys);
+        return get(klen);
+    }
+
+    /**
+     * Remove a bean from the cache
+     * @param o bean containing the unique keys
+     * @return true if the bean was cached
+     */
+    public synchronized boolean remove(T o) throws DBException {
+        int klen = encodeKey(o);
+        int slot = findSlot(_scratch, 6, klen, hash(_scratch, 0, klen));
+        if ( _index[slot] == 0 ) {
+            return false;
+        }
+        _liveBytes -= recordLength(_index[slot] - 1);
+        removeSlot(slot);
+        return true;
+    }
+
+    /**
+     * Remove all beans from the cache
+     */
+    public synchronized void clear() {
+        _index = new long[1024];
+        _hashes = new int[1024];
+        _size = 0;
+        _liveBytes = 0;
+        _cur = 0;
+        _pos = 0;
+        for (int i=0; i < _slabUsed.length; i++) {
+            _slabUsed[i] = false;
+        }
+    }
+
+    /**
+     * Close the cache. Closes the mapped file if any.
+     */
+    public synchronized void close() throws DBException {
+        clear();
+        if ( _file != null ) {
+            try {
+                _file.close();
+            }
+            catch (IOException e) {
+                throw new DBException(e);
+            }
+            _file = null;
+        }
+    }
+
+    /**
+     * Function to return number of beans in the cache
+     */
+    public synchronized int size() { return _size; }
+
+    /**
+     * Function to return total off heap bytes reserved for slabs
+     */
+    public long getCapacity() { return (long)_slabSize * _slabs.length; }
+
+    /**
+     * Function to return bytes written into slabs, including space of
+     * replaced or removed entries not yet reclaimed
+     */
+    public synchronized long getAllocatedBytes() {
+        long used = 0;
+        for (int i=0; i < _slabUsed.length; i++) {
+            if ( _slabUsed[i] && i != _cur ) {
+                used += _slabSize;
+            }
+        }
+        return used + _pos;
+    }
+
+    /**
+     * Function to return bytes used by beans currently in the cache
+     */
+    public synchronized long getLiveBytes() { return _liveBytes; }
+
+    /**
+     * Function to return approximate on heap bytes used by the index
+     */
+    public synchronized long getIndexBytes() {
+        return (long)_index.length * 12;
+    }
+    public synchronized long getHits() { return _hits; }
+    public synchronized long getMisses() { return _misses; }
+    public synchronized long getPuts() { return _puts; }
+    public synchronized long getEvictions() { return _evictions; }
+    public synchronized long getRejected() { return _rejected; }
+
+    public synchronized String toString() {
+        return "OffHeapCache[" + _map.getClassName() + "] size=" + _size
+            + " capacity=" + getCapacity() + " allocated="
+            + getAllocatedBytes() + " live=" + _liveBytes + " index="
+            + getIndexBytes() + " hits=" + _hits + " misses=" + _misses
+            + " puts=" + _puts + " evictions=" + _evictions
+            + " rejected=" + _rejected;
+    }
+
+    /*
+     * Record layout in a slab:
+     *   int    record length
+     *   short  key length
+     *   byte[] key - each key value with a null marker byte
+     *   byte[] null bitmap of primitive properties
+     *   values of non null primitive properties
+     */
+
+    private static int slab(long addr) { return (int)(addr >>> 32); }
+    private static int offset(long addr) { return (int)addr; }
+
+    private int recordLength(long addr) {
+        return _slabs[slab(addr)].getInt(offset(addr));
+    }
+
+    /**
+     * Internal function to lookup an encoded key in scratch and decode
+     */
+    @SuppressWarnings(value="unchecked")
+    private T get(int klen) throws DBException {
+        int slot = findSlot(_scratch, 6, klen, hash(_scratch, 0, klen));
+        if ( _index[slot] == 0 ) {
+            _misses++;
+            return null;
+        }
+        _hits++;
+        long addr = _index[slot] - 1;
+        ByteBuffer b = _slabs[slab(addr)];
+        int pos = offset(addr) + 6 + klen;
+        int nulls = pos;
+        pos += _nullBytes;
+        T obj = (T)_map.newInstance();
+        for (int i=0; i < _props.length; i++) {
+            if ( (b.get(nulls + (i >> 3)) & (1 << (i & 7))) != 0) {
+                if ( !_props[i].getPropertyClass().isPrimitive() ) {
+                    _props[i].setValue(obj, null);
+                }
+                continue;
+            }
+            _props[i].setValue(obj, _codecs[i].read(b, pos));
+            pos += _codecs[i].length(b, pos);
+        }
+        return obj;
+    }
+
+    /**
+     * Encode the keys of the bean into scratch starting at offset 6
+     * @return length of the encoded keys
+     */
+    private int encodeKey(T o) throws DBException {
+        Object keys[] = new Object[_keys.length];
+        for (int i=0; i < _keys.length; i++) {
+            keys[i] = _keys[i].getValue(o);
+        }
+        return encodeKey(keys);
+    }
+
+    private int encodeKey(Object keys[]) throws DBException {
+        if ( keys.length != _keys.length ) {
+            throw new DBException("OffHeapCache: Expecting " + _keys.length
+                + " key values for " + _map.getClassName());
+        }
+        int len = 0;
+        for (int i=0; i < keys.length; i++) {
+            len += 1 + (keys[i] == null ? 0 : _keyCodecs[i].size(keys[i]));
+        }
+        ensureScratch(6 + len);
+        int pos = 6;
+        for (int i=0; i < keys.length; i++) {
+            if ( keys[i] == null ) {
+                _scratch.put(pos++, (byte)0);
+            }
+            else {
+                _scratch.put(pos++, (byte)1);
+                pos = _keyCodecs[i].write(_scratch, pos, keys[i]);
+            }
+        }
+        return len;
+    }
+
+    /**
+     * Encode a complete record into scratch, keeping the already encoded
+     * key in place
+     * @return length of the record
+     */
+    private int encodeRow(T o, int klen) throws DBException {
+        Object values[] = new Object[_props.length];
+        int len = 6 + klen + _nullBytes;
+        for (int i=0; i < _props.length; i++) {
+            if ( (values[i] = _props[i].getValue(o)) != null ) {
+                len += _codecs[i].size(values[i]);
+            }
+        }
+        ensureScratch(len);
+        _scratch.putInt(0, len);
+        _scratch.putShort(4, (short)klen);
+        int nulls = 6 + klen;
+        for (int i=0; i < _nullBytes; i++) {
+            _scratch.put(nulls + i, (byte)0);
+        }
+        int pos = nulls + _nullBytes;
+        for (int i=0; i < _props.length; i++) {
+            if ( values[i] == null ) {
+                int b = nulls + (i >> 3);
+                _scratch.put(b, (byte)(_scratch.get(b) | (1 << (i & 7))));
+            }
+            else {
+                pos = _codecs[i].write(_scratch, pos, values[i]);
+            }
+        }
+        return len;
+    }
+
+    private void ensureScratch(int len) {
+        if ( _scratch.capacity() < len ) {
+            ByteBuffer b = ByteBuffer.allocate(Math.max(len,
+                _scratch.capacity() * 2));
+            for (int i=0; i < _scratch.capacity(); i++) {
+                b.put(i, _scratch.get(i));
+            }
+            _scratch = b;
+        }
+    }
+
+    /**
+     * Find the slot holding the given key, or the empty slot where it
+     * belongs.
+     */
+    private int findSlot(ByteBuffer key, int koff, int klen, int hash) {
+        int mask = _index.length - 1;
+        int slot = hash & mask;
+        while ( _index[slot] != 0 ) {
+            if ( _hashes[slot] == hash
+                    && keyEquals(_index[slot] - 1, key, koff, klen) ) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private boolean keyEquals(long addr, ByteBuffer key, int koff, int klen) {
+        ByteBuffer b = _slabs[slab(addr)];
+        int off = offset(addr);
+        if ( b.getShort(off + 4) != klen ) {
+            return false;
+        }
+        off += 6;
+        for (int i=0; i < klen; i++) {
+            if ( b.get(off + i) != key.get(koff + i) ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Remove a slot from the linear probing index shifting back following
+     * entries so no tombstones are needed.
+     */
+    private void removeSlot(int slot) {
+        int mask = _index.length - 1;
+        int next = slot;
+        _size--;
+        while (true) {
+            next = (next + 1) & mask;
+            if ( _index[next] == 0 ) {
+                break;
+            }
+            int home = _hashes[next] & mask;
+            // Move entry back if its home is not between slot and next
+            if ( (slot <= next) ? (slot < home && home <= next)
+                    : (slot < home || home <= next) ) {
+                continue;
+            }
+            _index[slot] = _index[next];
+            _hashes[slot] = _hashes[next];
+            slot = next;
+        }
+        _index[slot] = 0;
+        _hashes[slot] = 0;
+    }
+
+    private void resize() {
+        long index[] = _index;
+        int hashes[] = _hashes;
+        _index = new long[index.length * 2];
+        _hashes = new int[index.length * 2];
+        int mask = _index.length - 1;
+        for (int i=0; i < index.length; i++) {
+            if ( index[i] != 0 ) {
+                int slot = hashes[i] & mask;
+                while ( _index[slot] != 0 ) {
+                    slot = (slot + 1) & mask;
+                }
+                _index[slot] = index[i];
+                _hashes[slot] = hashes[i];
+            }
+        }
+    }
+
+    /**
+     * Allocate space for a record, moving to the next slab in the ring and
+     * evicting it if needed
+     */
+    private long allocate(int len) {
+        if ( _pos + len > _slabSize ) {
+            if ( _pos + 4 <= _slabSize ) { // Mark end of records
+                _slabs[_cur].putInt(_pos, 0);
+            }
+            _cur = (_cur + 1) % _slabs.length;
+            _pos = 0;
+            if ( _slabUsed[_cur] ) {
+                evict(_cur);
+            }
+        }
+        _slabUsed[_cur] = true;
+        long addr = ((long)_cur << 32) | _pos;
+        _pos += len;
+        return addr;
+    }
+
+    /**
+     * Walk the records of a slab and drop index entries still pointing
+     * into it
+     */
+    private void evict(int s) {
+        ByteBuffer b = _slabs[s];
+        int off = 0;
+        int len;
+        while ( off + 6 <= _slabSize && (len = b.getInt(off)) > 0
+                && off + len <= _slabSize ) {
+            int klen = b.getShort(off + 4);
+            int hash = hash(b, off, klen);
+            int slot = findSlot(b, off + 6, klen, hash);
+            long addr = ((long)s << 32) | off;
+            if ( _index[slot] == addr + 1 ) {
+                _liveBytes -= len;
+                _evictions++;
+                removeSlot(slot);
+            }
+            off += len;
+        }
+        _slabUsed[s] = false;
+    }
+
+    /**
+     * Hash of an encoded key of a record starting at off
+     */
+    private static int hash(ByteBuffer b, int off, int klen) {
+        int h = 1;
+        for (int i=0; i < klen; i++) {
+            h = 31 * h + b.get(off + 6 + i);
+        }
+        h ^= (h >>> 16);
+        return h * 0x85ebca6b;
+    }
+
+    /**
+     * Internal function to return the codec for a property
+     */
+    private static Codec getCodec(Property p) throws DBException {
+        Class c = p.getPropertyClass();
+        if ( c == Long.class || c == long.class ) {
+            return new Fixed(8) {
+                int write(ByteBuffer b, int pos, Object v) {
+                    b.putLong(pos, ((Long)v).longValue());
+                    return pos + 8;
+                }
+                Object read(ByteBuffer b, int pos) {
+                    return Long.valueOf(b.getLong(pos));
+                }
+            };
+        }
+        else if ( c == Integer.class || c == int.class ) {
+            return new Fixed(4) {
+                int write(ByteBuffer b, int pos, Object v) {
+                    b.putInt(pos, ((Integer)v).intValue());
+                    return pos + 4;
+                }
+                Object read(ByteBuffer b, int pos) {
+                    return Integer.valueOf(b.getInt(pos));
+                }
+            };
+        }
+        else if ( c == Short.class || c == short.class ) {
+            return new Fixed(2) {
+                int write(ByteBuffer b, int pos, Object v) {
+                    b.putShort(pos, ((Short)v).shortValue());
+                    return pos + 2;
+                }
+                Object read(ByteBuffer b, int pos) {
+                    return Short.valueOf(b.getShort(pos));
+                }
+            };
+        }
+        else if ( c == Byte.class || c == byte.class ) {
+            return new Fixed(1) {
+                int write(ByteBuffer b, int pos, Object v) {
+                    b.put(pos, ((Byte)v).byteValue());
+                    return pos + 1;
+                }
+                Object read(ByteBuffer b, int pos) {
+                    return Byte.valueOf(b.get(pos));
+                }
+            };
+        }
+        else if ( c == Boolean.class || c == boolean.class ) {
+            return new Fixed(1) {
+                int write(ByteBuffer b, int pos, Object v) {
+                    b.put(pos, (byte)(((Boolean)v).booleanValue() ? 1 : 0));
+                    return pos + 1;
+                }
+                Object read(ByteBuffer b, int pos) {
+                    return Boolean.valueOf(b.get(pos) != 0);
+                }
+            };
+        }
+        else if ( c == Character.class || c == char.class ) {
+            return new Fixed(2) {
+                int write(ByteBuffer b, int pos, Object v) {
+                    b.putChar(pos, ((Character)v).charValue());
+                    return pos + 2;
+                }
+                Object read(ByteBuffer b, int pos) {
+                    return Character.valueOf(b.getChar(pos));
+                }
+            };
+        }
+        else if ( c == Double.class || c == double.class ) {
+            return new Fixed(8) {
+                int write(ByteBuffer b, int pos, Object v) {
+                    b.putDouble(pos, ((Double)v).doubleValue());
+                    return pos + 8;
+                }
+                Object read(ByteBuffer b, int pos) {
+                    return Double.valueOf(b.getDouble(pos));
+                }
+            };
+        }
+        else if ( c == Float.class || c == float.class ) {
+            return new Fixed(4) {
+                int write(ByteBuffer b, int pos, Object v) {
+                    b.putFloat(pos, ((Float)v).floatValue());
+                    return pos + 4;
+                }
+                Object read(ByteBuffer b, int pos) {
+                    return Float.valueOf(b.getFloat(pos));
+                }
+            };
+        }
+        else if ( c == java.sql.Timestamp.class ) {
+            return new Fixed(12) {
+                int write(ByteBuffer b, int pos, Object v) {
+                    java.sql.Timestamp t = (java.sql.Timestamp)v;
+                    b.putLong(pos, t.getTime());
+                    b.putInt(pos + 8, t.getNanos());
+                    return pos + 12;
+                }
+                Object read(ByteBuffer b, int pos) {
+                    java.sql.Timestamp t =
+                        new java.sql.Timestamp(b.getLong(pos));
+                    t.setNanos(b.getInt(pos + 8));
+                    return t;
+                }
+            };
+        }
+        else if ( java.util.Date.class.isAssignableFrom(c) ) {
+            final Class dc = c;
+            return new Fixed(9) {
+                // Values from a result set may be a java.sql subclass of
+                // the property type. Keep the type so setters see the same
+                int write(ByteBuffer b, int pos, Object v) {
+                    b.put(pos, (byte)(v instanceof java.sql.Timestamp ? 3
+                        : v instanceof java.sql.Time ? 2
+                        : v instanceof java.sql.Date ? 1 : 0));
+                    b.putLong(pos + 1, ((java.util.Date)v).getTime());
+                    return pos + 9;
+                }
+                Object read(ByteBuffer b, int pos) {
+                    long t = b.getLong(pos + 1);
+                    switch (b.get(pos)) {
+                        case 1: return new java.sql.Date(t);
+                        case 2: return new java.sql.Time(t);
+                        case 3: return new java.sql.Timestamp(t);
+                        default: return new java.util.Date(t);
+                    }
+                }
+            };
+        }
+        else if ( c.isEnum() ) {
+            final Object values[] = c.getEnumConstants();
+            return new Fixed(4) {
+                int write(ByteBuffer b, int pos, Object v) {
+                    b.putInt(pos, ((Enum)v).ordinal());
+                    return pos + 4;
+                }
+                Object read(ByteBuffer b, int pos) {
+                    return values[b.getInt(pos)];
+                }
+            };
+        }
+        else if ( c == String.class ) {
+            return new Codec() {
+                int size(Object v) {
+                    return 4 + ((String)v).getBytes(_utf8).length;
+                }
+                int write(ByteBuffer b, int pos, Object v) {
+                    byte s[] = ((String)v).getBytes(_utf8);
+                    b.putInt(pos, s.length);
+                    pos += 4;
+                    for (int i=0; i < s.length; i++) {
+                        b.put(pos++, s[i]);
+                    }
+                    return pos;
+                }
+                int length(ByteBuffer b, int pos) {
+                    return 4 + b.getInt(pos);
+                }
+                Object read(ByteBuffer b, int pos) {
+                    byte s[] = new byte[b.getInt(pos)];
+                    pos += 4;
+                    for (int i=0; i < s.length; i++) {
+                        s[i] = b.get(pos++);
+                    }
+                    return new String(s, _utf8);
+                }
+            };
+        }
+        else if ( c == byte[].class ) {
+            return new Codec() {
+                int size(Object v) {
+                    return 4 + ((byte[])v).length;
+                }
+                int write(ByteBuffer b, int pos, Object v) {
+                    byte s[] = (byte[])v;
+                    b.putInt(pos, s.length);
+                    pos += 4;
+                    for (int i=0; i < s.length; i++) {
+                        b.put(pos++, s[i]);
+                    }
+                    return pos;
+                }
+                int length(ByteBuffer b, int pos) {
+                    return 4 + b.getInt(pos);
+                }
+                Object read(ByteBuffer b, int pos) {
+                    byte s[] = new byte[b.getInt(pos)];
+                    pos += 4;
+                    for (int i=0; i < s.length; i++) {
+                        s[i] = b.get(pos++);
+                    }
+                    return s;
+                }
+            };
+        }
+        throw new DBException("OffHeapCache: Property " + p.getName()
+            + " of type " + c.getName() + " cannot be cached");
+    }
+
+    /**
+     * Binary encoding of a property value
+     */
+    private static abstract class Codec {
+        // Encoded size of the value
+        abstract int size(Object v);
+        // Write value at pos and return position after the value
+        abstract int write(ByteBuffer b, int pos, Object v);
+        // Length of the encoded value at pos
+        abstract int length(ByteBuffer b, int pos);
+        abstract Object read(ByteBuffer b, int pos);
+    }
+
+    private static abstract class Fixed extends Codec {
+        private final int _size;
+
+        Fixed(int size) {
+            _size = size;
+        }
+        int size(Object v) { return _size; }
+        int length(ByteBuffer b, int pos) { return _size; }
+    }
+}
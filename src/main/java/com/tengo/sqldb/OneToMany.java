@@ -20,7 +20,13 @@ import java.lang.annotation.RetentionPolicy;
 /**
  * Annotation on a bean property - getter/setter method to indicate mapping
  * for one to many (linked tables).
+ * If lazy, the list is not mapped from the query. Instead a list is set
+ * that queries the linked table on the mappedBy keys when first accessed. 
+ * batchSize is the max number of lazy lists from the same select loaded 
+ * in a single query.
  */
 public @interface OneToMany {
     String[] mappedBy();
+    boolean lazy() default false;
+    int batchSize() default 1;
 }
@@ -0,0 +1,190 @@
+/*
+ * Timing of a database operation
+ *
+ * @author Prasad Mokkapati  prasadm80@gmail.com
+ */
+package com.tengo.sqldb;
+
+import java.util.ArrayList;
+
+/**
+ * Collects the phase times of one DBManager operation and reports them to
+ * Metrics when the operation ends. The probe of the running operation is
+ * kept per thread so statements prepared and executed by BeanMap are
+ * added to it. Operations started while another runs, e.g. lazy loads
+ * while mapping rows, get their own probe.
+ * If the DBManager has a SlowQueryLog, the parameters bound to the first
+ * statement are kept and operations over the threshold are reported to it.
+ * Operations in a profiled transaction are recorded in its profile.
+ */
+final class Probe {
+    private static final ThreadLocal<Probe> _current =
+            new ThreadLocal<Probe>();
+
+    private final DBManager _mgr;
+    private final Metrics _metrics;
+    private final SlowQueryLog _slowLog;
+    private final Metrics.Operation _op;
+    private final Class<?> _bean;
+    private final Probe _prev;
+    private final long _start;
+    private final long _phases[] = new long[4];
+    private String _sql = null;
+    private int _rows = 0;
+    private int _batch = 0;
+    private int _statements = 0;
+    private String _error = null;
+    // Parameters of the first statement, null when not kept
+    private ArrayList<SlowQueryLog.Bind> _binds = null;
+    private boolean _bindsOpen = false;
+
+    private Probe(DBManager mgr, Metrics.Operation op, Class<?> bean) {
+        _mgr = mgr;
+        _metrics = mgr.getMetrics();
+        _slowLog = mgr.getSlowQueryLog();
+        if ( _slowLog != null ) {
+            _binds = new ArrayList<SlowQueryLog.Bind>();
+            _bindsOpen = true;
+        }
+        _op = op;
+        _bean = bean;
+        _prev = _current.get();
+        _start = System.nanoTime();
+    }
+
+    /**
+     * Function to start timing an operation on the current thread
+     */
+    static Probe start(DBManager mgr, Metrics.Operation op, Class<?> bean) {
+        Probe p = new Probe(mgr, op, bean);
+        _current.set(p);
+        return p;
+    }
+
+    static Probe current() {
+        return _current.get();
+    }
+
+    void connected(long nanos) {
+        _phases[Metrics.Phase.connect.ordinal()] += nanos;
+    }
+
+    /**
+     * Function to add the time to prepare a statement to the current
+     * operation
+     */
+    static void prepared(String sql, long nanos) {
+        Probe p = _current.get();
+        if ( p != null ) {
+            p._phases[Metrics.Phase.prepare.ordinal()] += nanos;
+            if ( p._sql == null ) {
+                p._sql = sql;
+            }
+            else {
+                p._bindsOpen = false;
+            }
+        }
+    }
+
+    /**
+     * Function to add the time to execute a statement to the current
+     * operation
+     */
+    static void executed(String sql, long nanos) {
+        Probe p = _current.get();
+        if ( p != null ) {
+            p._phases[Metrics.Phase.execute.ordinal()] += nanos;
+            if ( p._sql == null ) {
+                p._sql = sql;
+            }
+            p._bindsOpen = false;
+            p._statements++;
+        }
+    }
+
+    /**
+     * Function to keep a parameter bound to the first statement of the
+     * current operation, if it has a SlowQueryLog. Binding an index again
+     * means the next row of a batch, which is not kept.
+     * @param type SQL type of null values, Types.OTHER if set as an object
+     */
+    static void bound(int idx, String column, Object v, int type) {
+        Probe p = _current.get();
+        if ( p == null || !p._bindsOpen ) {
+            return;
+        }
+        ArrayList<SlowQueryLog.Bind> binds = p._binds;
+        if ( idx <= binds.size() && binds.get(idx - 1) != null ) {
+            p._bindsOpen = false;
+            return;
+        }
+        if ( idx > SlowQueryLog.MAX_PARAMETERS ) {
+            p._bindsOpen = false;
+            p._binds = null;
+            return;
+        }
+        while ( binds.size() < idx ) {
+            binds.add(null);
+        }
+        binds.set(idx - 1, new SlowQueryLog.Bind(column, v, type));
+    }
+
+    /**
+     * Function to set the error category of the current operation
+     */
+    static void failed(String category) {
+        Probe p = _current.get();
+        if ( p != null && p._error == null ) {
+            p._error = category;
+        }
+    }
+
+    void rows(int n) {
+        _rows = n;
+    }
+
+    void batch(int n) {
+        _batch = n;
+    }
+
+    String getSql() {
+        return _sql;
+    }
+
+    long getElapsed() {
+        return System.nanoTime() - _start;
+    }
+
+    /**
+     * Function to end the operation and report it
+     */
+    void end() {
+        if ( _prev == null ) {
+            _current.remove();
+        }
+        else {
+            _current.set(_prev);
+        }
+        long total = System.nanoTime() - _start;
+        long map = total;
+        for (int i=0; i < 3; i++) {
+            map -= _phases[i];
+        }
+        _phases[Metrics.Phase.map.ordinal()] = Math.max(0, map);
+        try {
+            _metrics.record(_op, _bean, _sql, _phases, _rows, _batch, _error);
+            if ( _slowLog != null && _slowLog.isSlow(total) ) {
+                _slowLog.report(_mgr, _op, _bean, _sql, _binds, _phases,
+                    total, _rows, _batch, _error);
+            }
+            TransactionProfiler.Profile profile = 
+                TransactionContext.getProfile();
+            if ( profile != null ) {
+                profile.record(_op, _bean, _sql, _statements, _rows);
+            }
+        }
+        catch (RuntimeException e) { // Metrics must not fail operations
+            e.printStackTrace();
+        }
+    }
+}
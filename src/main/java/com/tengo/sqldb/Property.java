@@ -27,12 +27,22 @@ public class Property {
     public enum PropertyType { Unknown, Primitive, Bean, List, Nested};
     private PropertyType _type = PropertyType.Unknown;
     private PropertyDescriptor _desc=null;
+    private Mapper _mapper = null; // Generated mapper if any
+    private int _index = -1;       // Index of property in mapper
     private BeanMap _map = null;
+    private String _name = null;
     private String _colName = null;
-    private Column _colAnn = null;
-    private OneToMany _oneToManyAnn = null;
-    private Enumerated _enum = null;
     private boolean _isId = false;
+    private boolean _isVersion = false;
+    private boolean _isWatermark = false;
+    private boolean _insertable = true;
+    private boolean _updateble = true;
+    private boolean _selectable = true;
+    private boolean _lazy = false;
+    private boolean _enumString = false;
+    private String _mappedBy[] = null;
+    private boolean _lazyList = false;
+    private int _batchSize = 1;
     private Class _class=null;
 
     private static class SQLMap {
@@ -66,7 +76,9 @@ public class Property {
         new SQLMap(java.sql.Date.class, Types.DATE),
         new SQLMap(java.sql.Time.class, Types.TIME),
         new SQLMap(java.sql.Timestamp.class, Types.TIMESTAMP),
-        new SQLMap(String.class, Types.VARCHAR)
+        new SQLMap(String.class, Types.VARCHAR),
+        new SQLMap(byte[].class, Types.VARBINARY),
+        new SQLMap(LargeObject.class, Types.LONGVARBINARY)
     };
 
     protected static Object getEnum(Class cl, int ordinal) {
@@ -118,10 +130,32 @@ public class Property {
      * I.E. on a get/set method
      */    
      private void initAnnotations() {
-        _colAnn = getAnnotation(Column.class);
-        _oneToManyAnn = getAnnotation(OneToMany.class);
+        Column colAnn = getAnnotation(Column.class);
+        OneToMany oneToManyAnn = getAnnotation(OneToMany.class);
+        Enumerated enumAnn = getAnnotation(Enumerated.class);
         _isId = (getAnnotation(Id.class) != null);
-        _enum =getAnnotation(Enumerated.class);
+        _isVersion = (getAnnotation(Version.class) != null);
+        _isWatermark = (getAnnotation(Watermark.class) != null);
+        // Check to see if column annotation exists if, so use that name
+        if ( colAnn != null && !colAnn.name().equals("") ) {
+            _colName = colAnn.name();
+        }
+        else {
+            _colName = _name.toLowerCase();
+        }
+        if ( colAnn != null ) {
+            _insertable = colAnn.insertable();
+            _updateble = colAnn.updateble();
+            _selectable = colAnn.selectable();
+            _lazy = colAnn.lazy();
+        }
+        if ( oneToManyAnn != null ) {
+            _mappedBy = oneToManyAnn.mappedBy();
+            _lazyList = oneToManyAnn.lazy();
+            _batchSize = oneToManyAnn.batchSize();
+        }
+        _enumString = (enumAnn != null 
+            && enumAnn.value() == Enumerated.EnumType.STRING);
     }
 
     protected Property(PropertyType t) {
@@ -137,20 +171,68 @@ public class Property {
     public Property(PropertyDescriptor p, Type enclosing) throws DBException {
         Method getter = p.getReadMethod();
         _desc = p;
+        _name = p.getName();
         initAnnotations();
         initType(getter.getGenericReturnType(), enclosing);
-        if ( _oneToManyAnn != null && _type != PropertyType.List) {
-            // OneToMany needs to return a list.
-            throw new DBException("Invalid OneToMany annotation on "
-                + getter.getDeclaringClass().getName()
-                + ":" + _desc.getName() + ". Property needs to be a list type");
+        validate(getter.getDeclaringClass());
+    }
+
+    /**
+     * Constructor
+     * Create a property from a mapper generated at compile time. Uses the
+     * generated accessors instead of reflection
+     * @params m generated mapper
+     * @params idx index of the property in the mapper
+     * @throws DBException if property type is not supported
+     */
+    Property(Mapper m, int idx) throws DBException {
+        _mapper = m;
+        _index = idx;
+        _name = m.getNames()[idx];
+        _colName = m.getColumns()[idx];
+        int flags = m.getFlags()[idx];
+        _isId = ((flags & Mapper.ID) != 0);
+        _isVersion = ((flags & Mapper.VERSION) != 0);
+        _isWatermark = ((flags & Mapper.WATERMARK) != 0);
+        _insertable = ((flags & Mapper.INSERTABLE) != 0);
+        _updateble = ((flags & Mapper.UPDATEBLE) != 0);
+        _selectable = ((flags & Mapper.SELECTABLE) != 0);
+        _lazy = ((flags & Mapper.LAZY) != 0);
+        _enumString = ((flags & Mapper.ENUM_STRING) != 0);
+        _lazyList = ((flags & Mapper.LAZY_LIST) != 0);
+        _mappedBy = m.getMappedBy()[idx];
+        _batchSize = m.getBatchSizes()[idx];
+        Class c = m.getTypes()[idx];
+        Class e = m.getElementTypes()[idx];
+        if ( isPrimitive(c) ) {
+            _type = PropertyType.Primitive;
         }
-        // Check to see if column annotation exists if, so use that name
-        if ( _colAnn != null && !_colAnn.equals("") ) {
-            _colName = _colAnn.name();
+        else if ( e != null ) {
+            _type = PropertyType.List;
+            _map = BeanMap.get(e);
         }
         else {
-            _colName = p.getName().toLowerCase();
+            _type = PropertyType.Bean;
+            _map = BeanMap.get(c);
+        }
+        _class = c;
+        validate(m.getBeanClass());
+    }
+
+    /**
+     * Internal function to validate list annotations
+     */
+    private void validate(Class c) throws DBException {
+        if ( _mappedBy != null && _type != PropertyType.List) {
+            // OneToMany needs to return a list.
+            throw new DBException("Invalid OneToMany annotation on "
+                + c.getName() + ":" + _name 
+                + ". Property needs to be a list type");
+        }
+        if ( _lazyList && !_class.isAssignableFrom(LazyList.class) ) {
+            throw new DBException("Invalid lazy OneToMany annotation on "
+                + c.getName() + ":" + _name + ". Property needs to be a List "
+                + "or ArrayList");
         }
     }
 
@@ -216,6 +298,9 @@ public class Property {
      */
     public Object getValue(Object o) throws DBException {
         try {
+            if ( _mapper != null ) {
+                return _mapper.getValue(o, _index);
+            }
             return _desc.getReadMethod().invoke(o);
         }
         catch (Exception e) {
@@ -229,12 +314,18 @@ public class Property {
      */
     public void setValue(Object o, Object v) throws DBException {
         try {
-            _desc.getWriteMethod().invoke(o, v);
+            if ( _mapper != null ) {
+                _mapper.setValue(o, _index, v);
+            }
+            else {
+                _desc.getWriteMethod().invoke(o, v);
+            }
         }
         catch (Exception e) {
             System.out.println(o.getClass().getName() 
                 + "." + getName() + " type: " + _class.getName()
-                + " value type: " + v.getClass().getName());
+                + " value type: " 
+                + (v == null ? "null" : v.getClass().getName()));
             throw new DBException(e);
         }
     }
@@ -250,33 +341,60 @@ public class Property {
      */
     public void setValue(Object obj, PreparedStatement stmt, int idx) 
                 throws DBException, SQLException {
-        Object v = getValue(obj);
+        setParameter(stmt, idx, getValue(obj));
+    }
+    /**
+     * Method to set a value of this property type into the prepared 
+     * statement
+     * @param stmt SQL statement to insert value into
+     * @param idx the index of argument to set value to
+     * @param v the value to set
+     * @throws DBexception if property is not primitive or cannot be mapped
+     *  to a SQL type.
+     * @throws SQLException on any SQL errors
+     */
+    public void setParameter(PreparedStatement stmt, int idx, Object v) 
+                throws DBException, SQLException {
         if ( v == null) {
             int t;
-            if ( (t = getSqlType(_desc.getPropertyType())) != -1 ) {
+            if ( _class.isEnum() ) {
+                t = _enumString ? Types.VARCHAR : Types.INTEGER;
                 stmt.setNull(idx, t);
+                Probe.bound(idx, _colName, null, t);
+            }
+            else if ( (t = getSqlType(_class)) != -1 ) {
+                stmt.setNull(idx, t);
+                Probe.bound(idx, _colName, null, t);
             }
             else {
-                System.out.println(v.getClass().getName() 
+                System.out.println(_class.getName() 
                     + " cannot be mapped to sql type");
-                throw new DBException(v.getClass().getName() 
+                throw new DBException(_class.getName() 
                     + " cannot be mapped to sql type");
             }
         }
         else if ( _class == java.util.Date.class ||
                 _class == java.sql.Date.class) {
             stmt.setObject(idx, v, Types.DATE);
+            Probe.bound(idx, _colName, v, Types.DATE);
+        }
+        else if ( v instanceof LargeObject ) {
+            ((LargeObject)v).setParameter(stmt, idx);
+            Probe.bound(idx, _colName, v, Types.OTHER);
         }
         else if ( _class.isEnum() && v instanceof Enum) {
-            if ( _enum == null || _enum.value()==Enumerated.EnumType.ORDINAL) {
+            if ( !_enumString ) {
                 stmt.setInt(idx, ((Enum)v).ordinal());
+                Probe.bound(idx, _colName, ((Enum)v).ordinal(), Types.OTHER);
             }
             else {
                 stmt.setObject(idx, v.toString());
+                Probe.bound(idx, _colName, v.toString(), Types.OTHER);
             }
         }
         else {
             stmt.setObject(idx, v);
+            Probe.bound(idx, _colName, v, Types.OTHER);
         }
     }
     /**
@@ -289,17 +407,38 @@ public class Property {
      */
     public Object getValue(ResultSet res, int idx) 
                 throws DBException, SQLException {
+        return decode(getRaw(res, idx));
+    }
+    /**
+     * package private function to read the column value of this property
+     * without converting it. Large objects are read as they are not valid
+     * after the result set moves to the next row.
+     */
+    Object getRaw(ResultSet res, int idx) throws SQLException {
         Object ret = res.getObject(idx);
-        if ( _class.isEnum() ) {
-            if ( _enum == null || _enum.value()==Enumerated.EnumType.ORDINAL) {
-                return getEnum(_class, ((Integer)ret).intValue());
-            }
-            else {
-                return Enum.valueOf(_class, (String)ret);
-            }
+        if ( ret instanceof java.sql.Clob && _class == String.class ) {
+            java.sql.Clob c = (java.sql.Clob)ret;
+            return c.getSubString(1, (int)c.length());
+        }
+        else if ( ret instanceof java.sql.Blob && _class == byte[].class ) {
+            java.sql.Blob b = (java.sql.Blob)ret;
+            return b.getBytes(1, (int)b.length());
+        }
+        return ret;
+    }
+    /**
+     * package private function to convert a value read by getRaw to the
+     * property class
+     */
+    Object decode(Object raw) {
+        if ( raw == null || !_class.isEnum() ) {
+            return raw;
+        }
+        if ( !_enumString ) {
+            return getEnum(_class, ((Number)raw).intValue());
         }
         else {
-            return ret;
+            return Enum.valueOf(_class, (String)raw);
         }
     }
     /**
@@ -339,27 +478,42 @@ public class Property {
      * Function to return the property name
      * @return property name
      */
-    public String getName() { return _desc.getName(); }
+    public String getName() { return _name; }
+
+    /**
+     * Function to return the java class of this property
+     * @return the property class
+     */
+    public Class getPropertyClass() { return _class; }
     /**
      * Function to check and see if this property is used during an insert
      * @return true if property is used during insert, false otherwise.
      */
     public boolean isInsertable() { 
-        return (_colAnn == null || _colAnn.insertable());
+        return _insertable;
     }
     /**
      * Function to check and see if this property is used during an update
      * @return true if property is used during update, false otherwise.
      */
     public boolean isUpdateble() { 
-        return (_colAnn == null || _colAnn.updateble());
+        return _updateble;
     }
     /**
      * Function to check and see if this property is used during a select
      * @return true if property is used during select, false otherwise.
      */
     public boolean isSelectable() { 
-        return (_colAnn == null || _colAnn.selectable());
+        return _selectable;
+    }
+    /**
+     * Function to check and see if this property is loaded only on demand.
+     * LargeObject properties are always lazy.
+     * @return true if property is not read during a select, false otherwise.
+     */
+    public boolean isLazy() { 
+        return (_type == PropertyType.Primitive 
+            && (_class == LargeObject.class || _lazy));
     }
     /**
      * Function to check and see if this property is an Id.
@@ -368,6 +522,26 @@ public class Property {
     public boolean isId() {
         return _isId;
     }
+    /**
+     * Function to check and see if this property is the Version of the bean
+     */
+    public boolean isVersion() {
+        return _isVersion;
+    }
+    /**
+     * Function to check and see if this property is the Watermark of the
+     * bean
+     */
+    public boolean isWatermark() {
+        return _isWatermark;
+    }
+    /**
+     * package private function to check if an enum is stored by name
+     */
+    boolean isEnumString() {
+        return _enumString;
+    }
+
     /**
      * Function to check and see if this property is primitive
      * @return true if true else false
@@ -401,6 +575,22 @@ public class Property {
     }
 
     public String[] getMappedBy() {
-        return (_oneToManyAnn == null) ? null : _oneToManyAnn.mappedBy();
+        return _mappedBy;
+    }
+
+    /**
+     * Function to check and see if this property is a lazy loaded list
+     * @return true if lazy list else false
+     */
+    public boolean isLazyList() {
+        return _lazyList;
+    }
+
+    /**
+     * Function to return max number of lazy lists loaded in one query
+     * @return the batch size
+     */
+    public int getBatchSize() {
+        return _batchSize;
     }
 }
@@ -0,0 +1,171 @@
+/*
+ * Query result of row views
+ *
+ * @author Prasad Mokkapati  prasadm80@gmail.com
+ */
+package com.tengo.sqldb;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Rows of a query kept as the column values read from the driver. A value
+ * is converted to its property (enum lookup) only when it is read from a
+ * Row, and no bean is created unless Row.toBean is called, so listing a
+ * few properties of wide beans does not pay for the others.
+ * Values are read by property name or by the index of the property from
+ * getIndex, which is the same for all rows:
+ * <pre>
+ *   Rows&lt;Account&gt; rows = mgr.selectRows(Account.class, query);
+ *   int name = rows.getIndex("name");
+ *   for (Rows.Row&lt;Account&gt; r: rows) {
+ *       print(r.getString(name));
+ *   }
+ * </pre>
+ * Only the primitive properties of the bean are available, lists are not
+ * loaded. Properties not selected by the query read as null.
+ */
+public class Rows<T> extends AbstractList<Rows.Row<T>> {
+    /**
+     * View of a row
+     */
+    public static final class Row<T> {
+        private final Rows<T> _rows;
+        private final int _base;
+
+        private Row(Rows<T> rows, int row) {
+            _rows = rows;
+            _base = row * rows._width;
+        }
+
+        /**
+         * Function to return the value of a property
+         * @param idx index of the property from Rows.getIndex
+         */
+        public Object get(int idx) {
+            return _rows._props.get(idx).decode(_rows._values[_base + idx]);
+        }
+
+        /**
+         * Function to return the value of a property by column name
+         * @throws DBException if the bean has no such property
+         */
+        public Object get(String colName) throws DBException {
+            int idx = _rows.getIndex(colName);
+            if ( idx < 0 ) {
+                throw new DBException("No property of column '" + colName
+                    + "' in " + _rows._map.getClassName());
+            }
+            return get(idx);
+        }
+
+        public boolean isNull(int idx) {
+            return _rows._values[_base + idx] == null;
+        }
+
+        /**
+         * Functions to return numeric values, 0 if null
+         */
+        public long getLong(int idx) {
+            Object v = _rows._values[_base + idx];
+            return (v == null) ? 0 : ((Number)v).longValue();
+        }
+
+        public int getInt(int idx) {
+            Object v = _rows._values[_base + idx];
+            return (v == null) ? 0 : ((Number)v).intValue();
+        }
+
+        public double getDouble(int idx) {
+            Object v = _rows._values[_base + idx];
+            return (v == null) ? 0 : ((Number)v).doubleValue();
+        }
+
+        public String getString(int idx) {
+            Object v = get(idx);
+            return (v == null) ? null : v.toString();
+        }
+
+        /**
+         * Function to create the bean of this row with all the properties
+         * selected
+         */
+        @SuppressWarnings(value="unchecked")
+        public T toBean() throws DBException {
+            Object o = _rows._map.newInstance();
+            int ids[] = _rows._ids;
+            for (int i=0; i < ids.length; i++) {
+                if ( ids[i] != 0 ) {
+                    _rows._props.get(i).setValue(o, get(i));
+                }
+            }
+            return (T)o;
+        }
+    }
+
+    private final BeanMap _map;
+    private final ArrayList<Property> _props;
+    private final int _ids[];
+    private final int _width;
+    private Object _values[];
+    private int _size = 0;
+
+    private Rows(BeanMap map, int ids[]) {
+        _map = map;
+        _props = map.getPrimitives();
+        _ids = (ids == null) ? new int[0] : ids;
+        _width = _ids.length;
+    }
+
+    /**
+     * package private function to read the rows of a result
+     */
+    static <T> Rows<T> read(BeanMap map, ResultSet res)
+            throws SQLException, DBException {
+        Rows<T> ret = new Rows<T>(map, new ColMap(null, map, res)
+            .getColumnIds());
+        int width = ret._width;
+        Object values[] = new Object[Math.max(width, 1) * 16];
+        int n = 0;
+        while ( res.next() ) {
+            if ( n + width > values.length ) {
+                values = Arrays.copyOf(values, values.length * 2);
+            }
+            for (int i=0; i < width; i++) {
+                int id = ret._ids[i];
+                values[n + i] = (id == 0) ? null
+                    : ret._props.get(i).getRaw(res, id);
+            }
+            n += width;
+            ret._size++;
+        }
+        ret._values = Arrays.copyOf(values, n);
+        return ret;
+    }
+
+    /**
+     * Function to return the index of a property to read from rows
+     * @param colName column name of the property, lower case
+     * @return the index or -1 if the bean has no such property
+     */
+    public int getIndex(String colName) {
+        return _map.getIndex(colName);
+    }
+
+    @Override
+    public Row<T> get(int row) {
+        if ( row < 0 || row >= _size ) {
+            throw new IndexOutOfBoundsException("Row " + row + " of "
+                + _size);
+        }
+        return new Row<T>(this, row);
+    }
+
+    @Override
+    public int size() {
+        return _size;
+    }
+}
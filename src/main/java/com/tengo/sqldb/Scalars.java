@@ -0,0 +1,208 @@
+/*
+ * Readers of single column query results
+ *
+ * @author Prasad Mokkapati  prasadm80@gmail.com
+ */
+package com.tengo.sqldb;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Reads the first column of each row of a scalar select. The numeric
+ * readers fill growable primitive arrays with getLong, getInt and
+ * getDouble, so no values are boxed. Nulls are stored as the null value
+ * of the reader.
+ */
+abstract class Scalars {
+    private static final int INITIAL = 64;
+
+    /**
+     * Function to read the current row
+     * @return false to stop reading rows
+     */
+    abstract boolean row(ResultSet res) throws SQLException, DBException;
+
+    static final class Longs extends Scalars {
+        private final long _null;
+        private long _values[] = new long[INITIAL];
+        private int _size = 0;
+
+        Longs(long nullValue) {
+            _null = nullValue;
+        }
+
+        boolean row(ResultSet res) throws SQLException {
+            long v = res.getLong(1);
+            if ( _size == _values.length ) {
+                _values = Arrays.copyOf(_values, _size * 2);
+            }
+            _values[_size++] = res.wasNull() ? _null : v;
+            return true;
+        }
+
+        long[] toArray() {
+            return (_size == _values.length) ? _values
+                : Arrays.copyOf(_values, _size);
+        }
+    }
+
+    static final class Ints extends Scalars {
+        private final int _null;
+        private int _values[] = new int[INITIAL];
+        private int _size = 0;
+
+        Ints(int nullValue) {
+            _null = nullValue;
+        }
+
+        boolean row(ResultSet res) throws SQLException {
+            int v = res.getInt(1);
+            if ( _size == _values.length ) {
+                _values = Arrays.copyOf(_values, _size * 2);
+            }
+            _values[_size++] = res.wasNull() ? _null : v;
+            return true;
+        }
+
+        int[] toArray() {
+            return (_size == _values.length) ? _values
+                : Arrays.copyOf(_values, _size);
+        }
+    }
+
+    static final class Doubles extends Scalars {
+        private final double _null;
+        private double _values[] = new double[INITIAL];
+        private int _size = 0;
+
+        Doubles(double nullValue) {
+            _null = nullValue;
+        }
+
+        boolean row(ResultSet res) throws SQLException {
+            double v = res.getDouble(1);
+            if ( _size == _values.length ) {
+                _values = Arrays.copyOf(_values, _size * 2);
+            }
+            _values[_size++] = res.wasNull() ? _null : v;
+            return true;
+        }
+
+        double[] toArray() {
+            return (_size == _values.length) ? _values
+                : Arrays.copyOf(_values, _size);
+        }
+    }
+
+    static final class Strings extends Scalars {
+        private final ArrayList<String> _values = new ArrayList<String>();
+
+        boolean row(ResultSet res) throws SQLException {
+            _values.add(res.getString(1));
+            return true;
+        }
+
+        ArrayList<String> getValues() {
+            return _values;
+        }
+    }
+
+    /**
+     * Readers that pass the values to handlers
+     */
+    static Scalars of(final ValueHandler.Longs h) {
+        return new Scalars() {
+            boolean row(ResultSet res) throws SQLException, DBException {
+                long v = res.getLong(1);
+                return h.value(v, res.wasNull());
+            }
+        };
+    }
+
+    static Scalars of(final ValueHandler.Ints h) {
+        return new Scalars() {
+            boolean row(ResultSet res) throws SQLException, DBException {
+                int v = res.getInt(1);
+                return h.value(v, res.wasNull());
+            }
+        };
+    }
+
+    static Scalars of(final ValueHandler.Doubles h) {
+        return new Scalars() {
+            boolean row(ResultSet res) throws SQLException, DBException {
+                double v = res.getDouble(1);
+                return h.value(v, res.wasNull());
+            }
+        };
+    }
+
+    static Scalars of(final ValueHandler.Strings h) {
+        return new Scalars() {
+            boolean row(ResultSet res) throws SQLException, DBException {
+                return h.value(res.getString(1));
+            }
+        };
+    }
+
+    /**
+     * Function to check if a class is read as a single column value
+     * instead of a bean
+     */
+    static boolean isScalar(Class<?> c) {
+        return c.isPrimitive() || Number.class.isAssignableFrom(c)
+            || c == String.class || c == Boolean.class
+            || java.util.Date.class.isAssignableFrom(c);
+    }
+
+    /**
+     * Function to read the first column as a value of a scalar class.
+     * Primitive classes are read with getObject, as before, boxed classes
+     * with the getter of their type so e.g. an int column can be read as
+     * a Long
+     */
+    static Object get(ResultSet res, Class<?> c) throws SQLException {
+        Object v;
+        if ( c.isPrimitive() ) {
+            return res.getObject(1);
+        }
+        else if ( c == Long.class ) {
+            v = Long.valueOf(res.getLong(1));
+        }
+        else if ( c == Integer.class ) {
+            v = Integer.valueOf(res.getInt(1));
+        }
+        else if ( c == Double.class ) {
+            v = Double.valueOf(res.getDouble(1));
+        }
+        else if ( c == Float.class ) {
+            v = Float.valueOf(res.getFloat(1));
+        }
+        else if ( c == Short.class ) {
+            v = Short.valueOf(res.getShort(1));
+        }
+        else if ( c == Byte.class ) {
+            v = Byte.valueOf(res.getByte(1));
+        }
+        else if ( c == Boolean.class ) {
+            v = Boolean.valueOf(res.getBoolean(1));
+        }
+        else if ( c == java.math.BigDecimal.class ) {
+            v = res.getBigDecimal(1);
+        }
+        else if ( c == String.class ) {
+            v = res.getString(1);
+        }
+        else if ( java.util.Date.class.isAssignableFrom(c) ) {
+            v = (c == java.sql.Date.class) ? res.getDate(1)
+                : res.getTimestamp(1);
+        }
+        else {
+            v = res.getObject(1);
+        }
+        return res.wasNull() ? null : v;
+    }
+}
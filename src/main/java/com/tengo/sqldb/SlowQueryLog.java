@@ -0,0 +1,408 @@
+/*
+ * Log of slow database operations
+ *
+ * @author Prasad Mokkapati  prasadm80@gmail.com
+ */
+package com.tengo.sqldb;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Logs one record for each DBManager operation that takes longer than a
+ * threshold. The record has the first statement of the operation, its
+ * fingerprint, bind parameters, rows mapped, the time spent in each phase
+ * and the bean class. Optionally the plan of slow queries is captured by
+ * running the EXPLAIN of the dialect on a separate connection, at most
+ * once per fingerprint in the explain interval. Explains run on a daemon
+ * thread, records of explained queries are logged when the plan is read.
+ * Bind a SlowQueryLog with Guice, or call DBManager.setSlowQueryLog, to
+ * turn it on. Records are printed to System.out, override log to send
+ * them somewhere else.
+ */
+public class SlowQueryLog {
+    // Limits on memory used by explain times and parameters
+    private static final int MAX_FINGERPRINTS = 10000;
+    static final int MAX_PARAMETERS = 200;
+    private static final int MAX_VALUE = 100;
+    private static final String REDACTED = "<redacted>";
+
+    /**
+     * Parameter bound to a statement
+     */
+    static final class Bind {
+        final String _column;
+        final Object _value;
+        final int _type;
+
+        Bind(String column, Object value, int type) {
+            _column = column;
+            _value = value;
+            _type = type;
+        }
+    }
+
+    /**
+     * Record of a slow operation
+     */
+    public static class Record {
+        private final Metrics.Operation _op;
+        private final Class<?> _bean;
+        private final String _sql;
+        private final String _fingerprint;
+        private final List<String> _parameters;
+        private final long _phases[];
+        private final long _elapsed;
+        private final int _rows;
+        private final int _batch;
+        private final String _error;
+        private String _plan = null;
+
+        Record(Metrics.Operation op, Class<?> bean, String sql,
+                String fingerprint, List<String> parameters, long phases[],
+                long elapsed, int rows, int batch, String error) {
+            _op = op;
+            _bean = bean;
+            _sql = sql;
+            _fingerprint = fingerprint;
+            _parameters = parameters;
+            _phases = phases;
+            _elapsed = elapsed;
+            _rows = rows;
+            _batch = batch;
+            _error = error;
+        }
+
+        public Metrics.Operation getOperation() { return _op; }
+        public Class<?> getBean() { return _bean; }
+        // Statement, the fingerprint if all parameters are redacted
+        public String getSql() { return _sql; }
+        public String getFingerprint() { return _fingerprint; }
+        public List<String> getParameters() { return _parameters; }
+        public long getPhase(Metrics.Phase p) { return _phases[p.ordinal()]; }
+        public long getElapsed() { return _elapsed; }
+        public int getRows() { return _rows; }
+        public int getBatch() { return _batch; }
+        public String getError() { return _error; }
+        // Plan from EXPLAIN, null if not explained
+        public String getPlan() { return _plan; }
+
+        /**
+         * Function to format the record as a single line of name=value
+         * pairs
+         */
+        public String toString() {
+            StringBuilder s = new StringBuilder("sqldb slow operation");
+            s.append(" elapsed_ms=").append(millis(_elapsed));
+            s.append(" op=").append(_op);
+            s.append(" bean=").append(_bean == null ? "-" : _bean.getName());
+            s.append(" rows=").append(_rows);
+            if ( _batch > 0 ) {
+                s.append(" batch=").append(_batch);
+            }
+            for (Metrics.Phase p: Metrics.Phase.values()) {
+                s.append(' ').append(p).append("_ms=")
+                    .append(millis(_phases[p.ordinal()]));
+            }
+            if ( _error != null ) {
+                s.append(" error=").append(_error);
+            }
+            s.append(" fingerprint=").append(quote(_fingerprint));
+            s.append(" sql=").append(quote(_sql));
+            s.append(" params=").append(quote(_parameters.toString()));
+            if ( _plan != null ) {
+                s.append(" plan=").append(quote(_plan));
+            }
+            return s.toString();
+        }
+
+        private static String millis(long nanos) {
+            return Double.toString(Math.round(nanos / 1000.0) / 1000.0);
+        }
+
+        private static String quote(String s) {
+            if ( s == null ) {
+                return "-";
+            }
+            return "\"" + s.replace("\\", "\\\\").replace("\"", "\\\"")
+                .replace("\n", "\\n").replace("\r", "") + "\"";
+        }
+    }
+
+    private final long _threshold;
+    private volatile boolean _explain = false;
+    private volatile long _explainInterval = 60000;
+    private volatile boolean _redactAll = false;
+    private volatile Set<String> _redacted = Collections.emptySet();
+    private final ConcurrentHashMap<String, Long> _explained =
+            new ConcurrentHashMap<String, Long>();
+    private final AtomicLong _logged = new AtomicLong();
+    private final AtomicLong _explains = new AtomicLong();
+    private ThreadPoolExecutor _executor = null;
+
+    /**
+     * @param thresholdMillis operations taking this long or longer are
+     *  logged
+     */
+    public SlowQueryLog(long thresholdMillis) {
+        _threshold = TimeUnit.MILLISECONDS.toNanos(thresholdMillis);
+    }
+
+    public long getThreshold() {
+        return TimeUnit.NANOSECONDS.toMillis(_threshold);
+    }
+
+    /**
+     * Function to turn capturing plans of slow queries on or off. Off by
+     * default
+     */
+    public SlowQueryLog setExplain(boolean explain) {
+        _explain = explain;
+        return this;
+    }
+
+    /**
+     * Function to set the minimum time between explains of statements
+     * with the same fingerprint. Default is a minute
+     */
+    public SlowQueryLog setExplainInterval(long millis) {
+        _explainInterval = millis;
+        return this;
+    }
+
+    /**
+     * Function to set the columns whose parameter values are not logged
+     * @param columns column names, case insensitive
+     */
+    public SlowQueryLog setRedacted(String ... columns) {
+        HashSet<String> s = new HashSet<String>();
+        for (String c: columns) {
+            s.add(c.toLowerCase());
+        }
+        _redacted = s;
+        return this;
+    }
+
+    /**
+     * Function to redact all parameters. Statements are logged as their
+     * fingerprint so literals are not logged either
+     */
+    public SlowQueryLog setRedactAll(boolean redact) {
+        _redactAll = redact;
+        return this;
+    }
+
+    /**
+     * Function to return the number of records logged
+     */
+    public long getLogged() {
+        return _logged.get();
+    }
+
+    /**
+     * Function to return the number of statements explained
+     */
+    public long getExplains() {
+        return _explains.get();
+    }
+
+    /**
+     * Function to write a record. Called on the thread of the operation,
+     * or the explain thread if the statement is explained
+     */
+    protected void log(Record r) {
+        System.out.println(r);
+    }
+
+    boolean isSlow(long nanos) {
+        return nanos >= _threshold;
+    }
+
+    /**
+     * Package private function called by Probe when an operation ended
+     * after the threshold
+     * @param binds parameters of the statement, null if not captured or
+     *  more than MAX_PARAMETERS
+     */
+    void report(DBManager mgr, Metrics.Operation op, Class<?> bean,
+            String sql, List<Bind> binds, long phases[], long elapsed,
+            int rows, int batch, String error) {
+        String fp = (sql == null) ? null : MemoryMetrics.normalize(sql);
+        ArrayList<String> params = new ArrayList<String>();
+        if ( binds != null ) {
+            Set<String> redacted = _redacted;
+            for (Bind b: binds) {
+                if ( b == null ) {
+                    params.add("-");
+                }
+                else if ( _redactAll || (b._column != null
+                        && redacted.contains(b._column.toLowerCase())) ) {
+                    params.add(REDACTED);
+                }
+                else {
+                    params.add(format(b._value));
+                }
+            }
+        }
+        final Record r = new Record(op, bean, _redactAll ? fp : sql, fp,
+            params, phases.clone(), elapsed, rows, batch, error);
+        _logged.incrementAndGet();
+        if ( error == null && _explain && isExplainable(sql, binds)
+                && acquire(fp) ) {
+            final DBManager m = mgr;
+            final String s = sql;
+            final List<Bind> b = binds;
+            try {
+                getExecutor().execute(new Runnable() {
+                    public void run() {
+                        r._plan = explain(m, s, b);
+                        log(r);
+                    }
+                });
+                return;
+            }
+            catch (RejectedExecutionException e) { // Too many queued
+                _explained.remove(fp);
+            }
+        }
+        log(r);
+    }
+
+    /**
+     * Internal function to check if a statement can be explained. Only
+     * queries are, with all parameters captured and no large objects
+     */
+    private static boolean isExplainable(String sql, List<Bind> binds) {
+        if ( sql == null || binds == null ) {
+            return false;
+        }
+        String s = sql.trim().toLowerCase();
+        if ( !s.startsWith("select") && !s.startsWith("with") ) {
+            return false;
+        }
+        for (Bind b: binds) {
+            if ( b == null || b._value instanceof LargeObject ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Internal function to rate limit explains of a fingerprint
+     */
+    private boolean acquire(String fp) {
+        long now = System.currentTimeMillis();
+        Long last = _explained.get(fp);
+        if ( last != null && now - last < _explainInterval ) {
+            return false;
+        }
+        if ( _explained.size() >= MAX_FINGERPRINTS ) {
+            _explained.clear();
+            last = null;
+        }
+        return (last == null) ? _explained.putIfAbsent(fp, now) == null
+            : _explained.replace(fp, last, now);
+    }
+
+    private synchronized ThreadPoolExecutor getExecutor() {
+        if ( _executor == null ) {
+            _executor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(100), new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "sqldb-explain");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+            _executor.allowCoreThreadTimeOut(true);
+        }
+        return _executor;
+    }
+
+    /**
+     * Internal function to run the EXPLAIN of a statement on a new
+     * connection
+     * @return the plan, rows separated by new lines, or the error
+     */
+    private String explain(DBManager mgr, String sql, List<Bind> binds) {
+        Connection conn = null;
+        PreparedStatement stmt = null;
+        try {
+            conn = mgr.newConnection();
+            stmt = conn.prepareStatement(mgr.getDialect().explain(sql));
+            int idx = 0;
+            for (Bind b: binds) {
+                ++idx;
+                if ( b._value == null ) {
+                    stmt.setNull(idx, b._type);
+                }
+                else if ( b._type == Types.OTHER ) {
+                    stmt.setObject(idx, b._value);
+                }
+                else {
+                    stmt.setObject(idx, b._value, b._type);
+                }
+            }
+            ResultSet res = stmt.executeQuery();
+            ResultSetMetaData md = res.getMetaData();
+            StringBuilder s = new StringBuilder();
+            while ( res.next() ) {
+                if ( s.length() > 0 ) {
+                    s.append('\n');
+                }
+                for (int i=1; i <= md.getColumnCount(); i++) {
+                    if ( i > 1 ) {
+                        s.append(" | ");
+                    }
+                    s.append(res.getString(i));
+                }
+            }
+            res.close();
+            _explains.incrementAndGet();
+            return s.toString();
+        }
+        catch (Exception e) {
+            return "explain failed: " + e.getMessage();
+        }
+        finally {
+            try {
+                if ( stmt != null ) {
+                    stmt.close();
+                }
+                if ( conn != null ) {
+                    conn.close();
+                }
+            }
+            catch (SQLException e) {
+            }
+        }
+    }
+
+    private static String format(Object v) {
+        if ( v == null ) {
+            return "null";
+        }
+        if ( v instanceof LargeObject ) {
+            return "<lob>";
+        }
+        String s = String.valueOf(v);
+        return (s.length() > MAX_VALUE) ? s.substring(0, MAX_VALUE) + "..." : s;
+    }
+}
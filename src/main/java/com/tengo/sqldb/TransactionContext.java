@@ -0,0 +1,779 @@
+/*
+ * Transaction state that can be passed between threads
+ *
+ * @author Prasad Mokkapati  prasadm80@gmail.com
+ */
+package com.tengo.sqldb;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.sql.DataSource;
+
+/**
+ * Connections of the DBManagers used in a transaction or connection scope.
+ * A context is created by the Transactional or ConnectionScope
+ * interceptors (or DBManager begin) and bound to the calling thread.
+ * DBManager uses the connection in the context of the current thread
+ * instead of getting one from its data source.
+ * <p>
+ * To run work on other threads in the same transaction, capture the
+ * context and run the work with it, e.g.
+ * <pre>
+ *    executor.submit(TransactionContext.capture(task));
+ * </pre>
+ * Tasks bound to a context share its connections. A connection is used by
+ * one statement at a time, so tasks using the same DBManager take turns,
+ * while tasks on different DBManagers run in parallel. The transaction
+ * waits for running tasks to finish before it commits or rolls back, and
+ * tasks that start once it is ending fail, so connections are not leaked.
+ * A task that throws, or a nested Transactional method that fails, marks
+ * the transaction rollback only: the outermost Transactional method rolls
+ * it back and fails even if it caught the error.
+ * Do not wait on tasks using a DBManager from within a select of the same
+ * DBManager, the connection is in use until the select returns.
+ */
+public final class TransactionContext {
+    private static final ThreadLocal<TransactionContext> _current =
+            new ThreadLocal<TransactionContext>();
+
+    /**
+     * Connection of a DBManager in the context
+     */
+    private static class Entry {
+        private final Connection _conn;
+        private final ReentrantLock _lock;
+        private boolean _scope = false;    // Auto commit connection of a scope
+        private boolean _borrowed = false; // Connection of the parent scope
+        // State of the connection to restore when it is released, only
+        // what open changed
+        private boolean _setReadOnly = false;
+        private int _isolation = -1;
+
+        Entry(Connection c, ReentrantLock lock) {
+            _conn = c;
+            _lock = lock;
+        }
+    }
+
+    private final LinkedHashMap<DBManager, Entry> _connections =
+            new LinkedHashMap<DBManager, Entry>();
+    // Connection scope a transaction is started in
+    private final TransactionContext _parent;
+    private final boolean _scope;
+    private boolean _transactional = false;
+    // Transactional attributes applied to connections
+    private boolean _readOnly = false;
+    private int _isolation = -1;
+    private long _deadline = 0;  // System.nanoTime() of the timeout
+    private boolean _ending = false;  // No new tasks, waiting for running
+    private boolean _ended = false;
+    private int _running = 0;  // Tasks running on other threads
+    private Throwable _failure = null;  // Set if rollback only
+    private volatile TransactionProfiler.Profile _profile = null;
+    // Write buffers of DBManagers if the transaction buffers writes
+    private LinkedHashMap<DBManager, WriteBuffer> _buffers = null;
+
+    private TransactionContext(TransactionContext parent, boolean scope) {
+        _parent = parent;
+        _scope = scope;
+    }
+
+    /**
+     * Function to return the context of the current thread
+     * @return the context or null if the thread is not in a transaction
+     */
+    public static TransactionContext current() {
+        return _current.get();
+    }
+
+    /**
+     * Function to bind the context of the current thread, if any, to a task
+     * @param task task to run on another thread
+     * @return the task bound to the current context or the task itself
+     */
+    public static Runnable capture(Runnable task) {
+        TransactionContext ctx = _current.get();
+        return (ctx == null) ? task : ctx.wrap(task);
+    }
+
+    /**
+     * Function to bind the context of the current thread, if any, to a task
+     * @param task task to run on another thread
+     * @return the task bound to the current context or the task itself
+     */
+    public static <V> Callable<V> capture(Callable<V> task) {
+        TransactionContext ctx = _current.get();
+        return (ctx == null) ? task : ctx.wrap(task);
+    }
+
+    /**
+     * Function to run a task in a connection scope. DBManagers used by the
+     * task, outside of transactions, reuse one connection each in auto
+     * commit mode instead of getting one per call. The connections are
+     * released when the task returns. Joins the transaction or scope the
+     * thread is already in, if any.
+     * Transactions started in the scope use the connections of the scope.
+     * @param task task to run
+     * @return value returned by the task
+     */
+    public static <V> V scope(Callable<V> task) throws Exception {
+        boolean top = beginScope();
+        try {
+            return task.call();
+        }
+        finally {
+            if ( top ) {
+                endScope();
+            }
+        }
+    }
+
+    /**
+     * package private function used by ConnectionScope interceptors to
+     * begin a scope
+     * @return true if a scope was started, false if the thread is already
+     * in a scope or transaction
+     */
+    static boolean beginScope() {
+        if ( _current.get() != null ) {
+            return false;
+        }
+        _current.set(new TransactionContext(null, true));
+        return true;
+    }
+
+    /**
+     * package private function to release the connections of the scope of
+     * the current thread and unbind it
+     */
+    static void endScope() throws DBException {
+        TransactionContext ctx = _current.get();
+        if ( ctx != null && ctx._scope ) {
+            ctx.end(false);
+        }
+    }
+
+    /**
+     * Function to check if the context is a connection scope
+     */
+    public boolean isScope() {
+        return _scope;
+    }
+
+    /**
+     * Function to check if the context is in a Transactional method
+     */
+    public boolean isTransactional() {
+        return _transactional;
+    }
+
+    /**
+     * Function to check if the transaction was committed or rolled back
+     */
+    public synchronized boolean isEnded() {
+        return _ended;
+    }
+
+    /**
+     * Function to return a task that runs the given task in this context
+     */
+    public <V> Callable<V> wrap(final Callable<V> task) {
+        return new Callable<V>() {
+            public V call() throws Exception {
+                return TransactionContext.this.call(task);
+            }
+        };
+    }
+
+    /**
+     * Function to return a task that runs the given task in this context
+     */
+    public Runnable wrap(final Runnable task) {
+        return new Runnable() {
+            public void run() {
+                TransactionContext.this.run(task);
+            }
+        };
+    }
+
+    /**
+     * Function to run a task in this context on the current thread. The
+     * context of the thread is restored when the task returns.
+     * @param task task to run
+     * @return value returned by the task
+     * @throws IllegalStateException if the transaction has ended
+     */
+    public <V> V call(Callable<V> task) throws Exception {
+        TransactionContext prev = enter();
+        try {
+            return task.call();
+        }
+        catch (Exception e) {
+            failed(prev, e);
+            throw e;
+        }
+        catch (Error e) {
+            failed(prev, e);
+            throw e;
+        }
+        finally {
+            exit(prev);
+        }
+    }
+
+    /**
+     * Function to run a task in this context on the current thread
+     * @param task task to run
+     * @throws IllegalStateException if the transaction has ended
+     */
+    public void run(Runnable task) {
+        TransactionContext prev = enter();
+        try {
+            task.run();
+        }
+        catch (RuntimeException e) {
+            failed(prev, e);
+            throw e;
+        }
+        catch (Error e) {
+            failed(prev, e);
+            throw e;
+        }
+        finally {
+            exit(prev);
+        }
+    }
+
+    private TransactionContext enter() {
+        TransactionContext prev = _current.get();
+        if ( prev != this ) {
+            synchronized (this) {
+                if ( _ending ) {
+                    throw new IllegalStateException("Transaction has ended");
+                }
+                _running++;
+            }
+            _current.set(this);
+        }
+        return prev;
+    }
+
+    /**
+     * Internal function to mark the transaction rollback only when a task
+     * bound to it from another thread fails
+     */
+    private void failed(TransactionContext prev, Throwable t) {
+        if ( prev != this ) {
+            fail(t);
+        }
+    }
+
+    private synchronized void fail(Throwable t) {
+        if ( _failure == null ) {
+            _failure = t;
+        }
+    }
+
+    /**
+     * Function to check if the transaction will be rolled back because a
+     * nested Transactional method or a task failed
+     */
+    public synchronized boolean isRollbackOnly() {
+        return _failure != null;
+    }
+
+    /**
+     * package private function used by nested Transactional calls that
+     * failed. The outermost call rolls back the transaction of the current
+     * thread when it ends; nested calls may run in tasks the outermost
+     * call is waiting for, so they do not end it themselves.
+     */
+    static void setRollbackOnly(Throwable t) {
+        TransactionContext ctx = _current.get();
+        if ( ctx != null ) {
+            ctx.fail(t);
+        }
+    }
+
+    private void exit(TransactionContext prev) {
+        if ( prev == this ) {
+            return;
+        }
+        if ( prev == null ) {
+            _current.remove();
+        }
+        else {
+            _current.set(prev);
+        }
+        synchronized (this) {
+            _running--;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Function to check if the connections are read only
+     */
+    public boolean isReadOnly() {
+        return _readOnly;
+    }
+
+    /**
+     * package private function used by Transactional interceptors to begin
+     * a transaction. The attributes of nested transactions are ignored.
+     * @param t the Transactional annotation or null for defaults
+     * @return true if a new transaction was started, false if the thread
+     * is already in one
+     */
+    static boolean beginTransaction(Transactional t) {
+        TransactionContext ctx = _current.get();
+        if ( ctx == null || ctx._scope ) {
+            ctx = new TransactionContext(ctx, false);
+            _current.set(ctx);
+        }
+        else if ( ctx._transactional ) {
+            return false;
+        }
+        // Connections begun by DBManager begin join the transaction
+        ctx._transactional = true;
+        if ( t != null ) {
+            ctx._readOnly = t.readOnly();
+            ctx._isolation = t.isolation().getLevel();
+            if ( t.timeout() > 0 ) {
+                ctx._deadline = System.nanoTime()
+                    + t.timeout() * 1000000000L;
+            }
+            if ( t.bufferWrites() ) {
+                ctx._buffers = new LinkedHashMap<DBManager, WriteBuffer>();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * package private function to return the buffer of writes of a
+     * DBManager in the transaction of the current thread
+     * @return the buffer, or null if the transaction does not buffer
+     * writes or the buffer is being flushed
+     */
+    static WriteBuffer getWriteBuffer(DBManager mgr) {
+        TransactionContext ctx = _current.get();
+        if ( ctx == null ) {
+            return null;
+        }
+        WriteBuffer b = null;
+        synchronized (ctx) {
+            if ( ctx._buffers == null || ctx._ended ) {
+                return null;
+            }
+            if ( (b = ctx._buffers.get(mgr)) == null ) {
+                b = new WriteBuffer();
+                ctx._buffers.put(mgr, b);
+            }
+        }
+        return b.isFlushing() ? null : b;
+    }
+
+    /**
+     * Internal function to flush the write buffers of the DBManagers in
+     * the order they were first used
+     */
+    private void flushWrites() throws DBException {
+        ArrayList<Map.Entry<DBManager, WriteBuffer>> buffers;
+        synchronized (this) {
+            if ( _buffers == null ) {
+                return;
+            }
+            buffers = new ArrayList<Map.Entry<DBManager, WriteBuffer>>(
+                _buffers.entrySet());
+        }
+        for (Map.Entry<DBManager, WriteBuffer> e: buffers) {
+            e.getValue().flush(e.getKey());
+        }
+    }
+
+    /**
+     * package private function used by Transactional interceptors to
+     * profile the transaction of the current thread
+     */
+    static void setProfile(TransactionProfiler.Profile p) {
+        TransactionContext ctx = _current.get();
+        if ( ctx != null ) {
+            ctx._profile = p;
+        }
+    }
+
+    /**
+     * package private function to return the profile of the transaction
+     * of the current thread
+     * @return the profile or null if the transaction is not profiled
+     */
+    static TransactionProfiler.Profile getProfile() {
+        TransactionContext ctx = _current.get();
+        return (ctx == null) ? null : ctx._profile;
+    }
+
+    /**
+     * package private function to return the query timeout of statements
+     * in the context of the current thread
+     * @return time left in seconds, 0 if the transaction has no timeout
+     * @throws DBException if the time is up
+     */
+    static int getQueryTimeout() throws DBException {
+        TransactionContext ctx = _current.get();
+        if ( ctx == null || ctx._deadline == 0 ) {
+            return 0;
+        }
+        long left = ctx._deadline - System.nanoTime();
+        if ( left <= 0 ) {
+            throw new DBException("Transaction timed out");
+        }
+        return (int)((left + 999999999L) / 1000000000L);
+    }
+
+    /**
+     * package private function to commit all connections of the context
+     * of the current thread and unbind it. Rolls back instead, and throws,
+     * if the transaction is rollback only or its writes fail to flush.
+     */
+    static void commitTransaction() throws DBException {
+        TransactionContext ctx = _current.get();
+        if ( ctx == null || !ctx._transactional ) {
+            throw new DBException("No Transaction to commit");
+        }
+        ctx.end(true);
+    }
+
+    /**
+     * package private function to roll back this context, if it has not
+     * ended, and unbind it from the current thread
+     */
+    void rollback() throws DBException {
+        synchronized (this) {
+            if ( _ending ) {
+                return;
+            }
+        }
+        end(false);
+    }
+
+    /**
+     * Internal function to end the transaction after tasks running in it
+     * are done
+     */
+    private void end(boolean commit) throws DBException {
+        ArrayList<Entry> entries = null;
+        synchronized (this) {
+            // Running tasks finish their work, new ones are rejected
+            _ending = true;
+            boolean interrupted = false;
+            while ( _running > 0 ) {
+                try {
+                    wait();
+                }
+                catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if ( interrupted ) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        DBException err = null;
+        if ( commit ) {
+            Throwable f;
+            synchronized (this) {
+                f = _failure;
+            }
+            if ( f != null ) {
+                err = new DBException("Transaction rolled back, a nested "
+                    + "Transactional method or task failed: " + f);
+                err.initCause(f);
+            }
+            else {
+                try {
+                    flushWrites();
+                }
+                catch (DBException ex) {
+                    err = ex;
+                }
+                catch (RuntimeException ex) {
+                    err = new DBException(ex);
+                }
+            }
+        }
+        synchronized (this) {
+            _ended = true;
+            entries = new ArrayList<Entry>(_connections.values());
+            _connections.clear();
+        }
+        unbind();
+        for (Entry e: entries) {
+            try {
+                finish(e, commit && err == null);
+            }
+            catch (DBException ex) {
+                err = (err == null) ? ex : err;
+            }
+        }
+        if ( err != null ) {
+            throw err;
+        }
+    }
+
+    /**
+     * Internal function to bind the parent scope, if any, to the thread
+     */
+    private void unbind() {
+        if ( _parent == null ) {
+            _current.remove();
+        }
+        else {
+            _current.set(_parent);
+        }
+    }
+
+    /**
+     * Internal function to commit or roll back a connection, restore its
+     * state and close it. Connections of the parent scope are kept open.
+     */
+    private static void finish(Entry e, boolean commit)
+            throws DBException {
+        Connection c = e._conn;
+        if ( e._scope ) {
+            try {
+                c.close();
+            }
+            catch (SQLException ex) {
+                throw new DBException(ex);
+            }
+            return;
+        }
+        try {
+            if ( commit ) {
+                c.commit();
+            }
+            else {
+                c.rollback();
+            }
+        }
+        catch (SQLException ex) {
+            throw new DBException(ex);
+        }
+        finally {
+            try {
+                c.setAutoCommit(true);
+                if ( e._isolation != -1 ) {
+                    c.setTransactionIsolation(e._isolation);
+                }
+                if ( e._setReadOnly ) {
+                    c.setReadOnly(false);
+                }
+            }
+            catch (SQLException ex) {
+                // Pool validates the connection
+            }
+            try {
+                if ( !e._borrowed ) {
+                    c.close();
+                }
+            }
+            catch (SQLException ex) {
+                // Closing after a failed commit or rollback
+            }
+        }
+    }
+
+    /**
+     * package private function to begin a transaction of a DBManager.
+     * Creates and binds a context to the current thread if needed.
+     */
+    static void begin(DBManager mgr, DataSource ds) throws DBException {
+        TransactionContext ctx = _current.get();
+        if ( ctx == null || ctx._scope ) {
+            ctx = new TransactionContext(ctx, false);
+            _current.set(ctx);
+        }
+        synchronized (ctx) {
+            if ( ctx._connections.get(mgr) != null ) {
+                throw new DBException(
+                    "DB Connection already set in current thread");
+            }
+            ctx._connections.put(mgr, ctx.open(mgr, ds));
+        }
+    }
+
+    /**
+     * package private function to commit or roll back the transaction of a
+     * DBManager begun with begin. The context is unbound from the thread
+     * when it has no more connections.
+     */
+    static void end(DBManager mgr, boolean commit) throws DBException {
+        TransactionContext ctx = _current.get();
+        Entry e = null;
+        boolean unbind = false;
+        if ( ctx != null ) {
+            synchronized (ctx) {
+                e = ctx._connections.remove(mgr);
+                unbind = ctx._connections.isEmpty() && !ctx._transactional;
+            }
+        }
+        if ( e == null ) {
+            throw new DBException("DB Connection is not set in current thread");
+        }
+        if ( unbind ) {
+            ctx.unbind();
+        }
+        finish(e, commit);
+    }
+
+    /**
+     * Internal function to get a connection from the data source, or the
+     * parent scope, and apply the transaction attributes
+     */
+    private Entry open(DBManager mgr, DataSource ds) throws DBException {
+        if ( _deadline != 0 && _deadline - System.nanoTime() <= 0 ) {
+            throw new DBException("Transaction timed out");
+        }
+        if ( _scope ) {
+            try {
+                Entry e = new Entry(ds.getConnection(), new ReentrantLock());
+                e._scope = true;
+                return e;
+            }
+            catch (SQLException ex) {
+                throw new DBException(ex);
+            }
+        }
+        Entry pe = null;
+        if ( _parent != null ) {
+            synchronized (_parent) {
+                pe = _parent._connections.get(mgr);
+            }
+        }
+        if ( pe != null ) {
+            pe._lock.lock();
+        }
+        Connection c = null;
+        try {
+            Entry e = null;
+            if ( pe != null ) {
+                c = pe._conn;
+                e = new Entry(c, pe._lock);
+                e._borrowed = true;
+            }
+            else {
+                c = ds.getConnection();
+                e = new Entry(c, new ReentrantLock());
+            }
+            if ( _readOnly && !c.isReadOnly() ) {
+                c.setReadOnly(true);
+                e._setReadOnly = true;
+            }
+            if ( _isolation != -1 && c.getTransactionIsolation() != _isolation ) {
+                e._isolation = c.getTransactionIsolation();
+                c.setTransactionIsolation(_isolation);
+            }
+            c.setAutoCommit(false);
+            return e;
+        }
+        catch (SQLException e) {
+            if ( c != null && pe == null ) {
+                try {
+                    c.close();
+                }
+                catch (SQLException ex) {
+                    // Reporting the first error
+                }
+            }
+            throw new DBException(e);
+        }
+        finally {
+            if ( pe != null ) {
+                pe._lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * package private function to return the connection of a DBManager in
+     * the context of the current thread. Transactional contexts and scopes
+     * open a connection for DBManagers without one. The connection is
+     * locked until it is released.
+     * @return the connection or null if the DBManager should use its own
+     */
+    static Connection getConnection(DBManager mgr, DataSource ds)
+            throws DBException {
+        TransactionContext ctx = _current.get();
+        return (ctx == null) ? null : ctx.connection(mgr, ds);
+    }
+
+    private Connection connection(DBManager mgr, DataSource ds)
+            throws DBException {
+        Entry e = null;
+        synchronized (this) {
+            if ( _ended ) {
+                throw new DBException(_scope ? "Connection scope has ended"
+                    : "Transaction has ended");
+            }
+            if ( (e = _connections.get(mgr)) == null ) {
+                if ( !_transactional && !_scope ) { // Begun by DBManager
+                    return (_parent == null) ? null 
+                        : _parent.connection(mgr, ds);
+                }
+                e = open(mgr, ds);
+                _connections.put(mgr, e);
+            }
+        }
+        e._lock.lock();
+        return e._conn;
+    }
+
+    /**
+     * package private function to release a connection returned by
+     * getConnection
+     * @return false if the connection is not in the context of the current
+     * thread and should be closed by the DBManager
+     */
+    static boolean release(DBManager mgr, Connection c) {
+        for (TransactionContext ctx = _current.get(); ctx != null;
+                ctx = ctx._parent) {
+            Entry e = null;
+            synchronized (ctx) {
+                e = ctx._connections.get(mgr);
+            }
+            if ( e != null && e._conn == c ) {
+                if ( e._lock.isHeldByCurrentThread() ) {
+                    e._lock.unlock();
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Function to return the number of connections in the context
+     */
+    public synchronized int getConnectionCount() {
+        return _connections.size();
+    }
+
+    /**
+     * Internal function used for debugging
+     */
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder("TransactionContext[");
+        sb.append(_scope ? "scope" : _transactional ? "transactional" 
+            : "begin");
+        sb.append(", connections=" + _connections.size());
+        sb.append(", running=" + _running);
+        sb.append(_failure != null ? ", rollbackOnly" : "");
+        return sb.append(_ended ? ", ended]" : "]").toString();
+    }
+}
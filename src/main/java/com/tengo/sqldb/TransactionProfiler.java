@@ -0,0 +1,238 @@
+/*
+ * Detector of chatty transactions
+ *
+ * @author Prasad Mokkapati  prasadm80@gmail.com
+ */
+package com.tengo.sqldb;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Profiles Transactional methods to find N+1 patterns. When bound with
+ * Guice (or set on the TransactionalInterceptor) every top level
+ * Transactional call records its DBManager operations with the statement
+ * fingerprint and the call site, the first caller outside of sqldb. At
+ * commit it reports:
+ * <ul>
+ * <li>the same get, insert or other operation repeated from one call
+ * site, e.g. a get or lazy load per element of a loop, or inserts that
+ * could be one bulkInsert</li>
+ * <li>transactions with more round trips than the threshold</li>
+ * </ul>
+ * Reports are printed to System.out, override warn to send them somewhere
+ * else. In tests use setFail(true) so transactions over the thresholds
+ * roll back and throw DBException.
+ * Finding call sites walks the stack of each operation, so profiling is
+ * meant for tests and diagnosis, not for every request in production.
+ */
+public class TransactionProfiler {
+    // Limit on patterns kept per transaction
+    private static final int MAX_PATTERNS = 1000;
+
+    /**
+     * Operations of a transaction with the same operation, bean,
+     * statement and call site
+     */
+    static final class Pattern {
+        final Metrics.Operation _op;
+        final Class<?> _bean;
+        final String _fingerprint;
+        final String _site;
+        int _count = 0;
+        int _statements = 0;
+        long _rows = 0;
+
+        Pattern(Metrics.Operation op, Class<?> bean, String fingerprint,
+                String site) {
+            _op = op;
+            _bean = bean;
+            _fingerprint = fingerprint;
+            _site = site;
+        }
+    }
+
+    /**
+     * Operations recorded in one transaction. Tasks bound to the
+     * transaction record from other threads
+     */
+    static final class Profile {
+        // Patterns in the order they were first seen
+        private final LinkedHashMap<String, Pattern> _patterns =
+                new LinkedHashMap<String, Pattern>();
+        private int _operations = 0;
+        private int _roundTrips = 0;
+
+        /**
+         * Function to record an operation
+         * @param statements number of statements executed
+         */
+        void record(Metrics.Operation op, Class<?> bean, String sql,
+                int statements, int rows) {
+            String fp = (sql == null) ? ""
+                : MemoryMetrics.getDefault().fingerprint(sql);
+            String site = callSite();
+            String key = op + "|" + (bean == null ? "" : bean.getName())
+                + "|" + fp + "|" + site;
+            synchronized (this) {
+                _operations++;
+                _roundTrips += statements;
+                Pattern p = _patterns.get(key);
+                if ( p == null ) {
+                    if ( _patterns.size() >= MAX_PATTERNS ) {
+                        return;
+                    }
+                    p = new Pattern(op, bean, fp, site);
+                    _patterns.put(key, p);
+                }
+                p._count++;
+                p._statements += statements;
+                p._rows += rows;
+            }
+        }
+
+        synchronized int getOperations() {
+            return _operations;
+        }
+
+        synchronized int getRoundTrips() {
+            return _roundTrips;
+        }
+
+        synchronized ArrayList<Pattern> getPatterns() {
+            return new ArrayList<Pattern>(_patterns.values());
+        }
+    }
+
+    private final int _repeated;
+    private final int _roundTrips;
+    private volatile boolean _fail = false;
+    private final AtomicLong _transactions = new AtomicLong();
+    private final AtomicLong _warnings = new AtomicLong();
+
+    /**
+     * @param repeated number of times the same operation can be repeated
+     *  from one call site in a transaction before it is reported
+     * @param roundTrips number of statements a transaction can run before
+     *  it is reported
+     */
+    public TransactionProfiler(int repeated, int roundTrips) {
+        _repeated = repeated;
+        _roundTrips = roundTrips;
+    }
+
+    /**
+     * Function to fail transactions over the thresholds. They are rolled
+     * back and throw DBException with the report
+     */
+    public TransactionProfiler setFail(boolean fail) {
+        _fail = fail;
+        return this;
+    }
+
+    /**
+     * Function to return the number of transactions profiled
+     */
+    public long getTransactions() {
+        return _transactions.get();
+    }
+
+    /**
+     * Function to return the number of transactions reported
+     */
+    public long getWarnings() {
+        return _warnings.get();
+    }
+
+    /**
+     * Function to write the report of a transaction over the thresholds
+     */
+    protected void warn(String report) {
+        System.out.println(report);
+    }
+
+    /**
+     * package private function to start profiling a transaction
+     */
+    Profile start() {
+        _transactions.incrementAndGet();
+        return new Profile();
+    }
+
+    /**
+     * package private function called before a profiled transaction
+     * commits
+     * @param m the Transactional method
+     * @throws DBException if the transaction is over the thresholds and
+     *  the profiler fails transactions
+     */
+    void check(Profile p, Method m) throws DBException {
+        String report = report(p, m);
+        if ( report == null ) {
+            return;
+        }
+        _warnings.incrementAndGet();
+        warn(report);
+        if ( _fail ) {
+            throw new DBException(report);
+        }
+    }
+
+    /**
+     * Internal function to describe the patterns over the thresholds
+     * @return the report or null if there is nothing to report
+     */
+    private String report(Profile p, Method m) {
+        StringBuilder s = new StringBuilder();
+        for (Pattern pt: p.getPatterns()) {
+            if ( pt._count < _repeated ) {
+                continue;
+            }
+            s.append("\n  ").append(pt._count).append(" x ").append(pt._op)
+                .append(' ')
+                .append(pt._bean == null ? "" : pt._bean.getSimpleName())
+                .append(" at ").append(pt._site);
+            if ( pt._op == Metrics.Operation.get ) {
+                s.append(": single row gets, select the rows with one query");
+            }
+            else if ( pt._op == Metrics.Operation.insert ) {
+                s.append(": single row inserts, use bulkInsert");
+            }
+            else if ( pt._op == Metrics.Operation.select ) {
+                s.append(": repeated query, e.g. lazy loads in a loop");
+            }
+            else {
+                s.append(": repeated statement");
+            }
+            s.append("\n      ").append(pt._fingerprint);
+        }
+        int trips = p.getRoundTrips();
+        if ( s.length() == 0 && trips < _roundTrips ) {
+            return null;
+        }
+        return "sqldb chatty transaction " + m.getDeclaringClass().getName()
+            + "." + m.getName() + ": " + p.getOperations() + " operations, "
+            + trips + " round trips" + s;
+    }
+
+    /**
+     * Internal function to find the first caller outside of sqldb, the
+     * JDK and Guice
+     */
+    private static String callSite() {
+        for (StackTraceElement e: new Throwable().getStackTrace()) {
+            String c = e.getClassName();
+            if ( c.startsWith("com.tengo.sqldb.") || c.startsWith("java.")
+                    || c.startsWith("javax.") || c.startsWith("sun.")
+                    || c.startsWith("jdk.") || c.startsWith("com.google.inject.")
+                    || c.startsWith("org.aopalliance.")
+                    || c.indexOf("$$EnhancerByGuice$$") >= 0 ) {
+                continue;
+            }
+            return e.toString();
+        }
+        return "unknown";
+    }
+}
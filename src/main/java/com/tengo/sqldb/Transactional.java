@@ -11,6 +11,7 @@ import java.lang.annotation.Target;
 import java.lang.annotation.ElementType;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
+import java.sql.Connection;
 
 @Inherited
 @Documented
@@ -18,4 +19,73 @@ import java.lang.annotation.RetentionPolicy;
 @Retention(RetentionPolicy.RUNTIME)
 
 public @interface Transactional {
+    public enum Isolation {
+        DEFAULT(-1),
+        READ_UNCOMMITTED(Connection.TRANSACTION_READ_UNCOMMITTED),
+        READ_COMMITTED(Connection.TRANSACTION_READ_COMMITTED),
+        REPEATABLE_READ(Connection.TRANSACTION_REPEATABLE_READ),
+        SERIALIZABLE(Connection.TRANSACTION_SERIALIZABLE);
+
+        private final int _level;
+
+        Isolation(int level) {
+            _level = level;
+        }
+
+        /**
+         * Function to return the JDBC isolation level, -1 for DEFAULT
+         */
+        public int getLevel() {
+            return _level;
+        }
+    };
+
+    /**
+     * Marks the connections of the transaction read only, so the database
+     * can skip work needed for writes
+     */
+    boolean readOnly() default false;
+
+    /**
+     * Isolation level of the connections of the transaction. DEFAULT leaves
+     * the level of the data source
+     */
+    Isolation isolation() default Isolation.DEFAULT;
+
+    /**
+     * Time limit of the transaction in seconds, 0 for none. Each statement
+     * gets the time left as query timeout, and statements fail once the
+     * time is up.
+     */
+    int timeout() default 0;
+
+    /**
+     * Number of times to run the method when the transaction fails with a
+     * deadlock or serialization failure (see Dialect). 1 does not retry.
+     * The method is run again from the start after all the connections of
+     * the transaction are rolled back, so it should not have side effects
+     * outside the database.
+     */
+    int maxAttempts() default 1;
+
+    /**
+     * Backoff before the first retry in milliseconds. Doubles with every
+     * retry up to maxBackoff. The actual wait is a random time up to the
+     * backoff so retries of contending transactions do not collide again.
+     */
+    long backoff() default 20;
+
+    /**
+     * Maximum backoff in milliseconds
+     */
+    long maxBackoff() default 1000;
+
+    /**
+     * Buffers inserts, updates and deletes of DBManagers in the transaction
+     * and writes them with bulk operations before commit (see
+     * DBManager.flush). Writes of the same row are merged. Queries do not
+     * see buffered writes until they are flushed, and the counts returned
+     * by buffered writes are the number of objects written.
+     */
+    boolean bufferWrites() default false;
 }
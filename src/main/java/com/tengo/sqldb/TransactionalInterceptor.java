@@ -5,37 +5,149 @@
  */
 package com.tengo.sqldb;
 
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.inject.Inject;
 import org.aopalliance.intercept.MethodInterceptor;
 import org.aopalliance.intercept.MethodInvocation;
 
-
+/**
+ * Runs Transactional methods in a TransactionContext created for the
+ * outermost Transactional call of a thread. Nested calls, including calls
+ * from tasks bound to the context on other threads, join it.
+ * The outermost call is run again, up to maxAttempts, when it fails with a
+ * deadlock or serialization failure. Nested calls do not retry or end the
+ * transaction, a failure marks it rollback only and the outermost call
+ * rolls it back, and retries it, when it returns.
+ * Top level calls are profiled by the TransactionProfiler, if one is set.
+ */
 public class TransactionalInterceptor implements MethodInterceptor {
-    
-    public Object invoke(MethodInvocation inv) throws Throwable {
-        Object ret=null;
-        boolean topLevel = true;
+    private static final Random _random = new Random();
 
-        if ( ! DBManager.beginTransaction() ) {
-            topLevel = false;
+    // Retry counters
+    private static final AtomicLong _retries = new AtomicLong();
+    private static final AtomicLong _retrySuccesses = new AtomicLong();
+    private static final AtomicLong _retryFailures = new AtomicLong();
+
+    private TransactionProfiler _profiler = null;
+
+    /**
+     * Function to set the profiler of transactions. Optional, transactions
+     * are not profiled by default
+     */
+    @Inject(optional=true)
+    public void setProfiler(TransactionProfiler p) {
+        _profiler = p;
+    }
+
+    public TransactionProfiler getProfiler() {
+        return _profiler;
+    }
+
+    public Object invoke(MethodInvocation inv) throws Throwable {
+        Transactional t = inv.getMethod().getAnnotation(Transactional.class);
+        int maxAttempts = (t == null) ? 1 : Math.max(1, t.maxAttempts());
+        for (int attempt=1; ; attempt++) {
+            boolean topLevel = TransactionContext.beginTransaction(t);
+            TransactionContext ctx = TransactionContext.current();
+            TransactionProfiler p = _profiler;
+            TransactionProfiler.Profile profile = null;
+            if ( topLevel && p != null ) {
+                profile = p.start();
+                TransactionContext.setProfile(profile);
+            }
+            try {
+                Object ret = inv.proceed();
+                if ( topLevel ) {
+                    if ( profile != null ) {
+                        p.check(profile, inv.getMethod());
+                    }
+                    TransactionContext.commitTransaction();
+                    if ( attempt > 1 ) {
+                        _retrySuccesses.incrementAndGet();
+                    }
+                }
+                return ret;
+            }
+            catch (Throwable e) {
+                if ( !topLevel ) {
+                    // Possibly a task the outermost call is waiting for
+                    TransactionContext.setRollbackOnly(e);
+                    throw e;
+                }
+                rollback(ctx);
+                if ( !isRetryable(e) ) {
+                    throw e;
+                }
+                if ( attempt >= maxAttempts ) {
+                    if ( maxAttempts > 1 ) {
+                        _retryFailures.incrementAndGet();
+                    }
+                    throw e;
+                }
+                _retries.incrementAndGet();
+                backoff(t, attempt);
+            }
         }
-            
+    }
+
+    private void rollback(TransactionContext ctx) {
         try {
-            ret = inv.proceed();
-            if ( topLevel ) {
-                DBManager.commitTransaction();
-            }
-                
+            ctx.rollback();
         }
-        catch (Exception e) {
-            e.printStackTrace();
-            rollback(inv, topLevel, e);
+        catch (DBException ex) { // Report the error that failed the method
+            ex.printStackTrace();
         }
-        return ret;
     }
 
-    private void rollback(MethodInvocation inv, boolean topLevel, Exception e) 
-            throws DBException {
-        DBManager.rollbackTransaction();
+    /**
+     * Internal function to check if a failure can be retried. DBManager
+     * classifies its errors with the dialect of its database. Other SQL
+     * exceptions use the standard SQL states
+     */
+    private static boolean isRetryable(Throwable e) {
+        return Dialect.Generic.isRetryable(e);
     }
 
+    /**
+     * Internal function to wait before a retry. Exponential backoff with
+     * full jitter
+     */
+    private static void backoff(Transactional t, int attempt)
+            throws InterruptedException {
+        long max = Math.min(t.maxBackoff(),
+            t.backoff() << Math.min(attempt - 1, 20));
+        if ( max > 0 ) {
+            long wait;
+            synchronized (_random) {
+                wait = (long)(_random.nextDouble() * max);
+            }
+            Thread.sleep(wait);
+        }
+    }
+
+    /**
+     * Function to return the number of times Transactional methods were
+     * run again
+     */
+    public static long getRetries() {
+        return _retries.get();
+    }
+
+    /**
+     * Function to return the number of Transactional methods that
+     * succeeded after one or more retries
+     */
+    public static long getRetrySuccesses() {
+        return _retrySuccesses.get();
+    }
+
+    /**
+     * Function to return the number of Transactional methods that failed
+     * after using all attempts
+     */
+    public static long getRetryFailures() {
+        return _retryFailures.get();
+    }
 }
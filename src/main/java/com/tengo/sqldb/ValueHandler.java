@@ -0,0 +1,30 @@
+/*
+ * Handlers of single column query values
+ *
+ * @author Prasad Mokkapati  prasadm80@gmail.com
+ */
+package com.tengo.sqldb;
+
+/**
+ * Handlers called by the streaming scalar selects of DBManager with the
+ * first column of each row, as it is read, so results of any size are
+ * processed without holding them in memory or boxing the values.
+ * Return false to stop reading rows.
+ */
+public interface ValueHandler {
+    public interface Longs {
+        boolean value(long v, boolean isNull) throws DBException;
+    }
+
+    public interface Ints {
+        boolean value(int v, boolean isNull) throws DBException;
+    }
+
+    public interface Doubles {
+        boolean value(double v, boolean isNull) throws DBException;
+    }
+
+    public interface Strings {
+        boolean value(String v) throws DBException;
+    }
+}
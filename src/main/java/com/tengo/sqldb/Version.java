@@ -0,0 +1,31 @@
+/*
+ * Annotation to indicate the version property of a bean
+ *
+ * @author Prasad Mokkapati  prasadm80@gmail.com
+ */
+package com.tengo.sqldb;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.Inherited;
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.RetentionPolicy;
+
+@Inherited
+@Documented
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+
+/**
+ * Annotation on an int or long property that is incremented by every
+ * update of the row, for optimistic concurrency. Updates and deletes
+ * match the version of the bean as well as its keys, and throw a
+ * ConflictException when the row was changed or deleted since the bean
+ * was read. Updates set the new version on the bean. A null version is
+ * set to 0 when the bean is inserted, the column must not be null for
+ * updates to match. updateColumns of
+ * lazy properties does not use the version.
+ */
+public @interface Version {
+}
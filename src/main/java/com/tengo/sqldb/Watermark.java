@@ -0,0 +1,27 @@
+/*
+ * Annotation to indicate the watermark property of a bean
+ *
+ * @author Prasad Mokkapati  prasadm80@gmail.com
+ */
+package com.tengo.sqldb;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.Inherited;
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.RetentionPolicy;
+
+@Inherited
+@Documented
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+
+/**
+ * Annotation on a property whose column only grows when a row is inserted
+ * or changed, like an updated at timestamp or a sequence value set by
+ * every write. ChangePoller reads the rows past the last watermark it saw.
+ * Rows with a null watermark are never read by a poller.
+ */
+public @interface Watermark {
+}
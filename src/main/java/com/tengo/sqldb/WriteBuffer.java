@@ -0,0 +1,233 @@
+/*
+ * Writes of a transaction buffered until commit
+ *
+ * @author Prasad Mokkapati  prasadm80@gmail.com
+ */
+package com.tengo.sqldb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Inserts, updates and deletes of a DBManager in a Transactional method
+ * with bufferWrites. Writes of the same row are merged:
+ *   insert, update  -> insert of the latest object
+ *   insert, delete  -> nothing
+ *   update, update  -> update of the latest object
+ *   update, delete  -> delete
+ *   delete, insert  -> update of the inserted object
+ *   delete, update  -> delete
+ * A row is identified by the unique keys of its bean, or by the object
+ * itself until the keys are set (database generated ids).
+ * The buffer is flushed with bulk operations: deletes written before a later
+ * insert or update of the same bean, so a new row can take the unique
+ * values of a deleted row, then inserts then updates of each bean in the
+ * order the beans were first written, then the other deletes. Deletes are
+ * in the reverse order of the beans so rows of child tables are deleted
+ * before their parents.
+ * Objects are read when flushed, changes made after a write are written.
+ */
+class WriteBuffer {
+    private static final int INSERT = 0;
+    private static final int UPDATE = 1;
+    private static final int DELETE = 2;
+
+    /**
+     * Pending write of a row
+     */
+    private static final class Write {
+        int _kind;
+        Object _obj;
+        long _seq;  // Order of the last write of the row
+
+        Write(int kind, Object obj, long seq) {
+            _kind = kind;
+            _obj = obj;
+            _seq = seq;
+        }
+    }
+
+    /**
+     * Identity of an object without keys
+     */
+    private static final class Identity {
+        private final Object _obj;
+
+        Identity(Object o) {
+            _obj = o;
+        }
+
+        public int hashCode() {
+            return System.identityHashCode(_obj);
+        }
+
+        public boolean equals(Object o) {
+            return (o instanceof Identity && ((Identity)o)._obj == _obj);
+        }
+    }
+
+    // Writes of each bean by row, beans in the order first written
+    private final LinkedHashMap<BeanMap, LinkedHashMap<Object, Write>> _writes =
+            new LinkedHashMap<BeanMap, LinkedHashMap<Object, Write>>();
+    private boolean _flushing = false;
+    private long _seq = 0;
+
+    synchronized boolean isFlushing() {
+        return _flushing;
+    }
+
+    void insert(DBManager mgr, BeanMap map, Object o) throws DBException {
+        // Known before the insert if the bean has an Id generator
+        map.assignId(mgr, o);
+        add(map, INSERT, o);
+    }
+
+    void update(BeanMap map, Object o) throws DBException {
+        add(map, UPDATE, o);
+    }
+
+    void delete(BeanMap map, Object o) throws DBException {
+        add(map, DELETE, o);
+    }
+
+    private synchronized void add(BeanMap map, int kind, Object o)
+            throws DBException {
+        LinkedHashMap<Object, Write> rows = _writes.get(map);
+        if ( rows == null ) {
+            rows = new LinkedHashMap<Object, Write>();
+            _writes.put(map, rows);
+        }
+        Identity id = new Identity(o);
+        Object key = id;
+        Write w = rows.get(id);
+        if ( w == null ) {
+            key = key(map, o);
+            w = (key == null) ? null : rows.get(key);
+            key = (key == null) ? id : key;
+        }
+        if ( w == null ) {
+            rows.put(key, new Write(kind, o, ++_seq));
+            return;
+        }
+        w._seq = ++_seq;
+        switch (kind) {
+        case INSERT:
+            if ( w._kind != DELETE ) {
+                throw new DuplicateException("Duplicate insert of "
+                    + map.getClassName() + " " + key);
+            }
+            w._kind = UPDATE;
+            w._obj = o;
+            break;
+        case UPDATE:
+            if ( w._kind != DELETE ) {
+                w._obj = o;
+            }
+            break;
+        default:
+            if ( w._kind == INSERT ) {
+                rows.remove(key);
+            }
+            else {
+                w._kind = DELETE;
+                w._obj = o;
+            }
+        }
+    }
+
+    /**
+     * Internal function to return the key values of an object, null if
+     * the bean has no keys or they are not set
+     */
+    private static Object key(BeanMap map, Object o) throws DBException {
+        Property keys[] = map.getUniqueKeys();
+        if ( keys == null || keys.length == 0 ) {
+            return null;
+        }
+        Object v[] = new Object[keys.length];
+        for (int i=0; i < keys.length; i++) {
+            v[i] = LazyList.Loader.keyValue(keys[i].getValue(o));
+            if ( v[i] == null || (keys[i].isId() && v[i] instanceof Number
+                    && ((Number)v[i]).longValue() == 0) ) {
+                return null;
+            }
+        }
+        return Arrays.asList(v);
+    }
+
+    /**
+     * Function to write the buffered writes with the DBManager. The
+     * buffer is empty after the flush, also when it fails.
+     */
+    void flush(DBManager mgr) throws DBException {
+        ArrayList<BeanMap> maps;
+        ArrayList<LinkedHashMap<Object, Write>> writes;
+        synchronized (this) {
+            if ( _flushing || _writes.isEmpty() ) {
+                return;
+            }
+            _flushing = true;
+            maps = new ArrayList<BeanMap>(_writes.keySet());
+            writes = new ArrayList<LinkedHashMap<Object, Write>>(
+                _writes.values());
+            _writes.clear();
+        }
+        try {
+            // Last insert or update of each bean
+            long last[] = new long[maps.size()];
+            for (int i=0; i < last.length; i++) {
+                for (Write w: writes.get(i).values()) {
+                    if ( w._kind != DELETE ) {
+                        last[i] = Math.max(last[i], w._seq);
+                    }
+                }
+            }
+            for (int i=maps.size()-1; i >= 0; i--) {
+                List<Object> l = list(writes.get(i), DELETE, 0, last[i]);
+                if ( l.size() > 0 ) {
+                    mgr.bulkDelete(l);
+                }
+            }
+            for (int i=0; i < maps.size(); i++) {
+                List<Object> l = list(writes.get(i), INSERT, 0,
+                    Long.MAX_VALUE);
+                if ( l.size() > 0 ) {
+                    mgr.bulkInsert(l);
+                }
+                l = list(writes.get(i), UPDATE, 0, Long.MAX_VALUE);
+                if ( l.size() > 0 ) {
+                    mgr.bulkUpdate(l);
+                }
+            }
+            for (int i=maps.size()-1; i >= 0; i--) {
+                List<Object> l = list(writes.get(i), DELETE, last[i],
+                    Long.MAX_VALUE);
+                if ( l.size() > 0 ) {
+                    mgr.bulkDelete(l);
+                }
+            }
+        }
+        finally {
+            synchronized (this) {
+                _flushing = false;
+            }
+        }
+    }
+
+    /**
+     * Internal function to return the objects of the writes of a kind
+     * made after from and before to
+     */
+    private static List<Object> list(LinkedHashMap<Object, Write> rows,
+            int kind, long from, long to) {
+        ArrayList<Object> ret = new ArrayList<Object>();
+        for (Write w: rows.values()) {
+            if ( w._kind == kind && w._seq > from && w._seq < to ) {
+                ret.add(w._obj);
+            }
+        }
+        return ret;
+    }
+}
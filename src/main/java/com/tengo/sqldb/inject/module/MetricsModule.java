@@ -0,0 +1,42 @@
+/*
+ * Module (Guice) to bind metrics of database operations
+ *
+ * @author Prasad Mokkapati  prasadm80@gmail.com
+ */
+package com.tengo.sqldb.inject.module;
+
+import com.google.inject.AbstractModule;
+
+import com.tengo.sqldb.DBException;
+import com.tengo.sqldb.MemoryMetrics;
+import com.tengo.sqldb.Metrics;
+
+/**
+ * Binds Metrics to a MemoryMetrics and registers it as the JMX bean
+ * com.tengo.sqldb:type=Metrics,name=&lt;name&gt;
+ */
+public class MetricsModule extends AbstractModule {
+    private final MemoryMetrics _metrics;
+    private final String _name;
+
+    public MetricsModule(String name) {
+        this(new MemoryMetrics(), name);
+    }
+
+    public MetricsModule(MemoryMetrics metrics, String name) {
+        _metrics = metrics;
+        _name = name;
+    }
+
+    @Override
+    protected void configure() {
+        bind(Metrics.class).toInstance(_metrics);
+        bind(MemoryMetrics.class).toInstance(_metrics);
+        try {
+            _metrics.register(_name);
+        }
+        catch (DBException e) {
+            addError(e);
+        }
+    }
+}
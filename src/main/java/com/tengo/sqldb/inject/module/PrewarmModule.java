@@ -0,0 +1,57 @@
+/*
+ * Module (Guice) to build bean mappings when the injector is created
+ *
+ * @author Prasad Mokkapati  prasadm80@gmail.com
+ */
+package com.tengo.sqldb.inject.module;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Inject;
+
+import com.tengo.sqldb.DBException;
+import com.tengo.sqldb.DBManager;
+
+/**
+ * Builds the mappings of all beans with a Table annotation in the given
+ * packages while the injector is created, so the first request after a
+ * deploy does not build them. Injector creation fails if a bean cannot be
+ * mapped. The number of beans found and the time taken are printed to
+ * System.out, override log to send them somewhere else.
+ */
+public class PrewarmModule extends AbstractModule {
+    private final String _packages[];
+
+    /**
+     * @param packages packages with the beans. Sub packages are included
+     */
+    public PrewarmModule(String ... packages) {
+        _packages = packages;
+    }
+
+    @Override
+    protected void configure() {
+        requestInjection(this);
+    }
+
+    /**
+     * Called by Guice when the injector is created
+     */
+    @Inject
+    void prewarm() throws DBException {
+        ClassLoader loader = Thread.currentThread().getContextClassLoader();
+        if ( loader == null ) {
+            loader = PrewarmModule.class.getClassLoader();
+        }
+        long start = System.nanoTime();
+        int beans = DBManager.prewarm(loader, _packages);
+        log("DBManager: prepared " + beans + " beans in "
+            + ((System.nanoTime() - start) / 1000000) + " ms");
+    }
+
+    /**
+     * Function to report the result of the prewarm
+     */
+    protected void log(String msg) {
+        System.out.println(msg);
+    }
+}
@@ -8,6 +8,8 @@ package com.tengo.sqldb.inject.module;
 import com.google.inject.AbstractModule;
 import com.google.inject.matcher.Matchers;
 
+import com.tengo.sqldb.ConnectionScope;
+import com.tengo.sqldb.ConnectionScopeInterceptor;
 import com.tengo.sqldb.TransactionalInterceptor;
 import com.tengo.sqldb.Transactional;
 
@@ -16,7 +18,12 @@ public class TransactionModule extends AbstractModule {
     @Override
     protected void configure() {
         TransactionalInterceptor i = new TransactionalInterceptor();
+        // Optional TransactionProfiler
+        requestInjection(i);
         bindInterceptor(Matchers.any(), 
             Matchers.annotatedWith(Transactional.class), i);
+        bindInterceptor(Matchers.any(), 
+            Matchers.annotatedWith(ConnectionScope.class), 
+            new ConnectionScopeInterceptor());
     }
 }
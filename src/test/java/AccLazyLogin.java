@@ -0,0 +1,21 @@
+/*
+ *
+ * @author prasad mokkapati - prasadm80@gmail.com
+ */
+import java.util.ArrayList;
+
+import com.tengo.sqldb.OneToMany;
+
+
+public class AccLazyLogin extends Account {
+    private ArrayList<Login> _logins = null;
+
+
+    @OneToMany(mappedBy={"accountId"}, lazy=true, batchSize=50)
+    public ArrayList<Login> getLogin() {
+        return _logins;
+    }
+    public void setLogin(ArrayList<Login> l) {
+        _logins = l;
+    }
+}
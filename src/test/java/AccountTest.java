@@ -68,12 +68,14 @@ public class AccountTest {
     }
     @Test
     public void doUpdateTrans() throws Exception {
-        TransactionTest t = _inj.getInstance(TransactionTest.class);
+        TransactionTest.Service t = 
+            _inj.getInstance(TransactionTest.Service.class);
         t.updateAccount();
     }
     @Test
     public void doUpdateTransFail() throws Exception {
-        TransactionTest t = _inj.getInstance(TransactionTest.class);
+        TransactionTest.Service t = 
+            _inj.getInstance(TransactionTest.Service.class);
         try {
             t.updateAccountFail();
         }
@@ -95,4 +97,15 @@ public class AccountTest {
                 + ", userid: " + l.getUserid());
         }
     }
+    @Test
+    public void doLazyOneToManyTest() throws Exception {
+        ArrayList<AccLazyLogin> list = _mgr.select(AccLazyLogin.class, 
+            "select * from account");
+        for (AccLazyLogin al: list) {
+            Assert.assertNotNull(al.getLogin());
+            for (Login l: al.getLogin()) {
+                Assert.assertEquals(al.getAccountId(), l.getAccountId());
+            }
+        }
+    }
 }
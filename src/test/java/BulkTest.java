@@ -0,0 +1,135 @@
+/*
+ *
+ * @author prasad mokkapati - prasadm80@gmail.com
+ */
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import org.junit.*;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+
+import com.tengo.sqldb.*;
+
+public class BulkTest {
+    private static final int UPDATE = BeanMap.BULKUPDATE_CHUNK_SIZE;
+    private static final int DELETE = BeanMap.BULKDELETE_CHUNK_SIZE;
+    private static final int ROWS = 2 * DELETE + 1;
+
+    private TrackingDataSource _ds = null;
+    private DBManager _mgr = null;
+
+    @Before
+    public void init() throws Exception {
+        H2Module h2 = new H2Module("bulktest");
+        _ds = new TrackingDataSource(h2.getDataSource());
+        _mgr = Guice.createInjector(new AbstractModule() {
+                protected void configure() {
+                    bind(javax.sql.DataSource.class).toInstance(_ds);
+                }
+            }).getInstance(DBManager.class);
+        H2Module.createTables(_mgr);
+        _mgr.executeSQL("insert into account(accountid, accounttype, name, "
+            + "balance, language, status) select x, 0, concat('a', x), 0, "
+            + "0, 0 from system_range(1, " + ROWS + ")");
+        _ds.clear();
+    }
+
+    /**
+     * Returns accounts of the ids in random order
+     */
+    private static List<Account> accounts(long first, int n, String name) {
+        ArrayList<Account> ret = new ArrayList<Account>();
+        for (int i=0; i < n; i++) {
+            Account a = new Account();
+            a.setAccountId(first + i);
+            a.setName(name);
+            ret.add(a);
+        }
+        Collections.shuffle(ret, new Random(n));
+        return ret;
+    }
+
+    /**
+     * Returns the last parameter of each row run, the account id of the
+     * where clause of updates
+     */
+    private List<Object> lastParams() {
+        ArrayList<Object> ret = new ArrayList<Object>();
+        for (List<Object> r: _ds.getRows()) {
+            ret.add(r.get(r.size() - 1));
+        }
+        return ret;
+    }
+
+    private static List<Object> ids(long first, int n) {
+        ArrayList<Object> ret = new ArrayList<Object>();
+        for (int i=0; i < n; i++) {
+            ret.add(first + i);
+        }
+        return ret;
+    }
+
+    private long count(String where) throws DBException {
+        return _mgr.get(Long.class, "select count(*) from account where "
+            + where);
+    }
+
+    @Test
+    public void updateCounts() throws Exception {
+        List<Account> l = accounts(ROWS - 2, 4, "b");
+        int counts[] = _mgr.bulkUpdate(l);
+        Assert.assertEquals(4, counts.length);
+        // In the order of the list, 0 for the ids past the last row
+        for (int i=0; i < counts.length; i++) {
+            Assert.assertEquals("" + l.get(i).getAccountId(),
+                l.get(i).getAccountId() <= ROWS ? 1 : 0, counts[i]);
+        }
+        Assert.assertEquals(3, count("name = 'b'"));
+        Assert.assertEquals(0, _mgr.bulkUpdate(new ArrayList<Account>())
+            .length);
+    }
+
+    @Test
+    public void updateOrder() throws Exception {
+        _mgr.bulkUpdate(accounts(1, 10, "b"));
+        Assert.assertEquals(ids(1, 10), lastParams());
+    }
+
+    @Test
+    public void updateChunks() throws Exception {
+        _mgr.bulkUpdate(accounts(1, UPDATE, "b"));
+        Assert.assertEquals(Arrays.asList(UPDATE), _ds.getBatches());
+
+        _ds.clear();
+        _mgr.bulkUpdate(accounts(1, 2 * UPDATE + 1, "c"));
+        Assert.assertEquals(Arrays.asList(UPDATE, UPDATE, 1),
+            _ds.getBatches());
+        // Sorted across the batches
+        Assert.assertEquals(ids(1, 2 * UPDATE + 1), lastParams());
+        Assert.assertEquals(2 * UPDATE + 1, count("name = 'c'"));
+    }
+
+    @Test
+    public void deleteChunks() throws Exception {
+        List<Account> l = accounts(1, DELETE, null);
+        Assert.assertEquals(DELETE, _mgr.bulkDelete(l));
+        Assert.assertEquals(1, _ds.getRows().size());
+
+        _ds.clear();
+        l = accounts(DELETE + 1, DELETE + 2, null);
+        // Past the last row
+        Assert.assertEquals(DELETE + 1, _mgr.bulkDelete(l));
+        Assert.assertEquals(2, _ds.getRows().size());
+        Assert.assertEquals(DELETE, _ds.getRows().get(0).size());
+        Assert.assertEquals(2, _ds.getRows().get(1).size());
+        ArrayList<Object> keys = new ArrayList<Object>();
+        for (List<Object> r: _ds.getRows()) {
+            keys.addAll(r);
+        }
+        Assert.assertEquals(ids(DELETE + 1, DELETE + 2), keys);
+        Assert.assertEquals(0, count("1 = 1"));
+    }
+}
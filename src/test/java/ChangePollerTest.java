@@ -0,0 +1,311 @@
+/*
+ *
+ * @author prasad mokkapati - prasadm80@gmail.com
+ */
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import javax.sql.DataSource;
+import org.junit.*;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+
+import com.tengo.sqldb.*;
+
+public class ChangePollerTest {
+    /**
+     * Account with the time of its last change
+     */
+    @Table(name="paccount")
+    public static class Polled {
+        private long _id;
+        private String _name;
+        private Date _updated;
+
+        @Id
+        public long getId() { return _id; }
+        public void setId(long id) { _id = id; }
+
+        public String getName() { return _name; }
+        public void setName(String v) { _name = v; }
+
+        @Watermark
+        public Date getUpdated() { return _updated; }
+        public void setUpdated(Date v) { _updated = v; }
+    }
+
+    /**
+     * Keeps the ids of the rows and the checkpoints it is given, and
+     * throws when fail is set
+     */
+    static class Recorder implements ChangePoller.Listener<Polled> {
+        final ArrayList<Long> _ids = new ArrayList<Long>();
+        final ArrayList<ChangePoller.Checkpoint> _checkpoints =
+            new ArrayList<ChangePoller.Checkpoint>();
+        boolean _fail = false;
+
+        public void changed(List<Polled> rows,
+                ChangePoller.Checkpoint checkpoint) throws DBException {
+            if ( _fail ) {
+                throw new DBException("listener failed");
+            }
+            for (Polled p: rows) {
+                _ids.add(p.getId());
+            }
+            _checkpoints.add(checkpoint);
+        }
+
+        List<Long> take() {
+            ArrayList<Long> ret = new ArrayList<Long>(_ids);
+            _ids.clear();
+            return ret;
+        }
+    }
+
+    private static final long T0 = 1700000000000L;
+
+    private H2Module _h2 = null;
+    private DBManager _mgr = null;
+    private Recorder _rec = null;
+
+    @Before
+    public void init() throws Exception {
+        _h2 = new H2Module("changepollertest");
+        _mgr = manager(_h2.getDataSource());
+        _mgr.executeSQL("drop table if exists paccount");
+        _mgr.executeSQL("create table paccount(id bigint primary key, "
+            + "name varchar(50), updated timestamp)");
+        // Rows 1 to 7 changed at the same time, 8 never
+        for (long id=7; id >= 1; id--) {
+            insert(id, T0);
+        }
+        insert(8, 0);
+        _rec = new Recorder();
+    }
+
+    private static DBManager manager(final DataSource ds) {
+        return Guice.createInjector(new AbstractModule() {
+                protected void configure() {
+                    bind(DataSource.class).toInstance(ds);
+                }
+            }).getInstance(DBManager.class);
+    }
+
+    private void insert(long id, long updated) throws DBException {
+        _mgr.executeSQL("insert into paccount values (" + id + ", 'p" + id
+            + "', " + (updated == 0 ? "null" : "timestamp '"
+                + new java.sql.Timestamp(updated) + "'") + ")");
+    }
+
+    private void touch(long id, long updated) throws DBException {
+        _mgr.executeSQL("update paccount set updated = timestamp '"
+            + new java.sql.Timestamp(updated) + "' where id = " + id);
+    }
+
+    private ChangePoller<Polled> poller(DBManager mgr) throws DBException {
+        return new ChangePoller<Polled>(mgr, Polled.class, _rec)
+            .setBatchSize(3);
+    }
+
+    private static List<Long> ids(long ... ids) {
+        ArrayList<Long> ret = new ArrayList<Long>();
+        for (long id: ids) {
+            ret.add(id);
+        }
+        return ret;
+    }
+
+    /**
+     * Rows with the same watermark are paged by their keys, each read once
+     */
+    @Test
+    public void equalWatermarks() throws Exception {
+        ChangePoller<Polled> p = poller(_mgr);
+        Assert.assertEquals(7, p.poll());
+        Assert.assertEquals(ids(1, 2, 3, 4, 5, 6, 7), _rec.take());
+        Assert.assertEquals(3, p.getBatches());
+        long keys[] = { 3, 6, 7 };
+        for (int i=0; i < keys.length; i++) {
+            ChangePoller.Checkpoint c = _rec._checkpoints.get(i);
+            Assert.assertEquals(T0, ((Date)c.getWatermark()).getTime());
+            Assert.assertEquals(Arrays.asList((Object)keys[i]),
+                Arrays.asList(c.getKeys()));
+        }
+        Assert.assertEquals(Long.valueOf(7),
+            p.getCheckpoint().getKeys()[0]);
+
+        Assert.assertEquals(0, p.poll());
+        touch(2, T0 + 1000);
+        touch(8, T0 + 1000);
+        Assert.assertEquals(2, p.poll());
+        Assert.assertEquals(ids(2, 8), _rec.take());
+    }
+
+    /**
+     * A full last batch is followed by a query that finds no rows
+     */
+    @Test
+    public void fullBatch() throws Exception {
+        _mgr.executeSQL("delete from paccount where id = 7");
+        ChangePoller<Polled> p = poller(_mgr);
+        Assert.assertEquals(6, p.poll());
+        Assert.assertEquals(2, p.getBatches());
+    }
+
+    @Test
+    public void resume() throws Exception {
+        ChangePoller<Polled> p = poller(_mgr);
+        p.setBatchSize(4).poll();
+        _rec.take();
+        ChangePoller.Checkpoint first = _rec._checkpoints.get(0);
+
+        // Saved and read back, as after a restart
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(first);
+        out.close();
+        ChangePoller.Checkpoint saved = (ChangePoller.Checkpoint)
+            new ObjectInputStream(new ByteArrayInputStream(
+                bytes.toByteArray())).readObject();
+
+        ChangePoller<Polled> q = poller(_mgr).setCheckpoint(saved);
+        Assert.assertEquals(3, q.poll());
+        Assert.assertEquals(ids(5, 6, 7), _rec.take());
+
+        q.setCheckpoint(new ChangePoller.Checkpoint(new Date(T0), 6L));
+        Assert.assertEquals(1, q.poll());
+        Assert.assertEquals(ids(7), _rec.take());
+
+        try {
+            q.setCheckpoint(new ChangePoller.Checkpoint(new Date(T0)));
+            Assert.fail();
+        }
+        catch (DBException e) {
+        }
+    }
+
+    /**
+     * The checkpoint does not move past a batch whose listener throws, so
+     * the next poll reads it again
+     */
+    @Test
+    public void listenerFails() throws Exception {
+        ChangePoller<Polled> p = poller(_mgr);
+        p.setCheckpoint(new ChangePoller.Checkpoint(new Date(T0), 3L));
+        _rec._fail = true;
+        try {
+            p.poll();
+            Assert.fail();
+        }
+        catch (DBException e) {
+            Assert.assertEquals("listener failed", e.getMessage());
+        }
+        Assert.assertEquals(Long.valueOf(3), p.getCheckpoint().getKeys()[0]);
+        Assert.assertEquals(0, p.getBatches());
+        _rec._fail = false;
+        Assert.assertEquals(4, p.poll());
+        Assert.assertEquals(ids(4, 5, 6, 7), _rec.take());
+    }
+
+    /**
+     * A database that returns the row of the checkpoint again stops the
+     * poll instead of passing the same batch forever. The watermark of the
+     * checkpoint is a Date, the one read is a Timestamp.
+     */
+    @Test
+    public void stuck() throws Exception {
+        final DataSource ds = _h2.getDataSource();
+        DataSource ignoring = (DataSource)Proxy.newProxyInstance(
+            getClass().getClassLoader(), new Class<?>[] { DataSource.class },
+            new InvocationHandler() {
+                public Object invoke(Object p, Method m, Object[] args)
+                        throws Throwable {
+                    return ignorePosition((Connection)call(ds, m, args));
+                }
+            });
+        ChangePoller<Polled> p = poller(manager(ignoring)).setCheckpoint(
+            new ChangePoller.Checkpoint(new Date(T0), 3L));
+        try {
+            p.poll();
+            Assert.fail();
+        }
+        catch (DBException e) {
+            Assert.assertTrue(e.getMessage(),
+                e.getMessage().contains("did not move past"));
+        }
+        Assert.assertTrue(_rec._ids.isEmpty());
+    }
+
+    /**
+     * Returns a connection whose poll queries read from the first row,
+     * whatever position is bound
+     */
+    private Connection ignorePosition(final Connection c) {
+        return (Connection)Proxy.newProxyInstance(
+            getClass().getClassLoader(), new Class<?>[] { Connection.class },
+            new InvocationHandler() {
+                public Object invoke(Object p, Method m, Object[] args)
+                        throws Throwable {
+                    if ( !m.getName().equals("prepareStatement") ) {
+                        return call(c, m, args);
+                    }
+                    String sql = (String)args[0];
+                    int w = sql.indexOf(" where ");
+                    int o = sql.indexOf(" order by ");
+                    final PreparedStatement s = c.prepareStatement(
+                        sql.substring(0, w) + " where id <= 3"
+                            + sql.substring(o));
+                    return Proxy.newProxyInstance(
+                        getClass().getClassLoader(),
+                        new Class<?>[] { PreparedStatement.class },
+                        new InvocationHandler() {
+                            public Object invoke(Object p, Method m,
+                                    Object[] args) throws Throwable {
+                                if ( m.getName().startsWith("set")
+                                        && args.length == 2
+                                        && args[0] instanceof Integer ) {
+                                    return null;
+                                }
+                                return call(s, m, args);
+                            }
+                        });
+                }
+            });
+    }
+
+    private static Object call(Object o, Method m, Object[] args)
+            throws Throwable {
+        try {
+            return m.invoke(o, args);
+        }
+        catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    @Test
+    public void noWatermark() throws Exception {
+        try {
+            new ChangePoller<Account>(_mgr, Account.class,
+                new ChangePoller.Listener<Account>() {
+                    public void changed(List<Account> rows,
+                            ChangePoller.Checkpoint checkpoint) {
+                    }
+                });
+            Assert.fail();
+        }
+        catch (DBException e) {
+        }
+    }
+}
@@ -0,0 +1,365 @@
+/*
+ *
+ * @author prasad mokkapati - prasadm80@gmail.com
+ */
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import javax.sql.DataSource;
+import org.junit.*;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+
+import com.tengo.sqldb.*;
+
+public class CoalescerTest {
+    /**
+     * Holds the first query run after close() until open(), so gets and
+     * queries of other threads arrive while it is running
+     */
+    static class Gate implements InvocationHandler {
+        private final Object _target;
+        private final Gate _root;
+        private boolean _closed = false;
+        private CountDownLatch _entered = null;
+        private CountDownLatch _release = null;
+
+        Gate(Object target, Gate root) {
+            _target = target;
+            _root = (root == null) ? this : root;
+        }
+
+        synchronized void close() {
+            _closed = true;
+            _entered = new CountDownLatch(1);
+            _release = new CountDownLatch(1);
+        }
+
+        /**
+         * Waits for the held query to start
+         */
+        void awaitHeld() throws InterruptedException {
+            CountDownLatch l;
+            synchronized (this) {
+                l = _entered;
+            }
+            Assert.assertTrue(l.await(10, TimeUnit.SECONDS));
+        }
+
+        synchronized void open() {
+            _release.countDown();
+        }
+
+        private void hold() throws InterruptedException {
+            CountDownLatch l = null;
+            synchronized (this) {
+                if ( _closed ) {
+                    _closed = false;
+                    _entered.countDown();
+                    l = _release;
+                }
+            }
+            if ( l != null ) {
+                l.await(10, TimeUnit.SECONDS);
+            }
+        }
+
+        public Object invoke(Object p, Method m, Object[] args)
+                throws Throwable {
+            if ( m.getName().equals("executeQuery") ) {
+                _root.hold();
+            }
+            Object ret;
+            try {
+                ret = m.invoke(_target, args);
+            }
+            catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+            Class<?> type = (ret instanceof Connection) ? Connection.class
+                : (ret instanceof Statement) ? m.getReturnType() : null;
+            return (type == null) ? ret : Proxy.newProxyInstance(
+                getClass().getClassLoader(), new Class<?>[] { type },
+                new Gate(ret, _root));
+        }
+    }
+
+    private static final int ROWS = 10;
+
+    private H2Module _h2 = null;
+    private TrackingDataSource _ds = null;
+    private Gate _gate = null;
+    private DBManager _mgr = null;
+    private ExecutorService _pool = null;
+
+    @Before
+    public void init() throws Exception {
+        _h2 = new H2Module("coalescertest");
+        _ds = new TrackingDataSource(_h2.getDataSource());
+        _gate = new Gate(_ds, null);
+        _mgr = manager((DataSource)Proxy.newProxyInstance(
+            getClass().getClassLoader(), new Class<?>[] { DataSource.class },
+            _gate));
+        H2Module.createTables(_mgr);
+        _mgr.executeSQL("insert into account(accountid, accounttype, name, "
+            + "balance, language, status) select x, 0, concat('a', x), 0, "
+            + "0, 0 from system_range(1, " + ROWS + ")");
+        _ds.clear();
+        _pool = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void close() {
+        _pool.shutdownNow();
+    }
+
+    private static DBManager manager(final DataSource ds) {
+        return Guice.createInjector(new AbstractModule() {
+                protected void configure() {
+                    bind(DataSource.class).toInstance(ds);
+                }
+            }).getInstance(DBManager.class);
+    }
+
+    private Future<Account> get(final DBManager mgr, final long id) {
+        return _pool.submit(new Callable<Account>() {
+            public Account call() throws Exception {
+                Account a = new Account();
+                a.setAccountId(id);
+                return mgr.get(a);
+            }
+        });
+    }
+
+    private Future<ArrayList<Account>> select(final DBManager mgr) {
+        return _pool.submit(new Callable<ArrayList<Account>>() {
+            public ArrayList<Account> call() throws Exception {
+                return mgr.select(Account.class,
+                    "select * from account order by accountid");
+            }
+        });
+    }
+
+    /**
+     * Returns the number of keys of each getAll query run
+     */
+    private ArrayList<Integer> queries() {
+        ArrayList<Integer> ret = new ArrayList<Integer>();
+        for (int i=0; i < _ds.getRows().size(); i++) {
+            ret.add(_ds.getRows().get(i).size());
+        }
+        return ret;
+    }
+
+    private static int lanes(Coalescer co) throws Exception {
+        Field f = Coalescer.class.getDeclaredField("_lanes");
+        f.setAccessible(true);
+        synchronized (co) {
+            return ((Map<?, ?>)f.get(co)).size();
+        }
+    }
+
+    private static void assertRow(long id, Future<Account> f)
+            throws Exception {
+        Account a = f.get(10, TimeUnit.SECONDS);
+        Assert.assertEquals(id, a.getAccountId());
+        Assert.assertEquals("a" + id, a.getName());
+    }
+
+    /**
+     * A get is sent at once when no get of the bean is running
+     */
+    @Test(timeout=20000)
+    public void idle() throws Exception {
+        Coalescer co = new Coalescer(TimeUnit.SECONDS.toMicros(5), 10);
+        _mgr.setCoalescer(co);
+        long start = System.nanoTime();
+        assertRow(1, get(_mgr, 1));
+        Assert.assertTrue(System.nanoTime() - start
+            < TimeUnit.SECONDS.toNanos(5));
+        Assert.assertEquals(1, co.getBatches());
+        Assert.assertEquals(0, co.getBatchedGets());
+        Assert.assertEquals(0, lanes(co));
+    }
+
+    /**
+     * Gets that arrive while a get is running are read with one query,
+     * sent when maxBatch keys are waiting without waiting for the window
+     */
+    @Test(timeout=20000)
+    public void merge() throws Exception {
+        Coalescer co = new Coalescer(TimeUnit.SECONDS.toMicros(5), 3);
+        _mgr.setCoalescer(co);
+        _gate.close();
+        Future<Account> first = get(_mgr, 1);
+        _gate.awaitHeld();
+        long start = System.nanoTime();
+        ArrayList<Future<Account>> l = new ArrayList<Future<Account>>();
+        for (long id=2; id <= 4; id++) {
+            l.add(get(_mgr, id));
+        }
+        for (int i=0; i < l.size(); i++) {
+            assertRow(i + 2, l.get(i));
+        }
+        Assert.assertTrue(System.nanoTime() - start
+            < TimeUnit.SECONDS.toNanos(5));
+        _gate.open();
+        assertRow(1, first);
+        Assert.assertEquals(4, co.getGets());
+        Assert.assertEquals(2, co.getBatches());
+        Assert.assertEquals(2, co.getBatchedGets());
+        Assert.assertTrue(queries().contains(3));
+        Assert.assertEquals(0, lanes(co));
+    }
+
+    /**
+     * Gets past maxBatch start a batch of their own
+     */
+    @Test(timeout=20000)
+    public void maxBatch() throws Exception {
+        Coalescer co = new Coalescer(TimeUnit.MILLISECONDS.toMicros(300), 2);
+        _mgr.setCoalescer(co);
+        _gate.close();
+        Future<Account> first = get(_mgr, 1);
+        _gate.awaitHeld();
+        ArrayList<Future<Account>> l = new ArrayList<Future<Account>>();
+        for (long id=2; id <= 6; id++) {
+            l.add(get(_mgr, id));
+        }
+        for (int i=0; i < l.size(); i++) {
+            assertRow(i + 2, l.get(i));
+        }
+        _gate.open();
+        assertRow(1, first);
+        // No query reads more than maxBatch keys
+        for (int n: queries()) {
+            Assert.assertTrue(queries().toString(), n <= 2);
+        }
+        Assert.assertTrue(co.getBatches() >= 4);
+        Assert.assertEquals(0, lanes(co));
+    }
+
+    /**
+     * A key already waiting in the batch is read on its own, so each
+     * caller gets an object of its own
+     */
+    @Test(timeout=20000)
+    public void duplicateKey() throws Exception {
+        Coalescer co = new Coalescer(TimeUnit.MILLISECONDS.toMicros(300), 10);
+        _mgr.setCoalescer(co);
+        _gate.close();
+        Future<Account> first = get(_mgr, 1);
+        _gate.awaitHeld();
+        Future<Account> a = get(_mgr, 2);
+        Future<Account> b = get(_mgr, 2);
+        assertRow(2, a);
+        assertRow(2, b);
+        Assert.assertNotSame(a.get(), b.get());
+        _gate.open();
+        assertRow(1, first);
+        Assert.assertEquals(3, co.getBatches());
+        Assert.assertEquals(0, co.getBatchedGets());
+        Assert.assertEquals(0, lanes(co));
+    }
+
+    /**
+     * Missing rows return the object passed in
+     */
+    @Test(timeout=20000)
+    public void missing() throws Exception {
+        Coalescer co = new Coalescer(TimeUnit.MILLISECONDS.toMicros(300), 10);
+        _mgr.setCoalescer(co);
+        _gate.close();
+        Future<Account> first = get(_mgr, 1);
+        _gate.awaitHeld();
+        Future<Account> a = get(_mgr, ROWS + 1);
+        Future<Account> b = get(_mgr, 2);
+        Assert.assertEquals(ROWS + 1, a.get().getAccountId());
+        Assert.assertNull(a.get().getName());
+        assertRow(2, b);
+        _gate.open();
+        assertRow(1, first);
+        Assert.assertEquals(1, co.getBatchedGets());
+    }
+
+    /**
+     * Callers of a running query wait for it and get lists of their own
+     * holding the same objects
+     */
+    @Test(timeout=20000)
+    public void singleFlight() throws Exception {
+        Coalescer co = new Coalescer(0, 1).setSingleFlight(true);
+        _mgr.setCoalescer(co);
+        _gate.close();
+        Future<ArrayList<Account>> first = select(_mgr);
+        _gate.awaitHeld();
+        ArrayList<Future<ArrayList<Account>>> l =
+            new ArrayList<Future<ArrayList<Account>>>();
+        for (int i=0; i < 3; i++) {
+            l.add(select(_mgr));
+        }
+        while ( co.getSharedQueries() < 3 ) {
+            Thread.sleep(1);
+        }
+        _gate.open();
+        ArrayList<Account> rows = first.get();
+        Assert.assertEquals(ROWS, rows.size());
+        for (Future<ArrayList<Account>> f: l) {
+            Assert.assertNotSame(rows, f.get());
+            Assert.assertEquals(rows, f.get());
+            Assert.assertSame(rows.get(0), f.get().get(0));
+        }
+        Assert.assertEquals(1, _ds.getUsed().size());
+        Assert.assertEquals(4, co.getQueries());
+
+        // Not shared once it has returned
+        Assert.assertNotSame(rows.get(0), select(_mgr).get().get(0));
+        Assert.assertEquals(2, _ds.getUsed().size());
+    }
+
+    /**
+     * Gets and queries of different DBManagers sharing a Coalescer are
+     * not merged
+     */
+    @Test(timeout=20000)
+    public void managers() throws Exception {
+        Coalescer co = new Coalescer(TimeUnit.SECONDS.toMicros(5), 10)
+            .setSingleFlight(true);
+        DBManager other = manager(_h2.getDataSource());
+        other.setCoalescer(co);
+        _mgr.setCoalescer(co);
+
+        _gate.close();
+        Future<Account> first = get(_mgr, 1);
+        _gate.awaitHeld();
+        // Sent at once, nothing of its DBManager is running
+        long start = System.nanoTime();
+        assertRow(2, get(other, 2));
+        Assert.assertTrue(System.nanoTime() - start
+            < TimeUnit.SECONDS.toNanos(5));
+        Assert.assertEquals(0, co.getBatchedGets());
+        _gate.open();
+        assertRow(1, first);
+
+        _gate.close();
+        Future<ArrayList<Account>> rows = select(_mgr);
+        _gate.awaitHeld();
+        Assert.assertEquals(ROWS, select(other).get().size());
+        Assert.assertEquals(0, co.getSharedQueries());
+        _gate.open();
+        Assert.assertEquals(ROWS, rows.get().size());
+        Assert.assertEquals(0, lanes(co));
+    }
+}
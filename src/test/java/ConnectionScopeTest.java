@@ -0,0 +1,171 @@
+/*
+ *
+ * @author prasad mokkapati - prasadm80@gmail.com
+ */
+import java.util.concurrent.Callable;
+import org.junit.*;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+
+import com.tengo.sqldb.*;
+import com.tengo.sqldb.inject.module.TransactionModule;
+
+public class ConnectionScopeTest {
+    /**
+     * Methods that make several DBManager calls
+     */
+    public static class Service {
+        @Inject DBManager _mgr;
+        TrackingDataSource _ds;
+        int _open = 0;  // Connections open in the last call
+
+        private long count() throws DBException {
+            return _mgr.get(Long.class, "select count(*) from account");
+        }
+
+        private void work() throws DBException {
+            Account a = new Account();
+            a.setName("a");
+            _mgr.insert(a);
+            count();
+            count();
+            _open = _ds.getOpen();
+        }
+
+        public void unscoped() throws Exception {
+            work();
+        }
+
+        @ConnectionScope
+        public void scoped() throws Exception {
+            work();
+        }
+
+        @ConnectionScope
+        public void nested() throws Exception {
+            count();
+            scoped();
+            count();
+        }
+
+        @ConnectionScope
+        public void fail() throws Exception {
+            work();
+            throw new IllegalStateException("fail");
+        }
+
+        @ConnectionScope
+        public void withTransaction() throws Exception {
+            count();
+            transaction();
+            count();
+        }
+
+        @Transactional
+        public void transaction() throws Exception {
+            work();
+        }
+    }
+
+    private TrackingDataSource _ds = null;
+    private Service _service = null;
+    private DBManager _mgr = null;
+
+    @Before
+    public void init() throws Exception {
+        H2Module h2 = new H2Module("connectionscopetest");
+        _ds = new TrackingDataSource(h2.getDataSource());
+        Injector inj = Guice.createInjector(new AbstractModule() {
+                protected void configure() {
+                    bind(javax.sql.DataSource.class).toInstance(_ds);
+                }
+            }, new TransactionModule());
+        _mgr = inj.getInstance(DBManager.class);
+        H2Module.createTables(_mgr);
+        _service = inj.getInstance(Service.class);
+        _service._ds = _ds;
+        _ds.clear();
+    }
+
+    private long count() throws DBException {
+        return _mgr.get(Long.class, "select count(*) from account");
+    }
+
+    @Test
+    public void unscoped() throws Exception {
+        _service.unscoped();
+        Assert.assertEquals(3, _ds.getOpened());
+        Assert.assertEquals(0, _ds.getOpen());
+    }
+
+    @Test
+    public void scoped() throws Exception {
+        _service.scoped();
+        Assert.assertEquals(1, _ds.getOpened());
+        Assert.assertEquals(1, _service._open);
+        // Released in auto commit mode
+        Assert.assertEquals(0, _ds.getOpen());
+        Assert.assertEquals(TrackingDataSource.state(false,
+            java.sql.Connection.TRANSACTION_READ_COMMITTED, true),
+            _ds.getReleased().get(0));
+        Assert.assertNull(TransactionContext.current());
+        Assert.assertEquals(1, count());
+    }
+
+    /**
+     * The DBManager of the test and the one of the service are separate
+     * instances, and get one connection each
+     */
+    @Test
+    public void scope() throws Exception {
+        long n = TransactionContext.scope(new Callable<Long>() {
+            public Long call() throws Exception {
+                _service.unscoped();
+                Assert.assertTrue(TransactionContext.current().isScope());
+                return count();
+            }
+        });
+        Assert.assertEquals(1, n);
+        Assert.assertEquals(2, _ds.getOpened());
+        Assert.assertEquals(1, _service._open);
+        Assert.assertEquals(0, _ds.getOpen());
+        Assert.assertNull(TransactionContext.current());
+    }
+
+    @Test
+    public void nested() throws Exception {
+        _service.nested();
+        Assert.assertEquals(1, _ds.getOpened());
+        Assert.assertEquals(0, _ds.getOpen());
+    }
+
+    @Test
+    public void released() throws Exception {
+        try {
+            _service.fail();
+            Assert.fail();
+        }
+        catch (IllegalStateException e) {
+        }
+        Assert.assertEquals(1, _ds.getOpened());
+        Assert.assertEquals(0, _ds.getOpen());
+        Assert.assertNull(TransactionContext.current());
+        // Auto commit, the insert is kept
+        Assert.assertEquals(1, count());
+    }
+
+    /**
+     * A transaction in the scope uses the connection of the scope and
+     * leaves it open for the rest of the scope
+     */
+    @Test
+    public void transaction() throws Exception {
+        _service.withTransaction();
+        Assert.assertEquals(1, _ds.getOpened());
+        Assert.assertEquals(1, _service._open);
+        Assert.assertEquals(0, _ds.getOpen());
+        Assert.assertEquals(1, count());
+    }
+}
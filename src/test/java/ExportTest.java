@@ -0,0 +1,160 @@
+/*
+ *
+ * @author prasad mokkapati - prasadm80@gmail.com
+ */
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.channels.Channels;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+import javax.sql.DataSource;
+import org.junit.*;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+
+import com.tengo.sqldb.*;
+
+public class ExportTest {
+    /**
+     * Fails the result set after a number of rows, like a connection lost
+     * in the middle of a query
+     */
+    static class Failing implements InvocationHandler {
+        private final Object _target;
+        private final int _rows;
+        private int _next = 0;
+
+        Failing(Object target, int rows) {
+            _target = target;
+            _rows = rows;
+        }
+
+        public Object invoke(Object p, Method m, Object[] args)
+                throws Throwable {
+            if ( m.getName().equals("next") && ++_next > _rows ) {
+                throw new SQLException("connection lost");
+            }
+            Object ret;
+            try {
+                ret = m.invoke(_target, args);
+            }
+            catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+            Class<?> type = (ret instanceof Connection) ? Connection.class
+                : (ret instanceof Statement) ? m.getReturnType()
+                : (ret instanceof ResultSet) ? ResultSet.class : null;
+            return (type == null) ? ret : Proxy.newProxyInstance(
+                getClass().getClassLoader(), new Class<?>[] { type },
+                new Failing(ret, _rows));
+        }
+    }
+
+    private static final int ROWS = 2000;
+
+    private H2Module _h2 = null;
+    private DBManager _mgr = null;
+
+    @Before
+    public void init() throws Exception {
+        _h2 = new H2Module("exporttest");
+        _mgr = manager(_h2.getDataSource());
+        H2Module.createTables(_mgr);
+        _mgr.executeSQL("insert into account(accountid, accounttype, name, "
+            + "balance, language, status) select x, 0, concat('a', x), 0, "
+            + "0, 0 from system_range(1, " + ROWS + ")");
+    }
+
+    private static DBManager manager(final DataSource ds) {
+        return Guice.createInjector(new AbstractModule() {
+                protected void configure() {
+                    bind(DataSource.class).toInstance(ds);
+                }
+            }).getInstance(DBManager.class);
+    }
+
+    private static byte[] export(DBManager mgr, boolean gzip)
+            throws DBException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        mgr.export(Account.class, new Export(Export.Format.CSV)
+            .setGzip(gzip).setBuffers(2, 1024), Channels.newChannel(out));
+        return out.toByteArray();
+    }
+
+    private static byte[] gunzip(byte b[]) throws Exception {
+        InputStream in = new GZIPInputStream(new ByteArrayInputStream(b));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte buf[] = new byte[4096];
+        int n;
+        while ( (n = in.read(buf)) > 0 ) {
+            out.write(buf, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Exports with a query that fails after half of the rows
+     */
+    private byte[] failed(boolean gzip) throws Exception {
+        DataSource ds = (DataSource)Proxy.newProxyInstance(
+            getClass().getClassLoader(), new Class<?>[] { DataSource.class },
+            new Failing(_h2.getDataSource(), ROWS / 2));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            manager(ds).export(Account.class, new Export(Export.Format.CSV)
+                .setGzip(gzip).setBuffers(2, 1024), Channels.newChannel(out));
+            Assert.fail();
+        }
+        catch (DBException e) {
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void complete() throws Exception {
+        byte csv[] = export(_mgr, false);
+        Assert.assertTrue(Arrays.equals(csv, gunzip(export(_mgr, true))));
+        // Header and a line of each row
+        Assert.assertEquals(ROWS + 1,
+            new String(csv, "UTF-8").split("\r\n").length);
+    }
+
+    /**
+     * The rows written before the query failed are a part of the full
+     * export
+     */
+    @Test
+    public void failedPlain() throws Exception {
+        byte csv[] = export(_mgr, false);
+        byte part[] = failed(false);
+        Assert.assertTrue(part.length > 0 && part.length < csv.length);
+        Assert.assertTrue(Arrays.equals(part,
+            Arrays.copyOf(csv, part.length)));
+    }
+
+    /**
+     * The gzip stream of a failed query is not finished, so it can not be
+     * read as a complete export
+     */
+    @Test
+    public void failedGzip() throws Exception {
+        byte part[] = failed(true);
+        Assert.assertTrue(part.length > 0);
+        try {
+            gunzip(part);
+            Assert.fail();
+        }
+        catch (EOFException e) {
+        }
+    }
+}
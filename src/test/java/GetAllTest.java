@@ -0,0 +1,174 @@
+/*
+ *
+ * @author prasad mokkapati - prasadm80@gmail.com
+ */
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.*;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+
+import com.tengo.sqldb.*;
+
+public class GetAllTest {
+    /**
+     * Login rows keyed by account and user id
+     */
+    @Table(name="Login", uniqueConstraints={"accountid", "userid"})
+    public static class UserLogin {
+        private long _loginId;
+        private long _accountId;
+        private int _userType;
+        private String _userid;
+        private String _password;
+
+        public long getLoginId() { return _loginId; }
+        public void setLoginId(long id) { _loginId = id; }
+
+        public long getAccountId() { return _accountId; }
+        public void setAccountId(long id) { _accountId = id; }
+
+        public int getUserType() { return _userType; }
+        public void setUserType(int t) { _userType = t; }
+
+        public String getUserid() { return _userid; }
+        public void setUserid(String v) { _userid = v; }
+
+        public String getPassword() { return _password; }
+        public void setPassword(String v) { _password = v; }
+    }
+
+    private static final int ROWS = 2 * BeanMap.GETALL_CHUNK_SIZE + 1;
+
+    private TrackingDataSource _ds = null;
+    private DBManager _mgr = null;
+
+    @Before
+    public void init() throws Exception {
+        H2Module h2 = new H2Module("getalltest");
+        _ds = new TrackingDataSource(h2.getDataSource());
+        _mgr = Guice.createInjector(new AbstractModule() {
+                protected void configure() {
+                    bind(javax.sql.DataSource.class).toInstance(_ds);
+                }
+            }).getInstance(DBManager.class);
+        H2Module.createTables(_mgr);
+        _mgr.executeSQL("insert into account(accountid, accounttype, name, "
+            + "balance, language, status) select x, 0, concat('a', x), 0, "
+            + "0, 0 from system_range(1, " + ROWS + ")");
+        _mgr.executeSQL("insert into login(accountid, usertype, userid) "
+            + "select x / 2, 0, concat('u', x) from system_range(2, 9)");
+        _ds.clear();
+    }
+
+    /**
+     * Returns the number of queries run since the last call
+     */
+    private int queries() {
+        int ret = _ds.getUsed().size();
+        _ds.clear();
+        return ret;
+    }
+
+    private static List<Long> ids(List<Account> l) {
+        ArrayList<Long> ret = new ArrayList<Long>();
+        for (Account a: l) {
+            ret.add(a == null ? null : a.getAccountId());
+        }
+        return ret;
+    }
+
+    @Test
+    public void order() throws Exception {
+        ArrayList<Account> l = _mgr.getAllByKeys(Account.class,
+            Arrays.asList(3L, 1L, 2L));
+        Assert.assertEquals(Arrays.asList(3L, 1L, 2L), ids(l));
+        Assert.assertEquals("a3", l.get(0).getName());
+        Assert.assertEquals(1, queries());
+    }
+
+    @Test
+    public void missing() throws Exception {
+        ArrayList<Account> l = _mgr.getAllByKeys(Account.class,
+            Arrays.asList(2L, ROWS + 1L, 1L));
+        Assert.assertEquals(Arrays.asList(2L, null, 1L), ids(l));
+    }
+
+    @Test
+    public void duplicates() throws Exception {
+        ArrayList<Account> l = _mgr.getAllByKeys(Account.class,
+            Arrays.asList(2L, 1L, 2L, 2L));
+        Assert.assertEquals(Arrays.asList(2L, 1L, 2L, 2L), ids(l));
+        // Each key is read once
+        Assert.assertSame(l.get(0), l.get(2));
+        Assert.assertEquals(1, queries());
+    }
+
+    @Test
+    public void beans() throws Exception {
+        ArrayList<Account> objs = new ArrayList<Account>();
+        for (long id: new long[] { 5, 4, ROWS + 1 }) {
+            Account a = new Account();
+            a.setAccountId(id);
+            objs.add(a);
+        }
+        ArrayList<Account> l = _mgr.getAll(objs);
+        Assert.assertEquals(Arrays.asList(5L, 4L, null), ids(l));
+        // New objects are returned
+        Assert.assertNotSame(objs.get(0), l.get(0));
+        Assert.assertEquals("a5", l.get(0).getName());
+        Assert.assertTrue(_mgr.getAll(new ArrayList<Account>()).isEmpty());
+    }
+
+    @Test
+    public void chunks() throws Exception {
+        ArrayList<Long> keys = new ArrayList<Long>();
+        for (long i=ROWS; i > 0; i--) {
+            keys.add(i);
+        }
+        ArrayList<Account> l = _mgr.getAllByKeys(Account.class, keys);
+        Assert.assertEquals(keys, ids(l));
+        Assert.assertEquals(3, queries());
+
+        // Duplicates do not count against the chunk size
+        keys = new ArrayList<Long>();
+        for (int i=0; i < BeanMap.GETALL_CHUNK_SIZE; i++) {
+            keys.add(1L + i);
+            keys.add(1L + i);
+        }
+        l = _mgr.getAllByKeys(Account.class, keys);
+        Assert.assertEquals(keys, ids(l));
+        Assert.assertEquals(1, queries());
+
+        keys.add(ROWS + 0L);
+        _mgr.getAllByKeys(Account.class, keys);
+        Assert.assertEquals(2, queries());
+    }
+
+    /**
+     * The generic dialect of H2 matches composite keys with or clauses
+     */
+    @Test
+    public void compositeKeys() throws Exception {
+        Assert.assertEquals(Dialect.Generic, _mgr.getDialect());
+        ArrayList<UserLogin> l = _mgr.getAllByKeys(UserLogin.class,
+            Arrays.asList(new Object[] { 4L, "u9" },
+                new Object[] { 1L, "u2" }, new Object[] { 1L, "u9" },
+                new Object[] { 4L, "u9" }));
+        Assert.assertEquals(4, l.size());
+        Assert.assertEquals("u9", l.get(0).getUserid());
+        Assert.assertEquals(4, l.get(0).getAccountId());
+        Assert.assertEquals("u2", l.get(1).getUserid());
+        Assert.assertNull(l.get(2));
+        Assert.assertSame(l.get(0), l.get(3));
+        Assert.assertEquals(1, queries());
+
+        try {
+            _mgr.getAllByKeys(UserLogin.class, Arrays.asList(1L));
+            Assert.fail();
+        }
+        catch (DBException e) {
+        }
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ *
+ * @author prasad mokkapati - prasadm80@gmail.com
+ */
+import com.google.inject.AbstractModule;
+import javax.sql.DataSource;
+import org.h2.jdbcx.JdbcDataSource;
+
+import com.tengo.sqldb.DBException;
+import com.tengo.sqldb.DBManager;
+
+/**
+ * In memory H2 database in MySQL mode, for tests that do not need the
+ * MySQL database of DBModule
+ */
+public class H2Module extends AbstractModule {
+    private final DataSource _d;
+
+    public H2Module(String name) {
+        JdbcDataSource source = new JdbcDataSource();
+        source.setURL("jdbc:h2:mem:" + name + ";MODE=MySQL;DB_CLOSE_DELAY=-1");
+        _d = source;
+    }
+
+    public DataSource getDataSource() {
+        return _d;
+    }
+
+    @Override 
+    protected void configure() {
+        bind(javax.sql.DataSource.class).toInstance(_d);
+    }
+
+    /**
+     * Creates empty Account and Login tables
+     */
+    public static void createTables(DBManager mgr) throws DBException {
+        mgr.executeSQL("drop table if exists account");
+        mgr.executeSQL("drop table if exists login");
+        mgr.executeSQL("create table account(accountid bigint "
+            + "auto_increment primary key, accounttype int, "
+            + "name varchar(50), telnum varchar(20), created timestamp, "
+            + "balance double, language int, status int)");
+        mgr.executeSQL("create table login(loginid bigint auto_increment "
+            + "primary key, accountid bigint, usertype int, "
+            + "userid varchar(20), password varchar(20))");
+    }
+}
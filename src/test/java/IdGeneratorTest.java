@@ -0,0 +1,236 @@
+/*
+ *
+ * @author prasad mokkapati - prasadm80@gmail.com
+ */
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.sql.DataSource;
+import org.junit.*;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+
+import com.tengo.sqldb.*;
+
+public class IdGeneratorTest {
+    /**
+     * Logins with ids from the sqldb_ids table
+     */
+    @Table(name="Login")
+    public static class TableLogin {
+        private long _loginId;
+        private String _userid;
+
+        @Id(generator=Id.Generator.TABLE, name="login", blockSize=10)
+        public long getLoginId() { return _loginId; }
+        public void setLoginId(long id) { _loginId = id; }
+
+        public String getUserid() { return _userid; }
+        public void setUserid(String v) { _userid = v; }
+    }
+
+    /**
+     * Logins with ids from a sequence
+     */
+    @Table(name="Login")
+    public static class SeqLogin {
+        private long _loginId;
+
+        @Id(generator=Id.Generator.SEQUENCE, name="login_seq", blockSize=10)
+        public long getLoginId() { return _loginId; }
+        public void setLoginId(long id) { _loginId = id; }
+    }
+
+    private H2Module _h2 = null;
+
+    @Before
+    public void init() throws Exception {
+        _h2 = new H2Module("idgeneratortest");
+        DBManager mgr = manager(_h2.getDataSource());
+        mgr.executeSQL("drop table if exists sqldb_ids");
+        mgr.executeSQL("create table sqldb_ids(name varchar(50) "
+            + "primary key, next_id bigint)");
+        mgr.executeSQL("drop sequence if exists login_seq");
+        mgr.executeSQL("create sequence login_seq start with 1 "
+            + "increment by 10");
+    }
+
+    private static DBManager manager(final DataSource ds) {
+        return Guice.createInjector(new AbstractModule() {
+                protected void configure() {
+                    bind(DataSource.class).toInstance(ds);
+                }
+            }).getInstance(DBManager.class);
+    }
+
+    private static List<Long> assign(DBManager mgr, int n)
+            throws DBException {
+        ArrayList<TableLogin> l = new ArrayList<TableLogin>();
+        for (int i=0; i < n; i++) {
+            l.add(new TableLogin());
+        }
+        mgr.assignIds(l);
+        ArrayList<Long> ret = new ArrayList<Long>();
+        for (TableLogin t: l) {
+            ret.add(t.getLoginId());
+        }
+        return ret;
+    }
+
+    private long nextId(DBManager mgr) throws DBException {
+        return mgr.get(Long.class,
+            "select next_id from sqldb_ids where name = 'login'");
+    }
+
+    /**
+     * Threads take ids from the same blocks, every id is handed out once
+     * and no block is skipped
+     */
+    @Test(timeout=30000)
+    public void blocks() throws Exception {
+        final DBManager mgr = manager(_h2.getDataSource());
+        final int threads = 8;
+        final int n = 250;
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        ArrayList<Future<List<Long>>> futures =
+            new ArrayList<Future<List<Long>>>();
+        for (int i=0; i < threads; i++) {
+            futures.add(pool.submit(new Callable<List<Long>>() {
+                public List<Long> call() throws Exception {
+                    start.await();
+                    ArrayList<Long> ret = new ArrayList<Long>();
+                    for (int j=0; j < n; j++) {
+                        ret.addAll(assign(mgr, 1));
+                    }
+                    return ret;
+                }
+            }));
+        }
+        start.countDown();
+        ArrayList<Long> ids = new ArrayList<Long>();
+        for (Future<List<Long>> f: futures) {
+            ids.addAll(f.get());
+        }
+        pool.shutdown();
+        Collections.sort(ids);
+        Assert.assertEquals(threads * n, ids.size());
+        for (int i=0; i < ids.size(); i++) {
+            Assert.assertEquals(i + 1, (long)ids.get(i));
+        }
+        Assert.assertEquals(threads * n + 1, nextId(mgr));
+    }
+
+    /**
+     * Each DBManager reserves blocks of its own
+     */
+    @Test
+    public void managers() throws Exception {
+        DBManager m1 = manager(_h2.getDataSource());
+        DBManager m2 = manager(_h2.getDataSource());
+        Assert.assertEquals(Long.valueOf(1), assign(m1, 1).get(0));
+        Assert.assertEquals(Long.valueOf(11), assign(m2, 1).get(0));
+        List<Long> l = assign(m1, 10);
+        Assert.assertEquals(Long.valueOf(2), l.get(0));
+        Assert.assertEquals(Long.valueOf(21), l.get(9));
+        Assert.assertEquals(31, nextId(m1));
+
+        // Ids already set are kept
+        TableLogin t = new TableLogin();
+        t.setLoginId(5);
+        m1.assignIds(Collections.singletonList(t));
+        Assert.assertEquals(5, t.getLoginId());
+    }
+
+    /**
+     * Another client creates the row of the name between the update that
+     * finds no row and the insert. The failed insert is rolled back and
+     * the row is updated.
+     */
+    @Test
+    public void createRace() throws Exception {
+        final DataSource ds = _h2.getDataSource();
+        final boolean raced[] = { false };
+        DataSource racing = (DataSource)Proxy.newProxyInstance(
+            getClass().getClassLoader(), new Class<?>[] { DataSource.class },
+            new InvocationHandler() {
+                public Object invoke(Object p, Method m, Object[] args)
+                        throws Throwable {
+                    Object ret = call(ds, m, args);
+                    return (ret instanceof Connection)
+                        ? racing((Connection)ret, raced) : ret;
+                }
+            });
+        List<Long> l = assign(manager(racing), 11);
+        Assert.assertTrue(raced[0]);
+        Assert.assertEquals(Long.valueOf(1001), l.get(0));
+        Assert.assertEquals(Long.valueOf(1011), l.get(10));
+        Assert.assertEquals(1021, nextId(manager(ds)));
+    }
+
+    private Connection racing(final Connection c, final boolean raced[]) {
+        return (Connection)Proxy.newProxyInstance(
+            getClass().getClassLoader(), new Class<?>[] { Connection.class },
+            new InvocationHandler() {
+                public Object invoke(Object p, Method m, Object[] args)
+                        throws Throwable {
+                    if ( m.getName().equals("prepareStatement") && !raced[0]
+                            && ((String)args[0]).startsWith("insert into "
+                                + "sqldb_ids") ) {
+                        raced[0] = true;
+                        manager(_h2.getDataSource()).executeSQL("insert "
+                            + "into sqldb_ids values ('login', 1001)");
+                    }
+                    return call(c, m, args);
+                }
+            });
+    }
+
+    private static Object call(Object o, Method m, Object[] args)
+            throws Throwable {
+        try {
+            return m.invoke(o, args);
+        }
+        catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    @Test
+    public void sequence() throws Exception {
+        DBManager mgr = manager(_h2.getDataSource());
+        ArrayList<SeqLogin> l = new ArrayList<SeqLogin>();
+        for (int i=0; i < 15; i++) {
+            l.add(new SeqLogin());
+        }
+        mgr.assignIds(l);
+        Assert.assertEquals(1, l.get(0).getLoginId());
+        Assert.assertEquals(10, l.get(9).getLoginId());
+        Assert.assertEquals(11, l.get(10).getLoginId());
+        Assert.assertEquals(15, l.get(14).getLoginId());
+    }
+
+    @Test
+    public void reserveFailure() throws Exception {
+        DBManager mgr = manager(_h2.getDataSource());
+        mgr.executeSQL("drop table sqldb_ids");
+        try {
+            assign(mgr, 1);
+            Assert.fail();
+        }
+        catch (DBException e) {
+            Assert.assertTrue(e.getCause() instanceof SQLException);
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ *
+ * @author prasad mokkapati - prasadm80@gmail.com
+ */
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+import org.junit.*;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+
+import com.tengo.sqldb.*;
+
+public class LazyListTest {
+    private MemoryMetrics _metrics = null;
+    private DBManager _mgr = null;
+
+    @Before
+    public void init() throws Exception {
+        _metrics = new MemoryMetrics();
+        _mgr = Guice.createInjector(new H2Module("lazylisttest"),
+            new AbstractModule() {
+                protected void configure() {
+                    bind(Metrics.class).toInstance(_metrics);
+                }
+            }).getInstance(DBManager.class);
+        H2Module.createTables(_mgr);
+        // Account i has i logins
+        for (int i=0; i < 3; i++) {
+            Account a = new Account();
+            a.setName("a" + i);
+            _mgr.insert(a);
+            for (int j=0; j < i; j++) {
+                Login l = new Login();
+                l.setAccountId(a.getAccountId());
+                l.setUserid("u" + i + j);
+                _mgr.insert(l);
+            }
+        }
+    }
+
+    private ArrayList<AccLazyLogin> select() throws DBException {
+        ArrayList<AccLazyLogin> ret = _mgr.select(AccLazyLogin.class,
+            "select * from account order by accountid");
+        _metrics.reset();
+        return ret;
+    }
+
+    /**
+     * Returns the number of statements run since the select
+     */
+    private long queries() {
+        return _metrics.getOperations();
+    }
+
+    @Test
+    public void load() throws Exception {
+        ArrayList<AccLazyLogin> l = select();
+        Assert.assertEquals(0, queries());
+        List<Login> logins = l.get(2).getLogin();
+        Assert.assertEquals(2, logins.size());
+        Assert.assertEquals("u21", logins.get(1).getUserid());
+        Assert.assertEquals(1, queries());
+        // Loaded once
+        Assert.assertEquals(2, logins.size());
+        Assert.assertEquals(1, queries());
+    }
+
+    @Test
+    public void siblings() throws Exception {
+        ArrayList<AccLazyLogin> l = select();
+        Assert.assertEquals(1, l.get(1).getLogin().size());
+        // Lists of the other accounts were loaded by the same query
+        Assert.assertEquals(0, l.get(0).getLogin().size());
+        Assert.assertEquals(2, l.get(2).getLogin().size());
+        Assert.assertEquals(1, queries());
+    }
+
+    @Test
+    public void bulkMethods() throws Exception {
+        ArrayList<AccLazyLogin> l = select();
+        Assert.assertEquals(2, l.get(2).getLogin().stream().count());
+
+        l = select();
+        final List<String> ids = new ArrayList<String>();
+        l.get(2).getLogin().forEach(new Consumer<Login>() {
+            public void accept(Login g) {
+                ids.add(g.getUserid());
+            }
+        });
+        Assert.assertEquals(2, ids.size());
+
+        l = select();
+        List<Login> logins = l.get(2).getLogin();
+        Assert.assertTrue(logins.removeIf(new Predicate<Login>() {
+            public boolean test(Login g) {
+                return g.getUserid().equals("u20");
+            }
+        }));
+        Assert.assertEquals(1, logins.size());
+
+        l = select();
+        logins = l.get(2).getLogin();
+        logins.replaceAll(new UnaryOperator<Login>() {
+            public Login apply(Login g) {
+                g.setPassword("p");
+                return g;
+            }
+        });
+        Assert.assertEquals(2, logins.size());
+        Assert.assertEquals("p", logins.get(0).getPassword());
+
+        l = select();
+        logins = l.get(2).getLogin();
+        logins.sort(Collections.reverseOrder(new Comparator<Login>() {
+            public int compare(Login a, Login b) {
+                return a.getUserid().compareTo(b.getUserid());
+            }
+        }));
+        Assert.assertEquals(2, logins.size());
+        Assert.assertEquals("u21", logins.get(0).getUserid());
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ *
+ * @author prasad mokkapati - prasadm80@gmail.com
+ */
+import static org.junit.Assert.*;
+import org.junit.Test;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+
+import com.tengo.sqldb.DBManager;
+import com.tengo.sqldb.MemoryMetrics;
+import com.tengo.sqldb.Metrics;
+
+public class MemoryMetricsTest {
+
+    @Test
+    public void fingerprint() {
+        MemoryMetrics m = new MemoryMetrics();
+        assertEquals("select * from account where accountid = ? and name=?",
+            m.fingerprint("SELECT *  from Account\n where accountId = 12 "
+                + "and name='o''brien'"));
+        assertEquals("select * from t1 where id in (?+)",
+            m.fingerprint("select * from t1 where id in (1, 2,3)"));
+        assertEquals("insert into t (a,b) values (?+)+",
+            m.fingerprint("insert into t (a,b) values (?,?),(?,?), (?,?)"));
+    }
+
+    @Test
+    public void record() {
+        MemoryMetrics m = new MemoryMetrics();
+        long phases[] = { 1000, 2000, 30000, 4000 };
+        for (int i=0; i < 100; i++) {
+            m.record(Metrics.Operation.select, String.class, 
+                "select * from t where id=" + i, phases, 2, 0, null);
+        }
+        m.record(Metrics.Operation.insert, String.class, "insert into t",
+            phases, 0, 5, Metrics.DUPLICATE);
+        assertEquals(101, m.getOperations());
+        assertEquals(1, m.getErrors());
+        assertEquals(200, m.getRowsMapped());
+        assertEquals(2, m.getSeriesCount());
+        MemoryMetrics.Series s = m.getSeries().get(1);
+        assertEquals(Metrics.Operation.select, s.getOperation());
+        MemoryMetrics.Histogram h = s.getPhase(Metrics.Phase.execute);
+        assertEquals(100, h.getCount());
+        assertTrue(h.getQuantile(0.99) >= 30000 
+            && h.getQuantile(0.99) < 65536);
+        String text = m.export();
+        assertTrue(text.contains("sqldb_errors_total{op=\"insert\","
+            + "bean=\"java.lang.String\",sql=\"insert into t\","
+            + "category=\"duplicate\"} 1"));
+    }
+
+    @Test
+    public void getRows() throws Exception {
+        final MemoryMetrics m = new MemoryMetrics();
+        DBManager mgr = Guice.createInjector(new H2Module("metricstest"),
+            new AbstractModule() {
+                protected void configure() {
+                    bind(Metrics.class).toInstance(m);
+                }
+            }).getInstance(DBManager.class);
+        H2Module.createTables(mgr);
+        Account a = new Account();
+        a.setName("a");
+        mgr.insert(a);
+        m.reset();
+        mgr.get(a);
+        assertEquals(1, m.getRowsMapped());
+        // No row, the bean passed in is returned
+        Account b = new Account();
+        b.setAccountId(a.getAccountId() + 1);
+        assertSame(b, mgr.get(b));
+        assertEquals(1, m.getRowsMapped());
+    }
+}
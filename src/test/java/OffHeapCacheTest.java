@@ -0,0 +1,64 @@
+/*
+ *
+ * @author prasad mokkapati - prasadm80@gmail.com
+ */
+import java.util.Date;
+import org.junit.*;
+
+import com.tengo.sqldb.*;
+
+public class OffHeapCacheTest {
+
+    private Account newAccount(long id) {
+        Account a = new Account();
+        a.setAccountId(id);
+        a.setName("Merchant " + id);
+        a.setAccountType(Account.AccountType.Merchant);
+        a.setTelNum(null);
+        a.setCreated(new Date(1000000L + id));
+        a.setBalance(id * 1.5);
+        a.setLanguage(Account.Language.Spanish);
+        return a;
+    }
+
+    @Test
+    public void doPutGetTest() throws Exception {
+        OffHeapCache<Account> cache =
+            new OffHeapCache<Account>(Account.class, 4096, 4);
+        Assert.assertTrue(cache.put(newAccount(1)));
+        Account a = cache.getByKey(Long.valueOf(1));
+        Assert.assertNotNull(a);
+        Assert.assertEquals(1, a.getAccountId());
+        Assert.assertEquals("Merchant 1", a.getName());
+        Assert.assertNull(a.getTelNum());
+        Assert.assertEquals(1.5, a.getBalance(), 0);
+        Assert.assertEquals(Account.Language.Spanish, a.getLanguage());
+        Assert.assertEquals(new Date(1000001L), a.getCreated());
+        Assert.assertNull(cache.getByKey(Long.valueOf(2)));
+
+        Account u = newAccount(1);
+        u.setName("Renamed");
+        cache.put(u);
+        Assert.assertEquals(1, cache.size());
+        Assert.assertEquals("Renamed", cache.get(u).getName());
+        Assert.assertTrue(cache.remove(u));
+        Assert.assertNull(cache.get(u));
+        Assert.assertEquals(0, cache.getLiveBytes());
+    }
+
+    @Test
+    public void doEvictionTest() throws Exception {
+        OffHeapCache<Account> cache =
+            new OffHeapCache<Account>(Account.class, 4096, 4);
+        for (long i=0; i < 10000; i++) {
+            cache.put(newAccount(i));
+        }
+        Assert.assertTrue(cache.getEvictions() > 0);
+        Assert.assertTrue(cache.getAllocatedBytes() <= cache.getCapacity());
+        Assert.assertEquals(10000 - cache.getEvictions(), cache.size());
+        // Most recent entries survive eviction
+        Assert.assertEquals("Merchant 9999",
+            cache.getByKey(Long.valueOf(9999)).getName());
+        Assert.assertNull(cache.getByKey(Long.valueOf(0)));
+    }
+}
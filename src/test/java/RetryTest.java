@@ -0,0 +1,150 @@
+/*
+ *
+ * @author prasad mokkapati - prasadm80@gmail.com
+ */
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.*;
+import com.google.inject.Guice;
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+
+import com.tengo.sqldb.*;
+import com.tengo.sqldb.inject.module.TransactionModule;
+
+public class RetryTest {
+    /**
+     * Transactional methods that fail a number of times
+     */
+    public static class Service {
+        @Inject DBManager _mgr;
+        final AtomicInteger _attempts = new AtomicInteger();
+
+        private void insert() throws DBException {
+            Account a = new Account();
+            a.setName("attempt" + _attempts.incrementAndGet());
+            _mgr.insert(a);
+        }
+
+        @Transactional(maxAttempts=3, backoff=1)
+        public void conflictTwice() throws Exception {
+            insert();
+            if ( _attempts.get() < 3 ) {
+                throw new ConflictException("conflict");
+            }
+        }
+
+        @Transactional(maxAttempts=3, backoff=1)
+        public void conflictAlways() throws Exception {
+            insert();
+            throw new ConflictException("conflict");
+        }
+
+        @Transactional(maxAttempts=3, backoff=1)
+        public void deadlockOnce() throws Exception {
+            insert();
+            if ( _attempts.get() < 2 ) {
+                // Serialization failure of the driver
+                throw new SQLException("deadlock", "40001");
+            }
+        }
+
+        @Transactional(maxAttempts=3, backoff=1)
+        public void fail(Exception e) throws Exception {
+            insert();
+            throw e;
+        }
+    }
+
+    private DBManager _mgr = null;
+    private Service _service = null;
+
+    @Before
+    public void init() throws Exception {
+        Injector inj = Guice.createInjector(new H2Module("retrytest"),
+            new TransactionModule());
+        _mgr = inj.getInstance(DBManager.class);
+        H2Module.createTables(_mgr);
+        _service = inj.getInstance(Service.class);
+    }
+
+    private long count() throws DBException {
+        return _mgr.get(Long.class, "select count(*) from account");
+    }
+
+    @Test
+    public void retry() throws Exception {
+        long retries = TransactionalInterceptor.getRetries();
+        long successes = TransactionalInterceptor.getRetrySuccesses();
+        _service.conflictTwice();
+        Assert.assertEquals(3, _service._attempts.get());
+        Assert.assertEquals(retries + 2, TransactionalInterceptor.getRetries());
+        Assert.assertEquals(successes + 1,
+            TransactionalInterceptor.getRetrySuccesses());
+        // Only the last attempt was committed
+        Assert.assertEquals(Long.valueOf(1), _mgr.get(Long.class,
+            "select count(*) from account where name = 'attempt3'"));
+        Assert.assertEquals(1, count());
+    }
+
+    @Test
+    public void retrySqlState() throws Exception {
+        _service.deadlockOnce();
+        Assert.assertEquals(2, _service._attempts.get());
+        Assert.assertEquals(1, count());
+    }
+
+    @Test
+    public void exhausted() throws Exception {
+        long failures = TransactionalInterceptor.getRetryFailures();
+        try {
+            _service.conflictAlways();
+            Assert.fail();
+        }
+        catch (ConflictException e) {
+        }
+        Assert.assertEquals(3, _service._attempts.get());
+        Assert.assertEquals(failures + 1,
+            TransactionalInterceptor.getRetryFailures());
+        Assert.assertEquals(0, count());
+    }
+
+    @Test
+    public void rethrows() throws Exception {
+        IllegalStateException ex = new IllegalStateException("fail");
+        try {
+            _service.fail(ex);
+            Assert.fail();
+        }
+        catch (IllegalStateException e) {
+            Assert.assertSame(ex, e);
+        }
+        // Not retryable, run once and rolled back
+        Assert.assertEquals(1, _service._attempts.get());
+        Assert.assertEquals(0, count());
+        Assert.assertNull(TransactionContext.current());
+    }
+
+    @Test
+    public void dialects() {
+        Assert.assertTrue(Dialect.MySQL.isRetryable(
+            new SQLException("deadlock", "40001", 1213)));
+        Assert.assertTrue(Dialect.MySQL.isRetryable(
+            new SQLException("lock wait timeout", "HY000", 1205)));
+        Assert.assertFalse(Dialect.MySQL.isRetryable(
+            new SQLException("duplicate", "23000", 1062)));
+        Assert.assertTrue(Dialect.PostgreSQL.isRetryable(
+            new SQLException("deadlock", "40P01")));
+        Assert.assertFalse(Dialect.PostgreSQL.isRetryable(
+            new SQLException("unique", "23505")));
+        Assert.assertTrue(Dialect.Generic.isRetryable(
+            new SQLException("rollback", "40002")));
+        // Causes are searched
+        Assert.assertTrue(Dialect.Generic.isRetryable(new RuntimeException(
+            new SQLException("deadlock", "40001"))));
+        Assert.assertTrue(Dialect.Generic.isRetryable(
+            new ConflictException("conflict")));
+        Assert.assertFalse(Dialect.Generic.isRetryable(
+            new DBException("other")));
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ *
+ * @author prasad mokkapati - prasadm80@gmail.com
+ */
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+import javax.sql.DataSource;
+
+/**
+ * Data source that wraps the connections of another one and records their
+ * read only flag, isolation level and auto commit when statements are
+ * created and when they are closed, the query timeouts of statements, and
+ * the parameters of each batched or executed row.
+ * Read only and isolation are kept by the wrapper, like a pool of a
+ * replica would hand them out, and are not passed to the database.
+ */
+public class TrackingDataSource implements DataSource {
+    private final DataSource _ds;
+    private boolean _readOnly = false;
+    private int _isolation = Connection.TRANSACTION_READ_COMMITTED;
+    private int _opened = 0;
+    private final List<String> _used =
+        Collections.synchronizedList(new ArrayList<String>());
+    private final List<String> _released =
+        Collections.synchronizedList(new ArrayList<String>());
+    private final List<Integer> _timeouts =
+        Collections.synchronizedList(new ArrayList<Integer>());
+    private final List<String> _sets =
+        Collections.synchronizedList(new ArrayList<String>());
+    private final List<List<Object>> _rows =
+        Collections.synchronizedList(new ArrayList<List<Object>>());
+    private final List<Integer> _batches =
+        Collections.synchronizedList(new ArrayList<Integer>());
+
+    public TrackingDataSource(DataSource ds) {
+        _ds = ds;
+    }
+
+    /**
+     * Sets the state of connections handed out from now on
+     */
+    public void setDefaults(boolean readOnly, int isolation) {
+        _readOnly = readOnly;
+        _isolation = isolation;
+    }
+
+    public synchronized int getOpened() {
+        return _opened;
+    }
+
+    public int getOpen() {
+        return getOpened() - _released.size();
+    }
+
+    /**
+     * State of connections when statements were created, as
+     * "readOnly isolation autoCommit"
+     */
+    public List<String> getUsed() {
+        return _used;
+    }
+
+    /**
+     * State of connections when they were closed
+     */
+    public List<String> getReleased() {
+        return _released;
+    }
+
+    public List<Integer> getTimeouts() {
+        return _timeouts;
+    }
+
+    /**
+     * Calls of setReadOnly and setTransactionIsolation
+     */
+    public List<String> getSets() {
+        return _sets;
+    }
+
+    /**
+     * Parameters of prepared statements, in the order of their index, at
+     * each addBatch and each execute without a batch
+     */
+    public List<List<Object>> getRows() {
+        return _rows;
+    }
+
+    /**
+     * Number of rows of each executed batch
+     */
+    public List<Integer> getBatches() {
+        return _batches;
+    }
+
+    public void clear() {
+        synchronized (this) {
+            _opened = 0;
+        }
+        _used.clear();
+        _released.clear();
+        _timeouts.clear();
+        _sets.clear();
+        _rows.clear();
+        _batches.clear();
+    }
+
+    public static String state(boolean readOnly, int isolation,
+            boolean autoCommit) {
+        return readOnly + " " + isolation + " " + autoCommit;
+    }
+
+    private static Object call(Object o, Method m, Object[] args)
+            throws Throwable {
+        try {
+            return m.invoke(o, args);
+        }
+        catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    private Connection wrap(final Connection c) {
+        synchronized (this) {
+            _opened++;
+        }
+        final boolean ro[] = { _readOnly };
+        final int iso[] = { _isolation };
+        return (Connection)Proxy.newProxyInstance(
+            getClass().getClassLoader(), new Class<?>[] { Connection.class },
+            new InvocationHandler() {
+                public Object invoke(Object p, Method m, Object[] args)
+                        throws Throwable {
+                    String n = m.getName();
+                    if ( n.equals("setReadOnly") ) {
+                        _sets.add(n + " " + args[0]);
+                        ro[0] = (Boolean)args[0];
+                        return null;
+                    }
+                    if ( n.equals("isReadOnly") ) {
+                        return ro[0];
+                    }
+                    if ( n.equals("setTransactionIsolation") ) {
+                        _sets.add(n + " " + args[0]);
+                        iso[0] = (Integer)args[0];
+                        return null;
+                    }
+                    if ( n.equals("getTransactionIsolation") ) {
+                        return iso[0];
+                    }
+                    if ( n.equals("close") && !c.isClosed() ) {
+                        _released.add(state(ro[0], iso[0],
+                            c.getAutoCommit()));
+                    }
+                    Object ret = call(c, m, args);
+                    if ( ret instanceof Statement ) {
+                        _used.add(state(ro[0], iso[0], c.getAutoCommit()));
+                        ret = wrap((Statement)ret, m.getReturnType());
+                    }
+                    return ret;
+                }
+            });
+    }
+
+    private Object wrap(final Statement s, Class<?> type) {
+        return Proxy.newProxyInstance(getClass().getClassLoader(),
+            new Class<?>[] { type }, new InvocationHandler() {
+                private TreeMap<Integer, Object> _params =
+                    new TreeMap<Integer, Object>();
+                private int _batch = 0;
+
+                public Object invoke(Object p, Method m, Object[] args)
+                        throws Throwable {
+                    String n = m.getName();
+                    if ( n.equals("setQueryTimeout") ) {
+                        _timeouts.add((Integer)args[0]);
+                    }
+                    else if ( n.startsWith("set") && args != null
+                            && args.length >= 2
+                            && args[0] instanceof Integer ) {
+                        _params.put((Integer)args[0],
+                            n.equals("setNull") ? null : args[1]);
+                    }
+                    else if ( n.equals("addBatch") && args == null ) {
+                        _rows.add(new ArrayList<Object>(_params.values()));
+                        _batch++;
+                    }
+                    else if ( n.equals("executeBatch") ) {
+                        _batches.add(_batch);
+                        _batch = 0;
+                    }
+                    else if ( n.startsWith("execute") && args == null ) {
+                        _rows.add(new ArrayList<Object>(_params.values()));
+                    }
+                    return call(s, m, args);
+                }
+            });
+    }
+
+    public Connection getConnection() throws SQLException {
+        return wrap(_ds.getConnection());
+    }
+
+    public Connection getConnection(String user, String password)
+            throws SQLException {
+        return wrap(_ds.getConnection(user, password));
+    }
+
+    public PrintWriter getLogWriter() throws SQLException {
+        return _ds.getLogWriter();
+    }
+
+    public void setLogWriter(PrintWriter out) throws SQLException {
+        _ds.setLogWriter(out);
+    }
+
+    public void setLoginTimeout(int seconds) throws SQLException {
+        _ds.setLoginTimeout(seconds);
+    }
+
+    public int getLoginTimeout() throws SQLException {
+        return _ds.getLoginTimeout();
+    }
+
+    public Logger getParentLogger() {
+        return Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+    }
+
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        return _ds.unwrap(iface);
+    }
+
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        return _ds.isWrapperFor(iface);
+    }
+}
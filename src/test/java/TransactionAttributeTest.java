@@ -0,0 +1,159 @@
+/*
+ *
+ * @author prasad mokkapati - prasadm80@gmail.com
+ */
+import java.sql.Connection;
+import java.util.Arrays;
+import org.junit.*;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+
+import com.tengo.sqldb.*;
+import com.tengo.sqldb.inject.module.TransactionModule;
+
+public class TransactionAttributeTest {
+    private static final int COMMITTED = Connection.TRANSACTION_READ_COMMITTED;
+    private static final int SERIALIZABLE =
+        Connection.TRANSACTION_SERIALIZABLE;
+
+    /**
+     * Transactional methods with read only, isolation and timeout
+     */
+    public static class Service {
+        @Inject DBManager _mgr;
+
+        private long count() throws DBException {
+            return _mgr.get(Long.class, "select count(*) from account");
+        }
+
+        @Transactional
+        public long plain() throws Exception {
+            return count();
+        }
+
+        @Transactional(readOnly=true)
+        public long readOnly() throws Exception {
+            return count();
+        }
+
+        @Transactional(isolation=Transactional.Isolation.SERIALIZABLE)
+        public long serializable() throws Exception {
+            return count();
+        }
+
+        @Transactional(isolation=Transactional.Isolation.READ_COMMITTED)
+        public long readCommitted() throws Exception {
+            return count();
+        }
+
+        @Transactional(timeout=5)
+        public long timeout() throws Exception {
+            return count();
+        }
+
+        @Transactional(timeout=1)
+        public long timeoutAfter(long millis) throws Exception {
+            Thread.sleep(millis);
+            return count();
+        }
+    }
+
+    private TrackingDataSource _ds = null;
+    private Service _service = null;
+
+    @Before
+    public void init() throws Exception {
+        H2Module h2 = new H2Module("transactionattributetest");
+        _ds = new TrackingDataSource(h2.getDataSource());
+        Injector inj = Guice.createInjector(new AbstractModule() {
+                protected void configure() {
+                    bind(javax.sql.DataSource.class).toInstance(_ds);
+                }
+            }, new TransactionModule());
+        H2Module.createTables(inj.getInstance(DBManager.class));
+        _service = inj.getInstance(Service.class);
+        _ds.clear();
+    }
+
+    private static String state(boolean readOnly, int isolation,
+            boolean autoCommit) {
+        return TrackingDataSource.state(readOnly, isolation, autoCommit);
+    }
+
+    @Test
+    public void readOnly() throws Exception {
+        Assert.assertEquals(0, _service.readOnly());
+        Assert.assertEquals(Arrays.asList(state(true, COMMITTED, false)),
+            _ds.getUsed());
+        Assert.assertEquals(Arrays.asList(state(false, COMMITTED, true)),
+            _ds.getReleased());
+        Assert.assertEquals(0, _ds.getOpen());
+    }
+
+    /**
+     * Connections of a read only pool, like a replica, stay read only
+     */
+    @Test
+    public void readOnlyPool() throws Exception {
+        _ds.setDefaults(true, COMMITTED);
+        _service.readOnly();
+        _service.plain();
+        Assert.assertEquals(Arrays.asList(state(true, COMMITTED, true),
+            state(true, COMMITTED, true)), _ds.getReleased());
+        Assert.assertTrue(_ds.getSets().toString(), _ds.getSets().isEmpty());
+    }
+
+    @Test
+    public void plain() throws Exception {
+        _service.plain();
+        Assert.assertEquals(Arrays.asList(state(false, COMMITTED, false)),
+            _ds.getUsed());
+        Assert.assertEquals(Arrays.asList(state(false, COMMITTED, true)),
+            _ds.getReleased());
+        Assert.assertTrue(_ds.getSets().isEmpty());
+    }
+
+    @Test
+    public void isolation() throws Exception {
+        _service.serializable();
+        Assert.assertEquals(Arrays.asList(state(false, SERIALIZABLE, false)),
+            _ds.getUsed());
+        Assert.assertEquals(Arrays.asList(state(false, COMMITTED, true)),
+            _ds.getReleased());
+
+        // Level of the connection is not set again
+        _ds.clear();
+        _service.readCommitted();
+        Assert.assertEquals(Arrays.asList(state(false, COMMITTED, true)),
+            _ds.getReleased());
+        Assert.assertTrue(_ds.getSets().isEmpty());
+    }
+
+    @Test
+    public void queryTimeout() throws Exception {
+        _service.plain();
+        Assert.assertTrue(_ds.getTimeouts().isEmpty());
+
+        _service.timeout();
+        Assert.assertEquals(1, _ds.getTimeouts().size());
+        int t = _ds.getTimeouts().get(0);
+        Assert.assertTrue("" + t, t > 0 && t <= 5);
+    }
+
+    @Test
+    public void timedOut() throws Exception {
+        try {
+            _service.timeoutAfter(1100);
+            Assert.fail();
+        }
+        catch (DBException e) {
+            Assert.assertTrue(e.getMessage(),
+                e.getMessage().contains("timed out"));
+        }
+        // Rolled back and released
+        Assert.assertEquals(0, _ds.getOpen());
+        Assert.assertNull(TransactionContext.current());
+    }
+}
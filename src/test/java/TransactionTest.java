@@ -2,34 +2,250 @@
  *
  * @author prasad mokkapati - prasadm80@gmail.com
  */
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.sql.DataSource;
+import org.junit.*;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
 import com.google.inject.Inject;
+import com.google.inject.Injector;
 
 import com.tengo.sqldb.*;
 import com.tengo.sqldb.inject.module.TransactionModule;
 
 public class TransactionTest {
+    /**
+     * Transactional methods used by AccountTest with the MySQL database
+     */
+    public static class Service {
+        private DBManager _mgr = null;
+
+        @Inject
+        public Service(DBManager mgr) {
+            _mgr = mgr;
+        }
+
+        @Transactional
+        public void updateAccount() throws Exception {
+            Account c = _mgr.get(Account.class,
+                "select * from Account where accountId = 1 ");
+            c.setBalance(c.getBalance() + 10);
+            _mgr.update(c);
+        }
+        @Transactional
+        public void updateAccountFail() throws Exception {
+            Account c = _mgr.get(Account.class,
+                "select * from Account where accountId = 1 ");
+            c.setBalance(-99);
+            _mgr.update(c);
+            c = _mgr.get(Account.class,
+                "select * from Account where accountId = 1 ");
+            throw new Exception("Test");
+        }
+    }
+
+    /**
+     * Transactional methods called from the methods of Tasks
+     */
+    public static class Nested {
+        @Inject DBManager _mgr;
+
+        @Transactional
+        public void insertAndFail(String name) throws Exception {
+            insert(_mgr, name);
+            throw new IllegalStateException("nested " + name);
+        }
+    }
+
+    /**
+     * Transactional methods that run work on other threads
+     */
+    public static class Tasks {
+        @Inject DBManager _mgr;
+        @Inject Nested _nested;
+        final ExecutorService _pool = Executors.newFixedThreadPool(4);
+
+        @Transactional
+        public void insertInTasks(int n, boolean fail) throws Exception {
+            ArrayList<Future<Object>> l = new ArrayList<Future<Object>>();
+            for (int i=0; i < n; i++) {
+                final String name = "task" + i;
+                l.add(_pool.submit(TransactionContext.capture(
+                    new Callable<Object>() {
+                        public Object call() throws Exception {
+                            insert(_mgr, name);
+                            return null;
+                        }
+                    })));
+            }
+            for (Future<Object> f: l) {
+                f.get();
+            }
+            if ( fail ) {
+                throw new IllegalStateException("fail");
+            }
+        }
+
+        @Transactional
+        public void insertLater() throws Exception {
+            final CountDownLatch started = new CountDownLatch(1);
+            _pool.submit(TransactionContext.capture(new Callable<Object>() {
+                public Object call() throws Exception {
+                    started.countDown();
+                    Thread.sleep(300);
+                    insert(_mgr, "later");
+                    return null;
+                }
+            }));
+            // Returns while the task is running
+            started.await();
+        }
+
+        @Transactional
+        public void nestedFailOnWorker() throws Exception {
+            insert(_mgr, "outer");
+            Future<Object> f = _pool.submit(TransactionContext.capture(
+                new Callable<Object>() {
+                    public Object call() throws Exception {
+                        _nested.insertAndFail("worker");
+                        return null;
+                    }
+                }));
+            try {
+                f.get();
+                Assert.fail("nested call did not fail");
+            }
+            catch (ExecutionException e) {
+                // Handled, the transaction is still rolled back
+            }
+        }
+
+        @Transactional
+        public void nestedFailCaught() throws Exception {
+            insert(_mgr, "outer");
+            try {
+                _nested.insertAndFail("inner");
+            }
+            catch (IllegalStateException e) {
+                // Handled, the transaction is still rolled back
+            }
+        }
+
+        @Transactional
+        public void taskFailCaught() throws Exception {
+            insert(_mgr, "outer");
+            Future<Object> f = _pool.submit(TransactionContext.capture(
+                new Callable<Object>() {
+                    public Object call() throws Exception {
+                        throw new IllegalStateException("task");
+                    }
+                }));
+            try {
+                f.get();
+            }
+            catch (ExecutionException e) {
+                // Handled, the transaction is still rolled back
+            }
+        }
+    }
+
+    private Injector _inj = null;
     private DBManager _mgr = null;
+    private Tasks _tasks = null;
+
+    static void insert(DBManager mgr, String name) throws DBException {
+        Account a = new Account();
+        a.setName(name);
+        mgr.insert(a);
+    }
+
+    @Before
+    public void init() throws Exception {
+        final org.h2.jdbcx.JdbcDataSource ds =
+            new org.h2.jdbcx.JdbcDataSource();
+        ds.setURL("jdbc:h2:mem:transactiontest;DB_CLOSE_DELAY=-1");
+        _inj = Guice.createInjector(new AbstractModule() {
+                protected void configure() {
+                    bind(DataSource.class).toInstance(ds);
+                }
+            }, new TransactionModule());
+        _mgr = _inj.getInstance(DBManager.class);
+        _mgr.executeSQL("drop table if exists account");
+        _mgr.executeSQL("create table account(accountid bigint "
+            + "auto_increment primary key, accounttype int, "
+            + "name varchar(50), telnum varchar(20), created timestamp, "
+            + "balance double, language int, status int)");
+        _tasks = _inj.getInstance(Tasks.class);
+    }
+
+    @After
+    public void shutdown() {
+        if ( _tasks != null ) {
+            _tasks._pool.shutdownNow();
+        }
+    }
+
+    private long count() throws DBException {
+        return _mgr.get(Long.class, "select count(*) from account");
+    }
+
+    @Test(timeout=10000)
+    public void propagation() throws Exception {
+        _tasks.insertInTasks(4, false);
+        Assert.assertEquals(4, count());
+        try {
+            _tasks.insertInTasks(4, true);
+            Assert.fail();
+        }
+        catch (IllegalStateException e) {
+        }
+        Assert.assertEquals(4, count());
+        Assert.assertNull(TransactionContext.current());
+    }
+
+    @Test(timeout=10000)
+    public void commitWaitsForTasks() throws Exception {
+        _tasks.insertLater();
+        Assert.assertEquals(1, count());
+    }
+
+    @Test(timeout=10000)
+    public void nestedFailureOnWorker() throws Exception {
+        try {
+            _tasks.nestedFailOnWorker();
+            Assert.fail();
+        }
+        catch (DBException e) {
+        }
+        Assert.assertEquals(0, count());
+        Assert.assertNull(TransactionContext.current());
+    }
+
+    @Test(timeout=10000)
+    public void nestedFailureCaught() throws Exception {
+        try {
+            _tasks.nestedFailCaught();
+            Assert.fail();
+        }
+        catch (DBException e) {
+        }
+        Assert.assertEquals(0, count());
+    }
 
-    @Inject
-    public TransactionTest(DBManager mgr) {
-        _mgr = mgr;
-    }
-
-    @Transactional
-    public void updateAccount() throws Exception {
-        Account c = _mgr.get(Account.class, 
-            "select * from Account where accountId = 1 ");
-        c.setBalance(c.getBalance() + 10);
-        _mgr.update(c);
-    }
-    @Transactional
-    public void updateAccountFail() throws Exception {
-        Account c = _mgr.get(Account.class, 
-            "select * from Account where accountId = 1 ");
-        c.setBalance(-99);
-        _mgr.update(c);
-        c = _mgr.get(Account.class, 
-            "select * from Account where accountId = 1 ");
-        throw new Exception("Test");
+    @Test(timeout=10000)
+    public void taskFailure() throws Exception {
+        try {
+            _tasks.taskFailCaught();
+            Assert.fail();
+        }
+        catch (DBException e) {
+        }
+        Assert.assertEquals(0, count());
     }
 }
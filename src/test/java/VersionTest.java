@@ -0,0 +1,297 @@
+/*
+ *
+ * @author prasad mokkapati - prasadm80@gmail.com
+ */
+import java.util.Arrays;
+import java.util.List;
+import org.junit.*;
+import com.google.inject.Guice;
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+
+import com.tengo.sqldb.*;
+import com.tengo.sqldb.inject.module.TransactionModule;
+
+public class VersionTest {
+    /**
+     * Account with a version
+     */
+    @Table(name="vaccount")
+    public static class VerAccount {
+        private long _id;
+        private String _name;
+        private double _balance;
+        private int _ver;
+
+        @Id
+        public long getId() { return _id; }
+        public void setId(long id) { _id = id; }
+
+        public String getName() { return _name; }
+        public void setName(String v) { _name = v; }
+
+        public double getBalance() { return _balance; }
+        public void setBalance(double v) { _balance = v; }
+
+        @Version
+        public int getVer() { return _ver; }
+        public void setVer(int v) { _ver = v; }
+    }
+
+    /**
+     * Account with a version that may be null
+     */
+    @Table(name="vaccount")
+    public static class NullVerAccount {
+        private long _id;
+        private String _name;
+        private double _balance;
+        private Integer _ver;
+
+        @Id
+        public long getId() { return _id; }
+        public void setId(long id) { _id = id; }
+
+        public String getName() { return _name; }
+        public void setName(String v) { _name = v; }
+
+        public double getBalance() { return _balance; }
+        public void setBalance(double v) { _balance = v; }
+
+        @Version
+        public Integer getVer() { return _ver; }
+        public void setVer(Integer v) { _ver = v; }
+    }
+
+    /**
+     * Adds to the balance
+     */
+    static class Deposit implements Change<VerAccount> {
+        int _applied = 0;
+
+        public void apply(VerAccount a) {
+            a.setBalance(a.getBalance() + 10);
+            _applied++;
+        }
+    }
+
+    public static class Service {
+        @Inject DBManager _mgr;
+
+        @Transactional(bufferWrites=true)
+        public VerAccount deposit(VerAccount a, Deposit d) throws Exception {
+            return _mgr.update(a, d, 3);
+        }
+
+        @Transactional(bufferWrites=true)
+        public void depositAfter(VerAccount stale, VerAccount a, Deposit d)
+                throws Exception {
+            stale.setName("stale");
+            _mgr.update(stale);
+            _mgr.update(a, d, 3);
+        }
+    }
+
+    private DBManager _mgr = null;
+    private Service _service = null;
+
+    @Before
+    public void init() throws Exception {
+        Injector inj = Guice.createInjector(new H2Module("versiontest"),
+            new TransactionModule());
+        _mgr = inj.getInstance(DBManager.class);
+        _mgr.executeSQL("drop table if exists vaccount");
+        _mgr.executeSQL("create table vaccount(id bigint auto_increment "
+            + "primary key, name varchar(50), balance double, ver int)");
+        _service = inj.getInstance(Service.class);
+    }
+
+    private VerAccount insert(String name) throws DBException {
+        VerAccount a = new VerAccount();
+        a.setName(name);
+        _mgr.insert(a);
+        return a;
+    }
+
+    private VerAccount read(long id) throws DBException {
+        VerAccount a = new VerAccount();
+        a.setId(id);
+        return _mgr.get(a);
+    }
+
+    /**
+     * Changes the row behind the back of a
+     */
+    private void change(VerAccount a) throws DBException {
+        VerAccount b = read(a.getId());
+        b.setBalance(b.getBalance() + 100);
+        _mgr.update(b);
+    }
+
+    @Test
+    public void update() throws Exception {
+        VerAccount a = insert("a");
+        Assert.assertEquals(0, a.getVer());
+        a.setName("b");
+        Assert.assertEquals(1, _mgr.update(a));
+        Assert.assertEquals(1, a.getVer());
+
+        change(a);
+        a.setName("c");
+        try {
+            _mgr.update(a);
+            Assert.fail();
+        }
+        catch (ConflictException e) {
+            Assert.assertTrue(e.isRetryable());
+        }
+        Assert.assertEquals(1, a.getVer());
+        Assert.assertEquals("b", read(a.getId()).getName());
+    }
+
+    @Test
+    public void delete() throws Exception {
+        VerAccount a = insert("a");
+        change(a);
+        try {
+            _mgr.delete(a);
+            Assert.fail();
+        }
+        catch (ConflictException e) {
+        }
+        Assert.assertEquals(1, read(a.getId()).getVer());
+        a.setVer(1);
+        Assert.assertEquals(1, _mgr.delete(a));
+    }
+
+    @Test
+    public void bulkUpdate() throws Exception {
+        List<VerAccount> l = Arrays.asList(insert("a"), insert("b"),
+            insert("c"));
+        change(l.get(1));
+        for (VerAccount a: l) {
+            a.setName(a.getName() + "2");
+        }
+        try {
+            _mgr.bulkUpdate(l);
+            Assert.fail();
+        }
+        catch (ConflictException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().startsWith(
+                "1 of 3 updates"));
+        }
+        // The other rows are updated and get their new versions
+        Assert.assertEquals(1, l.get(0).getVer());
+        Assert.assertEquals(0, l.get(1).getVer());
+        Assert.assertEquals(1, l.get(2).getVer());
+        Assert.assertEquals("a2", read(l.get(0).getId()).getName());
+        Assert.assertEquals("b", read(l.get(1).getId()).getName());
+    }
+
+    @Test
+    public void bulkDelete() throws Exception {
+        List<VerAccount> l = Arrays.asList(insert("a"), insert("b"),
+            insert("c"));
+        change(l.get(2));
+        try {
+            _mgr.bulkDelete(l);
+            Assert.fail();
+        }
+        catch (ConflictException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().startsWith(
+                "1 of 3 deletes"));
+        }
+        Assert.assertEquals(Long.valueOf(1), _mgr.get(Long.class,
+            "select count(*) from vaccount"));
+    }
+
+    @Test
+    public void nullVersion() throws Exception {
+        NullVerAccount a = new NullVerAccount();
+        a.setName("a");
+        Assert.assertNull(a.getVer());
+        _mgr.insert(a);
+        Assert.assertEquals(Integer.valueOf(0), a.getVer());
+        Assert.assertEquals(0, read(a.getId()).getVer());
+        a.setName("b");
+        Assert.assertEquals(1, _mgr.update(a));
+        Assert.assertEquals(Integer.valueOf(1), a.getVer());
+    }
+
+    @Test
+    public void retry() throws Exception {
+        VerAccount a = insert("a");
+        change(a);
+        Deposit d = new Deposit();
+        VerAccount ret = _mgr.update(a, d, 3);
+        Assert.assertNotSame(a, ret);
+        Assert.assertEquals(2, d._applied);
+        Assert.assertEquals(110, ret.getBalance(), 0);
+        Assert.assertEquals(2, ret.getVer());
+        Assert.assertEquals(110, read(a.getId()).getBalance(), 0);
+
+        // Up to date, applied once
+        d = new Deposit();
+        Assert.assertSame(ret, _mgr.update(ret, d, 3));
+        Assert.assertEquals(1, d._applied);
+    }
+
+    @Test
+    public void retryExhausted() throws Exception {
+        VerAccount a = insert("a");
+        change(a);
+        Deposit d = new Deposit();
+        try {
+            _mgr.update(a, d, 1);
+            Assert.fail();
+        }
+        catch (ConflictException e) {
+        }
+        Assert.assertEquals(1, d._applied);
+
+        // Deleted rows are not retried
+        _mgr.executeSQL("delete from vaccount");
+        d = new Deposit();
+        try {
+            _mgr.update(a, d, 3);
+            Assert.fail();
+        }
+        catch (ConflictException e) {
+        }
+        Assert.assertEquals(1, d._applied);
+    }
+
+    /**
+     * The update of a transaction that buffers writes is flushed, so the
+     * conflict is retried before the transaction commits
+     */
+    @Test
+    public void retryBuffered() throws Exception {
+        VerAccount a = insert("a");
+        change(a);
+        Deposit d = new Deposit();
+        VerAccount ret = _service.deposit(a, d);
+        Assert.assertEquals(2, d._applied);
+        Assert.assertEquals(110, ret.getBalance(), 0);
+        Assert.assertEquals(110, read(a.getId()).getBalance(), 0);
+    }
+
+    /**
+     * Conflicts of writes buffered before the update are not retried
+     */
+    @Test
+    public void bufferedBefore() throws Exception {
+        VerAccount stale = insert("stale");
+        change(stale);
+        VerAccount a = insert("a");
+        Deposit d = new Deposit();
+        try {
+            _service.depositAfter(stale, a, d);
+            Assert.fail();
+        }
+        catch (ConflictException e) {
+        }
+        Assert.assertEquals(0, d._applied);
+        Assert.assertEquals(0, read(a.getId()).getBalance(), 0);
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ *
+ * @author prasad mokkapati - prasadm80@gmail.com
+ */
+import java.util.ArrayList;
+import java.util.Arrays;
+import javax.sql.DataSource;
+import org.junit.*;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+
+import com.tengo.sqldb.*;
+import com.tengo.sqldb.inject.module.TransactionModule;
+
+public class WriteBufferTest {
+    /**
+     * Writes run in a transaction with buffered writes
+     */
+    public interface Work {
+        void run(DBManager mgr) throws Exception;
+    }
+
+    public static class Service {
+        @Inject DBManager _mgr;
+
+        @Transactional(bufferWrites=true)
+        public void run(Work w) throws Exception {
+            w.run(_mgr);
+        }
+    }
+
+    private MemoryMetrics _metrics = null;
+    private DBManager _mgr = null;
+    private Service _service = null;
+
+    @Before
+    public void init() throws Exception {
+        final org.h2.jdbcx.JdbcDataSource ds =
+            new org.h2.jdbcx.JdbcDataSource();
+        ds.setURL("jdbc:h2:mem:writebuffertest;DB_CLOSE_DELAY=-1");
+        _metrics = new MemoryMetrics();
+        Injector inj = Guice.createInjector(new AbstractModule() {
+                protected void configure() {
+                    bind(DataSource.class).toInstance(ds);
+                    bind(Metrics.class).toInstance(_metrics);
+                }
+            }, new TransactionModule());
+        _mgr = inj.getInstance(DBManager.class);
+        _mgr.executeSQL("drop table if exists account");
+        _mgr.executeSQL("create table account(accountid bigint "
+            + "auto_increment primary key, accounttype int, "
+            + "name varchar(50) unique, telnum varchar(20), "
+            + "created timestamp, balance double, language int, status int)");
+        _service = inj.getInstance(Service.class);
+    }
+
+    private static Account account(long id, String name) {
+        Account a = new Account();
+        a.setAccountId(id);
+        a.setName(name);
+        return a;
+    }
+
+    private Account insert(String name) throws DBException {
+        Account a = account(0, name);
+        _mgr.insert(a);
+        return a;
+    }
+
+    /**
+     * Returns the number of objects written with bulk operations of op
+     * since the last call
+     */
+    private long written(Metrics.Operation op) {
+        long ret = 0;
+        for (MemoryMetrics.Series s: _metrics.getSeries()) {
+            if ( s.getOperation() == op ) {
+                ret += s.getBatch().getSum();
+            }
+        }
+        return ret;
+    }
+
+    private void reset() {
+        _metrics.reset();
+    }
+
+    private void assertWritten(long inserts, long updates, long deletes) {
+        Assert.assertEquals(inserts, written(Metrics.Operation.bulkInsert));
+        Assert.assertEquals(updates, written(Metrics.Operation.bulkUpdate));
+        Assert.assertEquals(deletes, written(Metrics.Operation.bulkDelete));
+    }
+
+    private String name(long id) throws DBException {
+        return _mgr.get(String.class,
+            "select name from account where accountid = " + id);
+    }
+
+    @Test
+    public void insertUpdate() throws Exception {
+        reset();
+        _service.run(new Work() {
+            public void run(DBManager mgr) throws Exception {
+                Account a = account(1, "a");
+                mgr.insert(a);
+                a.setName("b");
+                mgr.update(a);
+            }
+        });
+        assertWritten(1, 0, 0);
+        Assert.assertEquals("b", name(1));
+    }
+
+    @Test
+    public void insertDelete() throws Exception {
+        reset();
+        _service.run(new Work() {
+            public void run(DBManager mgr) throws Exception {
+                Account a = account(1, "a");
+                mgr.insert(a);
+                mgr.delete(a);
+            }
+        });
+        assertWritten(0, 0, 0);
+        Assert.assertNull(name(1));
+    }
+
+    @Test
+    public void updateUpdate() throws Exception {
+        final Account a = insert("a");
+        reset();
+        _service.run(new Work() {
+            public void run(DBManager mgr) throws Exception {
+                a.setName("b");
+                mgr.update(a);
+                Account b = account(a.getAccountId(), "c");
+                mgr.update(b);
+            }
+        });
+        assertWritten(0, 1, 0);
+        Assert.assertEquals("c", name(a.getAccountId()));
+    }
+
+    @Test
+    public void updateDelete() throws Exception {
+        final Account a = insert("a");
+        reset();
+        _service.run(new Work() {
+            public void run(DBManager mgr) throws Exception {
+                a.setName("b");
+                mgr.update(a);
+                mgr.delete(account(a.getAccountId(), null));
+            }
+        });
+        assertWritten(0, 0, 1);
+        Assert.assertNull(name(a.getAccountId()));
+    }
+
+    @Test
+    public void deleteInsert() throws Exception {
+        final Account a = insert("a");
+        reset();
+        _service.run(new Work() {
+            public void run(DBManager mgr) throws Exception {
+                mgr.delete(a);
+                mgr.insert(account(a.getAccountId(), "b"));
+            }
+        });
+        assertWritten(0, 1, 0);
+        Assert.assertEquals("b", name(a.getAccountId()));
+    }
+
+    @Test
+    public void deleteUpdate() throws Exception {
+        final Account a = insert("a");
+        reset();
+        _service.run(new Work() {
+            public void run(DBManager mgr) throws Exception {
+                mgr.delete(a);
+                a.setName("b");
+                mgr.update(a);
+            }
+        });
+        assertWritten(0, 0, 1);
+        Assert.assertNull(name(a.getAccountId()));
+    }
+
+    @Test
+    public void duplicateInsert() throws Exception {
+        try {
+            _service.run(new Work() {
+                public void run(DBManager mgr) throws Exception {
+                    mgr.insert(account(1, "a"));
+                    mgr.insert(account(1, "b"));
+                }
+            });
+            Assert.fail();
+        }
+        catch (DuplicateException e) {
+        }
+        Assert.assertNull(name(1));
+    }
+
+    /**
+     * A new row with a generated id takes the unique name of a deleted row
+     */
+    @Test
+    public void deleteThenInsertUnique() throws Exception {
+        final Account a = insert("a");
+        final Account b = insert("b");
+        _service.run(new Work() {
+            public void run(DBManager mgr) throws Exception {
+                mgr.delete(a);
+                mgr.insert(account(0, "a"));
+                // Deleted after the last insert, so after the inserts
+                mgr.delete(b);
+            }
+        });
+        ArrayList<Account> l = _mgr.select(Account.class,
+            "select * from account");
+        Assert.assertEquals(1, l.size());
+        Assert.assertEquals("a", l.get(0).getName());
+        Assert.assertFalse(Arrays.asList(a.getAccountId(), b.getAccountId())
+            .contains(l.get(0).getAccountId()));
+    }
+}